@@ -0,0 +1,67 @@
+package com.example;
+
+import com.example.helper.BenchmarkFileQueues;
+import com.example.helper.RecordFormat;
+import com.google.common.collect.Lists;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * QueueService backends under benchmark
+ */
+public enum Backend {
+    IN_MEMORY {
+        @Override
+        QueueService create(Path directory, Duration inVisibilityDuration) {
+            return new InMemoryQueueService(inVisibilityDuration);
+        }
+    },
+    IN_MEMORY_OFF_HEAP {
+        @Override
+        QueueService create(Path directory, Duration inVisibilityDuration) {
+            return InMemoryQueueService.builder(inVisibilityDuration).slabSize(1 << 20).build();
+        }
+    },
+    FILE {
+        @Override
+        QueueService create(Path directory, Duration inVisibilityDuration) {
+            return new FileQueueService(BenchmarkFileQueues.newHelper(directory.toString(), RecordFormat.TEXT), inVisibilityDuration);
+        }
+    },
+    FILE_BINARY {
+        @Override
+        QueueService create(Path directory, Duration inVisibilityDuration) {
+            return new FileQueueService(BenchmarkFileQueues.newHelper(directory.toString(), RecordFormat.BINARY), inVisibilityDuration);
+        }
+    },
+    SEGMENTED_FILE {
+        @Override
+        QueueService create(Path directory, Duration inVisibilityDuration) {
+            return new SegmentedFileQueueService(BenchmarkFileQueues.newHelper(directory.toString(), RecordFormat.BINARY), inVisibilityDuration);
+        }
+    },
+    /**
+     * 4 partitions over 2 roots, both on the disk of directory
+     */
+    PARTITIONED_FILE {
+        @Override
+        QueueService create(Path directory, Duration inVisibilityDuration) {
+            return new PartitionedFileQueueService(Lists.newArrayList(
+                    new FileQueueService(BenchmarkFileQueues.newHelper(directory.resolve("root0").toString(), RecordFormat.BINARY), inVisibilityDuration),
+                    new FileQueueService(BenchmarkFileQueues.newHelper(directory.resolve("root1").toString(), RecordFormat.BINARY), inVisibilityDuration)),
+                    4);
+        }
+    },
+    SQS_STUB {
+        @Override
+        QueueService create(Path directory, Duration inVisibilityDuration) {
+            return new SqsQueueService(new InProcessSqsClient(inVisibilityDuration), inVisibilityDuration);
+        }
+    };
+
+    /**
+     * Creates a service of this backend, file backends keeping their queues under directory
+     */
+    abstract QueueService create(Path directory, Duration inVisibilityDuration);
+}
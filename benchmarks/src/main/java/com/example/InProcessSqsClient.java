@@ -0,0 +1,103 @@
+package com.example;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+import com.example.model.Message;
+import com.google.common.collect.Lists;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * An SQS client answering from an in-process {@link InMemoryQueueService} instead of the network, so that benchmarks
+ * of {@link SqsQueueService} measure its request mapping and batching, not the latency of AWS.
+ * <p>
+ * Only the calls made by SqsQueueService are answered, any other call goes to the real client and fails for lack of
+ * credentials.
+ */
+public class InProcessSqsClient extends AmazonSQSClient {
+    private final InMemoryQueueService queueService;
+
+    public InProcessSqsClient(Duration inVisibilityDuration) {
+        super(new BasicAWSCredentials("benchmark", "benchmark"));
+        this.queueService = new InMemoryQueueService(inVisibilityDuration);
+    }
+
+    @Override
+    public SendMessageResult sendMessage(SendMessageRequest request) {
+        Message message = new Message(request.getMessageBody());
+        queueService.push(request.getQueueUrl(), message);
+        return new SendMessageResult().withMessageId(message.getId());
+    }
+
+    @Override
+    public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+        List<SendMessageBatchResultEntry> successful = Lists.newArrayList();
+        for (SendMessageBatchRequestEntry entry : request.getEntries()) {
+            Message message = new Message(entry.getMessageBody());
+            queueService.push(request.getQueueUrl(), message);
+            successful.add(new SendMessageBatchResultEntry().withId(entry.getId()).withMessageId(message.getId()));
+        }
+        return new SendMessageBatchResult().withSuccessful(successful);
+    }
+
+    /**
+     * Waits up to WaitTimeSeconds for a first message, then takes what is visible up to MaxNumberOfMessages
+     */
+    @Override
+    public ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) {
+        int maxMessages = request.getMaxNumberOfMessages() == null ? 1 : request.getMaxNumberOfMessages();
+        int waitTimeSeconds = request.getWaitTimeSeconds() == null ? 0 : request.getWaitTimeSeconds();
+        List<Message> messages = Lists.newArrayList();
+        if (waitTimeSeconds > 0) {
+            Optional<Message> first = queueService.pull(request.getQueueUrl(), Duration.ofSeconds(waitTimeSeconds));
+            first.ifPresent(messages::add);
+        }
+        if (messages.size() < maxMessages && (waitTimeSeconds == 0 || !messages.isEmpty())) {
+            messages.addAll(queueService.pullBatch(request.getQueueUrl(), maxMessages - messages.size()));
+        }
+        return new ReceiveMessageResult().withMessages(messages.stream().map(InProcessSqsClient::toSqsMessage).collect(Collectors.toList()));
+    }
+
+    @Override
+    public void deleteMessage(DeleteMessageRequest request) {
+        queueService.delete(request.getQueueUrl(), receipt(request.getReceiptHandle()));
+    }
+
+    @Override
+    public DeleteMessageBatchResult deleteMessageBatch(DeleteMessageBatchRequest request) {
+        List<DeleteMessageBatchResultEntry> successful = Lists.newArrayList();
+        for (DeleteMessageBatchRequestEntry entry : request.getEntries()) {
+            queueService.delete(request.getQueueUrl(), receipt(entry.getReceiptHandle()));
+            // SQS reports deleting an already deleted message as a success too
+            successful.add(new DeleteMessageBatchResultEntry().withId(entry.getId()));
+        }
+        return new DeleteMessageBatchResult().withSuccessful(successful);
+    }
+
+    private static Message receipt(String receiptHandle) {
+        return new Message(null, receiptHandle, null, 0L);
+    }
+
+    private static com.amazonaws.services.sqs.model.Message toSqsMessage(Message message) {
+        return new com.amazonaws.services.sqs.model.Message()
+                .withMessageId(message.getId())
+                .withReceiptHandle(message.getReceiptHandle())
+                .withBody(message.getContent());
+    }
+}
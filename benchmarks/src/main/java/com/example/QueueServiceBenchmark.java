@@ -0,0 +1,270 @@
+package com.example;
+
+import com.example.model.Message;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Push, pull, delete and full push-pull-delete cycle of every QueueService backend, in throughput and sampled latency,
+ * see README.md for running it.
+ * <p>
+ * Each trial starts from a queue of depth messages, inFlightRatio of which are leased, so that pulls have to skip
+ * them. push, pull and delete measure throughput only: they keep that depth steady by pushing, leasing or draining a
+ * batch of messages in per-invocation setups, each invocation then measuring BATCH operations, so a sampled latency
+ * would be the mean operation of a batch. pushOne, pullOne and deleteOne sample the latency of every single operation,
+ * restoring the depth one message at a time, and cycle measures both in a steady state without any setup.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueueServiceBenchmark {
+    static final String QUEUE = "benchmark-queue";
+    static final int BATCH = 100;
+    // long enough for leased messages to stay in flight during a whole trial
+    static final Duration IN_VISIBILITY_DURATION = Duration.ofHours(1);
+
+    @Param({"IN_MEMORY", "IN_MEMORY_OFF_HEAP", "FILE", "FILE_BINARY", "SEGMENTED_FILE", "PARTITIONED_FILE", "SQS_STUB"})
+    Backend backend;
+
+    @Param({"0", "1000", "10000"})
+    int depth;
+
+    @Param({"64", "1024"})
+    int payloadSize;
+
+    @Param({"0.0", "0.5"})
+    double inFlightRatio;
+
+    QueueService queueService;
+    Path directory;
+    String payload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("queue-benchmark");
+        queueService = backend.create(directory, IN_VISIBILITY_DURATION);
+        payload = Strings.repeat("x", payloadSize);
+        for (int pushed = 0; pushed < depth; pushed += BATCH) {
+            queueService.pushBatch(QUEUE, newMessages(Math.min(BATCH, depth - pushed)));
+        }
+        int inFlight = (int) Math.round(depth * inFlightRatio);
+        for (int leased = 0; leased < inFlight; ) {
+            List<Message> messages = queueService.pullBatch(QUEUE, Math.min(BATCH, inFlight - leased));
+            if (messages.isEmpty()) {
+                break;
+            }
+            leased += messages.size();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    List<Message> newMessages(int count) {
+        List<Message> messages = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            messages.add(new Message(payload));
+        }
+        return messages;
+    }
+
+    /**
+     * Drains the messages pushed by an invocation of push, from the head of the queue
+     */
+    @State(Scope.Thread)
+    public static class Pushed {
+
+        @TearDown(Level.Invocation)
+        public void drain(QueueServiceBenchmark benchmark) {
+            List<Message> messages = benchmark.queueService.pullBatch(QUEUE, BATCH);
+            if (!messages.isEmpty()) {
+                benchmark.queueService.deleteBatch(QUEUE, messages);
+            }
+        }
+    }
+
+    /**
+     * Deletes the messages pulled by the last invocation of pull, and pushes as many for the next one
+     */
+    @State(Scope.Thread)
+    public static class Pulled {
+        List<Message> messages = Lists.newArrayList();
+
+        @Setup(Level.Invocation)
+        public void refill(QueueServiceBenchmark benchmark) {
+            if (!messages.isEmpty()) {
+                benchmark.queueService.deleteBatch(QUEUE, messages);
+            }
+            messages = Lists.newArrayListWithCapacity(BATCH);
+            benchmark.queueService.pushBatch(QUEUE, benchmark.newMessages(BATCH));
+        }
+    }
+
+    /**
+     * Pushes and leases the messages deleted by the next invocation of delete
+     */
+    @State(Scope.Thread)
+    public static class Leased {
+        List<Message> messages;
+
+        @Setup(Level.Invocation)
+        public void lease(QueueServiceBenchmark benchmark) {
+            benchmark.queueService.pushBatch(QUEUE, benchmark.newMessages(BATCH));
+            messages = benchmark.queueService.pullBatch(QUEUE, BATCH);
+        }
+    }
+
+    /**
+     * Pulls and deletes the message pushed by an invocation of pushOne, from the head of the queue
+     */
+    @State(Scope.Thread)
+    public static class PushedOne {
+
+        @TearDown(Level.Invocation)
+        public void drain(QueueServiceBenchmark benchmark) {
+            benchmark.queueService.pull(QUEUE).ifPresent(message -> benchmark.queueService.delete(QUEUE, message));
+        }
+    }
+
+    /**
+     * Pushes a message for the next invocation of pullOne, and deletes the message it pulled
+     */
+    @State(Scope.Thread)
+    public static class PulledOne {
+        Optional<Message> message = Optional.empty();
+
+        @Setup(Level.Invocation)
+        public void refill(QueueServiceBenchmark benchmark) {
+            benchmark.queueService.push(QUEUE, new Message(benchmark.payload));
+        }
+
+        @TearDown(Level.Invocation)
+        public void delete(QueueServiceBenchmark benchmark) {
+            message.ifPresent(pulled -> benchmark.queueService.delete(QUEUE, pulled));
+        }
+    }
+
+    /**
+     * Pushes and leases the message deleted by the next invocation of deleteOne
+     */
+    @State(Scope.Thread)
+    public static class LeasedOne {
+        Message message;
+
+        @Setup(Level.Invocation)
+        public void lease(QueueServiceBenchmark benchmark) {
+            benchmark.queueService.push(QUEUE, new Message(benchmark.payload));
+            message = benchmark.queueService.pull(QUEUE).orElse(null);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void push(Pushed pushed, Blackhole blackhole) {
+        for (int i = 0; i < BATCH; i++) {
+            blackhole.consume(queueService.push(QUEUE, new Message(payload)));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void pull(Pulled pulled) {
+        for (int i = 0; i < BATCH; i++) {
+            queueService.pull(QUEUE).ifPresent(pulled.messages::add);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void delete(Leased leased, Blackhole blackhole) {
+        for (Message message : leased.messages) {
+            blackhole.consume(queueService.delete(QUEUE, message));
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public Boolean pushOne(PushedOne pushed) {
+        return queueService.push(QUEUE, new Message(payload));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public Optional<Message> pullOne(PulledOne pulled) {
+        pulled.message = queueService.pull(QUEUE);
+        return pulled.message;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public Boolean deleteOne(LeasedOne leased) {
+        return leased.message != null && queueService.delete(QUEUE, leased.message);
+    }
+
+    /**
+     * Pushes a message, then pulls and deletes the message at the head of the queue, keeping its depth steady with no
+     * per-invocation setup, which makes it the latency benchmark of a queue in steady use
+     */
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    public Boolean cycle() {
+        queueService.push(QUEUE, new Message(payload));
+        Optional<Message> message = queueService.pull(QUEUE);
+        return message.isPresent() && queueService.delete(QUEUE, message.get());
+    }
+
+    /**
+     * Producers pushing while consumers pull and delete, thread counts of the group set with -tg producers,consumers
+     */
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @Group("producerConsumer")
+    @GroupThreads(1)
+    public Boolean produce() {
+        return queueService.push(QUEUE, new Message(payload));
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @Group("producerConsumer")
+    @GroupThreads(1)
+    public Boolean consume() {
+        Optional<Message> message = queueService.pull(QUEUE);
+        return message.isPresent() && queueService.delete(QUEUE, message.get());
+    }
+}
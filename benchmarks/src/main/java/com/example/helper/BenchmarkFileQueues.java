@@ -0,0 +1,14 @@
+package com.example.helper;
+
+/**
+ * Creates file queue helpers for benchmarks, whose FileQueueHelper constructors are package-private
+ */
+public final class BenchmarkFileQueues {
+
+    private BenchmarkFileQueues() {
+    }
+
+    public static FileQueueHelper newHelper(String parentDirectory, RecordFormat recordFormat) {
+        return new FileQueueHelper(parentDirectory, recordFormat);
+    }
+}
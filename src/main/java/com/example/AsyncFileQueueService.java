@@ -0,0 +1,98 @@
+package com.example;
+
+import com.example.model.Message;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * AsyncQueueService over a FileQueueService, running all file I/O on a dedicated, bounded I/O executor.
+ * <p>
+ * A pull waiting for a message holds no thread while waiting: after a pull finding no message, a callback is
+ * registered for the next change of the queue (or expiry of an invisibility period), which schedules the next pull
+ * on the I/O executor. A handful of I/O threads can therefore serve any number of waiting pulls.
+ */
+public class AsyncFileQueueService implements AsyncQueueService {
+    private FileQueueService fileQueueService;
+    private ExecutorService ioExecutor;
+
+    public AsyncFileQueueService(FileQueueService fileQueueService, int ioThreads) {
+        this.fileQueueService = fileQueueService;
+        this.ioExecutor = Executors.newFixedThreadPool(ioThreads,
+                new ThreadFactoryBuilder().setNameFormat("file-queue-io-%d").setDaemon(true).build());
+    }
+
+    @Override
+    public CompletableFuture<Boolean> push(String queueURL, Message message) {
+        if (fileQueueService.groupCommits()) {
+            // completed by the group commit writer, no I/O thread waits for the commit
+            return fileQueueService.pushAsync(queueURL, message);
+        }
+        return CompletableFuture.supplyAsync(() -> fileQueueService.push(queueURL, message), ioExecutor);
+    }
+
+    @Override
+    public CompletableFuture<Optional<Message>> pull(String queueURL) {
+        return CompletableFuture.supplyAsync(() -> fileQueueService.pull(queueURL), ioExecutor);
+    }
+
+    @Override
+    public CompletableFuture<Optional<Message>> pull(String queueURL, Duration maxWait) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMaxWait(maxWait);
+        CompletableFuture<Optional<Message>> result = new CompletableFuture<>();
+        ioExecutor.execute(() -> pullOrWait(queueURL, System.nanoTime() + maxWait.toNanos(), result));
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> delete(String queueURL, Message message) {
+        return CompletableFuture.supplyAsync(() -> fileQueueService.delete(queueURL, message), ioExecutor);
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> pushBatch(String queueURL, List<Message> messages) {
+        return CompletableFuture.supplyAsync(() -> fileQueueService.pushBatch(queueURL, messages), ioExecutor);
+    }
+
+    @Override
+    public CompletableFuture<List<Message>> pullBatch(String queueURL, int maxMessages) {
+        return CompletableFuture.supplyAsync(() -> fileQueueService.pullBatch(queueURL, maxMessages), ioExecutor);
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> deleteBatch(String queueURL, List<Message> messages) {
+        return CompletableFuture.supplyAsync(() -> fileQueueService.deleteBatch(queueURL, messages), ioExecutor);
+    }
+
+    /**
+     * Stops the I/O executor
+     */
+    public void shutdown() {
+        ioExecutor.shutdownNow();
+    }
+
+    /**
+     * Pulls a message, or registers to pull again on the next change of the queue, until deadline in System.nanoTime()
+     */
+    private void pullOrWait(String queueURL, long deadline, CompletableFuture<Optional<Message>> result) {
+        try {
+            // version is read first, so a change made while pulling triggers the next pull right away
+            long version = fileQueueService.changeVersion(queueURL);
+            Optional<Message> message = fileQueueService.pullIfExists(queueURL);
+            if (message.isPresent() || deadline - System.nanoTime() <= 0) {
+                result.complete(message);
+                return;
+            }
+            fileQueueService.onChange(queueURL, version, fileQueueService.timeToWait(queueURL, deadline),
+                    () -> ioExecutor.execute(() -> pullOrWait(queueURL, deadline, result)));
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.example;
+
+import com.example.model.Message;
+import com.google.common.collect.Lists;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Collectors;
+
+/**
+ * Non-blocking contract for a generic queue service: same operations as {@link QueueService},
+ * each completing a CompletableFuture instead of blocking the calling thread.
+ */
+public interface AsyncQueueService {
+
+    /**
+     * Pushes a message onto a queue.
+     *
+     * @param queueURL queueURL or Name
+     * @param message  message to be pushed to queue
+     * @return future completed with successful or failed push of a message to queue
+     */
+    CompletableFuture<Boolean> push(String queueURL, Message message);
+
+    /**
+     * Retrieves a single message from a queue.
+     *
+     * @param queueURL queueURL or Name
+     * @return future completed with first visible message in Optional if available, else Optional.Empty()
+     */
+    CompletableFuture<Optional<Message>> pull(String queueURL);
+
+    /**
+     * Retrieves a single message from a queue, waiting up to maxWait for a message to become visible.
+     *
+     * @param queueURL queueURL or Name
+     * @param maxWait  maximum duration to wait for a visible message
+     * @return future completed with first visible message in Optional if available within maxWait, else Optional.Empty()
+     */
+    CompletableFuture<Optional<Message>> pull(String queueURL, Duration maxWait);
+
+    /**
+     * Deletes a message from the queue that was received by pull().
+     *
+     * @param queueURL queueURL or Name
+     * @param message  message to be deleted from queue
+     * @return future completed with successful or failed delete of a message from queue
+     */
+    CompletableFuture<Boolean> delete(String queueURL, Message message);
+
+    /**
+     * Pushes messages onto a queue. Defaults to concurrent pushes of each message.
+     *
+     * @param queueURL queueURL or Name
+     * @param messages messages to be pushed to queue, in order
+     * @return future completed with successful or failed push of each message, in the order of messages
+     */
+    default CompletableFuture<List<Boolean>> pushBatch(String queueURL, List<Message> messages) {
+        QueueService.validateMessages(messages);
+        return allOf(messages.stream().map(message -> push(queueURL, message)).collect(Collectors.toList()));
+    }
+
+    /**
+     * Retrieves up to maxMessages messages from a queue. Defaults to pulling messages one after the other.
+     *
+     * @param queueURL    queueURL or Name
+     * @param maxMessages maximum number of messages to retrieve
+     * @return future completed with visible messages, possibly less than maxMessages, empty if none is available
+     */
+    default CompletableFuture<List<Message>> pullBatch(String queueURL, int maxMessages) {
+        QueueService.validateMaxMessages(maxMessages);
+        return pullInto(this, queueURL, maxMessages, Lists.newArrayList());
+    }
+
+    /**
+     * Deletes messages from the queue that were received by pull(). Defaults to concurrent deletes of each message.
+     *
+     * @param queueURL queueURL or Name
+     * @param messages messages to be deleted from queue
+     * @return future completed with successful or failed delete of each message, in the order of messages
+     */
+    default CompletableFuture<List<Boolean>> deleteBatch(String queueURL, List<Message> messages) {
+        QueueService.validateMessages(messages);
+        return allOf(messages.stream().map(message -> delete(queueURL, message)).collect(Collectors.toList()));
+    }
+
+    /**
+     * Adapts a blocking QueueService, running each of its calls on executor
+     *
+     * @param queueService blocking queue service
+     * @param executor     executor the blocking calls run on, sized for the blocking they do
+     * @return AsyncQueueService completing its futures on executor
+     */
+    static AsyncQueueService fromBlocking(QueueService queueService, ExecutorService executor) {
+        return new BlockingQueueServiceAdapter(queueService, executor);
+    }
+
+    /**
+     * Combines futures into a future of their results, in order
+     */
+    static <T> CompletableFuture<List<T>> allOf(List<CompletableFuture<T>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .thenApply(done -> futures.stream().map(CompletableFuture::join).collect(Collectors.toList()));
+    }
+
+    /**
+     * Pulls messages one after the other into pulled, until maxMessages or no visible message
+     */
+    static CompletableFuture<List<Message>> pullInto(AsyncQueueService queueService, String queueURL, int maxMessages, List<Message> pulled) {
+        if (pulled.size() == maxMessages) {
+            return CompletableFuture.completedFuture(pulled);
+        }
+        return queueService.pull(queueURL).thenCompose(message -> {
+            if (!message.isPresent()) {
+                return CompletableFuture.completedFuture(pulled);
+            }
+            pulled.add(message.get());
+            return pullInto(queueService, queueURL, maxMessages, pulled);
+        });
+    }
+}
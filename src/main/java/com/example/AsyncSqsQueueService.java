@@ -0,0 +1,133 @@
+package com.example;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQSAsyncClient;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.google.common.collect.Lists;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+/**
+ * Non-blocking wrapper around Amazon's Simple Queue Service, using the callbacks of AmazonSQSAsyncClient
+ * to complete the futures: no thread of the caller waits for the HTTP round trip.
+ */
+public class AsyncSqsQueueService implements AsyncQueueService {
+
+    private AmazonSQSAsyncClient sqsClient;
+
+    // this is default sqs visibility timeout
+    private Duration inVisibilityDuration = Duration.ofSeconds(30);
+
+    public AsyncSqsQueueService(AmazonSQSAsyncClient sqsClient) {
+        this.sqsClient = sqsClient;
+    }
+
+    public AsyncSqsQueueService(AmazonSQSAsyncClient sqsClient, Duration inVisibilityDuration) {
+        this.sqsClient = sqsClient;
+        this.inVisibilityDuration = inVisibilityDuration;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> push(String queueURL, com.example.model.Message message) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        sqsClient.sendMessageAsync(new SendMessageRequest(queueURL, message.getContent()), completing(result, sent -> true));
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<Optional<com.example.model.Message>> pull(String queueURL) {
+        return receive(new ReceiveMessageRequest(queueURL))
+                .thenApply(messages -> messages.stream().findFirst());
+    }
+
+    /**
+     * Long polls with ReceiveMessage requests of WaitTimeSeconds up to 20 seconds, until maxWait elapses.
+     * WaitTimeSeconds is rounded up to whole seconds, so the pull may wait up to a second more than maxWait.
+     */
+    @Override
+    public CompletableFuture<Optional<com.example.model.Message>> pull(String queueURL, Duration maxWait) {
+        QueueService.validateMaxWait(maxWait);
+        return pullUntil(queueURL, System.nanoTime() + maxWait.toNanos());
+    }
+
+    @Override
+    public CompletableFuture<Boolean> delete(String queueURL, com.example.model.Message message) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        sqsClient.deleteMessageAsync(new DeleteMessageRequest(queueURL, message.getReceiptHandle()), completing(result, deleted -> true));
+        return result;
+    }
+
+    /**
+     * Pulls messages with ReceiveMessage requests of up to 10 messages, until maxMessages or an empty receive
+     */
+    @Override
+    public CompletableFuture<List<com.example.model.Message>> pullBatch(String queueURL, int maxMessages) {
+        QueueService.validateMaxMessages(maxMessages);
+        return pullBatchInto(queueURL, maxMessages, Lists.newArrayList());
+    }
+
+    /**
+     * @param deadline System.nanoTime() at which maxWait elapses
+     */
+    private CompletableFuture<Optional<com.example.model.Message>> pullUntil(String queueURL, long deadline) {
+        int waitTimeSeconds = SqsQueueService.waitTimeSeconds(deadline - System.nanoTime());
+        return receive(new ReceiveMessageRequest(queueURL).withWaitTimeSeconds(waitTimeSeconds)).thenCompose(messages -> {
+            Optional<com.example.model.Message> message = messages.stream().findFirst();
+            if (message.isPresent() || deadline - System.nanoTime() <= 0) {
+                return CompletableFuture.completedFuture(message);
+            }
+            return pullUntil(queueURL, deadline);
+        });
+    }
+
+    private CompletableFuture<List<com.example.model.Message>> pullBatchInto(String queueURL, int maxMessages, List<com.example.model.Message> pulled) {
+        ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(queueURL)
+                .withMaxNumberOfMessages(Math.min(maxMessages - pulled.size(), SqsQueueService.SQS_MAX_BATCH_SIZE));
+        return receive(receiveMessageRequest).thenCompose(messages -> {
+            pulled.addAll(messages);
+            if (messages.isEmpty() || pulled.size() >= maxMessages) {
+                return CompletableFuture.completedFuture(pulled);
+            }
+            return pullBatchInto(queueURL, maxMessages, pulled);
+        });
+    }
+
+    private CompletableFuture<List<com.example.model.Message>> receive(ReceiveMessageRequest receiveMessageRequest) {
+        CompletableFuture<List<com.example.model.Message>> result = new CompletableFuture<>();
+        sqsClient.receiveMessageAsync(receiveMessageRequest, completing(result, (ReceiveMessageResult received) ->
+                received.getMessages().stream()
+                        .map(msg -> SqsQueueService.toMessage(msg, inVisibilityDuration))
+                        .collect(Collectors.toList())));
+        return result;
+    }
+
+    /**
+     * Gets an AsyncHandler completing future with the converted result, or with the error
+     */
+    private static <REQUEST extends AmazonWebServiceRequest, RESULT, T> AsyncHandler<REQUEST, RESULT> completing(
+            CompletableFuture<T> future, java.util.function.Function<RESULT, T> converter) {
+        return new AsyncHandler<REQUEST, RESULT>() {
+            @Override
+            public void onError(Exception exception) {
+                future.completeExceptionally(exception);
+            }
+
+            @Override
+            public void onSuccess(REQUEST request, RESULT result) {
+                try {
+                    future.complete(converter.apply(result));
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        };
+    }
+}
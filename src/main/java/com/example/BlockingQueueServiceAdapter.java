@@ -0,0 +1,58 @@
+package com.example;
+
+import com.example.model.Message;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * AsyncQueueService over any blocking QueueService: every call runs on the given executor,
+ * so callers are never blocked, but each call in flight still holds one executor thread.
+ */
+public class BlockingQueueServiceAdapter implements AsyncQueueService {
+    private QueueService queueService;
+    private ExecutorService executor;
+
+    public BlockingQueueServiceAdapter(QueueService queueService, ExecutorService executor) {
+        this.queueService = queueService;
+        this.executor = executor;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> push(String queueURL, Message message) {
+        return CompletableFuture.supplyAsync(() -> queueService.push(queueURL, message), executor);
+    }
+
+    @Override
+    public CompletableFuture<Optional<Message>> pull(String queueURL) {
+        return CompletableFuture.supplyAsync(() -> queueService.pull(queueURL), executor);
+    }
+
+    @Override
+    public CompletableFuture<Optional<Message>> pull(String queueURL, Duration maxWait) {
+        return CompletableFuture.supplyAsync(() -> queueService.pull(queueURL, maxWait), executor);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> delete(String queueURL, Message message) {
+        return CompletableFuture.supplyAsync(() -> queueService.delete(queueURL, message), executor);
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> pushBatch(String queueURL, List<Message> messages) {
+        return CompletableFuture.supplyAsync(() -> queueService.pushBatch(queueURL, messages), executor);
+    }
+
+    @Override
+    public CompletableFuture<List<Message>> pullBatch(String queueURL, int maxMessages) {
+        return CompletableFuture.supplyAsync(() -> queueService.pullBatch(queueURL, maxMessages), executor);
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> deleteBatch(String queueURL, List<Message> messages) {
+        return CompletableFuture.supplyAsync(() -> queueService.deleteBatch(queueURL, messages), executor);
+    }
+}
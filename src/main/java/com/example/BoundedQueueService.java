@@ -0,0 +1,396 @@
+package com.example;
+
+import com.example.helper.OverflowPolicy;
+import com.example.helper.QueueCapacity;
+import com.example.helper.WatermarkListener;
+import com.example.model.Message;
+import com.google.common.base.Utf8;
+import com.google.common.collect.Lists;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A queue service bounding the queues of another one, so that a burst of producers of a process can not grow a queue
+ * until memory runs out.
+ * <p>
+ * Each queue holds at most the messages and bytes of content of its {@link QueueCapacity}, the same for every queue
+ * or given per queue: a message counts from its push until its delete, both made through this service. A push to a
+ * full queue is handled by the {@link OverflowPolicy}: rejected, blocked until deletes make room, or making room by
+ * deleting the oldest messages. A failed push returns false. The {@link WatermarkListener} is told when a queue fills
+ * up past its high watermark, and when it drains back below its low watermark.
+ * <p>
+ * Depths are kept in memory, from the creation of this service: messages already in a queue, or pushed and deleted
+ * by other processes, are not counted. The bound therefore holds for the pushes of this process only: a file queue
+ * shared by several producer processes is bounded per process, not as a whole, and is not protected from filling
+ * up the disk. The bytes of a message pulled through this service are recorded by receipt handle, so that a delete
+ * by receipt handle alone, as LocalSqsServer makes, releases them too.
+ */
+public class BoundedQueueService implements QueueService {
+    private final QueueService queueService;
+    private final Function<String, QueueCapacity> capacities;
+    private final WatermarkListener watermarkListener;
+    private final ConcurrentHashMap<String, Depth> depths = new ConcurrentHashMap<>();
+
+    public BoundedQueueService(QueueService queueService, QueueCapacity capacity) {
+        this(queueService, capacity, WatermarkListener.NONE);
+    }
+
+    public BoundedQueueService(QueueService queueService, QueueCapacity capacity, WatermarkListener watermarkListener) {
+        this(queueService, queueURL -> capacity, watermarkListener);
+    }
+
+    /**
+     * @param capacities capacity of each queue by queue URL, asked once per queue, when first used
+     */
+    public BoundedQueueService(QueueService queueService, Function<String, QueueCapacity> capacities, WatermarkListener watermarkListener) {
+        this.queueService = queueService;
+        this.capacities = capacities;
+        this.watermarkListener = watermarkListener;
+    }
+
+    @Override
+    public Boolean push(String queueURL, Message message) {
+        return push(queueURL, message, () -> queueService.push(queueURL, message));
+    }
+
+    /**
+     * Admits a delayed message as any other, a scheduled message taking room in the queue already
+     */
+    @Override
+    public Boolean push(String queueURL, Message message, Duration delay) {
+        return push(queueURL, message, () -> queueService.push(queueURL, message, delay));
+    }
+
+    @Override
+    public Boolean pushAt(String queueURL, Message message, LocalDateTime deliverAt) {
+        return push(queueURL, message, () -> queueService.pushAt(queueURL, message, deliverAt));
+    }
+
+    /**
+     * Pushes a message with push once admitted, releasing its room if not pushed
+     */
+    private Boolean push(String queueURL, Message message, Supplier<Boolean> push) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessage(message);
+        Depth depth = depth(queueURL);
+        long bytes = sizeOf(message);
+        if (!admit(queueURL, depth, bytes)) {
+            return false;
+        }
+        boolean pushed = false;
+        try {
+            pushed = push.get();
+            return pushed;
+        } finally {
+            if (!pushed) {
+                depth.release(1, bytes);
+            }
+        }
+    }
+
+    @Override
+    public Optional<Message> pull(String queueURL) {
+        return pulled(queueURL, queueService.pull(queueURL));
+    }
+
+    @Override
+    public Optional<Message> pull(String queueURL, Duration maxWait) {
+        return pulled(queueURL, queueService.pull(queueURL, maxWait));
+    }
+
+    @Override
+    public Optional<Message> pull(String queueURL, Duration maxWait, Duration visibilityTimeout) {
+        return pulled(queueURL, queueService.pull(queueURL, maxWait, visibilityTimeout));
+    }
+
+    @Override
+    public Boolean changeVisibility(String queueURL, Message message, Duration visibilityTimeout) {
+        return queueService.changeVisibility(queueURL, message, visibilityTimeout);
+    }
+
+    @Override
+    public Boolean delete(String queueURL, Message message) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessage(message);
+        boolean deleted = queueService.delete(queueURL, message);
+        if (deleted) {
+            Depth depth = depth(queueURL);
+            depth.release(1, depth.deleted(message));
+        }
+        return deleted;
+    }
+
+    /**
+     * Admits each message as push() does, then pushes the admitted ones as a single batch
+     */
+    @Override
+    public List<Boolean> pushBatch(String queueURL, List<Message> messages) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessages(messages);
+        Depth depth = depth(queueURL);
+        List<Message> admitted = Lists.newArrayList();
+        List<Boolean> results = Lists.newArrayListWithCapacity(messages.size());
+        for (Message message : messages) {
+            boolean admit = admit(queueURL, depth, sizeOf(message));
+            if (admit) {
+                admitted.add(message);
+            }
+            results.add(admit);
+        }
+        if (admitted.isEmpty()) {
+            return results;
+        }
+        List<Boolean> pushed = null;
+        try {
+            pushed = queueService.pushBatch(queueURL, admitted);
+        } finally {
+            int next = 0;
+            for (int i = 0; i < results.size(); i++) {
+                if (results.get(i)) {
+                    boolean result = pushed != null && pushed.get(next);
+                    if (!result) {
+                        depth.release(1, sizeOf(admitted.get(next)));
+                    }
+                    results.set(i, result);
+                    next++;
+                }
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public List<Message> pullBatch(String queueURL, int maxMessages) {
+        List<Message> messages = queueService.pullBatch(queueURL, maxMessages);
+        if (!messages.isEmpty()) {
+            Depth depth = depth(queueURL);
+            messages.forEach(depth::pulled);
+        }
+        return messages;
+    }
+
+    @Override
+    public List<Boolean> deleteBatch(String queueURL, List<Message> messages) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessages(messages);
+        List<Boolean> results = queueService.deleteBatch(queueURL, messages);
+        Depth depth = depth(queueURL);
+        long released = 0;
+        long releasedBytes = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            if (results.get(i)) {
+                released++;
+                releasedBytes += depth.deleted(messages.get(i));
+            }
+        }
+        if (released > 0) {
+            depth.release(released, releasedBytes);
+        }
+        return results;
+    }
+
+    /**
+     * Reserves room for a message of given bytes according to the overflow policy
+     *
+     * @return true if room was reserved, false if the push must fail
+     */
+    private boolean admit(String queueURL, Depth depth, long bytes) {
+        if (!depth.capacity.fitsEmpty(bytes)) {
+            return false;
+        }
+        OverflowPolicy overflowPolicy = depth.capacity.getOverflowPolicy();
+        if (overflowPolicy.isReject()) {
+            return depth.tryReserve(bytes);
+        }
+        if (overflowPolicy.isDropOldest()) {
+            while (!depth.tryReserve(bytes)) {
+                if (!dropOldest(queueURL, depth)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        try {
+            return depth.reserve(bytes, overflowPolicy.getTimeout());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the oldest visible message of a queue
+     *
+     * @return false if no message is visible, all of them being in flight
+     */
+    private boolean dropOldest(String queueURL, Depth depth) {
+        Optional<Message> oldest = queueService.pull(queueURL);
+        if (!oldest.isPresent()) {
+            return false;
+        }
+        // a failed delete means another consumer deleted it meanwhile, which made room as well
+        if (queueService.delete(queueURL, oldest.get())) {
+            depth.release(1, depth.deleted(oldest.get()));
+        }
+        return true;
+    }
+
+    private Optional<Message> pulled(String queueURL, Optional<Message> message) {
+        message.ifPresent(depth(queueURL)::pulled);
+        return message;
+    }
+
+    private Depth depth(String queueURL) {
+        return depths.computeIfAbsent(queueURL, Depth::new);
+    }
+
+    private static long sizeOf(Message message) {
+        return message.getContent() == null ? 0 : Utf8.encodedLength(message.getContent());
+    }
+
+    /**
+     * Messages and bytes held by a queue, with producers blocked until they fit.
+     * Watermark listeners are called after the lock is released, each crossing exactly once.
+     */
+    private class Depth {
+        private final String queueURL;
+        private final QueueCapacity capacity;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition released = lock.newCondition();
+        private long messages = 0;
+        private long bytes = 0;
+        private boolean aboveHighWatermark = false;
+        // pulled messages not deleted yet by receipt handle, and their receipt handle by id
+        private final ConcurrentHashMap<String, Pulled> pulled = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, String> receiptHandles = new ConcurrentHashMap<>();
+
+        private Depth(String queueURL) {
+            this.queueURL = queueURL;
+            this.capacity = capacities.apply(queueURL);
+            checkArgument(capacity != null, "No capacity for queue: " + queueURL);
+        }
+
+        /**
+         * Records the bytes of a pulled message, forgetting the receipt handle of its former pull if any
+         */
+        private void pulled(Message message) {
+            if (message.getReceiptHandle() == null) {
+                return;
+            }
+            pulled.put(message.getReceiptHandle(), new Pulled(message.getId(), sizeOf(message)));
+            if (message.getId() != null) {
+                String former = receiptHandles.put(message.getId(), message.getReceiptHandle());
+                if (former != null && !former.equals(message.getReceiptHandle())) {
+                    pulled.remove(former);
+                }
+            }
+        }
+
+        /**
+         * Forgets a deleted message
+         *
+         * @return its bytes as recorded on pull, else the bytes of its content
+         */
+        private long deleted(Message message) {
+            Pulled deleted = message.getReceiptHandle() == null ? null : pulled.remove(message.getReceiptHandle());
+            if (deleted == null) {
+                return sizeOf(message);
+            }
+            if (deleted.id != null) {
+                receiptHandles.remove(deleted.id, message.getReceiptHandle());
+            }
+            return deleted.bytes;
+        }
+
+        private boolean tryReserve(long messageBytes) {
+            boolean crossedHigh;
+            lock.lock();
+            try {
+                if (!capacity.fits(messages, bytes, messageBytes)) {
+                    return false;
+                }
+                crossedHigh = add(messageBytes);
+            } finally {
+                lock.unlock();
+            }
+            if (crossedHigh) {
+                watermarkListener.onHighWatermark(queueURL);
+            }
+            return true;
+        }
+
+        private boolean reserve(long messageBytes, Duration timeout) throws InterruptedException {
+            boolean crossedHigh;
+            long remaining = timeout.toNanos();
+            lock.lock();
+            try {
+                while (!capacity.fits(messages, bytes, messageBytes)) {
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    remaining = released.awaitNanos(remaining);
+                }
+                crossedHigh = add(messageBytes);
+            } finally {
+                lock.unlock();
+            }
+            if (crossedHigh) {
+                watermarkListener.onHighWatermark(queueURL);
+            }
+            return true;
+        }
+
+        private void release(long releasedMessages, long releasedBytes) {
+            boolean crossedLow = false;
+            lock.lock();
+            try {
+                messages = Math.max(messages - releasedMessages, 0);
+                bytes = Math.max(bytes - releasedBytes, 0);
+                if (aboveHighWatermark && capacity.isBelowLowWatermark(messages, bytes)) {
+                    aboveHighWatermark = false;
+                    crossedLow = true;
+                }
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (crossedLow) {
+                watermarkListener.onLowWatermark(queueURL);
+            }
+        }
+
+        /**
+         * @return true if the queue just crossed its high watermark
+         */
+        private boolean add(long messageBytes) {
+            messages++;
+            bytes += messageBytes;
+            if (!aboveHighWatermark && capacity.isAboveHighWatermark(messages, bytes)) {
+                aboveHighWatermark = true;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static final class Pulled {
+        private final String id;
+        private final long bytes;
+
+        private Pulled(String id, long bytes) {
+            this.id = id;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -1,24 +1,67 @@
 package com.example;
 
 import com.example.exception.FileQueueException;
+import com.example.helper.CompactionPolicy;
+import com.example.helper.FileQueueCompactor;
 import com.example.helper.FileQueueHelper;
+import com.example.helper.FsyncPolicy;
+import com.example.helper.GroupCommitWriter;
+import com.example.helper.QueueChangeNotifier;
 import com.example.model.Message;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.io.IOException;
+import java.time.Clock;
 import java.time.Duration;
-import java.time.LocalDateTime;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * A queue service using File as storage. Supports many producers and many consumers.
  * <p>
- * Achieve inter-process safety using uses a .lock folder per queue
+ * Achieve inter-process safety using an OS level lock on a .lock file per queue
+ * <p>
+ * Created with a {@link FsyncPolicy}, pushes are group committed by a {@link GroupCommitWriter}: concurrent pushes
+ * are appended together, and forced to disk according to the policy before they return.
+ * <p>
+ * Created with a {@link CompactionPolicy}, binary file queues this service deleted messages from are compacted
+ * in the background by a {@link FileQueueCompactor}.
+ * <p>
+ * Visibility is checked in epoch millis of a {@link Clock}, the system clock unless another one is given.
+ * <p>
+ * These options are combined with a {@link Builder}, see builder(fileQueueHelper, inVisibilityDuration).
+ * <p>
+ * A delayed message is written at once, invisible until its delivery time: it survives a restart, and is delivered
+ * by whichever process pulls the queue first once due.
  */
 public class FileQueueService implements QueueService {
     private FileQueueHelper fileQueueHelper;
     private Duration inVisibilityDuration;
+    private Clock clock = Clock.systemUTC();
+    private QueueChangeNotifier queueChangeNotifier = new QueueChangeNotifier();
+    // earliest epoch millis of the clock an invisible message becomes visible at, by queue, as seen by the last pull
+    // finding no message
+    private ConcurrentHashMap<String, Long> nextVisibleFrom = new ConcurrentHashMap<>();
+    // null unless pushes are group committed
+    private GroupCommitWriter groupCommitWriter;
+    // null unless file queues are compacted
+    private FileQueueCompactor fileQueueCompactor;
+    private ScheduledExecutorService compactor;
+    // queues this service deleted messages from, so which may need a compaction
+    private Set<String> deletedFrom = ConcurrentHashMap.newKeySet();
 
 
     protected FileQueueService(FileQueueHelper fileQueueHelper, Duration inVisibilityDuration) {
@@ -26,10 +69,41 @@ public class FileQueueService implements QueueService {
         this.inVisibilityDuration = inVisibilityDuration;
     }
 
+    private FileQueueService(Builder builder) {
+        this(builder.fileQueueHelper, builder.inVisibilityDuration);
+        this.clock = builder.clock;
+        if (builder.fsyncPolicy != null) {
+            this.groupCommitWriter = new GroupCommitWriter(fileQueueHelper, builder.fsyncPolicy);
+        }
+        if (builder.compactionPolicy != null) {
+            startCompaction(builder.compactionPolicy);
+        }
+    }
+
+    /**
+     * Gets a builder of a file queue service, combining any of its options
+     *
+     * @param inVisibilityDuration invisibility period of pulled messages
+     */
+    protected static Builder builder(FileQueueHelper fileQueueHelper, Duration inVisibilityDuration) {
+        return new Builder(fileQueueHelper, inVisibilityDuration);
+    }
+
+    private void startCompaction(CompactionPolicy compactionPolicy) {
+        this.fileQueueCompactor = new FileQueueCompactor(fileQueueHelper, compactionPolicy);
+        this.compactor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("file-queue-compactor-%d").setDaemon(true).build());
+        long period = compactionPolicy.getCheckPeriod().toMillis();
+        compactor.scheduleWithFixedDelay(this::compactQueues, period, period, TimeUnit.MILLISECONDS);
+    }
+
     @Override
     public Boolean push(String queueURL, Message message) {
         QueueService.validateQueueURL(queueURL);
         QueueService.validateMessage(message);
+        if (groupCommitWriter != null) {
+            return join(pushAsync(queueURL, message));
+        }
         try {
             fileQueueHelper.takeLock(queueURL);
             // check if file queue exists
@@ -41,6 +115,7 @@ public class FileQueueService implements QueueService {
                 List<Message> messages = Lists.newArrayList(message);
                 fileQueueHelper.writeMultipleMessages(queueURL, messages);
             }
+            queueChangeNotifier.signal(queueURL);
             return true;
         } catch (IOException e) {
             throw new FileQueueException("Error while pushing message: {" + message + "} to queue: " + queueURL, e);
@@ -49,23 +124,52 @@ public class FileQueueService implements QueueService {
         }
     }
 
+    /**
+     * Pushes a copy of the message invisible until current time of the clock + delay
+     */
+    @Override
+    public Boolean push(String queueURL, Message message, Duration delay) {
+        QueueService.validateMessage(message);
+        QueueService.validateDelay(delay);
+        return push(queueURL, QueueService.scheduled(message, clock.millis() + delay.toMillis()));
+    }
+
     @Override
     public Optional<Message> pull(String queueURL) {
         QueueService.validateQueueURL(queueURL);
+        return lease(queueURL, inVisibilityDuration);
+    }
+
+    /**
+     * Takes the first visible message, making it invisible for visibilityTimeout
+     */
+    private Optional<Message> lease(String queueURL, Duration visibilityTimeout) {
         Optional<Message> message;
 
         try {
             fileQueueHelper.takeLock(queueURL);
+            long now = clock.millis();
+            if (fileQueueHelper.canLeaseInPlace(queueURL)) {
+                // binary records are leased in place, decoding only the pulled message
+                message = fileQueueHelper.leaseVisibleMessages(queueURL, 1, now, now + visibilityTimeout.toMillis())
+                        .stream().findFirst();
+                if (!message.isPresent()) {
+                    recordNextVisibleFrom(queueURL, fileQueueHelper.getNextVisibleFrom(queueURL));
+                }
+                return message;
+            }
             // read messages in a queue
             List<Message> messages = fileQueueHelper.readMessages(queueURL);
             // find first visible message
-            message = QueueService.findVisibleMessage(messages);
+            message = QueueService.findVisibleMessage(messages, now);
             if (message.isPresent()) {
                 Message msg = message.get();
-                // set visibility to be turned off until current time + duration provided in inVisibilityDuration
-                msg.setVisibleFrom(LocalDateTime.now().plus(inVisibilityDuration));
+                // set visibility to be turned off until current time + visibilityTimeout
+                msg.setVisibleFromMillis(now + visibilityTimeout.toMillis());
                 // write updated message to file queue
                 fileQueueHelper.writeMultipleMessages(queueURL, messages);
+            } else {
+                recordNextVisibleFrom(queueURL, messages);
             }
 
         } catch (IOException e) {
@@ -78,6 +182,152 @@ public class FileQueueService implements QueueService {
 
     }
 
+    /**
+     * Pushes a message, completing once it is committed. Without group commit, the push is done by the calling thread.
+     */
+    public CompletableFuture<Boolean> pushAsync(String queueURL, Message message) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessage(message);
+        if (groupCommitWriter == null) {
+            return CompletableFuture.completedFuture(push(queueURL, message));
+        }
+        return groupCommitWriter.write(queueURL, Lists.newArrayList(message)).thenApply(committed -> {
+            queueChangeNotifier.signal(queueURL);
+            return true;
+        });
+    }
+
+    /**
+     * Checks if pushes are group committed, and so never block in pushAsync()
+     */
+    boolean groupCommits() {
+        return groupCommitWriter != null;
+    }
+
+    /**
+     * Commits pending pushes, and stops the group commit writer, the compaction and the watching of queue directories
+     */
+    public void shutdown() {
+        if (groupCommitWriter != null) {
+            groupCommitWriter.close();
+        }
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+        try {
+            queueChangeNotifier.close();
+        } catch (IOException e) {
+            // nothing left to release
+        }
+    }
+
+    /**
+     * Sleeps until a push, a change of the queue file by another process, or an expiring invisibility period
+     * may have made a message available, or maxWait elapses. Returns Optional.Empty() if interrupted while waiting.
+     */
+    @Override
+    public Optional<Message> pull(String queueURL, Duration maxWait) {
+        return pull(queueURL, maxWait, inVisibilityDuration);
+    }
+
+    /**
+     * Waits as pull(queueURL, maxWait) does, leasing the message for visibilityTimeout
+     */
+    @Override
+    public Optional<Message> pull(String queueURL, Duration maxWait, Duration visibilityTimeout) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMaxWait(maxWait);
+        QueueService.validateVisibilityTimeout(visibilityTimeout);
+        long deadline = System.nanoTime() + maxWait.toNanos();
+
+        try {
+            while (true) {
+                // version is read first, so a change made while pulling ends the wait right away
+                long version = changeVersion(queueURL);
+                Optional<Message> message = pullIfExists(queueURL, visibilityTimeout);
+                if (message.isPresent() || deadline - System.nanoTime() <= 0) {
+                    return message;
+                }
+                queueChangeNotifier.awaitChange(queueURL, fileQueueHelper.getQueueDirectory(queueURL), version, timeToWait(queueURL, deadline));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Gets version of the queue, moving past it on any change, see QueueChangeNotifier
+     */
+    long changeVersion(String queueURL) {
+        return queueChangeNotifier.version(queueURL);
+    }
+
+    /**
+     * Pulls a message, without failing if the queue was not created yet
+     */
+    Optional<Message> pullIfExists(String queueURL) {
+        return pullIfExists(queueURL, inVisibilityDuration);
+    }
+
+    /**
+     * Pulls a message leased for visibilityTimeout, without failing if the queue was not created yet
+     */
+    Optional<Message> pullIfExists(String queueURL, Duration visibilityTimeout) {
+        QueueService.validateQueueURL(queueURL);
+        return fileQueueHelper.queueExists(queueURL) ? lease(queueURL, visibilityTimeout) : Optional.empty();
+    }
+
+    /**
+     * Gets the time to wait after a pull found no message: until deadline, or until the earliest
+     * invisible message becomes visible by the clock if that comes first
+     *
+     * @param deadline System.nanoTime() at which the wait ends
+     */
+    Duration timeToWait(String queueURL, long deadline) {
+        long wait = Math.max(deadline - System.nanoTime(), 0);
+        Long next = nextVisibleFrom.get(queueURL);
+        if (next != null) {
+            wait = Math.min(wait, TimeUnit.MILLISECONDS.toNanos(Math.max(next - clock.millis(), 0)));
+        }
+        return Duration.ofNanos(wait);
+    }
+
+    /**
+     * Runs callback once the queue changes after version, or timeout elapses, without holding a thread meanwhile
+     */
+    void onChange(String queueURL, long version, Duration timeout, Runnable callback) {
+        queueChangeNotifier.onChange(queueURL, fileQueueHelper.getQueueDirectory(queueURL), version, timeout, callback);
+    }
+
+    /**
+     * Rewrites the visibleFrom of the message in place for binary records, else rewrites the file queue.
+     * Waiting consumers are woken up, as a shortened lease may make the message visible earlier.
+     */
+    @Override
+    public Boolean changeVisibility(String queueURL, Message message, Duration visibilityTimeout) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessage(message);
+        QueueService.validateReceiptHandle(message.getReceiptHandle());
+        QueueService.validateVisibilityTimeout(visibilityTimeout);
+        boolean changed;
+
+        try {
+            fileQueueHelper.takeLock(queueURL);
+            long now = clock.millis();
+            changed = fileQueueHelper.changeVisibility(queueURL, message.getReceiptHandle(), now, now + visibilityTimeout.toMillis());
+        } catch (IOException e) {
+            throw new FileQueueException("Error while changing visibility of message: {" + message + "} in queue: " + queueURL, e);
+        } finally {
+            fileQueueHelper.releaseLock(queueURL);
+        }
+        if (changed) {
+            nextVisibleFrom.remove(queueURL);
+            queueChangeNotifier.signal(queueURL);
+        }
+        return changed;
+    }
+
     @Override
     public Boolean delete(String queueURL, Message message) {
         QueueService.validateQueueURL(queueURL);
@@ -87,11 +337,11 @@ public class FileQueueService implements QueueService {
 
         try {
             fileQueueHelper.takeLock(queueURL);
-            List<Message> messages = fileQueueHelper.readMessages(queueURL);
-            // remove message from file queue if present
-            result = messages.removeIf(msg -> msg.getReceiptHandle().equals(message.getReceiptHandle()));
-            // update file queue
-            fileQueueHelper.writeMultipleMessages(queueURL, messages);
+            // remove message from file queue if present, found by its receipt handle
+            result = fileQueueHelper.deleteMessage(queueURL, message.getReceiptHandle());
+            if (fileQueueCompactor != null) {
+                deletedFrom.add(queueURL);
+            }
         } catch (IOException e) {
             throw new FileQueueException("Error while deleting message: {" + message + "} to queue: " + queueURL, e);
         } finally {
@@ -99,7 +349,177 @@ public class FileQueueService implements QueueService {
         }
         return result;
     }
-}
 
+    @Override
+    public List<Boolean> pushBatch(String queueURL, List<Message> messages) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessages(messages);
+        if (groupCommitWriter != null) {
+            join(groupCommitWriter.write(queueURL, messages));
+            queueChangeNotifier.signal(queueURL);
+            return Lists.newArrayList(Collections.nCopies(messages.size(), true));
+        }
+        try {
+            fileQueueHelper.takeLock(queueURL);
+            if (fileQueueHelper.queueExists(queueURL)) {
+                fileQueueHelper.appendMultipleMessages(queueURL, messages);
+            } else {
+                fileQueueHelper.createFileQueue(queueURL);
+                fileQueueHelper.writeMultipleMessages(queueURL, messages);
+            }
+            queueChangeNotifier.signal(queueURL);
+            return Lists.newArrayList(Collections.nCopies(messages.size(), true));
+        } catch (IOException e) {
+            throw new FileQueueException("Error while pushing " + messages.size() + " messages to queue: " + queueURL, e);
+        } finally {
+            fileQueueHelper.releaseLock(queueURL);
+        }
+    }
 
+    @Override
+    public List<Message> pullBatch(String queueURL, int maxMessages) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMaxMessages(maxMessages);
+        List<Message> pulled = Lists.newArrayList();
+
+        try {
+            fileQueueHelper.takeLock(queueURL);
+            if (!fileQueueHelper.queueExists(queueURL)) {
+                return pulled;
+            }
+            long now = clock.millis();
+            long visibleFrom = now + inVisibilityDuration.toMillis();
+            if (fileQueueHelper.canLeaseInPlace(queueURL)) {
+                return fileQueueHelper.leaseVisibleMessages(queueURL, maxMessages, now, visibleFrom);
+            }
+            List<Message> messages = fileQueueHelper.readMessages(queueURL);
+            for (Message msg : messages) {
+                if (pulled.size() == maxMessages) {
+                    break;
+                }
+                if (msg.isVisible(now)) {
+                    msg.setVisibleFromMillis(visibleFrom);
+                    pulled.add(msg);
+                }
+            }
+            // write all updated messages to file queue at once
+            if (!pulled.isEmpty()) {
+                fileQueueHelper.writeMultipleMessages(queueURL, messages);
+            }
+        } catch (IOException e) {
+            throw new FileQueueException("Error while getting messages from queue: " + queueURL, e);
+        } finally {
+            fileQueueHelper.releaseLock(queueURL);
+        }
+        return pulled;
+    }
 
+    @Override
+    public List<Boolean> deleteBatch(String queueURL, List<Message> messages) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessages(messages);
+        messages.forEach(message -> QueueService.validateReceiptHandle(message.getReceiptHandle()));
+
+        try {
+            fileQueueHelper.takeLock(queueURL);
+            if (fileQueueCompactor != null) {
+                deletedFrom.add(queueURL);
+            }
+            return fileQueueHelper.deleteMessages(queueURL,
+                    messages.stream().map(Message::getReceiptHandle).collect(Collectors.toList()));
+        } catch (IOException e) {
+            throw new FileQueueException("Error while deleting " + messages.size() + " messages from queue: " + queueURL, e);
+        } finally {
+            fileQueueHelper.releaseLock(queueURL);
+        }
+    }
+
+    /**
+     * Compacts the file queues deleted from which need it, never holding their lock but for the final swap
+     */
+    void compactQueues() {
+        for (String queueURL : deletedFrom) {
+            try {
+                fileQueueCompactor.compactIfNeeded(queueURL);
+            } catch (IOException | RuntimeException e) {
+                // retried on the next run, a failure must not cancel the scheduled compaction
+            }
+        }
+    }
+
+    /**
+     * Waits for a group commit, rethrowing its failure
+     */
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Records the earliest time an invisible message of the queue becomes visible
+     */
+    private void recordNextVisibleFrom(String queueURL, List<Message> messages) {
+        recordNextVisibleFrom(queueURL, messages.stream().mapToLong(Message::getVisibleFromMillis).min());
+    }
+
+    private void recordNextVisibleFrom(String queueURL, OptionalLong next) {
+        if (next.isPresent()) {
+            nextVisibleFrom.put(queueURL, next.getAsLong());
+        } else {
+            nextVisibleFrom.remove(queueURL);
+        }
+    }
+
+    /**
+     * Builder of a FileQueueService, pushes being neither group committed nor queues compacted unless set
+     */
+    public static final class Builder {
+        private final FileQueueHelper fileQueueHelper;
+        private final Duration inVisibilityDuration;
+        private Clock clock = Clock.systemUTC();
+        private FsyncPolicy fsyncPolicy;
+        private CompactionPolicy compactionPolicy;
+
+        private Builder(FileQueueHelper fileQueueHelper, Duration inVisibilityDuration) {
+            this.fileQueueHelper = fileQueueHelper;
+            this.inVisibilityDuration = inVisibilityDuration;
+        }
+
+        /**
+         * @param clock clock telling the time visibility is checked at, such as a coarse cached clock
+         */
+        public Builder clock(Clock clock) {
+            checkArgument(clock != null, "Clock must not be null");
+            this.clock = clock;
+            return this;
+        }
+
+        /**
+         * Group commits pushes, forcing them to disk according to fsyncPolicy before they return
+         */
+        public Builder fsyncPolicy(FsyncPolicy fsyncPolicy) {
+            checkArgument(fsyncPolicy != null, "Fsync policy must not be null");
+            this.fsyncPolicy = fsyncPolicy;
+            return this;
+        }
+
+        /**
+         * Compacts in the background the binary file queues messages are deleted from
+         */
+        public Builder compactionPolicy(CompactionPolicy compactionPolicy) {
+            checkArgument(compactionPolicy != null, "Compaction policy must not be null");
+            this.compactionPolicy = compactionPolicy;
+            return this;
+        }
+
+        public FileQueueService build() {
+            return new FileQueueService(this);
+        }
+    }
+}
@@ -1,71 +1,547 @@
 package com.example;
 
+import com.example.exception.FileQueueException;
+import com.example.helper.LeasingQueue;
+import com.example.helper.OffHeapVisibilityQueue;
+import com.example.helper.QueueDepth;
+import com.example.helper.QueueGauges;
+import com.example.helper.QueueJournal;
+import com.example.helper.StripePlacement;
+import com.example.helper.StripedVisibilityQueue;
+import com.example.helper.TimingWheel;
+import com.example.helper.VisibilityQueue;
 import com.example.model.Message;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Table;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import java.io.IOException;
+import java.time.Clock;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * A queue service using in-memory storage. Supports many producers and many consumers.
  * <p>
  * This in-memory queue is based on :
- * - ConcurrentLinkedQueue: concurrent FIFO queue to store the messages with a ConcurrentHashMap.
+ * - VisibilityQueue: per queue, a concurrent FIFO queue of visible messages and a heap of in-flight messages
+ * ordered by the time they become visible again, so pull does not scan in-flight messages.
  * - ConcurrentHashMap: to provide bucket-locking per queue
+ * <p>
+ * A message whose invisibility period expires is redelivered after the messages already visible.
+ * Visibility is checked in epoch millis of a {@link Clock}, the system clock unless another one is given.
+ * <p>
+ * The options below are combined with a {@link Builder}, see builder(inVisibilityDuration).
+ * <p>
+ * Created with several stripes, each queue is a {@link StripedVisibilityQueue}, which scales with the number of
+ * producers and consumers of a hot queue at the cost of FIFO order: messages are only in order within a stripe.
+ * <p>
+ * Created with a slab size, each queue is an {@link OffHeapVisibilityQueue}, which keeps queued messages in direct
+ * memory, out of reach of the garbage collector, at the cost of copying each message in on push and out on pull.
+ * <p>
+ * Delayed messages, see push(queueURL, message, delay), wait in a {@link TimingWheel} shared by all queues until due,
+ * then are offered to their queue by a background thread ticking every 10 milliseconds: scheduling and delivering
+ * them is O(1), and they cost pulls nothing meanwhile. A delayed message is indexed by receipt handle until delivered,
+ * so that deleting it cancels its delivery, and changing its visibility reschedules it.
+ * <p>
+ * Created with a {@link QueueJournal}, queues survive a restart: pushes and deletes are journaled, and queues are
+ * recovered from the journal on creation, while reads are still served from memory only. Leases are not journaled:
+ * consumers of an in-memory queue are gone with the process, so after a restart their messages are visible again.
+ * <p>
+ * The depth of a queue, see getQueueDepth(queueURL), is counted by a scan of the queue, plus its pending deliveries.
  */
-public class InMemoryQueueService implements QueueService {
-    private ConcurrentHashMap<String, ConcurrentLinkedQueue<Message>> queues = new ConcurrentHashMap<>();
+public class InMemoryQueueService implements QueueService, QueueGauges {
+    private static final Duration DELIVERY_TICK = Duration.ofMillis(10);
+
+    private ConcurrentHashMap<String, LeasingQueue> queues = new ConcurrentHashMap<>();
+    private Supplier<LeasingQueue> queueFactory = () -> new VisibilityQueue(this.clock);
 
     private Duration inVisibilityDuration;
+    private Clock clock = Clock.systemUTC();
+    // null unless queues are persisted
+    private QueueJournal queueJournal;
+    private ScheduledExecutorService snapshotter;
+    // delayed messages, with the queue they are delivered to, and the thread delivering them: created on the first
+    // delayed message, guarded by deliveryLock
+    private final Object deliveryLock = new Object();
+    private TimingWheel<Delivery> deliveryWheel;
+    private ScheduledExecutorService deliveryTimer;
+    // deliveries not due yet by queue and receipt handle, guarded by deliveryLock, and their number, read without it
+    private final Table<String, String, Delivery> pendingDeliveries = HashBasedTable.create();
+    private volatile int pendingCount = 0;
 
     protected InMemoryQueueService(Duration inVisibilityDuration) {
         this.inVisibilityDuration = inVisibilityDuration;
     }
 
+    private InMemoryQueueService(Builder builder) {
+        this(builder.inVisibilityDuration);
+        this.clock = builder.clock;
+        if (builder.stripes > 0) {
+            int stripes = builder.stripes;
+            StripePlacement placement = builder.placement;
+            this.queueFactory = () -> new StripedVisibilityQueue(stripes, placement, clock);
+        } else if (builder.slabSize > 0) {
+            int slabSize = builder.slabSize;
+            this.queueFactory = () -> new OffHeapVisibilityQueue(slabSize, clock);
+        }
+        if (builder.queueJournal != null) {
+            recover(builder.queueJournal, builder.snapshotInterval);
+        }
+    }
+
+    /**
+     * Gets a builder of an in-memory queue service, combining any of its options
+     *
+     * @param inVisibilityDuration invisibility period of pulled messages
+     */
+    protected static Builder builder(Duration inVisibilityDuration) {
+        return new Builder(inVisibilityDuration);
+    }
+
+    private void recover(QueueJournal queueJournal, Duration snapshotInterval) {
+        this.queueJournal = queueJournal;
+        try {
+            queueJournal.recover().forEach((queueURL, messages) -> {
+                LeasingQueue queue = queues.computeIfAbsent(queueURL, url -> queueFactory.get());
+                messages.forEach(message -> deliver(queueURL, queue, message));
+            });
+        } catch (IOException e) {
+            throw new FileQueueException("Error while recovering queues from journal", e);
+        }
+        this.snapshotter = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("queue-snapshot-%d").setDaemon(true).build());
+        long period = snapshotInterval.toMillis();
+        snapshotter.scheduleWithFixedDelay(this::snapshot, period, period, TimeUnit.MILLISECONDS);
+    }
+
     @Override
     public Boolean push(String queueURL, Message message) {
         QueueService.validateQueueURL(queueURL);
         QueueService.validateMessage(message);
-        ConcurrentLinkedQueue<Message> queue = queues.get(queueURL);
-        if (queue == null) {
-            // create queue if it doesn't exist
-            queue = new ConcurrentLinkedQueue();
-            queues.put(queueURL, queue);
-        }
+        journalPushes(queueURL, Lists.newArrayList(message));
+        // create queue if it doesn't exist
+        LeasingQueue queue = queues.computeIfAbsent(queueURL, url -> queueFactory.get());
         return queue.offer(message);
     }
 
+    /**
+     * Journals a copy of the message at once, and holds it in the delivery wheel until delay elapses by the clock
+     */
+    @Override
+    public Boolean push(String queueURL, Message message, Duration delay) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessage(message);
+        QueueService.validateDelay(delay);
+        return pushDelayed(queueURL, QueueService.scheduled(message, clock.millis() + delay.toMillis()));
+    }
+
+    @Override
+    public Boolean pushAt(String queueURL, Message message, LocalDateTime deliverAt) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessage(message);
+        QueueService.validateDeliverAt(deliverAt);
+        return pushDelayed(queueURL, QueueService.scheduled(message, deliverAt));
+    }
+
     @Override
     public Optional<Message> pull(String queueURL) {
         QueueService.validateQueueURL(queueURL);
-        ConcurrentLinkedQueue<Message> queue = queues.get(queueURL);
+        LeasingQueue queue = queues.get(queueURL);
         if (queue != null) {
-            // find first visibile message
-            Optional<Message> message = QueueService.findVisibleMessage(queue);
-            // set invisibility period
-            message.ifPresent(msg -> msg.setVisibleFrom(LocalDateTime.now().plus(inVisibilityDuration)));
-            return message;
+            // take first visible message and set its invisibility period
+            return Optional.ofNullable(queue.poll(inVisibilityDuration));
         } else
             return Optional.empty();
     }
 
+    /**
+     * Sleeps until a push or an expiring invisibility period makes a message available, or maxWait elapses.
+     * Returns Optional.Empty() if interrupted while waiting.
+     */
+    @Override
+    public Optional<Message> pull(String queueURL, Duration maxWait) {
+        return pull(queueURL, maxWait, inVisibilityDuration);
+    }
+
+    /**
+     * Leases the message for visibilityTimeout in a single claim, waiting as pull(queueURL, maxWait) does
+     */
+    @Override
+    public Optional<Message> pull(String queueURL, Duration maxWait, Duration visibilityTimeout) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMaxWait(maxWait);
+        QueueService.validateVisibilityTimeout(visibilityTimeout);
+        // create queue if it doesn't exist, so that a push can wake up this consumer
+        LeasingQueue queue = queues.computeIfAbsent(queueURL, url -> queueFactory.get());
+        try {
+            return Optional.ofNullable(queue.poll(visibilityTimeout, maxWait));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Replaces the lease of the message in place, or moves the delivery of a delayed message not delivered yet to
+     * current time + visibilityTimeout. Leases are not journaled, so neither is their change.
+     */
+    @Override
+    public Boolean changeVisibility(String queueURL, Message message, Duration visibilityTimeout) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessage(message);
+        QueueService.validateReceiptHandle(message.getReceiptHandle());
+        QueueService.validateVisibilityTimeout(visibilityTimeout);
+        LeasingQueue queue = queues.get(queueURL);
+        long visibleFromMillis = clock.millis() + visibilityTimeout.toMillis();
+        return queue != null && (queue.changeVisibility(message.getReceiptHandle(), visibleFromMillis)
+                || rescheduleDelivery(queueURL, queue, message.getReceiptHandle(), visibleFromMillis));
+    }
+
     @Override
     public Boolean delete(String queueURL, Message message) {
         QueueService.validateQueueURL(queueURL);
         QueueService.validateMessage(message);
         QueueService.validateReceiptHandle(message.getReceiptHandle());
 
-        ConcurrentLinkedQueue<Message> queue = queues.get(queueURL);
+        LeasingQueue queue = queues.get(queueURL);
 
         if (queue != null) {
-            // delete message from queue, if present
-            Boolean deleteResult = queue.removeIf(msg -> msg.getReceiptHandle().equals(message.getReceiptHandle()));
-            return deleteResult;
+            // delete message from queue, if present, or cancel its delivery if not delivered yet
+            boolean removed = queue.remove(message.getReceiptHandle()) || cancelDelivery(queueURL, queue, message.getReceiptHandle());
+            if (removed) {
+                journalDeletes(queueURL, Lists.newArrayList(message.getReceiptHandle()));
+            }
+            return removed;
         } else
             return false;
     }
 
+    @Override
+    public List<Boolean> pushBatch(String queueURL, List<Message> messages) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessages(messages);
+        journalPushes(queueURL, messages);
+        LeasingQueue queue = queues.computeIfAbsent(queueURL, url -> queueFactory.get());
+        List<Boolean> results = Lists.newArrayListWithCapacity(messages.size());
+        for (Message message : messages) {
+            results.add(queue.offer(message));
+        }
+        return results;
+    }
+
+    @Override
+    public List<Message> pullBatch(String queueURL, int maxMessages) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMaxMessages(maxMessages);
+        List<Message> messages = Lists.newArrayList();
+        LeasingQueue queue = queues.get(queueURL);
+        if (queue != null) {
+            Message message;
+            while (messages.size() < maxMessages && (message = queue.poll(inVisibilityDuration)) != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
 
+    @Override
+    public List<Boolean> deleteBatch(String queueURL, List<Message> messages) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessages(messages);
+        messages.forEach(message -> QueueService.validateReceiptHandle(message.getReceiptHandle()));
+        LeasingQueue queue = queues.get(queueURL);
+        List<Boolean> results = Lists.newArrayListWithCapacity(messages.size());
+        List<String> removed = Lists.newArrayList();
+        for (Message message : messages) {
+            boolean result = queue != null && (queue.remove(message.getReceiptHandle())
+                    || cancelDelivery(queueURL, queue, message.getReceiptHandle()));
+            if (result) {
+                removed.add(message.getReceiptHandle());
+            }
+            results.add(result);
+        }
+        if (!removed.isEmpty()) {
+            journalDeletes(queueURL, removed);
+        }
+        return results;
+    }
+
+    /**
+     * Counts the visible and in flight messages of the queue, and its delayed messages not delivered yet
+     */
+    @Override
+    public QueueDepth getQueueDepth(String queueURL) {
+        QueueService.validateQueueURL(queueURL);
+        LeasingQueue queue = queues.get(queueURL);
+        if (queue == null) {
+            return new QueueDepth(0, 0, 0);
+        }
+        QueueDepth depth = queue.depth();
+        long delayed = 0;
+        if (pendingCount > 0) {
+            synchronized (deliveryLock) {
+                delayed = pendingDeliveries.row(queueURL).size();
+            }
+        }
+        return new QueueDepth(depth.getVisible(), depth.getInFlight(), delayed);
+    }
+
+    /**
+     * Stops delayed deliveries, and stops snapshots and closes the journal, if queues are persisted.
+     * Messages not delivered yet are lost, unless recovered from the journal.
+     */
+    public void shutdown() {
+        synchronized (deliveryLock) {
+            if (deliveryTimer != null) {
+                deliveryTimer.shutdownNow();
+            }
+        }
+        if (queueJournal == null) {
+            return;
+        }
+        snapshotter.shutdownNow();
+        try {
+            queueJournal.close();
+        } catch (IOException e) {
+            throw new FileQueueException("Error while closing journal", e);
+        }
+    }
+
+    private Boolean pushDelayed(String queueURL, Message message) {
+        journalPushes(queueURL, Lists.newArrayList(message));
+        LeasingQueue queue = queues.computeIfAbsent(queueURL, url -> queueFactory.get());
+        return deliver(queueURL, queue, message);
+    }
+
+    /**
+     * Offers a message to its queue once visible, holding it in the delivery wheel until then
+     */
+    private boolean deliver(String queueURL, LeasingQueue queue, Message message) {
+        if (message.getVisibleFromMillis() > clock.millis()) {
+            synchronized (deliveryLock) {
+                if (schedule(queueURL, queue, message)) {
+                    return true;
+                }
+            }
+        }
+        return queue.offer(message);
+    }
+
+    /**
+     * Schedules the delivery of a message in the wheel, and indexes it. Called under deliveryLock.
+     *
+     * @return false if the message is due already
+     */
+    private boolean schedule(String queueURL, LeasingQueue queue, Message message) {
+        if (deliveryWheel == null) {
+            deliveryWheel = new TimingWheel<>(DELIVERY_TICK, clock.millis());
+            deliveryTimer = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("delayed-delivery-%d").setDaemon(true).build());
+            long period = DELIVERY_TICK.toMillis();
+            deliveryTimer.scheduleAtFixedRate(this::deliverDue, period, period, TimeUnit.MILLISECONDS);
+        }
+        Delivery delivery = new Delivery(queueURL, queue, message);
+        if (!deliveryWheel.schedule(delivery, message.getVisibleFromMillis())) {
+            return false;
+        }
+        Delivery replaced = pendingDeliveries.put(queueURL, message.getReceiptHandle(), delivery);
+        if (replaced != null) {
+            // a message pushed again under the same receipt handle is delivered once
+            replaced.cancelled = true;
+        }
+        pendingCount = pendingDeliveries.size();
+        return true;
+    }
+
+    /**
+     * Offers the delayed messages due by now to their queues. They are offered under the lock of the delivery wheel,
+     * so that a delete or change of visibility finds a message either pending or in its queue.
+     */
+    private void deliverDue() {
+        synchronized (deliveryLock) {
+            deliveryWheel.advance(clock.millis(), delivery -> {
+                if (!delivery.cancelled) {
+                    pendingDeliveries.remove(delivery.queueURL, delivery.message.getReceiptHandle());
+                    delivery.queue.offer(delivery.message);
+                }
+            });
+            pendingCount = pendingDeliveries.size();
+        }
+    }
+
+    /**
+     * Cancels the delivery of a delayed message not delivered yet
+     *
+     * @return true if cancelled, or if removed from queue after being delivered meanwhile
+     */
+    private boolean cancelDelivery(String queueURL, LeasingQueue queue, String receiptHandle) {
+        if (pendingCount == 0) {
+            return false;
+        }
+        synchronized (deliveryLock) {
+            Delivery delivery = pendingDeliveries.remove(queueURL, receiptHandle);
+            pendingCount = pendingDeliveries.size();
+            if (delivery != null) {
+                delivery.cancelled = true;
+                return true;
+            }
+        }
+        return queue.remove(receiptHandle);
+    }
+
+    /**
+     * Moves the delivery of a delayed message not delivered yet to visibleFromMillis
+     *
+     * @return true if moved, or if its lease changed after being delivered meanwhile
+     */
+    private boolean rescheduleDelivery(String queueURL, LeasingQueue queue, String receiptHandle, long visibleFromMillis) {
+        if (pendingCount == 0) {
+            return false;
+        }
+        synchronized (deliveryLock) {
+            Delivery delivery = pendingDeliveries.remove(queueURL, receiptHandle);
+            if (delivery != null) {
+                delivery.cancelled = true;
+                Message message = delivery.message;
+                message.setVisibleFromMillis(visibleFromMillis);
+                if (!schedule(queueURL, queue, message)) {
+                    pendingCount = pendingDeliveries.size();
+                    queue.offer(message);
+                }
+                return true;
+            }
+        }
+        return queue.changeVisibility(receiptHandle, visibleFromMillis);
+    }
+
+    /**
+     * Journals pushed messages before they are queued, so that no pulled message can be missing from the journal
+     */
+    private void journalPushes(String queueURL, List<Message> messages) {
+        if (queueJournal == null) {
+            return;
+        }
+        try {
+            queueJournal.logPushes(queueURL, messages);
+        } catch (IOException e) {
+            throw new FileQueueException("Error while journaling " + messages.size() + " messages pushed to queue: " + queueURL, e);
+        }
+    }
+
+    /**
+     * Journals deleted messages. A delete lost in a crash only leads to the message being delivered again.
+     */
+    private void journalDeletes(String queueURL, List<String> receiptHandles) {
+        try {
+            if (queueJournal != null) {
+                queueJournal.logDeletes(queueURL, receiptHandles);
+            }
+        } catch (IOException e) {
+            throw new FileQueueException("Error while journaling " + receiptHandles.size() + " messages deleted from queue: " + queueURL, e);
+        }
+    }
+
+    private void snapshot() {
+        try {
+            queueJournal.snapshot();
+        } catch (IOException | RuntimeException e) {
+            // retried on the next run, a failure must not cancel the scheduled snapshots
+        }
+    }
+
+    /**
+     * A delayed message and the queue it is delivered to
+     */
+    private static final class Delivery {
+        private final String queueURL;
+        private final LeasingQueue queue;
+        private final Message message;
+        // guarded by deliveryLock, a cancelled delivery staying in the wheel until due
+        private boolean cancelled = false;
+
+        private Delivery(String queueURL, LeasingQueue queue, Message message) {
+            this.queueURL = queueURL;
+            this.queue = queue;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Builder of an InMemoryQueueService, queues being neither striped, off-heap nor persisted unless set
+     */
+    public static final class Builder {
+        private final Duration inVisibilityDuration;
+        private Clock clock = Clock.systemUTC();
+        private int stripes = 0;
+        private StripePlacement placement;
+        private int slabSize = 0;
+        private QueueJournal queueJournal;
+        private Duration snapshotInterval;
+
+        private Builder(Duration inVisibilityDuration) {
+            this.inVisibilityDuration = inVisibilityDuration;
+        }
+
+        /**
+         * @param clock clock telling the time leases start and expire at, such as a coarse cached clock
+         */
+        public Builder clock(Clock clock) {
+            checkArgument(clock != null, "Clock must not be null");
+            this.clock = clock;
+            return this;
+        }
+
+        /**
+         * Relaxes FIFO order to per stripe order, to scale hot queues with the number of cores
+         *
+         * @param stripes   number of stripes of every queue
+         * @param placement stripe a thread pushes to, and pulls from first
+         */
+        public Builder stripes(int stripes, StripePlacement placement) {
+            checkArgument(stripes > 0, "Number of stripes must be positive");
+            this.stripes = stripes;
+            this.placement = placement;
+            return this;
+        }
+
+        /**
+         * Stores queued messages off-heap, so that millions of them do not lengthen garbage collection pauses
+         *
+         * @param slabSize bytes of each direct slab allocated by a queue, a power of two of at least 4 KB
+         */
+        public Builder slabSize(int slabSize) {
+            checkArgument(slabSize >= 4096 && Integer.bitCount(slabSize) == 1, "Slab size must be a power of two of at least 4 KB");
+            this.slabSize = slabSize;
+            return this;
+        }
+
+        /**
+         * Persists queues in a journal, recovering them from it on build()
+         *
+         * @param snapshotInterval period of the snapshots compacting the journal
+         */
+        public Builder journal(QueueJournal queueJournal, Duration snapshotInterval) {
+            checkArgument(queueJournal != null, "Journal must not be null");
+            checkArgument(snapshotInterval != null && snapshotInterval.toMillis() > 0, "Snapshot interval must be positive");
+            this.queueJournal = queueJournal;
+            this.snapshotInterval = snapshotInterval;
+            return this;
+        }
+
+        public InMemoryQueueService build() {
+            checkArgument(stripes == 0 || slabSize == 0, "Queues are either striped or off-heap");
+            return new InMemoryQueueService(this);
+        }
+    }
 }
@@ -0,0 +1,121 @@
+package com.example;
+
+import com.example.model.Message;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Keeps the messages of long-running jobs invisible, by extending their leases with changeVisibility() every half
+ * visibilityTimeout while the job runs. Consumers can then pull with a short visibility timeout: the message of a
+ * crashed consumer is visible again within visibilityTimeout, however long its job would have taken.
+ * <p>
+ * A renewal stops when closed, or on its first change returning false: the lease expired, or the message was deleted.
+ * A change throwing is retried on the next run, as a transient failure does not lose the lease at once.
+ * <p>
+ * Renewals of all messages run on a single thread, so a change blocking on a remote queue delays the others.
+ */
+public class LeaseRenewer implements AutoCloseable {
+    private final QueueService queueService;
+    private final Duration visibilityTimeout;
+    private final ScheduledExecutorService renewer;
+
+    /**
+     * @param visibilityTimeout lease given on every renewal, at least 2 milliseconds
+     */
+    public LeaseRenewer(QueueService queueService, Duration visibilityTimeout) {
+        checkArgument(visibilityTimeout != null && visibilityTimeout.toMillis() >= 2, "Visibility timeout must be at least 2 milliseconds");
+        this.queueService = queueService;
+        this.visibilityTimeout = visibilityTimeout;
+        this.renewer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("lease-renewer-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Starts renewing the lease of a pulled message, the first renewal being due in half visibilityTimeout
+     *
+     * @return renewal to close once the job is done, before or after deleting the message
+     */
+    public Renewal renew(String queueURL, Message message) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessage(message);
+        QueueService.validateReceiptHandle(message.getReceiptHandle());
+        Renewal renewal = new Renewal(queueURL, message);
+        long period = visibilityTimeout.toMillis() / 2;
+        renewal.start(renewer.scheduleAtFixedRate(renewal::run, period, period, TimeUnit.MILLISECONDS));
+        return renewal;
+    }
+
+    /**
+     * Stops all renewals, the leases then expiring on their own
+     */
+    @Override
+    public void close() {
+        renewer.shutdownNow();
+    }
+
+    /**
+     * Renewal of the lease of a single message
+     */
+    public final class Renewal implements AutoCloseable {
+        private final String queueURL;
+        private final Message message;
+        // task and closed are guarded by this, as the first run or a close may come before the task is set
+        private ScheduledFuture<?> task;
+        private boolean closed = false;
+        private volatile boolean lost = false;
+
+        private Renewal(String queueURL, Message message) {
+            this.queueURL = queueURL;
+            this.message = message;
+        }
+
+        /**
+         * Checks if a renewal found the lease expired or the message deleted, so that another consumer may
+         * process the message too
+         */
+        public boolean isLost() {
+            return lost;
+        }
+
+        /**
+         * Stops renewing, the lease then expiring on its own unless the message is deleted
+         */
+        @Override
+        public synchronized void close() {
+            closed = true;
+            if (task != null) {
+                task.cancel(false);
+            }
+        }
+
+        private synchronized void start(ScheduledFuture<?> task) {
+            this.task = task;
+            if (closed) {
+                task.cancel(false);
+            }
+        }
+
+        private void run() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+            }
+            try {
+                if (!queueService.changeVisibility(queueURL, message, visibilityTimeout)) {
+                    lost = true;
+                    close();
+                }
+            } catch (RuntimeException e) {
+                // retried on the next run, a failure must not cancel the renewal
+            }
+        }
+    }
+}
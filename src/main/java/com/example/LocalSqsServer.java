@@ -0,0 +1,379 @@
+package com.example;
+
+import com.example.model.Message;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.escape.Escaper;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.xml.XmlEscapers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An embeddable HTTP endpoint speaking the subset of the SQS query API used by {@link SqsQueueService}, answered from
+ * another QueueService, such as an {@link InMemoryQueueService} or a {@link FileQueueService}. The AWS SDK client then
+ * runs its whole request path, marshalling, signing, HTTP and checksums, against a local queue.
+ * <p>
+ * Supported actions: SendMessage and SendMessageBatch with DelaySeconds, ReceiveMessage with MaxNumberOfMessages,
+ * WaitTimeSeconds and VisibilityTimeout, DeleteMessage, DeleteMessageBatch, ChangeMessageVisibility, GetQueueUrl and
+ * CreateQueue. Other actions are answered with an error, and signatures are not checked. Receives without
+ * VisibilityTimeout lease messages for the invisibility duration of the backing service.
+ * <p>
+ * The queue of a request is the last segment of its QueueUrl, or of its path once the SDK moved the queue URL there:
+ * http://localhost:port/queue/orders is queue "orders" of the backing service.
+ */
+public class LocalSqsServer {
+    private static final String NAMESPACE = "http://queue.amazonaws.com/doc/2012-11-05/";
+    private static final Escaper XML = XmlEscapers.xmlContentEscaper();
+    private static final Duration SQS_MAX_VISIBILITY_TIMEOUT = Duration.ofHours(12);
+
+    private final QueueService queueService;
+    private final int port;
+    private HttpServer server;
+    private ExecutorService handlers;
+
+    /**
+     * @param port port to listen to on the loopback interface, 0 for any free port
+     */
+    public LocalSqsServer(QueueService queueService, int port) {
+        this.queueService = queueService;
+        this.port = port;
+    }
+
+    /**
+     * Starts listening, each request being handled on its own thread, so that long polls do not hold up others
+     */
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        handlers = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("local-sqs-server-%d").setDaemon(true).build());
+        server.setExecutor(handlers);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * Gets the endpoint to set on the SQS client, such as http://localhost:9324
+     */
+    public String getEndpoint() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public String getQueueUrl(String queueName) {
+        return getEndpoint() + "/queue/" + queueName;
+    }
+
+    /**
+     * Stops listening, abandoning the requests in progress, long polls included
+     */
+    public void shutdown() {
+        if (server != null) {
+            server.stop(0);
+            handlers.shutdownNow();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            Map<String, String> parameters = parameters(exchange);
+            String action = Strings.nullToEmpty(parameters.get("Action"));
+            String queueName = queueName(parameters.containsKey("QueueUrl")
+                    ? URI.create(parameters.get("QueueUrl")).getPath() : exchange.getRequestURI().getPath());
+            String result;
+            switch (action) {
+                case "SendMessage":
+                    result = sendMessage(queueName, parameters);
+                    break;
+                case "SendMessageBatch":
+                    result = sendMessageBatch(queueName, parameters);
+                    break;
+                case "ReceiveMessage":
+                    result = receiveMessage(queueName, parameters);
+                    break;
+                case "DeleteMessage":
+                    deleteMessage(queueName, parameters);
+                    result = "";
+                    break;
+                case "DeleteMessageBatch":
+                    result = deleteMessageBatch(queueName, parameters);
+                    break;
+                case "ChangeMessageVisibility":
+                    if (!changeMessageVisibility(queueName, parameters)) {
+                        respond(exchange, 400, error("Sender", "AWS.SimpleQueueService.MessageNotInflight",
+                                "Message is not in flight"));
+                        return;
+                    }
+                    result = "";
+                    break;
+                case "GetQueueUrl":
+                case "CreateQueue":
+                    result = text("QueueUrl", getQueueUrl(required(parameters, "QueueName")));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported action: " + action);
+            }
+            respond(exchange, 200, response(action, result));
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, error("Sender", "InvalidParameterValue", e.getMessage()));
+        } catch (RuntimeException e) {
+            respond(exchange, 500, error("Receiver", "InternalError", e.toString()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String sendMessage(String queueName, Map<String, String> parameters) {
+        Message message = new Message(required(parameters, "MessageBody"));
+        if (!push(queueName, message, parameters.get("DelaySeconds"))) {
+            throw new IllegalStateException("Message not pushed to queue: " + queueName);
+        }
+        return text("MD5OfMessageBody", md5(message.getContent())) + text("MessageId", message.getId());
+    }
+
+    private String sendMessageBatch(String queueName, Map<String, String> parameters) {
+        List<String> ids = entryIds(parameters, "SendMessageBatchRequestEntry");
+        List<Message> messages = Lists.newArrayList();
+        List<String> delays = Lists.newArrayList();
+        for (int i = 0; i < ids.size(); i++) {
+            messages.add(new Message(required(parameters, "SendMessageBatchRequestEntry." + (i + 1) + ".MessageBody")));
+            delays.add(parameters.get("SendMessageBatchRequestEntry." + (i + 1) + ".DelaySeconds"));
+        }
+        List<Boolean> pushed;
+        if (delays.stream().allMatch(Objects::isNull)) {
+            pushed = queueService.pushBatch(queueName, messages);
+        } else {
+            // no batch push takes a delay: messages are pushed one by one
+            pushed = Lists.newArrayList();
+            for (int i = 0; i < messages.size(); i++) {
+                pushed.add(push(queueName, messages.get(i), delays.get(i)));
+            }
+        }
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < ids.size(); i++) {
+            if (pushed.get(i)) {
+                result.append(element("SendMessageBatchResultEntry", text("Id", ids.get(i))
+                        + text("MessageId", messages.get(i).getId())
+                        + text("MD5OfMessageBody", md5(messages.get(i).getContent()))));
+            } else {
+                result.append(failedEntry(ids.get(i), "Message not pushed"));
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Pushes a message, delayed by DelaySeconds if given
+     */
+    private boolean push(String queueName, Message message, String delaySeconds) {
+        if (delaySeconds == null) {
+            return queueService.push(queueName, message);
+        }
+        int delay = Integer.parseInt(delaySeconds);
+        if (delay < 0 || delay > SqsQueueService.SQS_MAX_DELAY.getSeconds()) {
+            throw new IllegalArgumentException("DelaySeconds must be between 0 and 900");
+        }
+        return queueService.push(queueName, message, Duration.ofSeconds(delay));
+    }
+
+    /**
+     * Waits up to WaitTimeSeconds for a first message, then takes what is visible up to MaxNumberOfMessages
+     */
+    private String receiveMessage(String queueName, Map<String, String> parameters) {
+        int maxMessages = Integer.parseInt(parameters.getOrDefault("MaxNumberOfMessages", "1"));
+        int waitTimeSeconds = Integer.parseInt(parameters.getOrDefault("WaitTimeSeconds", "0"));
+        if (maxMessages < 1 || maxMessages > SqsQueueService.SQS_MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("MaxNumberOfMessages must be between 1 and 10");
+        }
+        if (waitTimeSeconds < 0 || waitTimeSeconds > SqsQueueService.SQS_MAX_WAIT.getSeconds()) {
+            throw new IllegalArgumentException("WaitTimeSeconds must be between 0 and 20");
+        }
+        List<Message> messages = Lists.newArrayList();
+        if (parameters.containsKey("VisibilityTimeout")) {
+            // no batch pull takes a visibility timeout: messages are pulled one by one, only the first one waiting
+            Duration visibilityTimeout = visibilityTimeout(parameters);
+            Optional<Message> message = queueService.pull(queueName, Duration.ofSeconds(waitTimeSeconds), visibilityTimeout);
+            while (message.isPresent()) {
+                messages.add(message.get());
+                message = messages.size() < maxMessages
+                        ? queueService.pull(queueName, Duration.ZERO, visibilityTimeout) : Optional.empty();
+            }
+        } else {
+            if (waitTimeSeconds > 0) {
+                Optional<Message> first = queueService.pull(queueName, Duration.ofSeconds(waitTimeSeconds));
+                first.ifPresent(messages::add);
+            }
+            if (messages.size() < maxMessages && (waitTimeSeconds == 0 || !messages.isEmpty())) {
+                messages.addAll(queueService.pullBatch(queueName, maxMessages - messages.size()));
+            }
+        }
+        StringBuilder result = new StringBuilder();
+        for (Message message : messages) {
+            result.append(element("Message", text("MessageId", message.getId())
+                    + text("ReceiptHandle", message.getReceiptHandle())
+                    + text("MD5OfBody", md5(message.getContent()))
+                    + text("Body", message.getContent())));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Deletes a message, succeeding even if already deleted, as SQS does
+     */
+    private void deleteMessage(String queueName, Map<String, String> parameters) {
+        queueService.delete(queueName, receipt(required(parameters, "ReceiptHandle")));
+    }
+
+    /**
+     * Changes the visibility of a message
+     *
+     * @return false if the message is not in flight, or its receipt handle unknown
+     */
+    private boolean changeMessageVisibility(String queueName, Map<String, String> parameters) {
+        Message message = receipt(required(parameters, "ReceiptHandle"));
+        return queueService.changeVisibility(queueName, message, visibilityTimeout(parameters));
+    }
+
+    private String deleteMessageBatch(String queueName, Map<String, String> parameters) {
+        List<String> ids = entryIds(parameters, "DeleteMessageBatchRequestEntry");
+        List<Message> messages = Lists.newArrayList();
+        for (int i = 0; i < ids.size(); i++) {
+            messages.add(receipt(required(parameters, "DeleteMessageBatchRequestEntry." + (i + 1) + ".ReceiptHandle")));
+        }
+        queueService.deleteBatch(queueName, messages);
+        StringBuilder result = new StringBuilder();
+        for (String id : ids) {
+            result.append(element("DeleteMessageBatchResultEntry", text("Id", id)));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Gets the ids of the numbered entries of a batch request, from 1 up to the first missing one, in order
+     */
+    private static List<String> entryIds(Map<String, String> parameters, String entry) {
+        List<String> ids = Lists.newArrayList();
+        String id;
+        while ((id = parameters.get(entry + "." + (ids.size() + 1) + ".Id")) != null) {
+            ids.add(id);
+        }
+        if (ids.isEmpty() || ids.size() > SqsQueueService.SQS_MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("A batch must have between 1 and 10 entries");
+        }
+        return ids;
+    }
+
+    private static Duration visibilityTimeout(Map<String, String> parameters) {
+        int visibilityTimeout = Integer.parseInt(required(parameters, "VisibilityTimeout"));
+        if (visibilityTimeout < 0 || visibilityTimeout > SQS_MAX_VISIBILITY_TIMEOUT.getSeconds()) {
+            throw new IllegalArgumentException("VisibilityTimeout must be between 0 and 43200");
+        }
+        return Duration.ofSeconds(visibilityTimeout);
+    }
+
+    private static Message receipt(String receiptHandle) {
+        return new Message(null, receiptHandle, null, 0L);
+    }
+
+    private static String queueName(String path) {
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("Missing queue URL");
+        }
+        return name;
+    }
+
+    private static String required(Map<String, String> parameters, String name) {
+        String value = parameters.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing parameter: " + name);
+        }
+        return value;
+    }
+
+    /**
+     * Gets the parameters of the query string and of the form encoded body
+     */
+    private static Map<String, String> parameters(HttpExchange exchange) throws IOException {
+        Map<String, String> parameters = Maps.newHashMap();
+        decode(exchange.getRequestURI().getRawQuery(), parameters);
+        decode(new String(ByteStreams.toByteArray(exchange.getRequestBody()), Charsets.UTF_8), parameters);
+        return parameters;
+    }
+
+    private static void decode(String form, Map<String, String> parameters) throws UnsupportedEncodingException {
+        if (Strings.isNullOrEmpty(form)) {
+            return;
+        }
+        for (String pair : form.split("&")) {
+            int separator = pair.indexOf('=');
+            String name = separator < 0 ? pair : pair.substring(0, separator);
+            String value = separator < 0 ? "" : pair.substring(separator + 1);
+            parameters.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+    }
+
+    private static String response(String action, String result) {
+        String body = result.isEmpty() ? "" : element(action + "Result", result);
+        return "<" + action + "Response xmlns=\"" + NAMESPACE + "\">" + body
+                + element("ResponseMetadata", text("RequestId", UUID.randomUUID().toString()))
+                + "</" + action + "Response>";
+    }
+
+    private static String error(String type, String code, String message) {
+        return "<ErrorResponse xmlns=\"" + NAMESPACE + "\">"
+                + element("Error", text("Type", type) + text("Code", code) + text("Message", Strings.nullToEmpty(message)))
+                + text("RequestId", UUID.randomUUID().toString())
+                + "</ErrorResponse>";
+    }
+
+    private static String failedEntry(String id, String message) {
+        return element("BatchResultErrorEntry", text("Id", id) + text("SenderFault", "false")
+                + text("Code", "InternalError") + text("Message", message));
+    }
+
+    /**
+     * Gets an element of child elements
+     */
+    private static String element(String name, String children) {
+        return "<" + name + ">" + children + "</" + name + ">";
+    }
+
+    /**
+     * Gets an element of escaped text
+     */
+    private static String text(String name, String text) {
+        return element(name, XML.escape(text));
+    }
+
+    private static String md5(String content) {
+        return Hashing.md5().hashString(content, Charsets.UTF_8).toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String xml) throws IOException {
+        byte[] body = xml.getBytes(Charsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/xml");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
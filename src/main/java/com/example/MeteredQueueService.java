@@ -0,0 +1,223 @@
+package com.example;
+
+import com.example.helper.QueueGauges;
+import com.example.helper.QueueMetrics;
+import com.example.helper.QueueOperation;
+import com.example.helper.QueueStats;
+import com.example.model.Message;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * A queue service recording counters and latencies of the operations of another one, per queue, in
+ * {@link QueueMetrics}. An operation throwing counts as failed.
+ * <p>
+ * If the service has {@link QueueGauges}, they are set on the metrics, so that the depth of queues is reported too.
+ * <p>
+ * With disabled metrics, operations are passed through without reading the clock.
+ * Latencies of pull with maxWait include the time waited for a message.
+ */
+public class MeteredQueueService implements QueueService {
+    private final QueueService queueService;
+    private final QueueMetrics metrics;
+
+    public MeteredQueueService(QueueService queueService, QueueMetrics metrics) {
+        this.queueService = queueService;
+        this.metrics = metrics;
+        if (queueService instanceof QueueGauges) {
+            metrics.setGauges((QueueGauges) queueService);
+        }
+    }
+
+    @Override
+    public Boolean push(String queueURL, Message message) {
+        return push(queueURL, () -> queueService.push(queueURL, message));
+    }
+
+    /**
+     * Records a delayed push as a push
+     */
+    @Override
+    public Boolean push(String queueURL, Message message, Duration delay) {
+        return push(queueURL, () -> queueService.push(queueURL, message, delay));
+    }
+
+    @Override
+    public Boolean pushAt(String queueURL, Message message, LocalDateTime deliverAt) {
+        return push(queueURL, () -> queueService.pushAt(queueURL, message, deliverAt));
+    }
+
+    private Boolean push(String queueURL, Supplier<Boolean> push) {
+        if (!metrics.isEnabled()) {
+            return push.get();
+        }
+        QueueService.validateQueueURL(queueURL);
+        long start = System.nanoTime();
+        boolean pushed = false;
+        try {
+            pushed = push.get();
+            return pushed;
+        } finally {
+            QueueStats stats = record(queueURL, QueueOperation.PUSH, start);
+            stats.recordPushes(pushed ? 1 : 0, pushed ? 0 : 1);
+        }
+    }
+
+    @Override
+    public Optional<Message> pull(String queueURL) {
+        if (!metrics.isEnabled()) {
+            return queueService.pull(queueURL);
+        }
+        QueueService.validateQueueURL(queueURL);
+        long start = System.nanoTime();
+        Optional<Message> message = Optional.empty();
+        try {
+            message = queueService.pull(queueURL);
+            return message;
+        } finally {
+            record(queueURL, QueueOperation.PULL, start).recordPulls(message.isPresent() ? 1 : 0);
+        }
+    }
+
+    @Override
+    public Optional<Message> pull(String queueURL, Duration maxWait) {
+        if (!metrics.isEnabled()) {
+            return queueService.pull(queueURL, maxWait);
+        }
+        QueueService.validateQueueURL(queueURL);
+        long start = System.nanoTime();
+        Optional<Message> message = Optional.empty();
+        try {
+            message = queueService.pull(queueURL, maxWait);
+            return message;
+        } finally {
+            record(queueURL, QueueOperation.PULL, start).recordPulls(message.isPresent() ? 1 : 0);
+        }
+    }
+
+    @Override
+    public Optional<Message> pull(String queueURL, Duration maxWait, Duration visibilityTimeout) {
+        if (!metrics.isEnabled()) {
+            return queueService.pull(queueURL, maxWait, visibilityTimeout);
+        }
+        QueueService.validateQueueURL(queueURL);
+        long start = System.nanoTime();
+        Optional<Message> message = Optional.empty();
+        try {
+            message = queueService.pull(queueURL, maxWait, visibilityTimeout);
+            return message;
+        } finally {
+            record(queueURL, QueueOperation.PULL, start).recordPulls(message.isPresent() ? 1 : 0);
+        }
+    }
+
+    /**
+     * Records the latency of the change only, a lease change being neither a pull nor a delete
+     */
+    @Override
+    public Boolean changeVisibility(String queueURL, Message message, Duration visibilityTimeout) {
+        if (!metrics.isEnabled()) {
+            return queueService.changeVisibility(queueURL, message, visibilityTimeout);
+        }
+        QueueService.validateQueueURL(queueURL);
+        long start = System.nanoTime();
+        try {
+            return queueService.changeVisibility(queueURL, message, visibilityTimeout);
+        } finally {
+            record(queueURL, QueueOperation.CHANGE_VISIBILITY, start);
+        }
+    }
+
+    @Override
+    public Boolean delete(String queueURL, Message message) {
+        if (!metrics.isEnabled()) {
+            return queueService.delete(queueURL, message);
+        }
+        QueueService.validateQueueURL(queueURL);
+        long start = System.nanoTime();
+        boolean deleted = false;
+        try {
+            deleted = queueService.delete(queueURL, message);
+            return deleted;
+        } finally {
+            QueueStats stats = record(queueURL, QueueOperation.DELETE, start);
+            stats.recordDeletes(deleted ? 1 : 0, deleted ? 0 : 1);
+        }
+    }
+
+    @Override
+    public List<Boolean> pushBatch(String queueURL, List<Message> messages) {
+        if (!metrics.isEnabled()) {
+            return queueService.pushBatch(queueURL, messages);
+        }
+        QueueService.validateQueueURL(queueURL);
+        long start = System.nanoTime();
+        List<Boolean> results = null;
+        try {
+            results = queueService.pushBatch(queueURL, messages);
+            return results;
+        } finally {
+            int pushed = count(results);
+            record(queueURL, QueueOperation.PUSH_BATCH, start).recordPushes(pushed, size(messages) - pushed);
+        }
+    }
+
+    @Override
+    public List<Message> pullBatch(String queueURL, int maxMessages) {
+        if (!metrics.isEnabled()) {
+            return queueService.pullBatch(queueURL, maxMessages);
+        }
+        QueueService.validateQueueURL(queueURL);
+        long start = System.nanoTime();
+        List<Message> messages = null;
+        try {
+            messages = queueService.pullBatch(queueURL, maxMessages);
+            return messages;
+        } finally {
+            record(queueURL, QueueOperation.PULL_BATCH, start).recordPulls(size(messages));
+        }
+    }
+
+    @Override
+    public List<Boolean> deleteBatch(String queueURL, List<Message> messages) {
+        if (!metrics.isEnabled()) {
+            return queueService.deleteBatch(queueURL, messages);
+        }
+        QueueService.validateQueueURL(queueURL);
+        long start = System.nanoTime();
+        List<Boolean> results = null;
+        try {
+            results = queueService.deleteBatch(queueURL, messages);
+            return results;
+        } finally {
+            int deleted = count(results);
+            record(queueURL, QueueOperation.DELETE_BATCH, start).recordDeletes(deleted, size(messages) - deleted);
+        }
+    }
+
+    private QueueStats record(String queueURL, QueueOperation operation, long start) {
+        QueueStats stats = metrics.getQueueStats(queueURL);
+        stats.recordLatency(operation, System.nanoTime() - start);
+        return stats;
+    }
+
+    private static int count(List<Boolean> results) {
+        int count = 0;
+        if (results != null) {
+            for (Boolean result : results) {
+                if (Boolean.TRUE.equals(result)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static int size(List<?> list) {
+        return list == null ? 0 : list.size();
+    }
+}
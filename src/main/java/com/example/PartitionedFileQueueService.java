@@ -0,0 +1,304 @@
+package com.example;
+
+import com.example.model.Message;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A queue service spreading each queue over several partitions, each an independent file queue with its own file
+ * and lock. Partitions are placed round-robin over the given FileQueueServices, one per root directory, so a queue
+ * can span several disks. Supports many producers and many consumers.
+ * <p>
+ * - push goes to the next partition round-robin, or to the partition of a key, see {@link #push(String, String, Message)}
+ * - pull tries the partitions in a rotation starting one partition further on every pull, so all are drained fairly
+ * - a pulled message carries its partition in its receipt handle, "partition/receiptHandle", so delete goes to it
+ * <p>
+ * Ordering is only kept within a partition, so messages of a key are in order, messages of a queue are not.
+ */
+public class PartitionedFileQueueService implements QueueService {
+    private static final String PARTITION_SEPARATOR = "/";
+
+    private List<FileQueueService> roots;
+    private int partitions;
+    private ConcurrentHashMap<String, AtomicInteger> pushCursors = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, AtomicInteger> pullCursors = new ConcurrentHashMap<>();
+
+    /**
+     * @param roots      a FileQueueService per root directory
+     * @param partitions number of partitions of every queue
+     */
+    protected PartitionedFileQueueService(List<FileQueueService> roots, int partitions) {
+        checkArgument(!roots.isEmpty(), "At least one root is needed");
+        checkArgument(partitions > 0, "Number of partitions must be positive");
+        this.roots = roots;
+        this.partitions = partitions;
+    }
+
+    /**
+     * Pushes a message to the next partition of the queue, round-robin
+     */
+    @Override
+    public Boolean push(String queueURL, Message message) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessage(message);
+        int partition = nextPartition(pushCursors, queueURL);
+        return root(partition).push(partitionQueue(queueURL, partition), message);
+    }
+
+    /**
+     * Pushes a delayed message to the next partition of the queue, its root resolving delay against its clock
+     */
+    @Override
+    public Boolean push(String queueURL, Message message, Duration delay) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessage(message);
+        QueueService.validateDelay(delay);
+        int partition = nextPartition(pushCursors, queueURL);
+        return root(partition).push(partitionQueue(queueURL, partition), message, delay);
+    }
+
+    /**
+     * Pushes a message to the partition of a key, so that messages of a key are pulled in order
+     */
+    public Boolean push(String queueURL, String key, Message message) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessage(message);
+        checkArgument(key != null, "Key must not be null");
+        int partition = partitionOf(key);
+        return root(partition).push(partitionQueue(queueURL, partition), message);
+    }
+
+    @Override
+    public Optional<Message> pull(String queueURL) {
+        QueueService.validateQueueURL(queueURL);
+        return pullPartitions(queueURL, null);
+    }
+
+    /**
+     * Tries the partitions in rotation
+     *
+     * @param visibilityTimeout invisibility period of the pulled message, null for the one of its root
+     */
+    private Optional<Message> pullPartitions(String queueURL, Duration visibilityTimeout) {
+        int first = nextPartition(pullCursors, queueURL);
+        for (int i = 0; i < partitions; i++) {
+            int partition = (first + i) % partitions;
+            String partitionQueue = partitionQueue(queueURL, partition);
+            Optional<Message> message = visibilityTimeout == null ? root(partition).pullIfExists(partitionQueue)
+                    : root(partition).pullIfExists(partitionQueue, visibilityTimeout);
+            if (message.isPresent()) {
+                return Optional.of(withPartition(partition, message.get()));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Waits for a change of any partition, without a thread per partition: each partition calls back on change.
+     * Returns Optional.Empty() if interrupted while waiting.
+     */
+    @Override
+    public Optional<Message> pull(String queueURL, Duration maxWait) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMaxWait(maxWait);
+        return await(queueURL, maxWait, null);
+    }
+
+    @Override
+    public Optional<Message> pull(String queueURL, Duration maxWait, Duration visibilityTimeout) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMaxWait(maxWait);
+        QueueService.validateVisibilityTimeout(visibilityTimeout);
+        return await(queueURL, maxWait, visibilityTimeout);
+    }
+
+    /**
+     * Changes the visibility of the message in the partition carried by its receipt handle
+     */
+    @Override
+    public Boolean changeVisibility(String queueURL, Message message, Duration visibilityTimeout) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessage(message);
+        QueueService.validateReceiptHandle(message.getReceiptHandle());
+        int partition = partitionOf(message);
+        if (partition < 0) {
+            return false;
+        }
+        return root(partition).changeVisibility(partitionQueue(queueURL, partition), withoutPartition(message), visibilityTimeout);
+    }
+
+    /**
+     * Pulls from the partitions until maxWait elapses, see pull(queueURL, maxWait)
+     *
+     * @param visibilityTimeout invisibility period of the pulled message, null for the one of its root
+     */
+    private Optional<Message> await(String queueURL, Duration maxWait, Duration visibilityTimeout) {
+        long deadline = System.nanoTime() + maxWait.toNanos();
+        try {
+            while (true) {
+                // versions are read first, so a change made while pulling ends the wait right away
+                long[] versions = new long[partitions];
+                for (int partition = 0; partition < partitions; partition++) {
+                    versions[partition] = root(partition).changeVersion(partitionQueue(queueURL, partition));
+                }
+                Optional<Message> message = pullPartitions(queueURL, visibilityTimeout);
+                if (message.isPresent() || deadline - System.nanoTime() <= 0) {
+                    return message;
+                }
+                Duration wait = maxWait;
+                for (int partition = 0; partition < partitions; partition++) {
+                    Duration partitionWait = root(partition).timeToWait(partitionQueue(queueURL, partition), deadline);
+                    wait = partitionWait.compareTo(wait) < 0 ? partitionWait : wait;
+                }
+                CountDownLatch changed = new CountDownLatch(1);
+                for (int partition = 0; partition < partitions; partition++) {
+                    root(partition).onChange(partitionQueue(queueURL, partition), versions[partition], wait, changed::countDown);
+                }
+                changed.await(wait.toNanos(), TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public Boolean delete(String queueURL, Message message) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessage(message);
+        QueueService.validateReceiptHandle(message.getReceiptHandle());
+        int partition = partitionOf(message);
+        if (partition < 0) {
+            return false;
+        }
+        return root(partition).delete(partitionQueue(queueURL, partition), withoutPartition(message));
+    }
+
+    /**
+     * Pushes all messages to the next partition, with a single write
+     */
+    @Override
+    public List<Boolean> pushBatch(String queueURL, List<Message> messages) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessages(messages);
+        int partition = nextPartition(pushCursors, queueURL);
+        return root(partition).pushBatch(partitionQueue(queueURL, partition), messages);
+    }
+
+    /**
+     * Pulls from the partitions in rotation, until maxMessages or all partitions were tried
+     */
+    @Override
+    public List<Message> pullBatch(String queueURL, int maxMessages) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMaxMessages(maxMessages);
+        List<Message> pulled = Lists.newArrayList();
+        int first = nextPartition(pullCursors, queueURL);
+        for (int i = 0; i < partitions && pulled.size() < maxMessages; i++) {
+            int partition = (first + i) % partitions;
+            String partitionQueue = partitionQueue(queueURL, partition);
+            // the first pull tells whether the partition exists and has messages, the batch takes the rest
+            Optional<Message> head = root(partition).pullIfExists(partitionQueue);
+            if (!head.isPresent()) {
+                continue;
+            }
+            pulled.add(withPartition(partition, head.get()));
+            if (pulled.size() < maxMessages) {
+                for (Message message : root(partition).pullBatch(partitionQueue, maxMessages - pulled.size())) {
+                    pulled.add(withPartition(partition, message));
+                }
+            }
+        }
+        return pulled;
+    }
+
+    /**
+     * Deletes the messages of each partition with a single batch
+     */
+    @Override
+    public List<Boolean> deleteBatch(String queueURL, List<Message> messages) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessages(messages);
+        messages.forEach(message -> QueueService.validateReceiptHandle(message.getReceiptHandle()));
+        List<Boolean> results = Lists.newArrayList(Collections.nCopies(messages.size(), false));
+        Map<Integer, List<Integer>> byPartition = Maps.newTreeMap();
+        for (int i = 0; i < messages.size(); i++) {
+            int partition = partitionOf(messages.get(i));
+            if (partition >= 0) {
+                byPartition.computeIfAbsent(partition, p -> Lists.newArrayList()).add(i);
+            }
+        }
+        byPartition.forEach((partition, indexes) -> {
+            List<Message> partitionMessages = Lists.newArrayList();
+            indexes.forEach(i -> partitionMessages.add(withoutPartition(messages.get(i))));
+            List<Boolean> deleted = root(partition).deleteBatch(partitionQueue(queueURL, partition), partitionMessages);
+            for (int i = 0; i < indexes.size(); i++) {
+                results.set(indexes.get(i), deleted.get(i));
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Gets the partition of a key, stable across processes
+     */
+    int partitionOf(String key) {
+        return Hashing.consistentHash(Hashing.murmur3_32().hashString(key, StandardCharsets.UTF_8), partitions);
+    }
+
+    private FileQueueService root(int partition) {
+        return roots.get(partition % roots.size());
+    }
+
+    private int nextPartition(ConcurrentHashMap<String, AtomicInteger> cursors, String queueURL) {
+        return Math.floorMod(cursors.computeIfAbsent(queueURL, queue -> new AtomicInteger()).getAndIncrement(), partitions);
+    }
+
+    private static String partitionQueue(String queueURL, int partition) {
+        return queueURL + "/partitions/" + partition;
+    }
+
+    private static Message withPartition(int partition, Message message) {
+        return new Message(message.getId(), partition + PARTITION_SEPARATOR + message.getReceiptHandle(),
+                message.getContent(), message.getVisibleFromMillis());
+    }
+
+    private static Message withoutPartition(Message message) {
+        String receiptHandle = message.getReceiptHandle();
+        return new Message(message.getId(), receiptHandle.substring(receiptHandle.indexOf(PARTITION_SEPARATOR) + 1),
+                message.getContent(), message.getVisibleFromMillis());
+    }
+
+    /**
+     * Gets the partition a pulled message comes from
+     *
+     * @return partition, or -1 if the receipt handle carries no valid partition
+     */
+    private int partitionOf(Message message) {
+        String receiptHandle = message.getReceiptHandle();
+        int separator = receiptHandle.indexOf(PARTITION_SEPARATOR);
+        if (separator <= 0) {
+            return -1;
+        }
+        try {
+            int partition = Integer.parseInt(receiptHandle.substring(0, separator));
+            return partition < partitions ? partition : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
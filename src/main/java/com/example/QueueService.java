@@ -3,7 +3,11 @@ package com.example;
 import com.example.model.Message;
 import com.google.common.base.Strings;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Optional;
 
@@ -17,6 +21,12 @@ public interface QueueService {
     String INVALID_MESSAGE = "message must not be null";
     String INVALID_QUEUE_URL = "queueUrl must not be null or empty";
     String INVALID_RECEIPT_HANDLE = "receipt handle must not be null or empty";
+    String INVALID_MESSAGES = "messages must not be null or contain null";
+    String INVALID_MAX_MESSAGES = "maxMessages must be positive";
+    String INVALID_MAX_WAIT = "maxWait must not be null or negative";
+    String INVALID_VISIBILITY_TIMEOUT = "visibilityTimeout must not be null or negative";
+    String INVALID_DELAY = "delay must not be null or negative";
+    String INVALID_DELIVER_AT = "deliverAt must not be null";
 
     /**
      * Pushes a message onto a queue.
@@ -27,6 +37,38 @@ public interface QueueService {
      */
     Boolean push(String queueURL, Message message);
 
+    /**
+     * Pushes a message onto a queue, to be delivered once delay elapses.
+     * Defaults to pushing a copy of the message invisible until the system time + delay, backends storing the
+     * visibility of pushed messages. Backends checking visibility with a clock of their own resolve delay against it.
+     *
+     * @param queueURL queueURL or Name
+     * @param message  message to be pushed to queue
+     * @param delay    duration the message stays invisible after being pushed
+     * @return boolean as successful or failed push of a message to queue
+     */
+    default Boolean push(String queueURL, Message message, Duration delay) {
+        validateMessage(message);
+        validateDelay(delay);
+        return push(queueURL, scheduled(message, System.currentTimeMillis() + delay.toMillis()));
+    }
+
+    /**
+     * Pushes a message onto a queue, to be delivered from deliverAt on, at once if deliverAt is past.
+     * Defaults to pushing a copy of the message invisible until deliverAt, backends storing the visibility of
+     * pushed messages.
+     *
+     * @param queueURL  queueURL or Name
+     * @param message   message to be pushed to queue
+     * @param deliverAt time the message becomes visible
+     * @return boolean as successful or failed push of a message to queue
+     */
+    default Boolean pushAt(String queueURL, Message message, LocalDateTime deliverAt) {
+        validateMessage(message);
+        validateDeliverAt(deliverAt);
+        return push(queueURL, scheduled(message, deliverAt));
+    }
+
     /**
      * Retrieves a single message from a queue.
      *
@@ -35,6 +77,52 @@ public interface QueueService {
      */
     Optional<Message> pull(String queueURL);
 
+    /**
+     * Retrieves a single message from a queue, waiting up to maxWait for a message to become visible.
+     * Backends sleep until a push or an expiring invisibility period may have made a message visible,
+     * instead of polling. Defaults to a single pull() without waiting.
+     *
+     * @param queueURL queueURL or Name
+     * @param maxWait  maximum duration to wait for a visible message
+     * @return first visible message in Optional if available within maxWait, else Optional.Empty()
+     */
+    default Optional<Message> pull(String queueURL, Duration maxWait) {
+        validateMaxWait(maxWait);
+        return pull(queueURL);
+    }
+
+    /**
+     * Retrieves a single message from a queue as pull(queueURL, maxWait) does, making it invisible for
+     * visibilityTimeout instead of the invisibility duration of the service.
+     * Defaults to pulling the message, then changing its visibility.
+     *
+     * @param queueURL          queueURL or Name
+     * @param maxWait           maximum duration to wait for a visible message
+     * @param visibilityTimeout duration the pulled message stays invisible to other consumers
+     * @return first visible message in Optional if available within maxWait, else Optional.Empty()
+     */
+    default Optional<Message> pull(String queueURL, Duration maxWait, Duration visibilityTimeout) {
+        validateVisibilityTimeout(visibilityTimeout);
+        Optional<Message> message = pull(queueURL, maxWait);
+        message.ifPresent(pulled -> changeVisibility(queueURL, pulled, visibilityTimeout));
+        return message;
+    }
+
+    /**
+     * Changes the visibility of a message received by pull() and not deleted yet, to make it invisible until
+     * current time + visibilityTimeout. Extends the lease of a long-running consumer, as a heartbeat, or releases the
+     * message at once with a zero timeout. Not supported unless the backend overrides it.
+     *
+     * @param queueURL          queueURL or Name
+     * @param message           message received by pull()
+     * @param visibilityTimeout duration, from now, the message stays invisible
+     * @return true if the visibility was changed, false if the message is not found or its lease already expired
+     * @throws UnsupportedOperationException if the backend cannot change the visibility of a message
+     */
+    default Boolean changeVisibility(String queueURL, Message message, Duration visibilityTimeout) {
+        throw new UnsupportedOperationException("Visibility changes are not supported by " + getClass().getSimpleName());
+    }
+
     /**
      * Deletes a message from the queue that was received by pull().
      *
@@ -44,6 +132,58 @@ public interface QueueService {
      */
     Boolean delete(String queueURL, Message message);
 
+    /**
+     * Pushes messages onto a queue, at the cost of a single push where the backend allows it.
+     * Defaults to pushing messages one by one.
+     *
+     * @param queueURL queueURL or Name
+     * @param messages messages to be pushed to queue, in order
+     * @return successful or failed push of each message, in the order of messages
+     */
+    default List<Boolean> pushBatch(String queueURL, List<Message> messages) {
+        validateMessages(messages);
+        List<Boolean> results = Lists.newArrayListWithCapacity(messages.size());
+        for (Message message : messages) {
+            results.add(push(queueURL, message));
+        }
+        return results;
+    }
+
+    /**
+     * Retrieves up to maxMessages messages from a queue, at the cost of a single pull where the backend allows it.
+     * Defaults to pulling messages one by one.
+     *
+     * @param queueURL    queueURL or Name
+     * @param maxMessages maximum number of messages to retrieve
+     * @return visible messages, possibly less than maxMessages, empty if none is available
+     */
+    default List<Message> pullBatch(String queueURL, int maxMessages) {
+        validateMaxMessages(maxMessages);
+        List<Message> messages = Lists.newArrayList();
+        Optional<Message> message;
+        while (messages.size() < maxMessages && (message = pull(queueURL)).isPresent()) {
+            messages.add(message.get());
+        }
+        return messages;
+    }
+
+    /**
+     * Deletes messages from the queue that were received by pull() or pullBatch(),
+     * at the cost of a single delete where the backend allows it. Defaults to deleting messages one by one.
+     *
+     * @param queueURL queueURL or Name
+     * @param messages messages to be deleted from queue
+     * @return successful or failed delete of each message, in the order of messages
+     */
+    default List<Boolean> deleteBatch(String queueURL, List<Message> messages) {
+        validateMessages(messages);
+        List<Boolean> results = Lists.newArrayListWithCapacity(messages.size());
+        for (Message message : messages) {
+            results.add(delete(queueURL, message));
+        }
+        return results;
+    }
+
     /**
      * Validates that message is not null
      *
@@ -54,6 +194,79 @@ public interface QueueService {
         checkArgument(message != null, INVALID_MESSAGE);
     }
 
+    /**
+     * Validates that messages is not null and has no null message
+     *
+     * @param messages messages of a batch
+     * @throws IllegalArgumentException with relevant message, if invalid messages
+     */
+    static void validateMessages(List<Message> messages) {
+        checkArgument(messages != null && !messages.contains(null), INVALID_MESSAGES);
+    }
+
+    /**
+     * Validates that maxMessages is positive
+     *
+     * @param maxMessages maximum number of messages of a batch
+     * @throws IllegalArgumentException with relevant message, if invalid maxMessages
+     */
+    static void validateMaxMessages(int maxMessages) {
+        checkArgument(maxMessages > 0, INVALID_MAX_MESSAGES);
+    }
+
+    /**
+     * Validates that maxWait is not null or negative
+     *
+     * @param maxWait maximum duration to wait
+     * @throws IllegalArgumentException with relevant message, if invalid maxWait
+     */
+    static void validateMaxWait(Duration maxWait) {
+        checkArgument(maxWait != null && !maxWait.isNegative(), INVALID_MAX_WAIT);
+    }
+
+    /**
+     * Validates that visibilityTimeout is not null or negative
+     *
+     * @param visibilityTimeout duration a message stays invisible
+     * @throws IllegalArgumentException with relevant message, if invalid visibilityTimeout
+     */
+    static void validateVisibilityTimeout(Duration visibilityTimeout) {
+        checkArgument(visibilityTimeout != null && !visibilityTimeout.isNegative(), INVALID_VISIBILITY_TIMEOUT);
+    }
+
+    /**
+     * Validates that delay is not null or negative
+     *
+     * @param delay duration a pushed message stays invisible
+     * @throws IllegalArgumentException with relevant message, if invalid delay
+     */
+    static void validateDelay(Duration delay) {
+        checkArgument(delay != null && !delay.isNegative(), INVALID_DELAY);
+    }
+
+    /**
+     * Validates that deliverAt is not null
+     *
+     * @param deliverAt time a pushed message becomes visible
+     * @throws IllegalArgumentException with relevant message, if invalid deliverAt
+     */
+    static void validateDeliverAt(LocalDateTime deliverAt) {
+        checkArgument(deliverAt != null, INVALID_DELIVER_AT);
+    }
+
+    /**
+     * Copies a message to be scheduled, so that the message of the caller is left unchanged
+     *
+     * @param visibleFromMillis epoch millis the copy is delivered at
+     */
+    static Message scheduled(Message message, long visibleFromMillis) {
+        return new Message(message.getId(), message.getReceiptHandle(), message.getContent(), visibleFromMillis);
+    }
+
+    static Message scheduled(Message message, LocalDateTime deliverAt) {
+        return new Message(message.getId(), message.getReceiptHandle(), message.getContent(), deliverAt);
+    }
+
     /**
      * Validates that queueUrl is not null or empty
      *
@@ -81,8 +294,19 @@ public interface QueueService {
      * @return first visible message in Optional if available, else Optional.Empty()
      */
     static Optional<Message> findVisibleMessage(Iterable<Message> messages) {
+        return findVisibleMessage(messages, System.currentTimeMillis());
+    }
+
+    /**
+     * Finds first message visible at given epoch millis in all the messages of a queue
+     *
+     * @param messages  messages of a queue
+     * @param nowMillis current time, in epoch millis
+     * @return first visible message in Optional if available, else Optional.Empty()
+     */
+    static Optional<Message> findVisibleMessage(Iterable<Message> messages, long nowMillis) {
         try {
-            Message message = Iterables.find(messages, msg -> msg.isVisible());
+            Message message = Iterables.find(messages, msg -> msg.isVisible(nowMillis));
             return Optional.of(message);
         } catch (NoSuchElementException e) {
             return Optional.empty();
@@ -92,9 +316,6 @@ public interface QueueService {
 
 //* Can make following improvements to the solution:
 //        *
-//        * Feature Wise :
-//        * 1. Can include induced delay while pushing a message, feature for queue max limit etc.
-//        *
 //        * Code Cleanup and Design:
 //        * 1. remove a bit of redundant code here and there
 //        * 2. provide an abstraction layer for QueueService
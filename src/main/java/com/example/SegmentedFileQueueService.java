@@ -0,0 +1,278 @@
+package com.example;
+
+import com.example.exception.FileQueueException;
+import com.example.helper.FileQueueHelper;
+import com.example.helper.QueueChangeNotifier;
+import com.example.helper.SegmentedLog;
+import com.example.model.Message;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A queue service using an append-only, segmented log per queue as storage. Supports many producers and many consumers.
+ * <p>
+ * Unlike {@link FileQueueService}, pull and delete never rewrite the queue: they append a small lease or tombstone
+ * record, so their disk I/O does not grow with the queue depth. Segments whose messages are all deleted are removed
+ * by a background thread.
+ * <p>
+ * Achieve inter-process safety using the same per queue lock as {@link FileQueueService}
+ * <p>
+ * Visibility is checked in epoch millis of a {@link Clock}, the system clock unless another one is given.
+ */
+public class SegmentedFileQueueService implements QueueService {
+    private static final long DEFAULT_MAX_SEGMENT_BYTES = 64 * 1024 * 1024;
+    private static final Duration SEGMENT_CLEANUP_PERIOD = Duration.ofSeconds(1);
+
+    private FileQueueHelper fileQueueHelper;
+    private Duration inVisibilityDuration;
+    private long maxSegmentBytes;
+    private Clock clock;
+    private ConcurrentHashMap<String, SegmentedLog> logs = new ConcurrentHashMap<>();
+    private ScheduledExecutorService segmentCleaner;
+    private QueueChangeNotifier queueChangeNotifier = new QueueChangeNotifier();
+
+    protected SegmentedFileQueueService(FileQueueHelper fileQueueHelper, Duration inVisibilityDuration) {
+        this(fileQueueHelper, inVisibilityDuration, DEFAULT_MAX_SEGMENT_BYTES);
+    }
+
+    protected SegmentedFileQueueService(FileQueueHelper fileQueueHelper, Duration inVisibilityDuration, long maxSegmentBytes) {
+        this(fileQueueHelper, inVisibilityDuration, maxSegmentBytes, Clock.systemUTC());
+    }
+
+    /**
+     * @param clock clock telling the time visibility is checked at, such as a coarse cached clock
+     */
+    protected SegmentedFileQueueService(FileQueueHelper fileQueueHelper, Duration inVisibilityDuration, long maxSegmentBytes, Clock clock) {
+        checkArgument(clock != null, "Clock must not be null");
+        this.fileQueueHelper = fileQueueHelper;
+        this.inVisibilityDuration = inVisibilityDuration;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.clock = clock;
+        this.segmentCleaner = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("segment-cleaner-%d").setDaemon(true).build());
+        long period = SEGMENT_CLEANUP_PERIOD.toMillis();
+        segmentCleaner.scheduleWithFixedDelay(this::deleteAckedSegments, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Boolean push(String queueURL, Message message) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessage(message);
+        try {
+            fileQueueHelper.takeLock(queueURL);
+            getLog(queueURL).push(message);
+            queueChangeNotifier.signal(queueURL);
+            return true;
+        } catch (IOException e) {
+            throw new FileQueueException("Error while pushing message: {" + message + "} to queue: " + queueURL, e);
+        } finally {
+            fileQueueHelper.releaseLock(queueURL);
+        }
+    }
+
+    /**
+     * Pushes a copy of the message invisible until current time of the clock + delay
+     */
+    @Override
+    public Boolean push(String queueURL, Message message, Duration delay) {
+        QueueService.validateMessage(message);
+        QueueService.validateDelay(delay);
+        return push(queueURL, QueueService.scheduled(message, clock.millis() + delay.toMillis()));
+    }
+
+    @Override
+    public Optional<Message> pull(String queueURL) {
+        QueueService.validateQueueURL(queueURL);
+        try {
+            fileQueueHelper.takeLock(queueURL);
+            return getLog(queueURL).pull(inVisibilityDuration);
+        } catch (IOException e) {
+            throw new FileQueueException("Error while getting message from queue: " + queueURL, e);
+        } finally {
+            fileQueueHelper.releaseLock(queueURL);
+        }
+    }
+
+    /**
+     * Sleeps until a push, an append by another process, or an expiring invisibility period
+     * may have made a message available, or maxWait elapses. Returns Optional.Empty() if interrupted while waiting.
+     */
+    @Override
+    public Optional<Message> pull(String queueURL, Duration maxWait) {
+        return pull(queueURL, maxWait, inVisibilityDuration);
+    }
+
+    /**
+     * Waits as pull(queueURL, maxWait) does, appending a lease of visibilityTimeout for the pulled message
+     */
+    @Override
+    public Optional<Message> pull(String queueURL, Duration maxWait, Duration visibilityTimeout) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMaxWait(maxWait);
+        QueueService.validateVisibilityTimeout(visibilityTimeout);
+        long deadline = System.nanoTime() + maxWait.toNanos();
+
+        try {
+            while (true) {
+                // version is read first, so a change made while pulling ends the wait right away
+                long version = queueChangeNotifier.version(queueURL);
+                OptionalLong next;
+                Optional<Message> message;
+                try {
+                    fileQueueHelper.takeLock(queueURL);
+                    SegmentedLog log = getLog(queueURL);
+                    message = log.pull(visibilityTimeout);
+                    next = log.getNextVisibleFrom();
+                } catch (IOException e) {
+                    throw new FileQueueException("Error while getting message from queue: " + queueURL, e);
+                } finally {
+                    fileQueueHelper.releaseLock(queueURL);
+                }
+                long wait = deadline - System.nanoTime();
+                if (message.isPresent() || wait <= 0) {
+                    return message;
+                }
+                if (next.isPresent()) {
+                    // the log checks visibility in epoch millis of the clock
+                    wait = Math.min(wait, TimeUnit.MILLISECONDS.toNanos(Math.max(next.getAsLong() - clock.millis(), 0)));
+                }
+                queueChangeNotifier.awaitChange(queueURL, fileQueueHelper.getSegmentsDirectory(queueURL), version, Duration.ofNanos(wait));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Appends a new lease for the message, waking up waiting consumers as it may become visible earlier
+     */
+    @Override
+    public Boolean changeVisibility(String queueURL, Message message, Duration visibilityTimeout) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessage(message);
+        QueueService.validateReceiptHandle(message.getReceiptHandle());
+        QueueService.validateVisibilityTimeout(visibilityTimeout);
+        boolean changed;
+        try {
+            fileQueueHelper.takeLock(queueURL);
+            changed = getLog(queueURL).changeVisibility(message.getReceiptHandle(), visibilityTimeout);
+        } catch (IOException e) {
+            throw new FileQueueException("Error while changing visibility of message: {" + message + "} in queue: " + queueURL, e);
+        } finally {
+            fileQueueHelper.releaseLock(queueURL);
+        }
+        if (changed) {
+            queueChangeNotifier.signal(queueURL);
+        }
+        return changed;
+    }
+
+    @Override
+    public Boolean delete(String queueURL, Message message) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessage(message);
+        QueueService.validateReceiptHandle(message.getReceiptHandle());
+        try {
+            fileQueueHelper.takeLock(queueURL);
+            return getLog(queueURL).delete(message.getReceiptHandle());
+        } catch (IOException e) {
+            throw new FileQueueException("Error while deleting message: {" + message + "} to queue: " + queueURL, e);
+        } finally {
+            fileQueueHelper.releaseLock(queueURL);
+        }
+    }
+
+    @Override
+    public List<Boolean> pushBatch(String queueURL, List<Message> messages) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessages(messages);
+        try {
+            fileQueueHelper.takeLock(queueURL);
+            getLog(queueURL).push(messages);
+            queueChangeNotifier.signal(queueURL);
+            return Lists.newArrayList(Collections.nCopies(messages.size(), true));
+        } catch (IOException e) {
+            throw new FileQueueException("Error while pushing " + messages.size() + " messages to queue: " + queueURL, e);
+        } finally {
+            fileQueueHelper.releaseLock(queueURL);
+        }
+    }
+
+    @Override
+    public List<Message> pullBatch(String queueURL, int maxMessages) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMaxMessages(maxMessages);
+        try {
+            fileQueueHelper.takeLock(queueURL);
+            return getLog(queueURL).pull(maxMessages, inVisibilityDuration);
+        } catch (IOException e) {
+            throw new FileQueueException("Error while getting messages from queue: " + queueURL, e);
+        } finally {
+            fileQueueHelper.releaseLock(queueURL);
+        }
+    }
+
+    @Override
+    public List<Boolean> deleteBatch(String queueURL, List<Message> messages) {
+        QueueService.validateQueueURL(queueURL);
+        QueueService.validateMessages(messages);
+        messages.forEach(message -> QueueService.validateReceiptHandle(message.getReceiptHandle()));
+        try {
+            fileQueueHelper.takeLock(queueURL);
+            return getLog(queueURL).delete(messages.stream().map(Message::getReceiptHandle).collect(Collectors.toList()));
+        } catch (IOException e) {
+            throw new FileQueueException("Error while deleting " + messages.size() + " messages from queue: " + queueURL, e);
+        } finally {
+            fileQueueHelper.releaseLock(queueURL);
+        }
+    }
+
+    /**
+     * Stops the background segment cleanup and the watching of queue directories
+     */
+    public void shutdown() {
+        segmentCleaner.shutdownNow();
+        try {
+            queueChangeNotifier.close();
+        } catch (IOException e) {
+            // nothing left to release
+        }
+    }
+
+    /**
+     * Removes fully acknowledged segments of every queue opened by this service
+     */
+    void deleteAckedSegments() {
+        for (String queueURL : logs.keySet()) {
+            try {
+                fileQueueHelper.takeLock(queueURL);
+                logs.get(queueURL).deleteAckedSegments();
+            } catch (IOException | RuntimeException e) {
+                // retried on the next run, a failure must not cancel the scheduled cleanup
+            } finally {
+                fileQueueHelper.releaseLock(queueURL);
+            }
+        }
+    }
+
+    private SegmentedLog getLog(String queueURL) {
+        return logs.computeIfAbsent(queueURL,
+                queue -> new SegmentedLog(fileQueueHelper.getSegmentsDirectory(queue), maxSegmentBytes, clock));
+    }
+}
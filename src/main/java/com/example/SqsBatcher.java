@@ -0,0 +1,239 @@
+package com.example;
+
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.example.helper.BatchingPolicy;
+import com.google.common.base.Utf8;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces single sends and deletes of concurrent callers into SendMessageBatch and DeleteMessageBatch requests,
+ * per queue.
+ * <p>
+ * Callers only add an entry to the open batch of its queue, and get a future. A batch is sent when it holds 10
+ * entries, when the next send would take its bodies past 256 KB, or maxLinger after its first entry, whichever comes
+ * first. Batches are sent on their own threads, so a slow request does not hold up the batches of other queues.
+ * <p>
+ * Each future completes with the result of its own entry: true if successful, false if failed, or exceptionally if
+ * the whole request failed.
+ */
+class SqsBatcher {
+    // maximum total size of the message bodies of a SendMessageBatch request
+    static final int SQS_MAX_BATCH_BYTES = 256 * 1024;
+
+    private final AmazonSQSClient sqsClient;
+    private final BatchingPolicy batchingPolicy;
+    private final ScheduledExecutorService lingerTimer;
+    private final ExecutorService senders;
+    // open batches by queue, guarded by this
+    private final Map<String, Batch> sends = Maps.newHashMap();
+    private final Map<String, Batch> deletes = Maps.newHashMap();
+    // guarded by this, so that no entry is added after close
+    private boolean closed = false;
+
+    SqsBatcher(AmazonSQSClient sqsClient, BatchingPolicy batchingPolicy) {
+        this.sqsClient = sqsClient;
+        this.batchingPolicy = batchingPolicy;
+        this.lingerTimer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("sqs-batch-linger-%d").setDaemon(true).build());
+        this.senders = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("sqs-batch-sender-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Adds a message body to the next SendMessageBatch request of a queue
+     *
+     * @return future completed with the success of the send of this message
+     */
+    CompletableFuture<Boolean> send(String queueURL, String body) {
+        return add(sends, queueURL, true, body, Utf8.encodedLength(body));
+    }
+
+    /**
+     * Adds a receipt handle to the next DeleteMessageBatch request of a queue
+     *
+     * @return future completed with the success of the delete of this message
+     */
+    CompletableFuture<Boolean> delete(String queueURL, String receiptHandle) {
+        return add(deletes, queueURL, false, receiptHandle, 0);
+    }
+
+    /**
+     * Sends the open batches, and waits for the requests in flight to complete
+     */
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            sends.values().forEach(this::sendLater);
+            deletes.values().forEach(this::sendLater);
+            sends.clear();
+            deletes.clear();
+        }
+        lingerTimer.shutdownNow();
+        senders.shutdown();
+        try {
+            senders.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adds an entry to the open batch of its queue, opening a batch if there is none or the entry does not fit
+     */
+    private CompletableFuture<Boolean> add(Map<String, Batch> batches, String queueURL, boolean send, String value, int bytes) {
+        Entry entry = new Entry(value, bytes);
+        synchronized (this) {
+            if (closed) {
+                entry.future.completeExceptionally(new IllegalStateException("Batcher of SQS requests is closed"));
+                return entry.future;
+            }
+            Batch batch = batches.get(queueURL);
+            if (batch != null && !fits(batch.entries.size(), batch.bytes, bytes)) {
+                batches.remove(queueURL);
+                sendLater(batch);
+                batch = null;
+            }
+            if (batch == null) {
+                Batch opened = new Batch(queueURL, send);
+                batches.put(queueURL, opened);
+                lingerTimer.schedule(() -> sendIfOpen(batches, opened),
+                        batchingPolicy.getMaxLinger().toNanos(), TimeUnit.NANOSECONDS);
+                batch = opened;
+            }
+            batch.entries.add(entry);
+            batch.bytes += bytes;
+            if (batch.entries.size() == SqsQueueService.SQS_MAX_BATCH_SIZE) {
+                batches.remove(queueURL);
+                sendLater(batch);
+            }
+        }
+        return entry.future;
+    }
+
+    /**
+     * Checks if an entry of entryBytes fits a batch request holding entries of bytes already: at most 10 entries,
+     * whose bodies take at most 256 KB unless a single one does
+     */
+    static boolean fits(int entries, int bytes, int entryBytes) {
+        return entries < SqsQueueService.SQS_MAX_BATCH_SIZE && (entries == 0 || bytes + entryBytes <= SQS_MAX_BATCH_BYTES);
+    }
+
+    /**
+     * Splits message bodies into SendMessageBatch requests, as the batches of a queue are split
+     *
+     * @return indexes of the bodies of each request
+     */
+    static List<List<Integer>> sendBatches(List<String> bodies) {
+        List<List<Integer>> batches = Lists.newArrayList();
+        List<Integer> batch = Lists.newArrayList();
+        int bytes = 0;
+        for (int i = 0; i < bodies.size(); i++) {
+            int bodyBytes = Utf8.encodedLength(bodies.get(i));
+            if (!fits(batch.size(), bytes, bodyBytes)) {
+                batches.add(batch);
+                batch = Lists.newArrayList();
+                bytes = 0;
+            }
+            batch.add(i);
+            bytes += bodyBytes;
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    /**
+     * Sends a batch whose linger expired, unless it was sent since
+     */
+    private synchronized void sendIfOpen(Map<String, Batch> batches, Batch batch) {
+        if (batches.get(batch.queueURL) == batch) {
+            batches.remove(batch.queueURL);
+            sendLater(batch);
+        }
+    }
+
+    private void sendLater(Batch batch) {
+        senders.execute(() -> {
+            try {
+                batch.send();
+            } catch (RuntimeException e) {
+                batch.entries.forEach(entry -> entry.future.completeExceptionally(e));
+            }
+        });
+    }
+
+    /**
+     * A body or receipt handle, with the future completed with its result
+     */
+    private static class Entry {
+        private final String value;
+        private final int bytes;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        private Entry(String value, int bytes) {
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Entries of a queue sent in one request, each with its index as entry id
+     */
+    private class Batch {
+        private final String queueURL;
+        private final boolean send;
+        private final List<Entry> entries = Lists.newArrayListWithCapacity(SqsQueueService.SQS_MAX_BATCH_SIZE);
+        private int bytes = 0;
+
+        private Batch(String queueURL, boolean send) {
+            this.queueURL = queueURL;
+            this.send = send;
+        }
+
+        private void send() {
+            List<String> successful = Lists.newArrayList();
+            if (send) {
+                List<SendMessageBatchRequestEntry> requestEntries = Lists.newArrayList();
+                for (int i = 0; i < entries.size(); i++) {
+                    requestEntries.add(new SendMessageBatchRequestEntry(String.valueOf(i), entries.get(i).value));
+                }
+                SendMessageBatchResult result = sqsClient.sendMessageBatch(new SendMessageBatchRequest(queueURL, requestEntries));
+                result.getSuccessful().stream().map(SendMessageBatchResultEntry::getId).forEach(successful::add);
+            } else {
+                List<DeleteMessageBatchRequestEntry> requestEntries = Lists.newArrayList();
+                for (int i = 0; i < entries.size(); i++) {
+                    requestEntries.add(new DeleteMessageBatchRequestEntry(String.valueOf(i), entries.get(i).value));
+                }
+                DeleteMessageBatchResult result = sqsClient.deleteMessageBatch(new DeleteMessageBatchRequest(queueURL, requestEntries));
+                result.getSuccessful().stream().map(DeleteMessageBatchResultEntry::getId).forEach(successful::add);
+            }
+            for (String id : successful) {
+                entries.get(Integer.parseInt(id)).future.complete(true);
+            }
+            // failed entries, and any entry missing from the result, are unsuccessful
+            entries.forEach(entry -> entry.future.complete(false));
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.example;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.example.helper.PrefetchPolicy;
+import com.example.model.Message;
+import com.google.common.collect.Lists;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages of a single SQS queue received ahead of pulls, by a fetch loop long polling with receives of up to 10
+ * messages as long as the buffer has room.
+ * <p>
+ * Received messages are leased for inVisibilityDuration from the receive, set on the receive requests. A buffered
+ * message is only handed out while at least minRemainingVisibility of its lease is left, others being dropped:
+ * SQS makes them visible again when their lease expires.
+ * <p>
+ * Once stopped, the buffer makes its messages visible again at once, including those of a receive returning after
+ * the stop.
+ */
+class SqsPrefetchBuffer {
+    // pause of the fetch loop after a failed receive
+    private static final Duration RETRY_DELAY = Duration.ofSeconds(1);
+
+    private final AmazonSQSClient sqsClient;
+    private final String queueURL;
+    private final Duration inVisibilityDuration;
+    private final Duration minRemainingVisibility;
+    private final LinkedBlockingQueue<Message> messages = new LinkedBlockingQueue<>();
+    // free slots of the buffer, acquired before a receive and released by pulls
+    private final Semaphore room;
+    private volatile boolean running = true;
+
+    SqsPrefetchBuffer(AmazonSQSClient sqsClient, String queueURL, Duration inVisibilityDuration, PrefetchPolicy prefetchPolicy) {
+        this.sqsClient = sqsClient;
+        this.queueURL = queueURL;
+        this.inVisibilityDuration = inVisibilityDuration;
+        this.minRemainingVisibility = prefetchPolicy.getMinRemainingVisibility();
+        this.room = new Semaphore(prefetchPolicy.getBufferSize());
+    }
+
+    /**
+     * Receives messages into the buffer until stopped or interrupted
+     */
+    void fetch() {
+        try {
+            while (running) {
+                room.acquire();
+                int slots = 1 + room.drainPermits();
+                int maxMessages = Math.min(slots, SqsQueueService.SQS_MAX_BATCH_SIZE);
+                room.release(slots - maxMessages);
+                List<com.amazonaws.services.sqs.model.Message> received;
+                try {
+                    received = sqsClient.receiveMessage(new ReceiveMessageRequest(queueURL)
+                            .withMaxNumberOfMessages(maxMessages)
+                            .withWaitTimeSeconds((int) SqsQueueService.SQS_MAX_WAIT.getSeconds())
+                            .withVisibilityTimeout(SqsQueueService.seconds(inVisibilityDuration)))
+                            .getMessages();
+                } catch (AmazonClientException e) {
+                    room.release(maxMessages);
+                    TimeUnit.MILLISECONDS.sleep(RETRY_DELAY.toMillis());
+                    continue;
+                }
+                room.release(maxMessages - received.size());
+                for (com.amazonaws.services.sqs.model.Message message : received) {
+                    messages.add(SqsQueueService.toMessage(message, inVisibilityDuration));
+                }
+                // messages are buffered before running is read, so stop() releases them unless released here
+                if (!running) {
+                    releaseBuffered();
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Takes the first fresh buffered message, null if none
+     */
+    Message poll() {
+        Message message;
+        while ((message = messages.poll()) != null) {
+            room.release();
+            if (isFresh(message)) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes the first fresh buffered message, waiting up to maxWait for one to be received
+     */
+    Message poll(Duration maxWait) throws InterruptedException {
+        long deadline = System.nanoTime() + maxWait.toNanos();
+        while (true) {
+            Message message = messages.poll(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            if (message == null) {
+                return null;
+            }
+            room.release();
+            if (isFresh(message)) {
+                return message;
+            }
+        }
+    }
+
+    /**
+     * Takes up to maxMessages fresh buffered messages
+     */
+    List<Message> drain(int maxMessages) {
+        List<Message> drained = Lists.newArrayList();
+        Message message;
+        while (drained.size() < maxMessages && (message = poll()) != null) {
+            drained.add(message);
+        }
+        return drained;
+    }
+
+    /**
+     * Stops the fetch loop, and makes buffered messages visible again right away instead of when their lease expires
+     */
+    void stop() {
+        running = false;
+        releaseBuffered();
+    }
+
+    boolean isStopped() {
+        return !running;
+    }
+
+    private void releaseBuffered() {
+        Message message;
+        while ((message = messages.poll()) != null) {
+            try {
+                sqsClient.changeMessageVisibility(new ChangeMessageVisibilityRequest(queueURL, message.getReceiptHandle(), 0));
+            } catch (AmazonClientException e) {
+                // visible again when its lease expires
+            }
+        }
+    }
+
+    private boolean isFresh(Message message) {
+        return System.currentTimeMillis() + minRemainingVisibility.toMillis() < message.getVisibleFromMillis();
+    }
+}
@@ -1,25 +1,81 @@
 package com.example;
 
 import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
 import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.MessageNotInflightException;
+import com.amazonaws.services.sqs.model.QueueAttributeName;
+import com.amazonaws.services.sqs.model.ReceiptHandleIsInvalidException;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
 import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.example.helper.BatchingPolicy;
+import com.example.helper.PrefetchPolicy;
+import com.example.helper.QueueDepth;
+import com.example.helper.QueueGauges;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * Wrapper around Amazon's Simple Queue Service
+ * <p>
+ * The options below are combined with a {@link Builder}, see builder(sqsClient, inVisibilityDuration).
+ * <p>
+ * With a {@link PrefetchPolicy}, messages of each pulled queue are received ahead into a bounded buffer by a
+ * background long poll, see {@link SqsPrefetchBuffer}, and pulls are served from that buffer: pull() does not wait
+ * for a round trip to SQS, and finds nothing until the first receive of a queue returns.
+ * <p>
+ * With a {@link BatchingPolicy}, single pushes and deletes of concurrent callers are sent together in batch
+ * requests, see {@link SqsBatcher}: each call blocks until its batch is sent, and returns the result of its own entry.
+ * <p>
+ * The depth of a queue, see getQueueDepth(queueURL), is read from the approximate counts SQS keeps per queue.
  */
-public class SqsQueueService implements QueueService {
+public class SqsQueueService implements QueueService, QueueGauges {
+    // maximum number of entries of a batch request, or of messages of a receive request
+    static final int SQS_MAX_BATCH_SIZE = 10;
+    // maximum WaitTimeSeconds of a receive request
+    static final Duration SQS_MAX_WAIT = Duration.ofSeconds(20);
+    // maximum DelaySeconds of a sent message
+    static final Duration SQS_MAX_DELAY = Duration.ofMinutes(15);
 
     private AmazonSQSClient sqsClient;
 
     // this is default sqs visibility timeout
     private Duration inVisibilityDuration = Duration.ofSeconds(30);
 
+    private PrefetchPolicy prefetchPolicy;
+    private ConcurrentHashMap<String, SqsPrefetchBuffer> prefetchBuffers = new ConcurrentHashMap<>();
+    private ExecutorService prefetcher;
+    private volatile boolean shutdown = false;
+    private SqsBatcher batcher;
+
     public SqsQueueService(AmazonSQSClient sqsClient) {
         this.sqsClient = sqsClient;
     }
@@ -29,30 +85,371 @@ public class SqsQueueService implements QueueService {
         this.inVisibilityDuration = inVisibilityDuration;
     }
 
+    private SqsQueueService(Builder builder) {
+        this(builder.sqsClient, builder.inVisibilityDuration);
+        if (builder.prefetchPolicy != null) {
+            this.prefetchPolicy = builder.prefetchPolicy;
+            this.prefetcher = Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder().setNameFormat("sqs-prefetcher-%d").setDaemon(true).build());
+        }
+        if (builder.batchingPolicy != null) {
+            this.batcher = new SqsBatcher(sqsClient, builder.batchingPolicy);
+        }
+    }
+
+    /**
+     * Gets a builder of an SQS queue service, combining any of its options
+     *
+     * @param inVisibilityDuration visibility timeout of received messages
+     */
+    public static Builder builder(AmazonSQSClient sqsClient, Duration inVisibilityDuration) {
+        return new Builder(sqsClient, inVisibilityDuration);
+    }
 
     @Override
     public Boolean push(String queueURL, com.example.model.Message message) {
+        if (batcher != null) {
+            return join(batcher.send(queueURL, message.getContent()));
+        }
         SendMessageRequest sendMessageRequest = new SendMessageRequest(queueURL, message.getContent());
         sqsClient.sendMessage(sendMessageRequest);
         return true;
     }
 
+    /**
+     * Sends the message with DelaySeconds set to delay, rounded up to whole seconds so that it is never delivered
+     * early, up to 15 minutes, the limit of SQS. Delayed messages are sent on their own, even with batching.
+     */
+    @Override
+    public Boolean push(String queueURL, com.example.model.Message message, Duration delay) {
+        QueueService.validateMessage(message);
+        QueueService.validateDelay(delay);
+        checkArgument(delay.compareTo(SQS_MAX_DELAY) <= 0, "delay must be at most 15 minutes");
+        sqsClient.sendMessage(new SendMessageRequest(queueURL, message.getContent()).withDelaySeconds(seconds(delay)));
+        return true;
+    }
+
+    /**
+     * Sends the message with DelaySeconds set to the time left until deliverAt, see push(queueURL, message, delay)
+     */
+    @Override
+    public Boolean pushAt(String queueURL, com.example.model.Message message, LocalDateTime deliverAt) {
+        QueueService.validateMessage(message);
+        QueueService.validateDeliverAt(deliverAt);
+        long delayMillis = deliverAt.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() - System.currentTimeMillis();
+        return push(queueURL, message, Duration.ofMillis(Math.max(delayMillis, 0)));
+    }
+
     @Override
     public Optional<com.example.model.Message> pull(String queueURL) {
+        if (prefetchPolicy != null) {
+            return Optional.ofNullable(prefetchBuffer(queueURL).poll());
+        }
         ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(queueURL);
         ReceiveMessageResult receiveMessageResult = sqsClient.receiveMessage(receiveMessageRequest);
         Optional<com.amazonaws.services.sqs.model.Message> sqsMessage = receiveMessageResult.getMessages().stream().findFirst();
-        Optional<com.example.model.Message> receivedMessage = sqsMessage.map(msg ->
-                // set inVisibilityDuration on the message
-                new com.example.model.Message(msg.getMessageId(), msg.getReceiptHandle(), msg.getBody(), LocalDateTime.now().plus(inVisibilityDuration))
-        );
+        Optional<com.example.model.Message> receivedMessage = sqsMessage.map(this::toMessage);
         return receivedMessage;
     }
 
+    /**
+     * Long polls with ReceiveMessage requests of WaitTimeSeconds up to 20 seconds, until maxWait elapses.
+     * WaitTimeSeconds is rounded up to whole seconds, so the pull may wait up to a second more than maxWait.
+     * With prefetching, waits up to maxWait for a message to be buffered instead, returning Optional.Empty() if
+     * interrupted while waiting.
+     */
+    @Override
+    public Optional<com.example.model.Message> pull(String queueURL, Duration maxWait) {
+        QueueService.validateMaxWait(maxWait);
+        if (prefetchPolicy != null) {
+            return pollPrefetched(queueURL, maxWait);
+        }
+        return receive(queueURL, maxWait, null);
+    }
+
+    /**
+     * Long polls as pull(queueURL, maxWait) does, with the VisibilityTimeout of the receive requests set to
+     * visibilityTimeout, rounded up to whole seconds. With prefetching, changes the visibility of the buffered message instead.
+     */
+    @Override
+    public Optional<com.example.model.Message> pull(String queueURL, Duration maxWait, Duration visibilityTimeout) {
+        QueueService.validateMaxWait(maxWait);
+        QueueService.validateVisibilityTimeout(visibilityTimeout);
+        if (prefetchPolicy != null) {
+            Optional<com.example.model.Message> message = pollPrefetched(queueURL, maxWait);
+            // a message whose lease expired meanwhile is left to its next receiver
+            return message.filter(prefetched -> changeVisibility(queueURL, prefetched, visibilityTimeout));
+        }
+        return receive(queueURL, maxWait, visibilityTimeout);
+    }
+
+    /**
+     * Sends a ChangeMessageVisibility request, with visibilityTimeout rounded up to whole seconds so that a
+     * sub-second extension does not release the message, and sets the new visibility
+     * on the message. A receipt handle SQS rejects as invalid, or of a message no longer in flight, returns false.
+     */
+    @Override
+    public Boolean changeVisibility(String queueURL, com.example.model.Message message, Duration visibilityTimeout) {
+        QueueService.validateMessage(message);
+        QueueService.validateReceiptHandle(message.getReceiptHandle());
+        QueueService.validateVisibilityTimeout(visibilityTimeout);
+        try {
+            sqsClient.changeMessageVisibility(new ChangeMessageVisibilityRequest(queueURL, message.getReceiptHandle(),
+                    seconds(visibilityTimeout)));
+        } catch (ReceiptHandleIsInvalidException | MessageNotInflightException e) {
+            return false;
+        }
+        message.setVisibleFrom(LocalDateTime.now().plus(visibilityTimeout));
+        return true;
+    }
+
+    private Optional<com.example.model.Message> pollPrefetched(String queueURL, Duration maxWait) {
+        try {
+            return Optional.ofNullable(prefetchBuffer(queueURL).poll(maxWait));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Long polls until a message is received or maxWait elapses
+     *
+     * @param visibilityTimeout VisibilityTimeout of the receive requests, null for the default of the queue
+     */
+    private Optional<com.example.model.Message> receive(String queueURL, Duration maxWait, Duration visibilityTimeout) {
+        long deadline = System.nanoTime() + maxWait.toNanos();
+        while (true) {
+            int waitTimeSeconds = waitTimeSeconds(deadline - System.nanoTime());
+            ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(queueURL).withWaitTimeSeconds(waitTimeSeconds);
+            if (visibilityTimeout != null) {
+                receiveMessageRequest.setVisibilityTimeout(seconds(visibilityTimeout));
+            }
+            Optional<com.amazonaws.services.sqs.model.Message> sqsMessage = sqsClient.receiveMessage(receiveMessageRequest).getMessages().stream().findFirst();
+            if (sqsMessage.isPresent() || deadline - System.nanoTime() <= 0) {
+                return sqsMessage.map(msg -> toMessage(msg, visibilityTimeout != null ? visibilityTimeout : inVisibilityDuration));
+            }
+        }
+    }
+
     @Override
     public Boolean delete(String queueURL, com.example.model.Message message) {
+        if (batcher != null) {
+            return join(batcher.delete(queueURL, message.getReceiptHandle()));
+        }
         DeleteMessageRequest deleteMessageRequest = new DeleteMessageRequest(queueURL, message.getReceiptHandle());
         sqsClient.deleteMessage(deleteMessageRequest);
         return true;
     }
+
+    /**
+     * Pushes messages with SendMessageBatch requests of up to 10 entries and 256 KB of bodies, split as SqsBatcher
+     * splits its batches
+     */
+    @Override
+    public List<Boolean> pushBatch(String queueURL, List<com.example.model.Message> messages) {
+        QueueService.validateMessages(messages);
+        List<Boolean> results = Lists.newArrayList(Collections.nCopies(messages.size(), false));
+        List<String> bodies = messages.stream().map(com.example.model.Message::getContent).collect(Collectors.toList());
+        for (List<Integer> batch : SqsBatcher.sendBatches(bodies)) {
+            List<SendMessageBatchRequestEntry> entries = Lists.newArrayList();
+            for (int i = 0; i < batch.size(); i++) {
+                // entry id is the index of the message within its batch
+                entries.add(new SendMessageBatchRequestEntry(String.valueOf(i), bodies.get(batch.get(i))));
+            }
+            SendMessageBatchResult result = sqsClient.sendMessageBatch(new SendMessageBatchRequest(queueURL, entries));
+            for (SendMessageBatchResultEntry entry : result.getSuccessful()) {
+                results.set(batch.get(Integer.parseInt(entry.getId())), true);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Pulls messages with ReceiveMessage requests of up to 10 messages, until maxMessages or an empty receive.
+     * With prefetching, takes up to maxMessages buffered messages instead.
+     */
+    @Override
+    public List<com.example.model.Message> pullBatch(String queueURL, int maxMessages) {
+        QueueService.validateMaxMessages(maxMessages);
+        if (prefetchPolicy != null) {
+            return prefetchBuffer(queueURL).drain(maxMessages);
+        }
+        List<com.example.model.Message> messages = Lists.newArrayList();
+        while (messages.size() < maxMessages) {
+            ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(queueURL)
+                    .withMaxNumberOfMessages(Math.min(maxMessages - messages.size(), SQS_MAX_BATCH_SIZE));
+            List<com.amazonaws.services.sqs.model.Message> received = sqsClient.receiveMessage(receiveMessageRequest).getMessages();
+            if (received.isEmpty()) {
+                break;
+            }
+            messages.addAll(received.stream().map(this::toMessage).collect(Collectors.toList()));
+        }
+        return messages;
+    }
+
+    /**
+     * Deletes messages with DeleteMessageBatch requests of up to 10 entries
+     */
+    @Override
+    public List<Boolean> deleteBatch(String queueURL, List<com.example.model.Message> messages) {
+        QueueService.validateMessages(messages);
+        List<Boolean> results = Lists.newArrayList(Collections.nCopies(messages.size(), false));
+        List<List<com.example.model.Message>> batches = Lists.partition(messages, SQS_MAX_BATCH_SIZE);
+        for (int batch = 0; batch < batches.size(); batch++) {
+            List<DeleteMessageBatchRequestEntry> entries = Lists.newArrayList();
+            for (int i = 0; i < batches.get(batch).size(); i++) {
+                entries.add(new DeleteMessageBatchRequestEntry(String.valueOf(i), batches.get(batch).get(i).getReceiptHandle()));
+            }
+            DeleteMessageBatchResult result = sqsClient.deleteMessageBatch(new DeleteMessageBatchRequest(queueURL, entries));
+            for (DeleteMessageBatchResultEntry entry : result.getSuccessful()) {
+                results.set(batch * SQS_MAX_BATCH_SIZE + Integer.parseInt(entry.getId()), true);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Reads ApproximateNumberOfMessages, ApproximateNumberOfMessagesNotVisible and ApproximateNumberOfMessagesDelayed
+     * of the queue with a single GetQueueAttributes request. Messages buffered by prefetching count as in flight.
+     */
+    @Override
+    public QueueDepth getQueueDepth(String queueURL) {
+        Map<String, String> attributes = sqsClient.getQueueAttributes(new GetQueueAttributesRequest(queueURL)
+                .withAttributeNames(QueueAttributeName.ApproximateNumberOfMessages,
+                        QueueAttributeName.ApproximateNumberOfMessagesNotVisible,
+                        QueueAttributeName.ApproximateNumberOfMessagesDelayed))
+                .getAttributes();
+        return new QueueDepth(count(attributes, QueueAttributeName.ApproximateNumberOfMessages),
+                count(attributes, QueueAttributeName.ApproximateNumberOfMessagesNotVisible),
+                count(attributes, QueueAttributeName.ApproximateNumberOfMessagesDelayed));
+    }
+
+    private static long count(Map<String, String> attributes, QueueAttributeName name) {
+        String count = attributes.get(name.toString());
+        return count == null ? 0 : Long.parseLong(count);
+    }
+
+    /**
+     * Sends the pending batches, and stops prefetching, making the messages still buffered visible again.
+     * Pulls served by prefetching throw IllegalStateException from then on.
+     */
+    public void shutdown() {
+        shutdown = true;
+        if (batcher != null) {
+            batcher.close();
+        }
+        if (prefetcher != null) {
+            prefetcher.shutdownNow();
+            prefetchBuffers.values().forEach(SqsPrefetchBuffer::stop);
+        }
+    }
+
+    /**
+     * Gets the prefetch buffer of a queue, starting its fetch loop on first use
+     *
+     * @throws IllegalStateException if shut down
+     */
+    private SqsPrefetchBuffer prefetchBuffer(String queueURL) {
+        SqsPrefetchBuffer buffer = prefetchBuffers.get(queueURL);
+        if (buffer == null) {
+            buffer = prefetchBuffers.computeIfAbsent(queueURL, queue -> {
+                SqsPrefetchBuffer created = new SqsPrefetchBuffer(sqsClient, queue, inVisibilityDuration, prefetchPolicy);
+                try {
+                    prefetcher.execute(created::fetch);
+                } catch (RejectedExecutionException e) {
+                    throw new IllegalStateException("Prefetching of SQS messages is shut down", e);
+                }
+                return created;
+            });
+        }
+        if (shutdown) {
+            // a buffer created while shutting down may have been missed by shutdown()
+            buffer.stop();
+        }
+        if (buffer.isStopped()) {
+            throw new IllegalStateException("Prefetching of SQS messages is shut down");
+        }
+        return buffer;
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the WaitTimeSeconds of a receive waiting the remaining nanos, rounded up to whole seconds so that a wait
+     * below a second is not sent as none, and at most 20 seconds
+     */
+    static int waitTimeSeconds(long remainingNanos) {
+        long seconds = (Math.max(remainingNanos, 0) + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1);
+        return (int) Math.min(seconds, SQS_MAX_WAIT.getSeconds());
+    }
+
+    /**
+     * Converts duration to the whole seconds of a request, rounded up so that a sub-second duration is not sent as zero
+     */
+    static int seconds(Duration duration) {
+        long seconds = duration.getSeconds() + (duration.getNano() > 0 ? 1 : 0);
+        return (int) Math.max(Math.min(seconds, Integer.MAX_VALUE), 0);
+    }
+
+    private com.example.model.Message toMessage(com.amazonaws.services.sqs.model.Message msg) {
+        return toMessage(msg, inVisibilityDuration);
+    }
+
+    /**
+     * Converts a received SQS message, setting inVisibilityDuration on the message
+     */
+    static com.example.model.Message toMessage(com.amazonaws.services.sqs.model.Message msg, Duration inVisibilityDuration) {
+        return new com.example.model.Message(msg.getMessageId(), msg.getReceiptHandle(), msg.getBody(), LocalDateTime.now().plus(inVisibilityDuration));
+    }
+
+    /**
+     * Builder of an SqsQueueService, messages being neither prefetched nor batched unless set
+     */
+    public static final class Builder {
+        private final AmazonSQSClient sqsClient;
+        private final Duration inVisibilityDuration;
+        private PrefetchPolicy prefetchPolicy;
+        private BatchingPolicy batchingPolicy;
+
+        private Builder(AmazonSQSClient sqsClient, Duration inVisibilityDuration) {
+            this.sqsClient = sqsClient;
+            this.inVisibilityDuration = inVisibilityDuration;
+        }
+
+        /**
+         * Receives messages ahead of pulls, into a buffer per queue
+         *
+         * @param prefetchPolicy buffering of the messages received ahead of pulls, per queue
+         */
+        public Builder prefetch(PrefetchPolicy prefetchPolicy) {
+            checkArgument(prefetchPolicy != null, "Prefetch policy must not be null");
+            this.prefetchPolicy = prefetchPolicy;
+            return this;
+        }
+
+        /**
+         * Sends single pushes and deletes of concurrent callers in batch requests
+         *
+         * @param batchingPolicy lingering of single pushes and deletes, to be sent in batches with concurrent ones
+         */
+        public Builder batching(BatchingPolicy batchingPolicy) {
+            checkArgument(batchingPolicy != null, "Batching policy must not be null");
+            this.batchingPolicy = batchingPolicy;
+            return this;
+        }
+
+        public SqsQueueService build() {
+            return new SqsQueueService(this);
+        }
+    }
 }
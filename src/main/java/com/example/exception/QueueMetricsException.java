@@ -0,0 +1,12 @@
+package com.example.exception;
+
+/**
+ * Wrapper around JMException possible while publishing queue metrics over JMX
+ */
+public class QueueMetricsException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public QueueMetricsException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
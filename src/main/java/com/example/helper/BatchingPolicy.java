@@ -0,0 +1,35 @@
+package com.example.helper;
+
+import java.time.Duration;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * How long single pushes and deletes of an SQS queue wait to be sent together with concurrent ones, see
+ * SqsQueueService
+ */
+public final class BatchingPolicy {
+    private final Duration maxLinger;
+
+    private BatchingPolicy(Duration maxLinger) {
+        this.maxLinger = maxLinger;
+    }
+
+    /**
+     * Sends a batch once full, or at most maxLinger after its first entry: a lone push or delete takes that much
+     * longer, in exchange for fewer requests under concurrency
+     */
+    public static BatchingPolicy linger(Duration maxLinger) {
+        checkArgument(maxLinger != null && !maxLinger.isNegative() && !maxLinger.isZero(), "Max linger must be positive");
+        return new BatchingPolicy(maxLinger);
+    }
+
+    public Duration getMaxLinger() {
+        return maxLinger;
+    }
+
+    @Override
+    public String toString() {
+        return "LINGER " + maxLinger;
+    }
+}
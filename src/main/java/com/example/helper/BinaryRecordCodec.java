@@ -0,0 +1,487 @@
+package com.example.helper;
+
+import com.example.model.Message;
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Encodes messages of a file queue as binary records, and decodes them back.
+ * <p>
+ * A binary file queue starts with a 4 bytes header: a zero byte, "FQ" and the format version. Text file queues never
+ * start with a zero byte, so both formats can be told apart by their first bytes. The header is followed by records:
+ * <pre>
+ * status: 1 | length: 4 | visibleFrom: 8 | id | receiptHandle | contentLength: 4 | content | crc: 4
+ * </pre>
+ * - status is overwritten in place to mark a record deleted
+ * - length counts the bytes following it, up to and including the CRC
+ * - visibleFrom is in epoch millis, overwritten in place to lease the message
+ * - id and receipt handle are a kind byte followed by 16 bytes for a UUID, or by a 2 bytes length and UTF-8 bytes
+ * - content is raw UTF-8 bytes, contentLength being -1 for null content
+ * - crc is the CRC32 of id through content, the fields never updated in place
+ * <p>
+ * Records are encoded into a ByteBuffer reused by each thread, so a write allocates nothing but the record bytes.
+ * Status, length and visibleFrom being fixed-width fields at the start of a record, records can be scanned and
+ * leased without being decoded.
+ */
+final class BinaryRecordCodec {
+    static final byte VERSION = 1;
+    static final int HEADER_LENGTH = 4;
+    // status and length, preceding the checked body of a record
+    static final int RECORD_PREFIX_LENGTH = 5;
+    static final byte LIVE = 1;
+    static final byte DELETED = 0;
+    // offset of visibleFrom in an off-heap entry, following its status
+    static final int ENTRY_VISIBLE_FROM = 1;
+    private static final int VISIBLE_FROM_LENGTH = 8;
+    private static final byte[] HEADER = {0, 'F', 'Q', VERSION};
+    private static final byte UUID_KIND = 0;
+    private static final byte TEXT_KIND = 1;
+    private static final int UUID_TEXT_LENGTH = 36;
+    // visibleFrom, two empty text ids, contentLength and crc
+    private static final int MIN_RECORD_LENGTH = 8 + 3 + 3 + 4 + 4;
+    // encode buffers growing larger than this are not kept for reuse
+    private static final int MAX_REUSED_CAPACITY = 1024 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(4096));
+    private static final ThreadLocal<CharsetEncoder> ENCODER = ThreadLocal.withInitial(() -> StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE));
+    private static final ThreadLocal<CRC32> CHECKSUM = ThreadLocal.withInitial(CRC32::new);
+
+    private BinaryRecordCodec() {
+    }
+
+    /**
+     * Checks if a file queue starts with the header of the binary format
+     */
+    static boolean isBinary(File messagesFile) throws IOException {
+        if (messagesFile.length() < HEADER_LENGTH) {
+            return false;
+        }
+        byte[] header = new byte[HEADER_LENGTH];
+        try (RandomAccessFile file = new RandomAccessFile(messagesFile, "r")) {
+            file.readFully(header);
+        }
+        if (header[0] != 0 || header[1] != 'F' || header[2] != 'Q') {
+            return false;
+        }
+        if (header[3] != VERSION) {
+            throw new IOException("Unsupported record format version " + header[3] + " of " + messagesFile);
+        }
+        return true;
+    }
+
+    /**
+     * Encodes messages, preceded by the file header if withHeader.
+     * Records the offset of each message, the encoded bytes being written at given offset.
+     *
+     * @return the reused buffer of this thread, ready to be written
+     */
+    static ByteBuffer encode(List<Message> messages, boolean withHeader, long offset, Map<String, Long> offsets) {
+        ByteBuffer buffer = buffer(HEADER_LENGTH + maxEncodedLength(messages));
+        if (withHeader) {
+            buffer.put(HEADER);
+        }
+        for (Message message : messages) {
+            int start = buffer.position();
+            offsets.put(message.getReceiptHandle(), offset + start);
+            buffer.put(LIVE).putInt(0);
+            int bodyStart = buffer.position();
+            buffer.putLong(message.getVisibleFromMillis());
+            putId(buffer, message.getId());
+            putId(buffer, message.getReceiptHandle());
+            putContent(buffer, message.getContent());
+            buffer.putInt(checksum(buffer, bodyStart + VISIBLE_FROM_LENGTH, buffer.position()));
+            buffer.putInt(start + 1, buffer.position() - bodyStart);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decodes the live records of a binary file queue, recording the offset of each message.
+     * A truncated record at the end, left by an interrupted append, is ignored.
+     *
+     * @throws IOException if a record fails its CRC check
+     */
+    static List<Message> decode(ByteBuffer records, Map<String, Long> offsets) throws IOException {
+        List<Message> messages = Lists.newArrayList();
+        decode(records, HEADER_LENGTH, 0, messages, offsets);
+        return messages;
+    }
+
+    /**
+     * Decodes the live records from position from, records holding the bytes of a binary file queue from offset base.
+     * Records the offset in the file of each message. A truncated record at the end is left undecoded.
+     *
+     * @param messages receives the decoded messages
+     * @return position following the last complete record
+     * @throws IOException if a record fails its CRC check
+     */
+    static int decode(ByteBuffer records, int from, long base, List<Message> messages, Map<String, Long> offsets) throws IOException {
+        records.position(from);
+        while (records.remaining() >= RECORD_PREFIX_LENGTH) {
+            int start = records.position();
+            byte status = records.get();
+            int length = records.getInt();
+            if (length < MIN_RECORD_LENGTH || length > records.remaining()) {
+                records.position(start);
+                break;
+            }
+            if (status == LIVE) {
+                Message message = decodeRecord(records, start, length);
+                messages.add(message);
+                offsets.put(message.getReceiptHandle(), base + start);
+            }
+            records.position(start + RECORD_PREFIX_LENGTH + length);
+        }
+        return records.position();
+    }
+
+    /**
+     * Leases the live records visible at now, up to maxMessages, by overwriting their visibleFrom with leaseEnd in
+     * place. Scanning starts at position from, records holding the bytes of a binary file queue from offset base,
+     * and reads only the fixed-width start of each record, so records are decoded only when leased, and nothing is
+     * allocated for the others.
+     *
+     * @param leased receives the leased messages
+     * @return where the scan stopped, its first live record, and the earliest visibleFrom of the invisible live
+     * records scanned
+     * @throws IOException if a leased record fails its CRC check
+     */
+    static LeaseScan lease(ByteBuffer records, int from, long base, int maxMessages, long now, long leaseEnd,
+                           List<Message> leased, Map<String, Long> offsets) throws IOException {
+        LeaseScan scan = new LeaseScan();
+        int position = from;
+        int end = records.limit();
+        while (leased.size() < maxMessages && end - position >= RECORD_PREFIX_LENGTH) {
+            int length = records.getInt(position + 1);
+            if (length < MIN_RECORD_LENGTH || length > end - position - RECORD_PREFIX_LENGTH) {
+                break;
+            }
+            if (records.get(position) == LIVE) {
+                if (scan.firstLive < 0) {
+                    scan.firstLive = position;
+                }
+                long visibleFrom = records.getLong(position + RECORD_PREFIX_LENGTH);
+                if (visibleFrom <= now) {
+                    Message message = decodeRecord(records, position, length);
+                    records.putLong(position + RECORD_PREFIX_LENGTH, leaseEnd);
+                    message.setVisibleFromMillis(leaseEnd);
+                    leased.add(message);
+                    offsets.put(message.getReceiptHandle(), base + position);
+                } else {
+                    scan.nextVisibleFrom = Math.min(scan.nextVisibleFrom, visibleFrom);
+                }
+            }
+            position += RECORD_PREFIX_LENGTH + length;
+        }
+        scan.end = position;
+        return scan;
+    }
+
+    /**
+     * Gets the length of the record starting at position from its prefix, whether complete or not
+     *
+     * @return record length, prefix included, or -1 if no valid prefix starts at position
+     */
+    static int prefixedLength(ByteBuffer records, int position) {
+        if (records.limit() - position < RECORD_PREFIX_LENGTH) {
+            return -1;
+        }
+        int length = records.getInt(position + 1);
+        return length < MIN_RECORD_LENGTH ? -1 : RECORD_PREFIX_LENGTH + length;
+    }
+
+    /**
+     * Gets the length of the complete record at position, prefix included
+     *
+     * @return record length, or -1 if no complete record starts at position
+     */
+    static int recordLength(ByteBuffer records, int position) {
+        if (records.limit() - position < RECORD_PREFIX_LENGTH) {
+            return -1;
+        }
+        int length = records.getInt(position + 1);
+        if (length < MIN_RECORD_LENGTH || length > records.limit() - position - RECORD_PREFIX_LENGTH) {
+            return -1;
+        }
+        return RECORD_PREFIX_LENGTH + length;
+    }
+
+    static boolean isLive(ByteBuffer records, int position) {
+        return records.get(position) == LIVE;
+    }
+
+    static long getVisibleFrom(ByteBuffer records, int position) {
+        return records.getLong(position + RECORD_PREFIX_LENGTH);
+    }
+
+    /**
+     * Gets the receipt handle of the record at position, without checking its CRC nor decoding its content
+     */
+    static String getReceiptHandle(ByteBuffer records, int position) {
+        ByteBuffer record = records.duplicate();
+        record.position(position + RECORD_PREFIX_LENGTH + VISIBLE_FROM_LENGTH);
+        getId(record);
+        return getId(record);
+    }
+
+    /**
+     * Reads the receipt handle of the live record at offset of a binary file queue
+     *
+     * @return receipt handle, or null if offset does not hold a valid live record
+     */
+    static String readReceiptHandle(FileChannel channel, long offset) throws IOException {
+        long size = channel.size();
+        if (offset < HEADER_LENGTH || offset + RECORD_PREFIX_LENGTH > size) {
+            return null;
+        }
+        ByteBuffer prefix = ByteBuffer.allocate(RECORD_PREFIX_LENGTH);
+        readFully(channel, prefix, offset);
+        int length = prefix.getInt(1);
+        if (prefix.get(0) != LIVE || length < MIN_RECORD_LENGTH || offset + RECORD_PREFIX_LENGTH + length > size) {
+            return null;
+        }
+        ByteBuffer record = buffer(RECORD_PREFIX_LENGTH + length);
+        record.limit(RECORD_PREFIX_LENGTH + length);
+        readFully(channel, record, offset);
+        try {
+            return decodeRecord(record, 0, length).getReceiptHandle();
+        } catch (IOException e) {
+            // offset is stale and points into another record
+            return null;
+        }
+    }
+
+    /**
+     * Reads the visibleFrom of the record at offset of a binary file queue, whose receipt handle was checked already
+     */
+    static long readVisibleFrom(FileChannel channel, long offset) throws IOException {
+        ByteBuffer visibleFrom = ByteBuffer.allocate(VISIBLE_FROM_LENGTH);
+        readFully(channel, visibleFrom, offset + RECORD_PREFIX_LENGTH);
+        return visibleFrom.getLong(0);
+    }
+
+    /**
+     * Overwrites the visibleFrom of the record at offset of a binary file queue in place, its CRC being unaffected
+     */
+    static void writeVisibleFrom(FileChannel channel, long offset, long visibleFrom) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(VISIBLE_FROM_LENGTH);
+        buffer.putLong(0, visibleFrom);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + RECORD_PREFIX_LENGTH + buffer.position());
+        }
+    }
+
+    /**
+     * Encodes a message as an entry of an off-heap slab: a record without length nor CRC, as it is never read back
+     * from a device.
+     * <pre>
+     * status: 1 | visibleFrom: 8 | id | receiptHandle | contentLength: 4 | content
+     * </pre>
+     *
+     * @return the reused buffer of this thread, ready to be copied
+     */
+    static ByteBuffer encodeEntry(Message message) {
+        ByteBuffer buffer = buffer(maxEncodedLength(Collections.singletonList(message)));
+        buffer.put(LIVE).putLong(message.getVisibleFromMillis());
+        putId(buffer, message.getId());
+        putId(buffer, message.getReceiptHandle());
+        putContent(buffer, message.getContent());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decodes the off-heap entry at position of a slab
+     */
+    static Message decodeEntry(ByteBuffer slab, int position) {
+        ByteBuffer entry = slab.duplicate();
+        entry.position(position + ENTRY_VISIBLE_FROM);
+        long visibleFrom = entry.getLong();
+        String id = getId(entry);
+        String receiptHandle = getId(entry);
+        int contentLength = entry.getInt();
+        String content = contentLength < 0 ? null : getString(entry, contentLength);
+        return new Message(id, receiptHandle, content, visibleFrom);
+    }
+
+    /**
+     * Gets the receipt handle of the off-heap entry at position of a slab, without decoding its content
+     */
+    static String getEntryReceiptHandle(ByteBuffer slab, int position) {
+        ByteBuffer entry = slab.duplicate();
+        entry.position(position + ENTRY_VISIBLE_FROM + VISIBLE_FROM_LENGTH);
+        getId(entry);
+        return getId(entry);
+    }
+
+    /**
+     * Decodes the record starting at given position, whose length field was read already
+     */
+    private static Message decodeRecord(ByteBuffer records, int start, int length) throws IOException {
+        int bodyStart = start + RECORD_PREFIX_LENGTH;
+        int crcPosition = bodyStart + length - 4;
+        if (checksum(records, bodyStart + VISIBLE_FROM_LENGTH, crcPosition) != records.getInt(crcPosition)) {
+            throw new IOException("Corrupt record at offset " + start);
+        }
+        records.position(bodyStart);
+        long visibleFrom = records.getLong();
+        String id = getId(records);
+        String receiptHandle = getId(records);
+        int contentLength = records.getInt();
+        String content = contentLength < 0 ? null : getString(records, contentLength);
+        return new Message(id, receiptHandle, content, visibleFrom);
+    }
+
+    /**
+     * Upper bound of the encoded length of messages, assuming every id is stored as text, at 3 bytes per char
+     */
+    private static int maxEncodedLength(List<Message> messages) {
+        int length = 0;
+        for (Message message : messages) {
+            length += RECORD_PREFIX_LENGTH + MIN_RECORD_LENGTH
+                    + 3 * message.getId().length()
+                    + 3 * message.getReceiptHandle().length()
+                    + (message.getContent() == null ? 0 : 3 * message.getContent().length());
+        }
+        return length;
+    }
+
+    private static void putId(ByteBuffer buffer, String id) {
+        UUID uuid = toUUID(id);
+        if (uuid != null) {
+            buffer.put(UUID_KIND).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+            return;
+        }
+        int lengthPosition = buffer.position() + 1;
+        buffer.put(TEXT_KIND).putShort((short) 0);
+        int length = encodeUtf8(buffer, id);
+        if (length > 0xFFFF) {
+            throw new IllegalArgumentException("Id longer than 65535 bytes: " + id);
+        }
+        buffer.putShort(lengthPosition, (short) length);
+    }
+
+    private static void putContent(ByteBuffer buffer, String content) {
+        if (content == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        int lengthPosition = buffer.position();
+        buffer.putInt(0);
+        buffer.putInt(lengthPosition, encodeUtf8(buffer, content));
+    }
+
+    /**
+     * Encodes text into buffer as UTF-8 without an intermediate byte array
+     *
+     * @return number of bytes written
+     */
+    private static int encodeUtf8(ByteBuffer buffer, String text) {
+        int start = buffer.position();
+        CharsetEncoder encoder = ENCODER.get().reset();
+        encoder.encode(CharBuffer.wrap(text), buffer, true);
+        encoder.flush(buffer);
+        return buffer.position() - start;
+    }
+
+    private static String getId(ByteBuffer records) {
+        if (records.get() == UUID_KIND) {
+            return new UUID(records.getLong(), records.getLong()).toString();
+        }
+        return getString(records, records.getShort() & 0xFFFF);
+    }
+
+    private static String getString(ByteBuffer records, int length) {
+        String text;
+        if (records.hasArray()) {
+            text = new String(records.array(), records.arrayOffset() + records.position(), length, StandardCharsets.UTF_8);
+            records.position(records.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            records.get(bytes);
+            text = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return text;
+    }
+
+    /**
+     * Parses id as a UUID, only if its canonical form is id itself
+     */
+    private static UUID toUUID(String id) {
+        if (id.length() != UUID_TEXT_LENGTH) {
+            return null;
+        }
+        try {
+            UUID uuid = UUID.fromString(id);
+            return uuid.toString().equals(id) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static int checksum(ByteBuffer buffer, int from, int to) {
+        ByteBuffer body = buffer.duplicate();
+        body.limit(to);
+        body.position(from);
+        CRC32 crc = CHECKSUM.get();
+        crc.reset();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at offset " + position);
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Gets the cleared buffer of this thread, grown to capacity if needed
+     */
+    private static ByteBuffer buffer(int capacity) {
+        ByteBuffer buffer = BUFFER.get();
+        if (buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocate(Math.max(capacity, buffer.capacity() * 2));
+            if (buffer.capacity() <= MAX_REUSED_CAPACITY) {
+                BUFFER.set(buffer);
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Outcome of a lease scan
+     */
+    static final class LeaseScan {
+        // position following the last record scanned
+        int end;
+        // position of the first live record scanned, -1 if none
+        int firstLive = -1;
+        // earliest visibleFrom of the invisible live records scanned, Long.MAX_VALUE if none
+        long nextVisibleFrom = Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.helper;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A coarse clock, telling the system time as last read by a background thread, ticking every resolution.
+ * <p>
+ * millis() is then a volatile read, cheaper than reading the system clock on every visibility check of a hot queue,
+ * at the cost of being up to resolution late: a message may become visible, or a lease expire, that much later.
+ */
+public class CachedClock extends Clock implements AutoCloseable {
+    private final ScheduledExecutorService ticker;
+    private volatile long millis = System.currentTimeMillis();
+
+    public CachedClock(Duration resolution) {
+        checkArgument(resolution != null && !resolution.isNegative() && !resolution.isZero(), "Resolution must be positive");
+        this.ticker = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("cached-clock-%d").setDaemon(true).build());
+        long period = Math.max(TimeUnit.NANOSECONDS.toMicros(resolution.toNanos()), 1);
+        ticker.scheduleAtFixedRate(() -> millis = System.currentTimeMillis(), period, period, TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public long millis() {
+        return millis;
+    }
+
+    @Override
+    public Instant instant() {
+        return Instant.ofEpochMilli(millis);
+    }
+
+    /**
+     * Always UTC, epoch millis having no zone
+     */
+    @Override
+    public ZoneId getZone() {
+        return ZoneOffset.UTC;
+    }
+
+    /**
+     * Only supports UTC: a view of this clock in another zone would outlive its ticker
+     */
+    @Override
+    public Clock withZone(ZoneId zone) {
+        if (ZoneOffset.UTC.equals(zone)) {
+            return this;
+        }
+        throw new UnsupportedOperationException("A cached clock is always UTC");
+    }
+
+    /**
+     * Stops the ticker, the clock then standing still
+     */
+    @Override
+    public void close() {
+        ticker.shutdownNow();
+    }
+}
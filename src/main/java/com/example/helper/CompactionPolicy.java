@@ -0,0 +1,44 @@
+package com.example.helper;
+
+import java.time.Duration;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * When a file queue is compacted, see {@link FileQueueCompactor}
+ */
+public final class CompactionPolicy {
+    /**
+     * Compacts files of at least 1 MB, half of which is deleted records, checked every 10 seconds
+     */
+    public static final CompactionPolicy DEFAULT = new CompactionPolicy(0.5, 1024 * 1024, Duration.ofSeconds(10));
+
+    private final double garbageRatio;
+    private final long minBytes;
+    private final Duration checkPeriod;
+
+    /**
+     * @param garbageRatio share of the file taken by deleted records, from which it is compacted
+     * @param minBytes     size under which a file is never compacted
+     * @param checkPeriod  time between two checks of the garbage of a file queue
+     */
+    public CompactionPolicy(double garbageRatio, long minBytes, Duration checkPeriod) {
+        checkArgument(garbageRatio > 0 && garbageRatio <= 1, "Garbage ratio must be within (0, 1]");
+        checkArgument(minBytes >= 0, "Minimum size must not be negative");
+        checkArgument(checkPeriod != null && !checkPeriod.isNegative() && !checkPeriod.isZero(), "Check period must be positive");
+        this.garbageRatio = garbageRatio;
+        this.minBytes = minBytes;
+        this.checkPeriod = checkPeriod;
+    }
+
+    /**
+     * Checks if a file of totalBytes, garbageBytes of which are deleted records, should be compacted
+     */
+    public boolean shouldCompact(long garbageBytes, long totalBytes) {
+        return totalBytes >= minBytes && totalBytes > 0 && garbageBytes >= garbageRatio * totalBytes;
+    }
+
+    public Duration getCheckPeriod() {
+        return checkPeriod;
+    }
+}
@@ -0,0 +1,425 @@
+package com.example.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Removes deleted records from binary file queues, without holding the queue lock while copying.
+ * <p>
+ * A compaction copies the live records of the file to a scratch file of its own without the lock, while producers
+ * and consumers keep using the file. Meanwhile, records are only appended, or updated in place by a delete or a
+ * lease: a messages file is never truncated, a rewrite replaces it as a whole. Every record updated in place while
+ * a compaction runs has its offset appended to the dirty log of the queue (see
+ * {@link FileQueueHelper#getDirtyLogFile(String)}), once the update is written. The copy then catches up without
+ * the lock, pass after pass, until a pass finds few changes:
+ * - the status and visibleFrom of each copied record logged as dirty are copied again from the file
+ * - records appended since the last pass are appended as they are
+ * The lock is taken for a last such pass only, after which the copy is moved over the file with an atomic move.
+ * If the file was replaced meanwhile, by a rewrite which dropped deleted records already, the copy is discarded.
+ * <p>
+ * A queue is compacted by one process at a time, holding its compaction lock file from copy to swap; other
+ * compactors skip the queue meanwhile.
+ * <p>
+ * Text file queues are not compacted: every pull of a text file queue rewrites it without its deleted lines.
+ * Compaction needs file keys to tell files apart, it is skipped on file systems without them.
+ */
+public class FileQueueCompactor {
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+    private static final int DIRTY_ENTRY_LENGTH = Long.BYTES;
+    private static final int SYNCED_LENGTH = BinaryRecordCodec.RECORD_PREFIX_LENGTH + Long.BYTES;
+    // a pass catching up with less than that many changes is followed by the last one, under the lock
+    private static final int MAX_LOCKED_APPENDED_BYTES = 64 * 1024;
+    private static final int MAX_LOCKED_DIRTY_RECORDS = 1024;
+    private static final int MAX_UNLOCKED_PASSES = 8;
+
+    private final FileQueueHelper fileQueueHelper;
+    private final CompactionPolicy compactionPolicy;
+
+    public FileQueueCompactor(FileQueueHelper fileQueueHelper, CompactionPolicy compactionPolicy) {
+        this.fileQueueHelper = fileQueueHelper;
+        this.compactionPolicy = compactionPolicy;
+    }
+
+    /**
+     * Compacts a binary file queue if its deleted records take enough of the file, according to the policy
+     *
+     * @return true if the file queue was compacted
+     */
+    public boolean compactIfNeeded(String queueName) throws IOException {
+        File messagesFile = fileQueueHelper.getMessagesFile(queueName);
+        if (!isCompactable(messagesFile)) {
+            return false;
+        }
+        long garbage = 0;
+        long length;
+        try (FileChannel source = FileChannel.open(messagesFile.toPath(), StandardOpenOption.READ)) {
+            length = source.size();
+            ByteBuffer records = source.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            int position = BinaryRecordCodec.HEADER_LENGTH;
+            int recordLength;
+            while ((recordLength = BinaryRecordCodec.recordLength(records, position)) > 0) {
+                if (!BinaryRecordCodec.isLive(records, position)) {
+                    garbage += recordLength;
+                }
+                position += recordLength;
+            }
+        }
+        return compactionPolicy.shouldCompact(garbage, length) && compact(queueName);
+    }
+
+    /**
+     * Compacts a binary file queue
+     *
+     * @return true if the file queue was compacted, false if it is not binary, is being compacted by another
+     * compactor, or was rewritten meanwhile
+     */
+    public boolean compact(String queueName) throws IOException {
+        Copy copy = copyLiveRecords(queueName);
+        return copy != null && swap(queueName, copy);
+    }
+
+    /**
+     * Takes the compaction lock of a file queue, and copies its live records to a new scratch file, holding the
+     * queue lock only to read the length to copy and to start the dirty log
+     *
+     * @return the copy, holding the compaction lock until swapped, or null if the file queue can not be compacted
+     * or is being compacted by another compactor
+     */
+    Copy copyLiveRecords(String queueName) throws IOException {
+        FileChannel compactionLock = tryCompactionLock(queueName);
+        if (compactionLock == null) {
+            return null;
+        }
+        Copy copy = new Copy(compactionLock);
+        try {
+            File messagesFile = fileQueueHelper.getMessagesFile(queueName);
+            deleteScratchFiles(queueName);
+            try {
+                fileQueueHelper.takeLock(queueName);
+                if (!isCompactable(messagesFile) || (copy.fileKey = fileKey(messagesFile)) == null) {
+                    copy.close();
+                    return null;
+                }
+                // every record up to this length is complete, records updated in place from now on are logged
+                copy.sourceLength = (int) messagesFile.length();
+                Files.write(fileQueueHelper.getDirtyLogFile(queueName).toPath(), new byte[0]);
+            } finally {
+                fileQueueHelper.releaseLock(queueName);
+            }
+            copy.file = fileQueueHelper.createCompactFile(queueName);
+            try (FileChannel source = FileChannel.open(messagesFile.toPath(), StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(copy.file.toPath(), StandardOpenOption.WRITE)) {
+                ByteBuffer records = source.map(FileChannel.MapMode.READ_ONLY, 0, copy.sourceLength);
+                ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+                buffer.put(slice(records, 0, BinaryRecordCodec.HEADER_LENGTH));
+                int position = BinaryRecordCodec.HEADER_LENGTH;
+                int targetPosition = BinaryRecordCodec.HEADER_LENGTH;
+                int recordLength;
+                while ((recordLength = BinaryRecordCodec.recordLength(records, position)) > 0) {
+                    if (BinaryRecordCodec.isLive(records, position)) {
+                        copy.add(position, targetPosition, BinaryRecordCodec.getReceiptHandle(records, position));
+                        ByteBuffer record = slice(records, position, recordLength);
+                        if (buffer.remaining() < recordLength) {
+                            flush(buffer, target);
+                        }
+                        if (buffer.remaining() < recordLength) {
+                            write(target, record);
+                        } else {
+                            buffer.put(record);
+                        }
+                        targetPosition += recordLength;
+                    }
+                    position += recordLength;
+                }
+                flush(buffer, target);
+                copy.targetLength = targetPosition;
+            }
+            return copy;
+        } catch (IOException | RuntimeException e) {
+            discard(queueName, copy);
+            throw e;
+        }
+    }
+
+    /**
+     * Catches the copy up with the changes made to the file queue since it was copied, and moves it in place.
+     * Releases the compaction lock held by the copy.
+     *
+     * @return true if swapped, false if the file queue was replaced meanwhile
+     */
+    boolean swap(String queueName, Copy copy) throws IOException {
+        File messagesFile = fileQueueHelper.getMessagesFile(queueName);
+        boolean swapped = false;
+        try (FileChannel source = FileChannel.open(messagesFile.toPath(), StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(copy.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel dirtyLog = FileChannel.open(fileQueueHelper.getDirtyLogFile(queueName).toPath(), StandardOpenOption.READ)) {
+            if (!copy.fileKey.equals(fileKey(messagesFile))) {
+                return false;
+            }
+            for (int pass = 0; pass < MAX_UNLOCKED_PASSES; pass++) {
+                int appended = copyAppended(source, target, copy);
+                int dirty = syncDirty(dirtyLog, source, target, copy);
+                if (appended < MAX_LOCKED_APPENDED_BYTES && dirty < MAX_LOCKED_DIRTY_RECORDS) {
+                    break;
+                }
+            }
+            target.force(false);
+            try {
+                fileQueueHelper.takeLock(queueName);
+                if (!messagesFile.exists() || !copy.fileKey.equals(fileKey(messagesFile))) {
+                    return false;
+                }
+                copyAppended(source, target, copy);
+                syncDirty(dirtyLog, source, target, copy);
+                target.force(false);
+                Files.move(copy.file.toPath(), messagesFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                fileQueueHelper.replaceOffsets(queueName, copy.offsets);
+                swapped = true;
+                return true;
+            } finally {
+                if (swapped) {
+                    Files.deleteIfExists(fileQueueHelper.getDirtyLogFile(queueName).toPath());
+                }
+                fileQueueHelper.releaseLock(queueName);
+            }
+        } finally {
+            if (swapped) {
+                copy.close();
+            } else {
+                discard(queueName, copy);
+            }
+        }
+    }
+
+    /**
+     * Appends to the copy the complete records appended to the file since it was last caught up
+     *
+     * @return number of bytes appended
+     */
+    private static int copyAppended(FileChannel source, FileChannel target, Copy copy) throws IOException {
+        int appended = 0;
+        ByteBuffer chunk = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        while (true) {
+            long available = Math.min(source.size(), Integer.MAX_VALUE) - copy.sourceLength;
+            if (available < BinaryRecordCodec.RECORD_PREFIX_LENGTH) {
+                return appended;
+            }
+            chunk.clear();
+            chunk.limit((int) Math.min(chunk.capacity(), available));
+            readFully(source, chunk, copy.sourceLength);
+            int position = 0;
+            int recordLength;
+            while ((recordLength = BinaryRecordCodec.recordLength(chunk, position)) > 0) {
+                if (BinaryRecordCodec.isLive(chunk, position)) {
+                    copy.add(copy.sourceLength + position, copy.targetLength + position,
+                            BinaryRecordCodec.getReceiptHandle(chunk, position));
+                }
+                position += recordLength;
+            }
+            if (position == 0) {
+                // no complete record in the chunk: none appended yet, or one longer than the chunk
+                long needed = BinaryRecordCodec.RECORD_PREFIX_LENGTH + (long) chunk.getInt(1);
+                if (needed <= chunk.capacity() || needed > available) {
+                    return appended;
+                }
+                chunk = ByteBuffer.allocate((int) needed);
+                continue;
+            }
+            write(target, slice(chunk, 0, position), copy.targetLength);
+            copy.sourceLength += position;
+            copy.targetLength += position;
+            appended += position;
+        }
+    }
+
+    /**
+     * Copies again the status and visibleFrom of the copied records logged as dirty since last synced. Logged records
+     * not copied yet are skipped, being updated already when appended to the copy.
+     *
+     * @return number of dirty log entries read
+     */
+    private static int syncDirty(FileChannel dirtyLog, FileChannel source, FileChannel target, Copy copy) throws IOException {
+        long end = dirtyLog.size();
+        // a partial entry is being written, it is read once complete
+        end -= end % DIRTY_ENTRY_LENGTH;
+        if (end <= copy.dirtyLogOffset) {
+            return 0;
+        }
+        ByteBuffer entries = ByteBuffer.allocate((int) (end - copy.dirtyLogOffset));
+        readFully(dirtyLog, entries, copy.dirtyLogOffset);
+        ByteBuffer record = ByteBuffer.allocate(SYNCED_LENGTH);
+        while (entries.hasRemaining()) {
+            long position = entries.getLong();
+            int index = position < copy.sourceLength ? Arrays.binarySearch(copy.sourcePositions, 0, copy.count, (int) position) : -1;
+            if (index < 0) {
+                continue;
+            }
+            record.clear();
+            readFully(source, record, position);
+            int targetPosition = copy.targetPositions[index];
+            if (!BinaryRecordCodec.isLive(record, 0)) {
+                write(target, ByteBuffer.wrap(new byte[]{BinaryRecordCodec.DELETED}), targetPosition);
+                copy.offsets.remove(copy.receiptHandles[index]);
+            } else {
+                record.position(BinaryRecordCodec.RECORD_PREFIX_LENGTH);
+                write(target, record, targetPosition + BinaryRecordCodec.RECORD_PREFIX_LENGTH);
+            }
+        }
+        int read = (int) ((end - copy.dirtyLogOffset) / DIRTY_ENTRY_LENGTH);
+        copy.dirtyLogOffset = end;
+        return read;
+    }
+
+    /**
+     * Tries to take the compaction lock of a file queue, held by the returned channel until closed
+     *
+     * @return the channel holding the lock, or null if another compactor holds it
+     */
+    private FileChannel tryCompactionLock(String queueName) throws IOException {
+        File lockFile = fileQueueHelper.getCompactionLockFile(queueName);
+        if (!lockFile.getParentFile().exists()) {
+            return null;
+        }
+        FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            FileLock lock = channel.tryLock();
+            if (lock != null) {
+                return channel;
+            }
+        } catch (OverlappingFileLockException e) {
+            // held by another compactor of this JVM
+        }
+        channel.close();
+        return null;
+    }
+
+    /**
+     * Deletes the scratch files left by compactions which did not complete, the compaction lock being held
+     */
+    private void deleteScratchFiles(String queueName) throws IOException {
+        File[] scratchFiles = fileQueueHelper.getQueueDirectory(queueName).listFiles(fileQueueHelper::isCompactFile);
+        if (scratchFiles != null) {
+            for (File scratchFile : scratchFiles) {
+                Files.deleteIfExists(scratchFile.toPath());
+            }
+        }
+    }
+
+    /**
+     * Deletes the scratch file and the dirty log of a copy not swapped, and releases its compaction lock
+     */
+    private void discard(String queueName, Copy copy) throws IOException {
+        try {
+            if (copy.file != null) {
+                Files.deleteIfExists(copy.file.toPath());
+            }
+            try {
+                // under the lock, as producers and consumers append to the dirty log while it exists
+                fileQueueHelper.takeLock(queueName);
+                Files.deleteIfExists(fileQueueHelper.getDirtyLogFile(queueName).toPath());
+            } finally {
+                fileQueueHelper.releaseLock(queueName);
+            }
+        } finally {
+            copy.close();
+        }
+    }
+
+    private static boolean isCompactable(File messagesFile) throws IOException {
+        return messagesFile.exists() && messagesFile.length() <= Integer.MAX_VALUE && BinaryRecordCodec.isBinary(messagesFile);
+    }
+
+    private static Object fileKey(File file) throws IOException {
+        return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+    }
+
+    private static ByteBuffer slice(ByteBuffer records, int position, int length) {
+        ByteBuffer slice = records.duplicate();
+        slice.limit(position + length);
+        slice.position(position);
+        return slice;
+    }
+
+    private static void flush(ByteBuffer buffer, FileChannel target) throws IOException {
+        buffer.flip();
+        write(target, buffer);
+        buffer.clear();
+    }
+
+    private static void write(FileChannel target, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            target.write(bytes);
+        }
+    }
+
+    private static void write(FileChannel target, ByteBuffer bytes, long position) throws IOException {
+        while (bytes.hasRemaining()) {
+            position += target.write(bytes, position);
+        }
+    }
+
+    /**
+     * Reads bytes up to the limit of buffer from offset, and flips it
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at offset " + position);
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Live records copied to the scratch file: their positions in both files, in increasing order, and their
+     * receipt handles. Holds the compaction lock of the queue until closed.
+     */
+    static class Copy {
+        private final FileChannel compactionLock;
+        private File file;
+        private Object fileKey;
+        private int sourceLength;
+        private int targetLength;
+        private long dirtyLogOffset = 0;
+        private int count = 0;
+        private int[] sourcePositions = new int[1024];
+        private int[] targetPositions = new int[1024];
+        private String[] receiptHandles = new String[1024];
+        // offset of each live record in the scratch file, by receipt handle
+        private final ConcurrentHashMap<String, Long> offsets = new ConcurrentHashMap<>();
+
+        private Copy(FileChannel compactionLock) {
+            this.compactionLock = compactionLock;
+        }
+
+        private void add(int sourcePosition, int targetPosition, String receiptHandle) {
+            if (count == sourcePositions.length) {
+                sourcePositions = Arrays.copyOf(sourcePositions, count * 2);
+                targetPositions = Arrays.copyOf(targetPositions, count * 2);
+                receiptHandles = Arrays.copyOf(receiptHandles, count * 2);
+            }
+            sourcePositions[count] = sourcePosition;
+            targetPositions[count] = targetPosition;
+            receiptHandles[count] = receiptHandle;
+            offsets.put(receiptHandle, (long) targetPosition);
+            count++;
+        }
+
+        private void close() throws IOException {
+            compactionLock.close();
+        }
+    }
+}
@@ -3,41 +3,265 @@ package com.example.helper;
 import com.example.model.Message;
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
+import com.google.common.base.Utf8;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 import com.google.common.io.LineProcessor;
 import com.google.common.primitives.Longs;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.*;
-import java.util.stream.Collectors;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.google.common.io.Files.touch;
 
+/**
+ * Storage of file queues: a messages file and a lock file per queue, within a parent directory.
+ * <p>
+ * Messages are stored in a {@link RecordFormat}, selectable per queue. The format of an existing file is detected
+ * when it is read or appended to, so text queues written before binary records existed stay readable. A queue is
+ * converted to its selected format the next time it is rewritten.
+ * <p>
+ * Binary file queues are read through a memory mapping, kept per queue while the file keeps its identity.
+ * The mapping is shared with the file, so changes made by other processes are seen through it. Records appended
+ * past the mapping are read and leased through the file channel, until they take a quarter of the mapped length:
+ * the file is then mapped again, so a growing file is mapped a logarithmic number of times. A mapping can not
+ * reach past the end of the file instead, as mapping a file read-write beyond its end extends it.
+ * Leases start scanning the mapping at a cursor to its first record not known to be deleted, so the deleted
+ * records at the head of a file are skipped over, and the time taken by a lease does not grow with the file.
+ */
 public class FileQueueHelper {
     private static final Duration FILE_LOCK_TRY_TIMEOUT = Duration.ofSeconds(10);
-    private static final Duration FILE_LOCK_RETRY_PERIOD = Duration.ofMillis(50);
     private static final Charset CHAR_SET = StandardCharsets.UTF_8;
+    private static final char DELETED_MARKER = '#';
+    private static final String COMPACT_FILE_SUFFIX = ".compact";
+    // records appended past a mapping are read in chunks of that many bytes, until they are mapped again
+    private static final int TAIL_CHUNK_SIZE = 64 * 1024;
+    private static final long MIN_REMAPPED_TAIL = 1024 * 1024;
     private String parentDirectory;
+    private RecordFormat defaultRecordFormat;
+    // record format selected per queue, overriding defaultRecordFormat
+    private ConcurrentHashMap<String, RecordFormat> recordFormats = new ConcurrentHashMap<>();
+    private FileQueueLock fileQueueLock = FileQueueLock.shared();
+    // byte offset of each message in its file queue, by queue and receipt handle, as last read or written
+    private ConcurrentHashMap<String, ConcurrentHashMap<String, Long>> receiptHandleOffsets = new ConcurrentHashMap<>();
+    // read-write mapping of each binary file queue, as last used
+    private ConcurrentHashMap<String, Mapping> mappings = new ConcurrentHashMap<>();
+    // earliest time an invisible message becomes visible, by queue, as seen by the last lease finding no message
+    private ConcurrentHashMap<String, Long> nextVisibleFrom = new ConcurrentHashMap<>();
+    private QueueMetrics queueMetrics = QueueMetrics.DISABLED;
 
     FileQueueHelper(String parentDirectory) {
+        this(parentDirectory, RecordFormat.TEXT);
+    }
+
+    FileQueueHelper(String parentDirectory, RecordFormat defaultRecordFormat) {
         this.parentDirectory = parentDirectory;
+        this.defaultRecordFormat = defaultRecordFormat;
+    }
+
+    /**
+     * @param queueMetrics metrics recording the time taken to acquire the lock of each queue
+     */
+    FileQueueHelper(String parentDirectory, RecordFormat defaultRecordFormat, QueueMetrics queueMetrics) {
+        this(parentDirectory, defaultRecordFormat);
+        this.queueMetrics = queueMetrics;
+    }
+
+    /**
+     * Selects the format a file queue is written in from now on
+     */
+    public void setRecordFormat(String queueName, RecordFormat recordFormat) {
+        recordFormats.put(queueName, recordFormat);
+    }
+
+    /**
+     * Gets the format a file queue is written in
+     */
+    public RecordFormat getRecordFormat(String queueName) {
+        return recordFormats.getOrDefault(queueName, defaultRecordFormat);
     }
 
     /**
      * Gets messages in a file queue
      */
     public List<Message> readMessages(String queueName) throws IOException {
-        return Files.readLines(getMessagesFile(queueName), CHAR_SET, lineProcessor());
+        File messagesFile = getMessagesFile(queueName);
+        if (BinaryRecordCodec.isBinary(messagesFile)) {
+            ConcurrentHashMap<String, Long> offsets = new ConcurrentHashMap<>();
+            List<Message> messages = Lists.newArrayList();
+            Mapping mapping = mapping(queueName);
+            long end = BinaryRecordCodec.decode(mapping.buffer.duplicate(), BinaryRecordCodec.HEADER_LENGTH, 0, messages, offsets);
+            try (FileChannel channel = FileChannel.open(messagesFile.toPath(), StandardOpenOption.READ)) {
+                long tail = channel.size() - end;
+                if (tail > 0) {
+                    ByteBuffer records = ByteBuffer.allocate((int) Math.min(tail, Integer.MAX_VALUE));
+                    readFully(channel, records, end);
+                    BinaryRecordCodec.decode(records, 0, end, messages, offsets);
+                }
+            }
+            receiptHandleOffsets.put(queueName, offsets);
+            return messages;
+        }
+        return Files.readLines(messagesFile, CHAR_SET, lineProcessor(queueName));
+    }
+
+    /**
+     * Checks if messages of a file queue can be leased in place with leaseVisibleMessages()
+     */
+    public boolean canLeaseInPlace(String queueName) throws IOException {
+        File messagesFile = getMessagesFile(queueName);
+        return messagesFile.length() <= Integer.MAX_VALUE && BinaryRecordCodec.isBinary(messagesFile);
+    }
+
+    /**
+     * Makes up to maxMessages visible messages of a binary file queue invisible until visibleFrom, in place.
+     * Only the leased messages are decoded, the others are skipped over by reading their record headers.
+     *
+     * @return the leased messages, in queue order
+     */
+    public List<Message> leaseVisibleMessages(String queueName, int maxMessages, LocalDateTime visibleFrom) throws IOException {
+        return leaseVisibleMessages(queueName, maxMessages, System.currentTimeMillis(), toEpochMilli(visibleFrom));
+    }
+
+    /**
+     * Makes up to maxMessages messages visible at nowMillis invisible until leaseEndMillis, in place, see above
+     *
+     * @return the leased messages, in queue order
+     */
+    public List<Message> leaseVisibleMessages(String queueName, int maxMessages, long nowMillis, long leaseEndMillis) throws IOException {
+        List<Message> leased = Lists.newArrayList();
+        ConcurrentHashMap<String, Long> offsets = offsets(queueName);
+        Mapping mapping = mapping(queueName);
+        long next = Long.MAX_VALUE;
+        long position = mapping.cursor;
+        if (position < mapping.buffer.capacity()) {
+            BinaryRecordCodec.LeaseScan scan = BinaryRecordCodec.lease(mapping.buffer.duplicate(), (int) position, 0,
+                    maxMessages, nowMillis, leaseEndMillis, leased, offsets);
+            mapping.scanned(position, 0, scan);
+            next = scan.nextVisibleFrom;
+            position = scan.end;
+        }
+        if (leased.size() < maxMessages) {
+            next = Math.min(next, leaseTail(queueName, mapping, position, maxMessages, nowMillis, leaseEndMillis, leased, offsets));
+        }
+        if (!leased.isEmpty()) {
+            logDirty(queueName, leased.stream().map(message -> offsets.get(message.getReceiptHandle())).toArray(Long[]::new));
+        }
+        if (leased.isEmpty() && next != Long.MAX_VALUE) {
+            nextVisibleFrom.put(queueName, next);
+        } else {
+            nextVisibleFrom.remove(queueName);
+        }
+        return leased;
+    }
+
+    /**
+     * Leases the records of a binary file queue from offset from, past its mapping, through the file channel
+     *
+     * @return earliest visibleFrom of the invisible live records scanned, Long.MAX_VALUE if none
+     */
+    private long leaseTail(String queueName, Mapping mapping, long from, int maxMessages, long nowMillis, long leaseEndMillis,
+                           List<Message> leased, ConcurrentHashMap<String, Long> offsets) throws IOException {
+        long next = Long.MAX_VALUE;
+        try (FileChannel channel = FileChannel.open(getMessagesFile(queueName).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            ByteBuffer chunk = ByteBuffer.allocate(TAIL_CHUNK_SIZE);
+            long base = from;
+            while (leased.size() < maxMessages && size - base > 0) {
+                chunk.clear();
+                chunk.limit((int) Math.min(chunk.capacity(), size - base));
+                readFully(channel, chunk, base);
+                int leasedBefore = leased.size();
+                BinaryRecordCodec.LeaseScan scan = BinaryRecordCodec.lease(chunk, 0, base, maxMessages, nowMillis, leaseEndMillis, leased, offsets);
+                for (Message message : leased.subList(leasedBefore, leased.size())) {
+                    BinaryRecordCodec.writeVisibleFrom(channel, offsets.get(message.getReceiptHandle()), leaseEndMillis);
+                }
+                mapping.scanned(base, base, scan);
+                next = Math.min(next, scan.nextVisibleFrom);
+                if (scan.end == 0) {
+                    // no complete record in the chunk: a truncated one, or one longer than the chunk
+                    int length = BinaryRecordCodec.prefixedLength(chunk, 0);
+                    if (length <= chunk.capacity() || length > size - base) {
+                        break;
+                    }
+                    chunk = ByteBuffer.allocate(length);
+                    continue;
+                }
+                base += scan.end;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Gets earliest epoch millis an invisible message becomes visible at, as seen by the last leaseVisibleMessages()
+     * finding none
+     */
+    public OptionalLong getNextVisibleFrom(String queueName) {
+        Long next = nextVisibleFrom.get(queueName);
+        return next == null ? OptionalLong.empty() : OptionalLong.of(next);
+    }
+
+    /**
+     * Gets the read-write mapping of the messages file of a binary file queue, mapping it again if the file was
+     * replaced since last mapped, or grew by more than a quarter of the mapped length
+     */
+    private Mapping mapping(String queueName) throws IOException {
+        File messagesFile = getMessagesFile(queueName);
+        Object fileKey = java.nio.file.Files.readAttributes(messagesFile.toPath(), BasicFileAttributes.class).fileKey();
+        long size = messagesFile.length();
+        Mapping mapping = mappings.get(queueName);
+        if (mapping == null || fileKey == null || !fileKey.equals(mapping.fileKey)) {
+            mapping = new Mapping(fileKey, map(messagesFile, size), BinaryRecordCodec.HEADER_LENGTH);
+            mappings.put(queueName, mapping);
+        } else if (size - mapping.buffer.capacity() > Math.max(MIN_REMAPPED_TAIL, mapping.buffer.capacity() / 4)) {
+            // records are never moved within a file, the cursor stays valid
+            mapping = new Mapping(fileKey, map(messagesFile, size), mapping.cursor);
+            mappings.put(queueName, mapping);
+        }
+        return mapping;
+    }
+
+    private static MappedByteBuffer map(File messagesFile, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(messagesFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(size, Integer.MAX_VALUE));
+        }
+    }
+
+    /**
+     * Reads bytes up to the limit of buffer from offset, and flips it
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at offset " + position);
+            }
+            position += read;
+        }
+        buffer.flip();
     }
 
     /**
@@ -60,33 +284,300 @@ public class FileQueueHelper {
      * Appends a message to a file queue
      */
     public void appendSingleMessage(String queueName, Message message) throws IOException {
+        File messagesFile = getMessagesFile(queueName);
+        if (fileFormat(queueName, messagesFile) == RecordFormat.BINARY) {
+            appendRecords(queueName, messagesFile, Lists.newArrayList(message));
+            return;
+        }
+        long offset = messagesFile.length() + 1;
         String text = '\n' + toText(message);
-        java.nio.file.Files.write(getMessagesFile(queueName).toPath(), text.getBytes(), StandardOpenOption.APPEND);
+        java.nio.file.Files.write(messagesFile.toPath(), text.getBytes(CHAR_SET), StandardOpenOption.APPEND);
+        offsets(queueName).put(message.getReceiptHandle(), offset);
     }
 
     /**
-     * Appends messages to a file queue
+     * Replaces the messages of a file queue, in the format selected for the queue
      */
     public void writeMultipleMessages(String queueName, List<Message> messages) throws IOException {
-        String messagesToWrite = Joiner.on('\n').join(messages.stream().map(msg -> toText(msg)).collect(Collectors.toList()));
-        Files.write(messagesToWrite, getMessagesFile(queueName), CHAR_SET);
+        ConcurrentHashMap<String, Long> offsets = new ConcurrentHashMap<>();
+        if (getRecordFormat(queueName) == RecordFormat.BINARY) {
+            replaceMessagesFile(queueName, BinaryRecordCodec.encode(messages, true, 0, offsets));
+            receiptHandleOffsets.put(queueName, offsets);
+            return;
+        }
+        long offset = 0;
+        List<String> lines = Lists.newArrayListWithCapacity(messages.size());
+        for (Message message : messages) {
+            String line = toText(message);
+            offsets.put(message.getReceiptHandle(), offset);
+            offset += Utf8.encodedLength(line) + 1;
+            lines.add(line);
+        }
+        replaceMessagesFile(queueName, ByteBuffer.wrap(Joiner.on('\n').join(lines).getBytes(CHAR_SET)));
+        receiptHandleOffsets.put(queueName, offsets);
+    }
+
+    /**
+     * Writes the new content of a file queue aside, and moves it in place. A rewrite is then never torn,
+     * and a messages file never shrinks: readers mapping it, like compaction, keep reading the file they opened.
+     */
+    private void replaceMessagesFile(String queueName, ByteBuffer content) throws IOException {
+        File rewrite = getRewriteFile(queueName);
+        writeRecords(rewrite, content, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        java.nio.file.Files.move(rewrite.toPath(), getMessagesFile(queueName).toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Appends messages to a file queue with a single write
+     */
+    public void appendMultipleMessages(String queueName, List<Message> messages) throws IOException {
+        File messagesFile = getMessagesFile(queueName);
+        if (fileFormat(queueName, messagesFile) == RecordFormat.BINARY) {
+            appendRecords(queueName, messagesFile, messages);
+            return;
+        }
+        ConcurrentHashMap<String, Long> offsets = offsets(queueName);
+        long offset = messagesFile.length();
+        StringBuilder text = new StringBuilder();
+        for (Message message : messages) {
+            String line = toText(message);
+            offsets.put(message.getReceiptHandle(), offset + 1);
+            offset += Utf8.encodedLength(line) + 1;
+            text.append('\n').append(line);
+        }
+        java.nio.file.Files.write(messagesFile.toPath(), text.toString().getBytes(CHAR_SET), StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Appends binary records of messages, preceded by the file header if the file is empty
+     */
+    private void appendRecords(String queueName, File messagesFile, List<Message> messages) throws IOException {
+        long offset = messagesFile.length();
+        ByteBuffer records = BinaryRecordCodec.encode(messages, offset == 0, offset, offsets(queueName));
+        writeRecords(messagesFile, records, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void writeRecords(File messagesFile, ByteBuffer records, StandardOpenOption... options) throws IOException {
+        try (FileChannel channel = FileChannel.open(messagesFile.toPath(), options)) {
+            while (records.hasRemaining()) {
+                channel.write(records);
+            }
+        }
+    }
+
+    /**
+     * Gets the format of an existing file queue, or the format selected for the queue if its file is empty
+     */
+    private RecordFormat fileFormat(String queueName, File messagesFile) throws IOException {
+        if (messagesFile.length() == 0) {
+            return getRecordFormat(queueName);
+        }
+        return BinaryRecordCodec.isBinary(messagesFile) ? RecordFormat.BINARY : RecordFormat.TEXT;
+    }
+
+    /**
+     * Deletes the message with given receipt handle from a file queue.
+     * <p>
+     * The message is found through the offset recorded when it was last read or written, and marked as deleted
+     * in place by overwriting a single byte; its line is dropped on the next rewrite of the file. The offset is
+     * verified first, since another process may have rewritten the file: if it is unknown or stale,
+     * the whole file queue is read and rewritten instead.
+     *
+     * @return true if message was found and deleted, else false
+     */
+    public boolean deleteMessage(String queueName, String receiptHandle) throws IOException {
+        return deleteMessages(queueName, Lists.newArrayList(receiptHandle)).get(0);
+    }
+
+    /**
+     * Deletes the messages with given receipt handles from a file queue, as deleteMessage() does for one.
+     * Messages not found through their offset are deleted with a single read and rewrite of the file queue.
+     *
+     * @return true for each message found and deleted, else false, in the order of receiptHandles
+     */
+    public List<Boolean> deleteMessages(String queueName, List<String> receiptHandles) throws IOException {
+        List<Boolean> results = Lists.newArrayList(Collections.nCopies(receiptHandles.size(), false));
+        if (!queueExists(queueName)) {
+            return results;
+        }
+        ConcurrentHashMap<String, Long> offsets = offsets(queueName);
+        Set<String> notFound = Sets.newHashSet();
+        for (int i = 0; i < receiptHandles.size(); i++) {
+            String receiptHandle = receiptHandles.get(i);
+            Long offset = offsets.get(receiptHandle);
+            if (offset != null && markDeleted(queueName, offset, receiptHandle)) {
+                offsets.remove(receiptHandle);
+                results.set(i, true);
+            } else {
+                notFound.add(receiptHandle);
+            }
+        }
+        if (notFound.isEmpty()) {
+            return results;
+        }
+        List<Message> messages = readMessages(queueName);
+        Set<String> deleted = Sets.newHashSet();
+        messages.removeIf(msg -> {
+            if (notFound.contains(msg.getReceiptHandle())) {
+                deleted.add(msg.getReceiptHandle());
+                return true;
+            }
+            return false;
+        });
+        if (!deleted.isEmpty()) {
+            writeMultipleMessages(queueName, messages);
+            for (int i = 0; i < receiptHandles.size(); i++) {
+                if (deleted.remove(receiptHandles.get(i))) {
+                    results.set(i, true);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Makes the message with given receipt handle of a file queue, if invisible at nowMillis, invisible until
+     * visibleFromMillis instead.
+     * <p>
+     * A binary record found through the offset recorded when it was last read or written has its visibleFrom
+     * overwritten in place. Otherwise, text lines or stale offsets, the whole file queue is read and rewritten.
+     *
+     * @return true if message was found invisible and its visibility changed, else false
+     */
+    public boolean changeVisibility(String queueName, String receiptHandle, long nowMillis, long visibleFromMillis) throws IOException {
+        if (!queueExists(queueName)) {
+            return false;
+        }
+        // a pull may now find a message a former one did not
+        nextVisibleFrom.remove(queueName);
+        File messagesFile = getMessagesFile(queueName);
+        Long offset = offsets(queueName).get(receiptHandle);
+        if (offset != null && BinaryRecordCodec.isBinary(messagesFile)) {
+            try (FileChannel channel = FileChannel.open(messagesFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                if (receiptHandle.equals(BinaryRecordCodec.readReceiptHandle(channel, offset))) {
+                    if (BinaryRecordCodec.readVisibleFrom(channel, offset) <= nowMillis) {
+                        return false;
+                    }
+                    BinaryRecordCodec.writeVisibleFrom(channel, offset, visibleFromMillis);
+                    logDirty(queueName, offset);
+                    return true;
+                }
+            }
+        }
+        List<Message> messages = readMessages(queueName);
+        for (Message message : messages) {
+            if (receiptHandle.equals(message.getReceiptHandle())) {
+                if (message.isVisible(nowMillis)) {
+                    return false;
+                }
+                message.setVisibleFromMillis(visibleFromMillis);
+                writeMultipleMessages(queueName, messages);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Overwrites the first byte of the line at offset with DELETED_MARKER, if that line holds given receipt handle.
+     * For binary records, overwrites the status byte of the record instead.
+     */
+    private boolean markDeleted(String queueName, long offset, String receiptHandle) throws IOException {
+        File messagesFile = getMessagesFile(queueName);
+        if (BinaryRecordCodec.isBinary(messagesFile)) {
+            try (FileChannel channel = FileChannel.open(messagesFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                if (!receiptHandle.equals(BinaryRecordCodec.readReceiptHandle(channel, offset))) {
+                    return false;
+                }
+                channel.write(ByteBuffer.wrap(new byte[]{BinaryRecordCodec.DELETED}), offset);
+                logDirty(queueName, offset);
+                return true;
+            }
+        }
+        try (RandomAccessFile file = new RandomAccessFile(getMessagesFile(queueName), "rw")) {
+            // a line starts with "visibleFrom:receiptHandle:", visibleFrom being at most 20 characters
+            byte[] head = new byte[Utf8.encodedLength(receiptHandle) + 22];
+            if (offset >= file.length()) {
+                return false;
+            }
+            file.seek(offset);
+            int length = file.read(head);
+            String text = new String(head, 0, Math.max(length, 0), CHAR_SET);
+            int separator = text.indexOf(':');
+            if (separator <= 0 || text.charAt(0) == DELETED_MARKER
+                    || !text.startsWith(receiptHandle + ':', separator + 1)
+                    || (offset > 0 && !isLineStart(file, offset))) {
+                return false;
+            }
+            file.seek(offset);
+            file.write(DELETED_MARKER);
+            return true;
+        }
+    }
+
+    /**
+     * Appends the offsets of binary records just updated in place to the dirty log of a file queue, if it is being
+     * compacted, so the compaction catches up with the updates without scanning every record
+     */
+    private void logDirty(String queueName, Long... offsets) throws IOException {
+        File dirtyLog = getDirtyLogFile(queueName);
+        if (!dirtyLog.exists()) {
+            return;
+        }
+        ByteBuffer entries = ByteBuffer.allocate(Long.BYTES * offsets.length);
+        for (Long offset : offsets) {
+            entries.putLong(offset);
+        }
+        entries.flip();
+        writeRecords(dirtyLog, entries, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private boolean isLineStart(RandomAccessFile file, long offset) throws IOException {
+        file.seek(offset - 1);
+        return file.read() == '\n';
+    }
+
+    /**
+     * Replaces the known offsets of the messages of a file queue, after the file was rewritten by a compaction
+     */
+    void replaceOffsets(String queueName, ConcurrentHashMap<String, Long> offsets) {
+        receiptHandleOffsets.put(queueName, offsets);
+    }
+
+    private ConcurrentHashMap<String, Long> offsets(String queueName) {
+        return receiptHandleOffsets.computeIfAbsent(queueName, queue -> new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Forces messages written to a file queue, and its in place updates, to the storage device
+     */
+    public void force(String queueName) throws IOException {
+        try (FileChannel channel = FileChannel.open(getMessagesFile(queueName).toPath(), StandardOpenOption.WRITE)) {
+            channel.force(false);
+        }
     }
 
     /**
      * Requests lock for accessing a file queue
+     *
+     * @throws com.example.exception.FileQueueException if the lock is not available within FILE_LOCK_TRY_TIMEOUT
      */
     public void takeLock(String queueName) throws IOException {
-        File lock = getLockFile(queueName);
-        Files.createParentDirs(lock);
-        withinDuration(tryLock(lock));
+        if (!queueMetrics.isEnabled()) {
+            fileQueueLock.lock(getLockFile(queueName), FILE_LOCK_TRY_TIMEOUT);
+            return;
+        }
+        long start = System.nanoTime();
+        fileQueueLock.lock(getLockFile(queueName), FILE_LOCK_TRY_TIMEOUT);
+        queueMetrics.recordLockWait(queueName, System.nanoTime() - start);
     }
 
     /**
-     * Releases lock of file queue
+     * Releases lock of file queue, if held by current thread
      */
     public void releaseLock(String queueName) {
-        File lock = getLockFile(queueName);
-        lock.delete();
+        fileQueueLock.unlock(getLockFile(queueName));
     }
 
     /**
@@ -106,63 +597,131 @@ public class FileQueueHelper {
     }
 
     /**
-     * Tries to get lock for accessing a file queue
+     * Creates a new, empty scratch file a file queue is compacted to, before being moved in place. Each compaction
+     * has a scratch file of its own.
      */
-    private Future tryLock(File lock) {
-        ExecutorService executor = Executors.newSingleThreadExecutor();
+    public File createCompactFile(String queueName) throws IOException {
+        File compactFile = new File(getQueueDirectory(queueName), "messages." + UUID.randomUUID() + COMPACT_FILE_SUFFIX);
+        java.nio.file.Files.createFile(compactFile.toPath());
+        return compactFile;
+    }
 
-        Future future = executor.submit((Callable) () -> {
-            while (!lock.mkdir()) {
+    /**
+     * Checks if a file of a queue directory is a scratch file of a compaction
+     */
+    public boolean isCompactFile(File file) {
+        return file.getName().startsWith("messages.") && file.getName().endsWith(COMPACT_FILE_SUFFIX);
+    }
 
-                Thread.sleep(FILE_LOCK_RETRY_PERIOD.toMillis());
-            }
-            return null;
-        });
+    /**
+     * Gets file locked by the compaction of a file queue, so a file queue is compacted by one process at a time
+     */
+    public File getCompactionLockFile(String queueName) {
+        String pathName = Joiner.on('/').skipNulls().join(parentDirectory, queueName, ".compact.lock");
+        return new File(pathName);
+    }
 
-        return future;
+    /**
+     * Gets file the offsets of records updated in place are appended to while a file queue is compacted
+     */
+    public File getDirtyLogFile(String queueName) {
+        String pathName = Joiner.on('/').skipNulls().join(parentDirectory, queueName, "messages.dirty");
+        return new File(pathName);
     }
 
-    private void withinDuration(Future future) {
-        try {
-            future.get(FILE_LOCK_TRY_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
-        } catch (Exception e) {
-            future.cancel(true);
-        }
+    /**
+     * Gets file a file queue is rewritten to, before being moved in place
+     */
+    public File getRewriteFile(String queueName) {
+        String pathName = Joiner.on('/').skipNulls().join(parentDirectory, queueName, "messages.rewrite");
+        return new File(pathName);
+    }
+
+    /**
+     * Gets directory holding the files of a queue
+     */
+    public File getQueueDirectory(String queueName) {
+        String pathName = Joiner.on('/').skipNulls().join(parentDirectory, queueName);
+        return new File(pathName);
+    }
+
+    /**
+     * Gets directory holding the segments of an append-only file queue
+     */
+    public File getSegmentsDirectory(String queueName) {
+        String pathName = Joiner.on('/').skipNulls().join(parentDirectory, queueName, "segments");
+        return new File(pathName);
     }
 
     /**
      * LineProcessor for parsing text messages
      */
-    private LineProcessor<List<Message>> lineProcessor() {
+    private LineProcessor<List<Message>> lineProcessor(String queueName) {
         return new LineProcessor<List<Message>>() {
             final List<Message> messages = Lists.newArrayList();
+            final ConcurrentHashMap<String, Long> offsets = new ConcurrentHashMap<>();
+            long offset = 0;
 
             @Override
             public boolean processLine(String line) {
-                Message message = toMessage(line);
-                messages.add(message);
+                // skip lines of deleted messages, and the empty line appended to an emptied queue
+                if (!line.isEmpty() && line.charAt(0) != DELETED_MARKER) {
+                    Message message = toMessage(line);
+                    messages.add(message);
+                    offsets.put(message.getReceiptHandle(), offset);
+                }
+                offset += Utf8.encodedLength(line) + 1;
                 return true;
             }
 
             @Override
             public List<Message> getResult() {
+                receiptHandleOffsets.put(queueName, offsets);
                 return messages;
             }
         };
     }
 
+    /**
+     * Memory mapping of a messages file, with the key identifying the file it maps, and the offset of the first
+     * record not known to be deleted. Used under the queue lock only.
+     */
+    private static class Mapping {
+        private final Object fileKey;
+        private final MappedByteBuffer buffer;
+        private long cursor;
+
+        private Mapping(Object fileKey, MappedByteBuffer buffer, long cursor) {
+            this.fileKey = fileKey;
+            this.buffer = buffer;
+            this.cursor = cursor;
+        }
+
+        /**
+         * Moves the cursor past the deleted records of a scan starting at the cursor, up to its first live record
+         *
+         * @param from offset in the file the scan started at
+         * @param base offset in the file of position 0 of the scanned records
+         */
+        private void scanned(long from, long base, BinaryRecordCodec.LeaseScan scan) {
+            if (from == cursor) {
+                cursor = base + (scan.firstLive < 0 ? scan.end : scan.firstLive);
+            }
+        }
+    }
+
     /**
      * Converts text to a Message object
      */
     public static Message toMessage(String text) {
-        List<String> fields = Lists.newArrayList(Splitter.on(":").split(text));
-        // converts epoch to LocalDateTime
-        LocalDateTime visibleFrom = LocalDateTime.ofInstant(Instant.ofEpochMilli(Longs.tryParse(fields.get(0))), ZoneId.systemDefault());
+        // content is the last field, and may contain ':' itself
+        List<String> fields = Lists.newArrayList(Splitter.on(":").limit(4).split(text));
+        long visibleFrom = Longs.tryParse(fields.get(0));
         String receiptHandle = fields.get(1);
         String messageId = fields.get(2);
         String messageContent = fields.get(3);
 
-        Message message = new Message(receiptHandle, messageId, messageContent, visibleFrom);
+        Message message = new Message(messageId, receiptHandle, messageContent, visibleFrom);
         return message;
     }
 
@@ -170,8 +729,20 @@ public class FileQueueHelper {
      * Converts Message object to text
      */
     public String toText(Message message) {
-        // converts LocalDateTime to epoch
-        Long time = message.getVisibleFrom().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
-        return Joiner.on(":").skipNulls().join(time.toString(), message.getReceiptHandle(), message.getId(), message.getContent());
+        return Joiner.on(":").skipNulls().join(message.getVisibleFromMillis(), message.getReceiptHandle(), message.getId(), message.getContent());
+    }
+
+    /**
+     * Converts LocalDateTime to epoch millis
+     */
+    public static long toEpochMilli(LocalDateTime dateTime) {
+        return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Converts epoch millis to LocalDateTime
+     */
+    public static LocalDateTime fromEpochMilli(long epochMilli) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMilli), ZoneId.systemDefault());
     }
 }
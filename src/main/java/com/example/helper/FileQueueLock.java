@@ -0,0 +1,180 @@
+package com.example.helper;
+
+import com.example.exception.FileQueueException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Exclusive lock over a lock file, for both threads of this JVM and other processes.
+ * <p>
+ * - threads of this JVM wait on one of a fixed set of striped ReentrantLocks, and are woken up on release
+ * - other processes are excluded with an OS level FileChannel.tryLock, polled with backoff by the single thread
+ * holding the stripe. The OS drops this lock when its holder exits, so a crashed process never leaves a stale lock behind.
+ * <p>
+ * Locks are reentrant per lock file. Both levels share a single deadline: failing to get both locks within the
+ * timeout throws FileQueueException, so a process stalled on the OS lock makes waiters time out, not hang.
+ */
+public class FileQueueLock {
+    private static final int DEFAULT_STRIPES = 64;
+    private static final long MIN_BACKOFF_MILLIS = 1;
+    private static final long MAX_BACKOFF_MILLIS = 50;
+
+    // OS level file locks are held per JVM, so every FileQueueHelper must share the same instance
+    private static final FileQueueLock SHARED = new FileQueueLock(DEFAULT_STRIPES);
+
+    private final ReentrantLock[] stripes;
+    private final ConcurrentHashMap<Path, HeldLock> heldLocks = new ConcurrentHashMap<>();
+
+    FileQueueLock(int stripeCount) {
+        this.stripes = new ReentrantLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Gets the lock shared by all file queues of this JVM
+     */
+    public static FileQueueLock shared() {
+        return SHARED;
+    }
+
+    /**
+     * Takes the lock, waiting at most timeout for other threads of this JVM and other processes to release it
+     */
+    public void lock(File lockFile, Duration timeout) throws IOException {
+        Path path = lockFile.toPath().toAbsolutePath().normalize();
+        ReentrantLock stripe = stripeFor(path);
+        long deadline = System.nanoTime() + timeout.toNanos();
+        try {
+            if (!stripe.tryLock(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                throw new FileQueueException("Timed out after " + timeout + " waiting for lock: " + path);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FileQueueException("Interrupted while waiting for lock: " + path, e);
+        }
+
+        HeldLock held = heldLocks.get(path);
+        if (held != null) {
+            // only the thread holding the stripe can see its own entry here
+            held.count++;
+            return;
+        }
+        try {
+            heldLocks.put(path, new HeldLock(lockProcesses(path, timeout, deadline)));
+        } catch (IOException | RuntimeException e) {
+            stripe.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Releases the lock if held by current thread, does nothing otherwise
+     */
+    public void unlock(File lockFile) {
+        Path path = lockFile.toPath().toAbsolutePath().normalize();
+        ReentrantLock stripe = stripeFor(path);
+        if (!stripe.isHeldByCurrentThread()) {
+            return;
+        }
+        HeldLock held = heldLocks.get(path);
+        if (held == null) {
+            return;
+        }
+        if (--held.count == 0) {
+            heldLocks.remove(path);
+            try {
+                held.fileLock.release();
+                held.fileLock.channel().close();
+            } catch (IOException e) {
+                // closing the channel releases the OS lock anyway
+            }
+        }
+        stripe.unlock();
+    }
+
+    /**
+     * Checks if current thread holds the lock
+     */
+    public boolean isHeldByCurrentThread(File lockFile) {
+        Path path = lockFile.toPath().toAbsolutePath().normalize();
+        return stripeFor(path).isHeldByCurrentThread() && heldLocks.containsKey(path);
+    }
+
+    /**
+     * Takes the OS level lock, polling until other processes release it or the deadline, in System.nanoTime(), passes
+     */
+    private FileLock lockProcesses(Path path, Duration timeout, long deadline) throws IOException {
+        File file = path.toFile();
+        com.google.common.io.Files.createParentDirs(file);
+        if (file.isDirectory()) {
+            // left behind by the former mkdir based lock
+            file.delete();
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            long backoff = MIN_BACKOFF_MILLIS;
+            while (true) {
+                FileLock fileLock = tryLock(channel);
+                if (fileLock != null) {
+                    return fileLock;
+                }
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    throw new FileQueueException("Timed out after " + timeout + " waiting for lock: " + path);
+                }
+                Thread.sleep(Math.min(backoff, remaining));
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            channel.close();
+            Thread.currentThread().interrupt();
+            throw new FileQueueException("Interrupted while waiting for lock: " + path, e);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Tries the OS level lock once
+     *
+     * @return the lock, or null if held by another process, or by another FileQueueLock of this JVM
+     */
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    private ReentrantLock stripeFor(Path path) {
+        int hash = path.hashCode();
+        hash ^= (hash >>> 16);
+        return stripes[(hash & 0x7fffffff) % stripes.length];
+    }
+
+    /**
+     * OS level lock held by this JVM, with its reentrant hold count
+     */
+    private static class HeldLock {
+        private final FileLock fileLock;
+        private int count = 1;
+
+        private HeldLock(FileLock fileLock) {
+            this.fileLock = fileLock;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.helper;
+
+import java.time.Duration;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * When written messages of a file queue are forced to the storage device, see {@link GroupCommitWriter}
+ */
+public final class FsyncPolicy {
+    /**
+     * Forces every group of writes before completing it: no committed message is lost on a crash
+     */
+    public static final FsyncPolicy ALWAYS = new FsyncPolicy(Duration.ZERO);
+    /**
+     * Never forces, leaving it to the operating system: messages committed shortly before a crash may be lost
+     */
+    public static final FsyncPolicy NEVER = new FsyncPolicy(null);
+
+    private final Duration interval;
+
+    private FsyncPolicy(Duration interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * Forces written messages at most interval after they were committed:
+     * messages committed during the last interval before a crash may be lost
+     */
+    public static FsyncPolicy every(Duration interval) {
+        checkArgument(interval != null && !interval.isNegative() && !interval.isZero(), "Interval must be positive");
+        return new FsyncPolicy(interval);
+    }
+
+    public boolean isAlways() {
+        return this == ALWAYS;
+    }
+
+    public boolean isNever() {
+        return this == NEVER;
+    }
+
+    /**
+     * Gets the time between two forces, null if never forcing
+     */
+    public Duration getInterval() {
+        return interval;
+    }
+
+    @Override
+    public String toString() {
+        return isAlways() ? "ALWAYS" : isNever() ? "NEVER" : "EVERY " + interval;
+    }
+}
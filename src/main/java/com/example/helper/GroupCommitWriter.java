@@ -0,0 +1,175 @@
+package com.example.helper;
+
+import com.example.exception.FileQueueException;
+import com.example.model.Message;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends messages to file queues on a single writer thread, committing the writes of concurrent producers together.
+ * <p>
+ * Producers only queue their messages, and get a future. The writer takes everything queued meanwhile, and commits
+ * it with one lock, one append and, depending on the {@link FsyncPolicy}, one force per file queue. Forcing then costs
+ * the same for a group as for a single message, so durable pushes get the throughput of batches.
+ * <p>
+ * A future completes once its messages are committed:
+ * - ALWAYS: written and forced
+ * - every interval: written, and forced at most interval later
+ * - NEVER: written
+ */
+public class GroupCommitWriter {
+    private static final Write CLOSE = new Write(null, null);
+
+    private final FileQueueHelper fileQueueHelper;
+    private final FsyncPolicy fsyncPolicy;
+    private final LinkedBlockingQueue<Write> pending = new LinkedBlockingQueue<>();
+    // queues written since last forced, only used by the writer thread
+    private final Set<String> unforced = Sets.newLinkedHashSet();
+    private long nextForce = Long.MAX_VALUE;
+    private final Thread writer;
+    // guarded by this, so that no write is queued after CLOSE
+    private boolean closed = false;
+
+    public GroupCommitWriter(FileQueueHelper fileQueueHelper, FsyncPolicy fsyncPolicy) {
+        this.fileQueueHelper = fileQueueHelper;
+        this.fsyncPolicy = fsyncPolicy;
+        this.writer = new ThreadFactoryBuilder().setNameFormat("file-queue-writer-%d").setDaemon(true).build()
+                .newThread(this::writeGroups);
+        writer.start();
+    }
+
+    /**
+     * Queues messages to be appended to a file queue, creating it if needed
+     *
+     * @return future completing once the messages are committed, or exceptionally with a FileQueueException
+     */
+    public CompletableFuture<Void> write(String queueName, List<Message> messages) {
+        Write write = new Write(queueName, messages);
+        synchronized (this) {
+            if (closed) {
+                write.future.completeExceptionally(new FileQueueException("Writer of file queues is closed"));
+                return write.future;
+            }
+            pending.offer(write);
+        }
+        return write.future;
+    }
+
+    /**
+     * Commits all writes queued so far, then stops the writer thread
+     */
+    public void close() {
+        synchronized (this) {
+            if (!closed) {
+                closed = true;
+                pending.offer(CLOSE);
+            }
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeGroups() {
+        List<Write> group = Lists.newArrayList();
+        while (true) {
+            try {
+                Write first = unforced.isEmpty() ? pending.take()
+                        : pending.poll(Math.max(nextForce - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    group.add(first);
+                    pending.drainTo(group);
+                }
+            } catch (InterruptedException e) {
+                // nobody but close() stops the writer, keep committing
+                continue;
+            }
+            // CLOSE is the last write ever queued
+            boolean closing = group.remove(CLOSE);
+            commit(group);
+            group.clear();
+            if (closing || (!unforced.isEmpty() && System.currentTimeMillis() >= nextForce)) {
+                forceUnforced();
+            }
+            if (closing) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Appends each file queue's writes of a group at once, completing the futures of the writes
+     */
+    private void commit(List<Write> group) {
+        Map<String, List<Write>> byQueue = Maps.newLinkedHashMap();
+        for (Write write : group) {
+            byQueue.computeIfAbsent(write.queueName, queue -> Lists.newArrayList()).add(write);
+        }
+        byQueue.forEach((queueName, writes) -> {
+            List<Message> messages = Lists.newArrayList();
+            writes.forEach(write -> messages.addAll(write.messages));
+            try {
+                fileQueueHelper.takeLock(queueName);
+                if (fileQueueHelper.queueExists(queueName)) {
+                    fileQueueHelper.appendMultipleMessages(queueName, messages);
+                } else {
+                    fileQueueHelper.createFileQueue(queueName);
+                    fileQueueHelper.writeMultipleMessages(queueName, messages);
+                }
+                if (fsyncPolicy.isAlways()) {
+                    fileQueueHelper.force(queueName);
+                } else if (!fsyncPolicy.isNever()) {
+                    if (unforced.isEmpty()) {
+                        nextForce = System.currentTimeMillis() + fsyncPolicy.getInterval().toMillis();
+                    }
+                    unforced.add(queueName);
+                }
+                writes.forEach(write -> write.future.complete(null));
+            } catch (IOException | RuntimeException e) {
+                FileQueueException failure = e instanceof FileQueueException ? (FileQueueException) e
+                        : new FileQueueException("Error while pushing " + messages.size() + " messages to queue: " + queueName, e);
+                writes.forEach(write -> write.future.completeExceptionally(failure));
+            } finally {
+                fileQueueHelper.releaseLock(queueName);
+            }
+        });
+    }
+
+    private void forceUnforced() {
+        for (String queueName : unforced) {
+            try {
+                fileQueueHelper.force(queueName);
+            } catch (IOException e) {
+                // writes were completed already, the next force of the queue covers them again
+            }
+        }
+        unforced.clear();
+        nextForce = Long.MAX_VALUE;
+    }
+
+    /**
+     * Messages queued for a file queue, with the future completed on commit
+     */
+    private static class Write {
+        private final String queueName;
+        private final List<Message> messages;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Write(String queueName, List<Message> messages) {
+            this.queueName = queueName;
+            this.messages = messages;
+        }
+    }
+}
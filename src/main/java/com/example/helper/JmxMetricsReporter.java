@@ -0,0 +1,178 @@
+package com.example.helper;
+
+import com.example.exception.QueueMetricsException;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registers an MXBean per queue, named com.example:type=Queue,name="queueURL", whose attributes read the live
+ * stats of the queue, and its depth if the service has gauges. A report registers the queues seen since the previous
+ * one.
+ */
+public class JmxMetricsReporter implements MetricsReporter, AutoCloseable {
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private final MBeanServer mBeanServer;
+    private final ConcurrentHashMap<String, ObjectName> registered = new ConcurrentHashMap<>();
+
+    public JmxMetricsReporter() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    public JmxMetricsReporter(MBeanServer mBeanServer) {
+        this.mBeanServer = mBeanServer;
+    }
+
+    @Override
+    public void report(QueueMetrics metrics) {
+        for (Map.Entry<String, QueueStats> entry : metrics.getQueueStats().entrySet()) {
+            if (!registered.containsKey(entry.getKey())) {
+                register(metrics, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Gets the name of the MXBean of a queue
+     */
+    public static ObjectName objectName(String queueURL) {
+        try {
+            return new ObjectName("com.example:type=Queue,name=" + ObjectName.quote(queueURL));
+        } catch (JMException e) {
+            throw new QueueMetricsException("Invalid MBean name for queue: " + queueURL, e);
+        }
+    }
+
+    /**
+     * Unregisters the MXBeans of all queues
+     */
+    @Override
+    public void close() {
+        for (ObjectName name : registered.values()) {
+            try {
+                mBeanServer.unregisterMBean(name);
+            } catch (JMException e) {
+                // already unregistered
+            }
+        }
+        registered.clear();
+    }
+
+    private synchronized void register(QueueMetrics metrics, String queueURL, QueueStats stats) {
+        if (registered.containsKey(queueURL)) {
+            return;
+        }
+        ObjectName name = objectName(queueURL);
+        try {
+            mBeanServer.registerMBean(new QueueStatsView(metrics, queueURL, stats), name);
+        } catch (JMException e) {
+            throw new QueueMetricsException("Error while registering MBean of queue: " + queueURL, e);
+        }
+        registered.put(queueURL, name);
+    }
+
+    /**
+     * Attributes of the MXBean of a queue
+     */
+    public interface QueueStatsMXBean {
+        long getPushes();
+
+        long getFailedPushes();
+
+        long getPulls();
+
+        long getEmptyPulls();
+
+        long getDeletes();
+
+        long getFailedDeletes();
+
+        /**
+         * Gets messages held by the queue, by "visible", "inFlight", "delayed" and "depth", read from the backend at
+         * each call, empty if the service has no gauges
+         */
+        Map<String, Long> getQueueDepth();
+
+        /**
+         * Gets latency percentiles and max in microseconds, by "push.p99" and the like
+         */
+        Map<String, Double> getLatencyMicros();
+    }
+
+    private static final class QueueStatsView implements QueueStatsMXBean {
+        private final QueueMetrics metrics;
+        private final String queueURL;
+        private final QueueStats stats;
+
+        QueueStatsView(QueueMetrics metrics, String queueURL, QueueStats stats) {
+            this.metrics = metrics;
+            this.queueURL = queueURL;
+            this.stats = stats;
+        }
+
+        @Override
+        public long getPushes() {
+            return stats.getPushes();
+        }
+
+        @Override
+        public long getFailedPushes() {
+            return stats.getFailedPushes();
+        }
+
+        @Override
+        public long getPulls() {
+            return stats.getPulls();
+        }
+
+        @Override
+        public long getEmptyPulls() {
+            return stats.getEmptyPulls();
+        }
+
+        @Override
+        public long getDeletes() {
+            return stats.getDeletes();
+        }
+
+        @Override
+        public long getFailedDeletes() {
+            return stats.getFailedDeletes();
+        }
+
+        @Override
+        public Map<String, Long> getQueueDepth() {
+            Map<String, Long> depth = new LinkedHashMap<>();
+            Optional<QueueDepth> queueDepth = metrics.getQueueDepth(queueURL);
+            if (queueDepth.isPresent()) {
+                depth.put("visible", queueDepth.get().getVisible());
+                depth.put("inFlight", queueDepth.get().getInFlight());
+                depth.put("delayed", queueDepth.get().getDelayed());
+                depth.put("depth", queueDepth.get().getDepth());
+            }
+            return depth;
+        }
+
+        @Override
+        public Map<String, Double> getLatencyMicros() {
+            Map<String, Double> latencies = new LinkedHashMap<>();
+            for (QueueOperation operation : QueueOperation.values()) {
+                LatencyHistogram latency = stats.getLatency(operation);
+                String name = operation.name().toLowerCase();
+                for (double percentile : PERCENTILES) {
+                    latencies.put(name + "." + LatencyHistogram.percentileLabel(percentile),
+                            latency.getValueAtPercentile(percentile, TimeUnit.MICROSECONDS));
+                }
+                latencies.put(name + ".max", (double) latency.getMaxNanos() / TimeUnit.MICROSECONDS.toNanos(1));
+            }
+            return latencies;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.helper;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds, with log-linear buckets in the manner of HdrHistogram: each power of two
+ * is split into SUB_BUCKETS linear buckets, so a recorded value is known within about 3% over the whole range of longs,
+ * in a fixed array of counts.
+ * <p>
+ * Recording is lock-free and allocates nothing. Reads are not atomic snapshots: a percentile read while values are
+ * recorded may miss the latest of them.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a latency, negative latencies counting as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    public double getMeanNanos() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * Gets the highest latency of the bucket holding given percentile of recorded latencies, 0 if none recorded
+     *
+     * @param percentile between 0 and 100
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max((long) Math.ceil(total * Math.min(percentile, 100) / 100), 1);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(highestValue(bucket), getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+
+    /**
+     * Same as getValueAtPercentile, in given unit
+     */
+    public double getValueAtPercentile(double percentile, TimeUnit unit) {
+        return (double) getValueAtPercentile(percentile) / unit.toNanos(1);
+    }
+
+    /**
+     * Labels a percentile for reports, such as p50 or p999 for 99.9
+     */
+    public static String percentileLabel(double percentile) {
+        String digits = percentile == Math.rint(percentile) ? String.valueOf((long) percentile) : String.valueOf(percentile);
+        return "p" + digits.replace(".", "");
+    }
+
+    /**
+     * Values below SUB_BUCKETS have a bucket each, higher values share the bucket of their SUB_BUCKET_BITS bits
+     * following their highest one bit, within the buckets of their power of two
+     */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int block = bucket >>> SUB_BUCKET_BITS;
+        long lowest = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << (block - 1);
+        return lowest + (1L << (block - 1)) - 1;
+    }
+}
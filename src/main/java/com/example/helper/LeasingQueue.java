@@ -0,0 +1,50 @@
+package com.example.helper;
+
+import com.example.model.Message;
+
+import java.time.Duration;
+
+/**
+ * Messages of a single in-memory queue, leased to consumers for an invisibility period
+ */
+public interface LeasingQueue {
+    /**
+     * Adds a message, pulled once visible
+     */
+    boolean offer(Message message);
+
+    /**
+     * Claims a visible message, and makes it invisible until current time + inVisibilityDuration
+     *
+     * @return visible message if available, else null
+     */
+    Message poll(Duration inVisibilityDuration);
+
+    /**
+     * Claims a visible message as poll() does, waiting up to maxWait for one to become available
+     *
+     * @return visible message if available within maxWait, else null
+     */
+    Message poll(Duration inVisibilityDuration, Duration maxWait) throws InterruptedException;
+
+    /**
+     * Replaces the lease of an invisible message, making it invisible until visibleFromMillis instead,
+     * or visible at once if visibleFromMillis is not after current time
+     *
+     * @return true if message was found invisible and its lease replaced, else false
+     */
+    boolean changeVisibility(String receiptHandle, long visibleFromMillis);
+
+    /**
+     * Removes message with given receipt handle, whether visible or not
+     *
+     * @return true if message was found and removed, else false
+     */
+    boolean remove(String receiptHandle);
+
+    /**
+     * Counts the visible and the in flight messages by a scan of the queue, meant for gauges read now and then.
+     * Concurrent operations may or may not be counted.
+     */
+    QueueDepth depth();
+}
@@ -0,0 +1,64 @@
+package com.example.helper;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logs a line of counters, depth and latency percentiles per queue, at INFO level of a java.util.logging logger.
+ * The depth is only logged if the service has gauges, and only operations having recorded latencies are logged.
+ */
+public class LogMetricsReporter implements MetricsReporter {
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+    private final Logger logger;
+
+    public LogMetricsReporter() {
+        this(Logger.getLogger("com.example.metrics"));
+    }
+
+    public LogMetricsReporter(Logger logger) {
+        this.logger = logger;
+    }
+
+    @Override
+    public void report(QueueMetrics metrics) {
+        if (!logger.isLoggable(Level.INFO)) {
+            return;
+        }
+        for (Map.Entry<String, QueueStats> entry : metrics.getQueueStats().entrySet()) {
+            logger.info(format(entry.getKey(), entry.getValue(), metrics.getQueueDepth(entry.getKey())));
+        }
+    }
+
+    static String format(String queueURL, QueueStats stats, Optional<QueueDepth> depth) {
+        StringBuilder line = new StringBuilder("queue=").append(queueURL)
+                .append(" pushes=").append(stats.getPushes())
+                .append(" failedPushes=").append(stats.getFailedPushes())
+                .append(" pulls=").append(stats.getPulls())
+                .append(" emptyPulls=").append(stats.getEmptyPulls())
+                .append(" deletes=").append(stats.getDeletes())
+                .append(" failedDeletes=").append(stats.getFailedDeletes());
+        if (depth.isPresent()) {
+            line.append(" visible=").append(depth.get().getVisible())
+                    .append(" inFlight=").append(depth.get().getInFlight())
+                    .append(" delayed=").append(depth.get().getDelayed())
+                    .append(" depth=").append(depth.get().getDepth());
+        }
+        for (QueueOperation operation : QueueOperation.values()) {
+            LatencyHistogram latency = stats.getLatency(operation);
+            if (latency.getCount() == 0) {
+                continue;
+            }
+            String name = operation.name().toLowerCase();
+            for (double percentile : PERCENTILES) {
+                line.append(' ').append(name).append('.').append(LatencyHistogram.percentileLabel(percentile)).append('=')
+                        .append(String.format("%.1fus", latency.getValueAtPercentile(percentile, TimeUnit.MICROSECONDS)));
+            }
+            line.append(' ').append(name).append(".max=")
+                    .append(String.format("%.1fus", (double) latency.getMaxNanos() / TimeUnit.MICROSECONDS.toNanos(1)));
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,9 @@
+package com.example.helper;
+
+/**
+ * Publishes queue metrics, called periodically by a {@link ScheduledMetricsReporter}
+ */
+public interface MetricsReporter {
+
+    void report(QueueMetrics metrics);
+}
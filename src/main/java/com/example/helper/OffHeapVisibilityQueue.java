@@ -0,0 +1,588 @@
+package com.example.helper;
+
+import com.example.model.Message;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongPredicate;
+
+/**
+ * Messages of a single in-memory queue, stored off-heap in the direct slabs of a {@link SlabAllocator}, so that
+ * queued messages put no pressure on the garbage collector, however many they are.
+ * <p>
+ * Each message is an entry of a slab chunk, see {@link BinaryRecordCodec#encodeEntry(Message)}, with its ids as
+ * 16 bytes UUIDs and its visibility as epoch millis. The on-heap index only holds primitive handles to the entries:
+ * - ready: a ring of the handles of visible messages, in FIFO order
+ * - leased: a heap of the handles of invisible messages, ordered by the time they become visible again
+ * - byReceiptHandle: an open addressing table from the 64 bits hash of each receipt handle to its handle
+ * A Message is only materialized from its entry when pulled.
+ * <p>
+ * Changing the visibility of a message rewrites its visibleFrom in place, and moves its handle within leased, found
+ * by an index of the slots of the heap, or to ready.
+ * <p>
+ * Every handle is in exactly one of ready or leased. Delete removes the handle from byReceiptHandle and marks the
+ * entry deleted in place, its chunk being freed once its handle is reached in ready or leased.
+ * <p>
+ * The index being made of plain arrays, the queue is guarded by a single lock, consumers waiting for a message
+ * sleeping on a condition of that lock.
+ */
+public class OffHeapVisibilityQueue implements LeasingQueue {
+    private final SlabAllocator allocator;
+    private final LongRing ready = new LongRing();
+    private final LongHeap leased = new LongHeap();
+    private final HandleIndex byReceiptHandle = new HandleIndex();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition messageAvailable = lock.newCondition();
+    private final Clock clock;
+
+    /**
+     * @param slabSize bytes of each direct slab, a power of two of at least 4 KB
+     */
+    public OffHeapVisibilityQueue(int slabSize) {
+        this(slabSize, Clock.systemUTC());
+    }
+
+    public OffHeapVisibilityQueue(int slabSize, Clock clock) {
+        this.allocator = new SlabAllocator(slabSize);
+        this.clock = clock;
+    }
+
+    /**
+     * Copies a message into a slab, replacing the message with the same receipt handle if any
+     */
+    @Override
+    public boolean offer(Message message) {
+        ByteBuffer entry = BinaryRecordCodec.encodeEntry(message);
+        String receiptHandle = message.getReceiptHandle();
+        long hash = hash(receiptHandle);
+        long visibleFrom = message.getVisibleFromMillis();
+        lock.lock();
+        try {
+            markDeleted(byReceiptHandle.remove(hash, handle -> hasReceiptHandle(handle, receiptHandle)));
+            long handle = allocator.allocate(entry.remaining());
+            ByteBuffer slab = allocator.slab(handle);
+            slab.position(SlabAllocator.offset(handle));
+            slab.put(entry);
+            byReceiptHandle.put(hash, handle);
+            if (visibleFrom <= clock.millis()) {
+                ready.add(handle);
+                messageAvailable.signal();
+            } else {
+                boolean expiresFirst = leased.isEmpty() || visibleFrom < leased.peekKey();
+                leased.add(visibleFrom, handle);
+                // waiting consumers sleep until the former earliest expiry
+                if (expiresFirst) {
+                    messageAvailable.signal();
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Message poll(Duration inVisibilityDuration) {
+        lock.lock();
+        try {
+            return pollLocked(inVisibilityDuration);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Message poll(Duration inVisibilityDuration, Duration maxWait) throws InterruptedException {
+        long deadline = System.nanoTime() + maxWait.toNanos();
+        lock.lock();
+        try {
+            Message message;
+            while ((message = pollLocked(inVisibilityDuration)) == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                long untilExpiry = leased.isEmpty() ? Long.MAX_VALUE
+                        : TimeUnit.MILLISECONDS.toNanos(leased.peekKey() - clock.millis());
+                messageAvailable.awaitNanos(Math.max(Math.min(remaining, untilExpiry), 0));
+            }
+            return message;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rewrites the visibleFrom of an invisible entry in place, and moves its handle within leased, or to ready
+     */
+    @Override
+    public boolean changeVisibility(String receiptHandle, long visibleFromMillis) {
+        long hash = hash(receiptHandle);
+        lock.lock();
+        try {
+            long handle = byReceiptHandle.get(hash, candidate -> hasReceiptHandle(candidate, receiptHandle));
+            if (handle == HandleIndex.NONE) {
+                return false;
+            }
+            ByteBuffer slab = allocator.slab(handle);
+            int offset = SlabAllocator.offset(handle) + BinaryRecordCodec.ENTRY_VISIBLE_FROM;
+            long now = clock.millis();
+            // an expired lease not promoted yet is visible already
+            if (slab.getLong(offset) <= now) {
+                return false;
+            }
+            slab.putLong(offset, visibleFromMillis);
+            leased.remove(handle);
+            if (visibleFromMillis <= now) {
+                ready.add(handle);
+                messageAvailable.signal();
+            } else {
+                boolean expiresFirst = leased.isEmpty() || visibleFromMillis < leased.peekKey();
+                leased.add(visibleFromMillis, handle);
+                if (expiresFirst) {
+                    messageAvailable.signal();
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(String receiptHandle) {
+        long hash = hash(receiptHandle);
+        lock.lock();
+        try {
+            long handle = byReceiptHandle.remove(hash, candidate -> hasReceiptHandle(candidate, receiptHandle));
+            markDeleted(handle);
+            return handle != HandleIndex.NONE;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counts live handles, and the leased ones not deleted and not expired yet as in flight, under the lock
+     */
+    @Override
+    public QueueDepth depth() {
+        lock.lock();
+        try {
+            long now = clock.millis();
+            long inFlight = 0;
+            for (int i = 0; i < leased.size; i++) {
+                long handle = leased.values[i];
+                if (leased.keys[i] > now && allocator.slab(handle).get(SlabAllocator.offset(handle)) != BinaryRecordCodec.DELETED) {
+                    inFlight++;
+                }
+            }
+            return new QueueDepth(byReceiptHandle.size - inFlight, inFlight, 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the bytes of the direct slabs holding the messages of this queue
+     */
+    public long getAllocatedBytes() {
+        lock.lock();
+        try {
+            return allocator.getAllocatedBytes();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Message pollLocked(Duration inVisibilityDuration) {
+        long now = clock.millis();
+        promoteExpired(now);
+        while (!ready.isEmpty()) {
+            long handle = ready.poll();
+            ByteBuffer slab = allocator.slab(handle);
+            int offset = SlabAllocator.offset(handle);
+            if (slab.get(offset) == BinaryRecordCodec.DELETED) {
+                allocator.free(handle);
+                continue;
+            }
+            long leaseEnd = now + inVisibilityDuration.toMillis();
+            slab.putLong(offset + BinaryRecordCodec.ENTRY_VISIBLE_FROM, leaseEnd);
+            leased.add(leaseEnd, handle);
+            return BinaryRecordCodec.decodeEntry(slab, offset);
+        }
+        return null;
+    }
+
+    /**
+     * Moves every message whose lease has expired back to ready queue, freeing deleted ones
+     */
+    private void promoteExpired(long now) {
+        while (!leased.isEmpty() && leased.peekKey() <= now) {
+            long handle = leased.poll();
+            if (allocator.slab(handle).get(SlabAllocator.offset(handle)) == BinaryRecordCodec.DELETED) {
+                allocator.free(handle);
+            } else {
+                ready.add(handle);
+            }
+        }
+    }
+
+    private void markDeleted(long handle) {
+        if (handle != HandleIndex.NONE) {
+            allocator.slab(handle).put(SlabAllocator.offset(handle), BinaryRecordCodec.DELETED);
+        }
+    }
+
+    private boolean hasReceiptHandle(long handle, String receiptHandle) {
+        return receiptHandle.equals(BinaryRecordCodec.getEntryReceiptHandle(allocator.slab(handle), SlabAllocator.offset(handle)));
+    }
+
+    private static long hash(String receiptHandle) {
+        return Hashing.murmur3_128().hashString(receiptHandle, StandardCharsets.UTF_8).asLong();
+    }
+
+    /**
+     * Growable FIFO ring of primitive longs
+     */
+    private static final class LongRing {
+        private long[] values = new long[16];
+        private int head = 0;
+        private int size = 0;
+
+        void add(long value) {
+            if (size == values.length) {
+                long[] grown = new long[size * 2];
+                for (int i = 0; i < size; i++) {
+                    grown[i] = values[(head + i) & (values.length - 1)];
+                }
+                values = grown;
+                head = 0;
+            }
+            values[(head + size) & (values.length - 1)] = value;
+            size++;
+        }
+
+        long poll() {
+            long value = values[head];
+            head = (head + 1) & (values.length - 1);
+            size--;
+            return value;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+
+    /**
+     * Growable binary min-heap of distinct primitive long values, ordered by primitive long keys. The slot of each
+     * value is indexed, so that removing a value is O(log n).
+     */
+    private static final class LongHeap {
+        private long[] keys = new long[16];
+        private long[] values = new long[16];
+        private int size = 0;
+        private final SlotIndex slots = new SlotIndex();
+
+        void add(long key, long value) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            siftUp(size++, key, value);
+        }
+
+        long peekKey() {
+            return keys[0];
+        }
+
+        /**
+         * Removes the entry with the lowest key
+         *
+         * @return its value
+         */
+        long poll() {
+            long value = values[0];
+            removeAt(0);
+            return value;
+        }
+
+        /**
+         * Removes the entry with given value, found by its indexed slot
+         *
+         * @return true if found and removed, else false
+         */
+        boolean remove(long value) {
+            int index = slots.get(value);
+            if (index < 0) {
+                return false;
+            }
+            removeAt(index);
+            return true;
+        }
+
+        /**
+         * Fills the slot at index with the last entry, sifted down or up to its place
+         */
+        private void removeAt(int index) {
+            slots.remove(values[index]);
+            size--;
+            if (index == size) {
+                return;
+            }
+            long key = keys[size];
+            long last = values[size];
+            int parent = index;
+            while (true) {
+                int child = 2 * parent + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && keys[child + 1] < keys[child]) {
+                    child++;
+                }
+                if (key <= keys[child]) {
+                    break;
+                }
+                set(parent, keys[child], values[child]);
+                parent = child;
+            }
+            if (parent == index) {
+                siftUp(index, key, last);
+            } else {
+                set(parent, key, last);
+            }
+        }
+
+        private void siftUp(int child, long key, long value) {
+            while (child > 0) {
+                int parent = (child - 1) >>> 1;
+                if (keys[parent] <= key) {
+                    break;
+                }
+                set(child, keys[parent], values[parent]);
+                child = parent;
+            }
+            set(child, key, value);
+        }
+
+        private void set(int index, long key, long value) {
+            keys[index] = key;
+            values[index] = value;
+            slots.put(value, index);
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+
+    /**
+     * Open addressing table from the values of a LongHeap to their slots, with linear probing
+     */
+    private static final class SlotIndex {
+        private long[] values = new long[32];
+        // slot + 1, 0 marking an empty entry
+        private int[] slots = new int[32];
+        private int size = 0;
+
+        /**
+         * Sets the slot of a value, added or replaced
+         */
+        void put(long value, int slot) {
+            int mask = values.length - 1;
+            int entry = home(value, values.length);
+            while (slots[entry] != 0) {
+                if (values[entry] == value) {
+                    slots[entry] = slot + 1;
+                    return;
+                }
+                entry = (entry + 1) & mask;
+            }
+            if (2 * (size + 1) > values.length) {
+                grow();
+                put(value, slot);
+                return;
+            }
+            values[entry] = value;
+            slots[entry] = slot + 1;
+            size++;
+        }
+
+        /**
+         * @return slot of value, -1 if not found
+         */
+        int get(long value) {
+            int mask = values.length - 1;
+            int entry = home(value, values.length);
+            while (slots[entry] != 0) {
+                if (values[entry] == value) {
+                    return slots[entry] - 1;
+                }
+                entry = (entry + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * Removes a value, shifting back the following entries of its probe sequence as HandleIndex does
+         */
+        void remove(long value) {
+            int mask = values.length - 1;
+            int gap = home(value, values.length);
+            while (slots[gap] != 0 && values[gap] != value) {
+                gap = (gap + 1) & mask;
+            }
+            if (slots[gap] == 0) {
+                return;
+            }
+            int next = gap;
+            while (true) {
+                next = (next + 1) & mask;
+                if (slots[next] == 0) {
+                    break;
+                }
+                int home = home(values[next], values.length);
+                boolean between = gap <= next ? gap < home && home <= next : gap < home || home <= next;
+                if (!between) {
+                    values[gap] = values[next];
+                    slots[gap] = slots[next];
+                    gap = next;
+                }
+            }
+            slots[gap] = 0;
+            size--;
+        }
+
+        private void grow() {
+            long[] oldValues = values;
+            int[] oldSlots = slots;
+            values = new long[oldValues.length * 2];
+            slots = new int[oldValues.length * 2];
+            size = 0;
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldSlots[i] != 0) {
+                    put(oldValues[i], oldSlots[i] - 1);
+                }
+            }
+        }
+
+        private static int home(long value, int capacity) {
+            // handles differ in few bits, spread them before masking
+            long mixed = value * 0x9E3779B97F4A7C15L;
+            return (int) (mixed ^ (mixed >>> 32)) & (capacity - 1);
+        }
+    }
+
+    /**
+     * Open addressing table from 64 bits hashes to handles, with linear probing. Distinct receipt handles sharing a
+     * hash are told apart by a predicate on their handles.
+     */
+    static final class HandleIndex {
+        static final long NONE = -1;
+
+        private long[] hashes = new long[32];
+        // handle + 1, 0 marking an empty slot
+        private long[] handles = new long[32];
+        private int size = 0;
+
+        void put(long hash, long handle) {
+            if (2 * (size + 1) > hashes.length) {
+                grow();
+            }
+            int slot = home(hash, hashes.length);
+            while (handles[slot] != 0) {
+                slot = (slot + 1) & (hashes.length - 1);
+            }
+            hashes[slot] = hash;
+            handles[slot] = handle + 1;
+            size++;
+        }
+
+        /**
+         * Gets the handle of given hash accepted by matches
+         *
+         * @return handle, NONE if not found
+         */
+        long get(long hash, LongPredicate matches) {
+            int mask = hashes.length - 1;
+            int slot = home(hash, hashes.length);
+            while (handles[slot] != 0) {
+                if (hashes[slot] == hash && matches.test(handles[slot] - 1)) {
+                    return handles[slot] - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return NONE;
+        }
+
+        /**
+         * Removes the handle of given hash accepted by matches
+         *
+         * @return removed handle, NONE if not found
+         */
+        long remove(long hash, LongPredicate matches) {
+            int mask = hashes.length - 1;
+            int slot = home(hash, hashes.length);
+            while (handles[slot] != 0) {
+                if (hashes[slot] == hash && matches.test(handles[slot] - 1)) {
+                    long handle = handles[slot] - 1;
+                    removeSlot(slot);
+                    return handle;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return NONE;
+        }
+
+        /**
+         * Empties a slot, shifting back the following entries of its probe sequence, so that no lookup stops short
+         */
+        private void removeSlot(int slot) {
+            int mask = hashes.length - 1;
+            int gap = slot;
+            int next = slot;
+            while (true) {
+                next = (next + 1) & mask;
+                if (handles[next] == 0) {
+                    break;
+                }
+                int home = home(hashes[next], hashes.length);
+                // the entry may fill the gap only if its home is not cyclically within (gap, next]
+                boolean between = gap <= next ? gap < home && home <= next : gap < home || home <= next;
+                if (!between) {
+                    hashes[gap] = hashes[next];
+                    handles[gap] = handles[next];
+                    gap = next;
+                }
+            }
+            handles[gap] = 0;
+            size--;
+        }
+
+        private void grow() {
+            long[] oldHashes = hashes;
+            long[] oldHandles = handles;
+            hashes = new long[oldHashes.length * 2];
+            handles = new long[oldHashes.length * 2];
+            size = 0;
+            for (int i = 0; i < oldHashes.length; i++) {
+                if (oldHandles[i] != 0) {
+                    put(oldHashes[i], oldHandles[i] - 1);
+                }
+            }
+        }
+
+        private static int home(long hash, int capacity) {
+            return (int) (hash ^ (hash >>> 32)) & (capacity - 1);
+        }
+    }
+}
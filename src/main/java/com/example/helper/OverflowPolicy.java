@@ -0,0 +1,55 @@
+package com.example.helper;
+
+import java.time.Duration;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * What a push to a full queue does, see {@link QueueCapacity}
+ */
+public final class OverflowPolicy {
+    /**
+     * Fails the push right away
+     */
+    public static final OverflowPolicy REJECT = new OverflowPolicy(null, false);
+    /**
+     * Deletes the oldest visible messages until the pushed message fits, fails the push if not enough are visible
+     */
+    public static final OverflowPolicy DROP_OLDEST = new OverflowPolicy(null, true);
+
+    private final Duration timeout;
+    private final boolean dropOldest;
+
+    private OverflowPolicy(Duration timeout, boolean dropOldest) {
+        this.timeout = timeout;
+        this.dropOldest = dropOldest;
+    }
+
+    /**
+     * Blocks the producer until deletes make room for the pushed message, failing the push after timeout
+     */
+    public static OverflowPolicy block(Duration timeout) {
+        checkArgument(timeout != null && !timeout.isNegative(), "Timeout must not be null or negative");
+        return new OverflowPolicy(timeout, false);
+    }
+
+    public boolean isReject() {
+        return this == REJECT;
+    }
+
+    public boolean isDropOldest() {
+        return dropOldest;
+    }
+
+    /**
+     * Gets the time a producer blocks at most, null unless blocking
+     */
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public String toString() {
+        return isReject() ? "REJECT" : isDropOldest() ? "DROP_OLDEST" : "BLOCK " + timeout;
+    }
+}
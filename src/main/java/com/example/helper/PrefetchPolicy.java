@@ -0,0 +1,43 @@
+package com.example.helper;
+
+import java.time.Duration;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * How many messages of a queue an SQS consumer receives ahead of its pulls, and how fresh they must still be to be
+ * pulled, see SqsQueueService
+ */
+public final class PrefetchPolicy {
+    private final int bufferSize;
+    private final Duration minRemainingVisibility;
+
+    private PrefetchPolicy(int bufferSize, Duration minRemainingVisibility) {
+        this.bufferSize = bufferSize;
+        this.minRemainingVisibility = minRemainingVisibility;
+    }
+
+    /**
+     * Buffers up to bufferSize received messages per queue, handing out only those whose visibility timeout has
+     * at least minRemainingVisibility left: the others may already be received by another consumer.
+     */
+    public static PrefetchPolicy buffer(int bufferSize, Duration minRemainingVisibility) {
+        checkArgument(bufferSize > 0, "Buffer size must be positive");
+        checkArgument(minRemainingVisibility != null && !minRemainingVisibility.isNegative(),
+                "Minimum remaining visibility must not be null or negative");
+        return new PrefetchPolicy(bufferSize, minRemainingVisibility);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public Duration getMinRemainingVisibility() {
+        return minRemainingVisibility;
+    }
+
+    @Override
+    public String toString() {
+        return "BUFFER " + bufferSize + " messages with " + minRemainingVisibility + " left";
+    }
+}
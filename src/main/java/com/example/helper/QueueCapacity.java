@@ -0,0 +1,67 @@
+package com.example.helper;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Limits of a queue of a bounded queue service, in messages and in bytes of content,
+ * with the watermarks at which producers are told to slow down and to resume
+ */
+public final class QueueCapacity {
+    private final long maxMessages;
+    private final long maxBytes;
+    private final OverflowPolicy overflowPolicy;
+    private final double highWatermark;
+    private final double lowWatermark;
+
+    /**
+     * Bounds queues without watermarks
+     */
+    public QueueCapacity(long maxMessages, long maxBytes, OverflowPolicy overflowPolicy) {
+        this(maxMessages, maxBytes, overflowPolicy, 1, 1);
+    }
+
+    /**
+     * @param maxMessages    messages a queue holds at most, Long.MAX_VALUE for no limit
+     * @param maxBytes       bytes of content a queue holds at most, Long.MAX_VALUE for no limit
+     * @param overflowPolicy what a push to a full queue does
+     * @param highWatermark  share of either limit reached by a queue from which it is above its high watermark
+     * @param lowWatermark   share of both limits under which a queue is back below its low watermark
+     */
+    public QueueCapacity(long maxMessages, long maxBytes, OverflowPolicy overflowPolicy, double highWatermark, double lowWatermark) {
+        checkArgument(maxMessages > 0 && maxBytes > 0, "Limits must be positive");
+        checkArgument(overflowPolicy != null, "Overflow policy must not be null");
+        checkArgument(lowWatermark >= 0 && lowWatermark <= highWatermark && highWatermark <= 1,
+                "Watermarks must be within [0, 1], low not above high");
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.overflowPolicy = overflowPolicy;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+    }
+
+    /**
+     * Checks if a queue holding messages and bytes has room for a message of messageBytes more
+     */
+    public boolean fits(long messages, long bytes, long messageBytes) {
+        return messages < maxMessages && bytes + messageBytes <= maxBytes;
+    }
+
+    /**
+     * Checks if a message of messageBytes can ever fit in a queue
+     */
+    public boolean fitsEmpty(long messageBytes) {
+        return messageBytes <= maxBytes;
+    }
+
+    public boolean isAboveHighWatermark(long messages, long bytes) {
+        return messages >= highWatermark * maxMessages || bytes >= highWatermark * maxBytes;
+    }
+
+    public boolean isBelowLowWatermark(long messages, long bytes) {
+        return messages <= lowWatermark * maxMessages && bytes <= lowWatermark * maxBytes;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+}
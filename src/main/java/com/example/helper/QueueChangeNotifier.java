@@ -0,0 +1,253 @@
+package com.example.helper;
+
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lets consumers of a file queue sleep until the queue changes, instead of polling it.
+ * <p>
+ * Each queue has a version, bumped on every change:
+ * - by {@link #signal(String)}, for changes made by this JVM
+ * - by a WatchService on the queue directory, for changes made by other processes
+ * <p>
+ * A consumer reads the version before looking at the queue, and waits for it to move past that version.
+ * A change in between is therefore never missed. Consumers can either block in awaitChange(), or register a
+ * callback with onChange(), which holds no thread while waiting.
+ */
+public class QueueChangeNotifier {
+    private final ConcurrentHashMap<String, QueueVersion> versions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<WatchKey, String> watchedQueues = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Boolean> watchedDirectories = new ConcurrentHashMap<>();
+    private volatile WatchService watchService;
+    private volatile ScheduledExecutorService timer;
+
+    /**
+     * Gets current version of a queue
+     */
+    public long version(String queueName) {
+        return versionOf(queueName).version;
+    }
+
+    /**
+     * Signals consumers waiting on a queue that it changed
+     */
+    public void signal(String queueName) {
+        QueueVersion queueVersion = versionOf(queueName);
+        Set<Callback> callbacks;
+        queueVersion.lock.lock();
+        try {
+            queueVersion.version++;
+            queueVersion.changed.signalAll();
+            callbacks = queueVersion.callbacks;
+            queueVersion.callbacks = Sets.newLinkedHashSet();
+        } finally {
+            queueVersion.lock.unlock();
+        }
+        callbacks.forEach(Runnable::run);
+    }
+
+    /**
+     * Runs callback once, as soon as the version of a queue moves past given version, or timeout elapses.
+     * The callback runs on the thread signalling the change, so it should only hand work over to an executor.
+     *
+     * @param directory directory of the queue, not watched if null or missing
+     */
+    public void onChange(String queueName, File directory, long version, Duration timeout, Runnable callback) {
+        watch(queueName, directory);
+        QueueVersion queueVersion = versionOf(queueName);
+        Callback once = new Callback(callback);
+        queueVersion.lock.lock();
+        try {
+            if (queueVersion.version == version) {
+                queueVersion.callbacks.add(once);
+            }
+        } finally {
+            queueVersion.lock.unlock();
+        }
+        if (queueVersion.version != version || timeout.isZero() || timeout.isNegative()) {
+            once.run();
+            return;
+        }
+        once.setTimeout(timer().schedule(() -> {
+            queueVersion.lock.lock();
+            try {
+                queueVersion.callbacks.remove(once);
+            } finally {
+                queueVersion.lock.unlock();
+            }
+            once.run();
+        }, timeout.toNanos(), TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Waits for the version of a queue to move past given version, watching directory for changes of other processes
+     *
+     * @param directory directory of the queue, not watched if null or missing
+     * @return true if the queue changed, false if timeout elapsed first
+     */
+    public boolean awaitChange(String queueName, File directory, long version, Duration timeout) throws InterruptedException {
+        watch(queueName, directory);
+        QueueVersion queueVersion = versionOf(queueName);
+        long nanos = timeout.toNanos();
+        queueVersion.lock.lock();
+        try {
+            while (queueVersion.version == version) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = queueVersion.changed.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            queueVersion.lock.unlock();
+        }
+    }
+
+    /**
+     * Stops watching directories
+     */
+    public void close() throws IOException {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+
+    /**
+     * Gets the number of callback timeouts still scheduled
+     */
+    int pendingTimeouts() {
+        return timer == null ? 0 : ((ScheduledThreadPoolExecutor) timer).getQueue().size();
+    }
+
+    private QueueVersion versionOf(String queueName) {
+        return versions.computeIfAbsent(queueName, queue -> new QueueVersion());
+    }
+
+    /**
+     * Registers directory of a queue to the WatchService, starting it on first use
+     */
+    private void watch(String queueName, File directory) {
+        if (directory == null || !directory.isDirectory() || watchedDirectories.containsKey(queueName)) {
+            return;
+        }
+        try {
+            WatchKey key = directory.toPath().register(watchService(),
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedQueues.put(key, queueName);
+            watchedDirectories.put(queueName, true);
+        } catch (IOException e) {
+            // changes of other processes are then only seen once the wait times out
+        }
+    }
+
+    private synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            ScheduledThreadPoolExecutor created = new ScheduledThreadPoolExecutor(1,
+                    new ThreadFactoryBuilder().setNameFormat("queue-change-timer-%d").setDaemon(true).build());
+            // timeouts of callbacks run early are dropped at once, not when they would have expired
+            created.setRemoveOnCancelPolicy(true);
+            timer = created;
+        }
+        return timer;
+    }
+
+    private synchronized WatchService watchService() throws IOException {
+        if (watchService == null) {
+            watchService = FileSystems.getDefault().newWatchService();
+            Thread watcher = new ThreadFactoryBuilder().setNameFormat("queue-watcher-%d").setDaemon(true).build()
+                    .newThread(this::dispatchEvents);
+            watcher.start();
+        }
+        return watchService;
+    }
+
+    /**
+     * Signals the queue of every directory the WatchService reports a change for
+     */
+    private void dispatchEvents() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                key.pollEvents();
+                String queueName = watchedQueues.get(key);
+                if (queueName != null) {
+                    signal(queueName);
+                }
+                if (!key.reset()) {
+                    watchedQueues.remove(key);
+                    if (queueName != null) {
+                        watchedDirectories.remove(queueName);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // notifier closed
+        }
+    }
+
+    /**
+     * Version of a queue, with the condition its waiters sleep on
+     */
+    private static class QueueVersion {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private volatile long version = 0;
+        // guarded by lock, hashed by identity so that a timed out callback is removed in O(1)
+        private Set<Callback> callbacks = Sets.newLinkedHashSet();
+    }
+
+    /**
+     * Callback run at most once, by a change or by its timeout, whichever comes first, the other being cancelled
+     */
+    private static class Callback implements Runnable {
+        private final Runnable callback;
+        private final AtomicBoolean done = new AtomicBoolean();
+        private volatile ScheduledFuture<?> timeout;
+
+        private Callback(Runnable callback) {
+            this.callback = callback;
+        }
+
+        /**
+         * Sets the timeout of the callback, cancelled at once if the callback already ran
+         */
+        void setTimeout(ScheduledFuture<?> timeout) {
+            this.timeout = timeout;
+            if (done.get()) {
+                timeout.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (done.compareAndSet(false, true)) {
+                ScheduledFuture<?> scheduled = timeout;
+                if (scheduled != null) {
+                    scheduled.cancel(false);
+                }
+                callback.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.helper;
+
+/**
+ * Messages held by a queue at a point in time, read from its backend: visible ones, in flight ones, leased by a
+ * consumer and not deleted yet, and delayed ones, not delivered yet
+ */
+public final class QueueDepth {
+    private final long visible;
+    private final long inFlight;
+    private final long delayed;
+
+    public QueueDepth(long visible, long inFlight, long delayed) {
+        this.visible = visible;
+        this.inFlight = inFlight;
+        this.delayed = delayed;
+    }
+
+    public long getVisible() {
+        return visible;
+    }
+
+    public long getInFlight() {
+        return inFlight;
+    }
+
+    public long getDelayed() {
+        return delayed;
+    }
+
+    /**
+     * Gets messages held by the queue, whatever their state
+     */
+    public long getDepth() {
+        return visible + inFlight + delayed;
+    }
+}
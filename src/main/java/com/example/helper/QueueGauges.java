@@ -0,0 +1,13 @@
+package com.example.helper;
+
+/**
+ * A queue service able to tell the depth of its queues from its backend, read by {@link MetricsReporter}s through
+ * {@link QueueMetrics}
+ */
+public interface QueueGauges {
+    /**
+     * Gets the messages held by a queue, an unknown queue holding none. May cost a scan or a remote call, so it is
+     * meant to be read at reporting intervals, not per operation.
+     */
+    QueueDepth getQueueDepth(String queueURL);
+}
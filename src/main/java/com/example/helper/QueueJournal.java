@@ -0,0 +1,361 @@
+package com.example.helper;
+
+import com.example.model.Message;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of pushes and deletes of in-memory queues, with periodic snapshots, to recover them after a restart.
+ * <p>
+ * Mutations are appended to the current WAL file, wal-{generation}.log. A snapshot starts a new generation, then
+ * compacts the previous snapshot and the WAL files of older generations into snapshot-{generation}.dat: the messages
+ * still live, in push order. Recovery loads the latest snapshot and replays the WAL files of its generation onwards.
+ * Replay is idempotent, so mutations both in a snapshot and in a later WAL file are applied correctly.
+ * <p>
+ * Records are "type: 1 | length: 4 | payload | crc: 4", a torn record at the end of a WAL file being ignored.
+ * A journal directory must be used by a single process.
+ */
+public class QueueJournal {
+    private static final String WAL_PREFIX = "wal-";
+    private static final String WAL_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final byte PUSH = 'P';
+    private static final byte DELETE = 'D';
+
+    private final File directory;
+    private final FsyncPolicy fsyncPolicy;
+    // current WAL file, its generation, and bytes appended to it: guarded by this
+    private FileChannel wal;
+    private long generation;
+    private long walBytes = 0;
+    private boolean unforced = false;
+    private final Object snapshotLock = new Object();
+    private ScheduledExecutorService forcer;
+
+    public QueueJournal(File directory, FsyncPolicy fsyncPolicy) throws IOException {
+        this.directory = directory;
+        this.fsyncPolicy = fsyncPolicy;
+        Files.createDirectories(directory.toPath());
+        File[] temps = directory.listFiles((dir, name) -> name.endsWith(TEMP_SUFFIX));
+        for (File temp : temps == null ? new File[0] : temps) {
+            // snapshot interrupted before being moved in place
+            Files.deleteIfExists(temp.toPath());
+        }
+        // never append to a WAL file of a previous run, it may end with a torn record
+        this.generation = Math.max(lastGeneration(WAL_PREFIX, WAL_SUFFIX), lastGeneration(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) + 1;
+        this.wal = openWal(generation);
+        if (!fsyncPolicy.isAlways() && !fsyncPolicy.isNever()) {
+            long period = fsyncPolicy.getInterval().toMillis();
+            forcer = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("queue-journal-%d").setDaemon(true).build());
+            forcer.scheduleWithFixedDelay(this::forceUnforced, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Gets the live messages of every queue, as of the last mutation journaled before the restart
+     *
+     * @return messages by queue, in push order
+     */
+    public Map<String, List<Message>> recover() throws IOException {
+        long upTo;
+        synchronized (this) {
+            upTo = generation;
+        }
+        Map<String, List<Message>> queues = Maps.newLinkedHashMap();
+        load(upTo).forEach((queueName, messages) -> queues.put(queueName, Lists.newArrayList(messages.values())));
+        return queues;
+    }
+
+    /**
+     * Journals messages pushed to a queue, with a single write
+     */
+    public void logPushes(String queueName, List<Message> messages) throws IOException {
+        append(PUSH, pushPayloads(queueName, messages));
+    }
+
+    /**
+     * Journals messages deleted from a queue, by receipt handle, with a single write
+     */
+    public void logDeletes(String queueName, List<String> receiptHandles) throws IOException {
+        List<byte[]> records = Lists.newArrayListWithCapacity(receiptHandles.size());
+        for (String receiptHandle : receiptHandles) {
+            ByteArrayDataOutput payload = ByteStreams.newDataOutput();
+            payload.writeUTF(queueName);
+            payload.writeUTF(receiptHandle);
+            records.add(payload.toByteArray());
+        }
+        append(DELETE, records);
+    }
+
+    /**
+     * Compacts the journal up to now into a snapshot, and deletes the files it replaces.
+     * Appends continue meanwhile, to a new WAL file.
+     */
+    public void snapshot() throws IOException {
+        synchronized (snapshotLock) {
+            long snapshotGeneration;
+            synchronized (this) {
+                if (walBytes == 0 && generations(WAL_PREFIX, WAL_SUFFIX).stream().noneMatch(g -> g < generation)) {
+                    // nothing journaled since last snapshot
+                    return;
+                }
+                closeWal();
+                generation++;
+                wal = openWal(generation);
+                walBytes = 0;
+                snapshotGeneration = generation;
+            }
+            Map<String, LinkedHashMap<String, Message>> queues = load(snapshotGeneration);
+            File temp = file(SNAPSHOT_PREFIX, snapshotGeneration, TEMP_SUFFIX);
+            try (FileChannel snapshot = FileChannel.open(temp.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (Map.Entry<String, LinkedHashMap<String, Message>> queue : queues.entrySet()) {
+                    // one write per queue, the encoding being shared with the WAL
+                    write(snapshot, encode(PUSH, pushPayloads(queue.getKey(), queue.getValue().values())));
+                }
+                snapshot.force(true);
+            }
+            Files.move(temp.toPath(), file(SNAPSHOT_PREFIX, snapshotGeneration, SNAPSHOT_SUFFIX).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+            for (long older : generations(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+                if (older < snapshotGeneration) {
+                    Files.deleteIfExists(file(SNAPSHOT_PREFIX, older, SNAPSHOT_SUFFIX).toPath());
+                }
+            }
+            for (long older : generations(WAL_PREFIX, WAL_SUFFIX)) {
+                if (older < snapshotGeneration) {
+                    Files.deleteIfExists(file(WAL_PREFIX, older, WAL_SUFFIX).toPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces and closes the current WAL file
+     */
+    public void close() throws IOException {
+        if (forcer != null) {
+            forcer.shutdownNow();
+        }
+        synchronized (this) {
+            closeWal();
+        }
+    }
+
+    private synchronized void append(byte type, List<byte[]> payloads) throws IOException {
+        ByteBuffer records = encode(type, payloads);
+        walBytes += records.remaining();
+        write(wal, records);
+        if (fsyncPolicy.isAlways()) {
+            wal.force(false);
+        } else {
+            unforced = true;
+        }
+    }
+
+    private synchronized void forceUnforced() {
+        try {
+            if (unforced && wal.isOpen()) {
+                unforced = false;
+                wal.force(false);
+            }
+        } catch (IOException e) {
+            // forced again on the next run, a failure must not cancel the scheduled forces
+            unforced = true;
+        }
+    }
+
+    private void closeWal() throws IOException {
+        if (wal.isOpen()) {
+            if (!fsyncPolicy.isNever()) {
+                wal.force(false);
+            }
+            wal.close();
+        }
+        unforced = false;
+    }
+
+    /**
+     * Loads the latest snapshot older than upTo, and replays the WAL files from its generation to upTo
+     */
+    private Map<String, LinkedHashMap<String, Message>> load(long upTo) throws IOException {
+        Map<String, LinkedHashMap<String, Message>> queues = Maps.newLinkedHashMap();
+        long snapshotGeneration = 0;
+        for (long snapshot : generations(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            if (snapshot < upTo) {
+                snapshotGeneration = Math.max(snapshotGeneration, snapshot);
+            }
+        }
+        if (snapshotGeneration > 0) {
+            replay(file(SNAPSHOT_PREFIX, snapshotGeneration, SNAPSHOT_SUFFIX), queues, false);
+        }
+        for (long walGeneration : generations(WAL_PREFIX, WAL_SUFFIX)) {
+            if (walGeneration >= snapshotGeneration && walGeneration < upTo) {
+                replay(file(WAL_PREFIX, walGeneration, WAL_SUFFIX), queues, true);
+            }
+        }
+        return queues;
+    }
+
+    /**
+     * Applies the records of a journal file to queues
+     *
+     * @param tornTail whether the file may end with a torn record, else a bad record fails the replay
+     */
+    private void replay(File file, Map<String, LinkedHashMap<String, Message>> queues, boolean tornTail) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int type;
+            while ((type = in.read()) != -1) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    if (length < 0 || length > file.length()) {
+                        throw new EOFException("Invalid record length " + length);
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    if (in.readInt() != checksum(payload)) {
+                        throw new EOFException("Checksum mismatch");
+                    }
+                } catch (EOFException e) {
+                    if (tornTail) {
+                        return;
+                    }
+                    throw new IOException("Corrupt journal file " + file, e);
+                }
+                apply((byte) type, payload, queues);
+            }
+        }
+    }
+
+    private static void apply(byte type, byte[] payload, Map<String, LinkedHashMap<String, Message>> queues) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        String queueName = in.readUTF();
+        if (type == DELETE) {
+            LinkedHashMap<String, Message> messages = queues.get(queueName);
+            if (messages != null) {
+                messages.remove(in.readUTF());
+            }
+            return;
+        }
+        String id = in.readUTF();
+        String receiptHandle = in.readUTF();
+        long visibleFrom = in.readLong();
+        int contentLength = in.readInt();
+        String content = null;
+        if (contentLength >= 0) {
+            byte[] bytes = new byte[contentLength];
+            in.readFully(bytes);
+            content = new String(bytes, StandardCharsets.UTF_8);
+        }
+        // a push replayed twice keeps its first position
+        queues.computeIfAbsent(queueName, queue -> Maps.newLinkedHashMap())
+                .putIfAbsent(receiptHandle, new Message(id, receiptHandle, content, visibleFrom));
+    }
+
+    private static List<byte[]> pushPayloads(String queueName, Iterable<Message> messages) {
+        List<byte[]> payloads = Lists.newArrayList();
+        for (Message message : messages) {
+            ByteArrayDataOutput payload = ByteStreams.newDataOutput();
+            payload.writeUTF(queueName);
+            payload.writeUTF(message.getId());
+            payload.writeUTF(message.getReceiptHandle());
+            payload.writeLong(message.getVisibleFromMillis());
+            if (message.getContent() == null) {
+                payload.writeInt(-1);
+            } else {
+                byte[] content = message.getContent().getBytes(StandardCharsets.UTF_8);
+                payload.writeInt(content.length);
+                payload.write(content);
+            }
+            payloads.add(payload.toByteArray());
+        }
+        return payloads;
+    }
+
+    private static ByteBuffer encode(byte type, List<byte[]> payloads) {
+        int length = 0;
+        for (byte[] payload : payloads) {
+            length += 1 + 4 + payload.length + 4;
+        }
+        ByteBuffer records = ByteBuffer.allocate(length);
+        for (byte[] payload : payloads) {
+            records.put(type).putInt(payload.length).put(payload).putInt(checksum(payload));
+        }
+        records.flip();
+        return records;
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static void write(FileChannel channel, ByteBuffer records) throws IOException {
+        while (records.hasRemaining()) {
+            channel.write(records);
+        }
+    }
+
+    private FileChannel openWal(long walGeneration) throws IOException {
+        return FileChannel.open(file(WAL_PREFIX, walGeneration, WAL_SUFFIX).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private File file(String prefix, long fileGeneration, String suffix) {
+        return new File(directory, prefix + String.format("%020d", fileGeneration) + suffix);
+    }
+
+    private long lastGeneration(String prefix, String suffix) {
+        List<Long> generations = generations(prefix, suffix);
+        return generations.isEmpty() ? 0 : generations.get(generations.size() - 1);
+    }
+
+    /**
+     * Gets the generations of the journal files with given prefix and suffix, in ascending order
+     */
+    private List<Long> generations(String prefix, String suffix) {
+        List<Long> generations = Lists.newArrayList();
+        String[] names = directory.list();
+        for (String name : names == null ? new String[0] : names) {
+            if (name.startsWith(prefix) && name.endsWith(suffix)) {
+                try {
+                    generations.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    // not a journal file
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+}
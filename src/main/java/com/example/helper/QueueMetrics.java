@@ -0,0 +1,82 @@
+package com.example.helper;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Metrics of the queues of a service, a {@link QueueStats} per queue, read by {@link MetricsReporter}s.
+ * <p>
+ * Counters only see the operations recorded since the metrics were created, so the depth of a queue is not derived
+ * from them: it is read from the {@link QueueGauges} of the service, if set.
+ * <p>
+ * Instrumented code checks isEnabled() before reading any clock, so that DISABLED metrics cost a field read and a
+ * branch per operation.
+ */
+public class QueueMetrics {
+    /**
+     * Metrics recording nothing
+     */
+    public static final QueueMetrics DISABLED = new QueueMetrics(false);
+
+    private final boolean enabled;
+    private final ConcurrentHashMap<String, QueueStats> queueStats = new ConcurrentHashMap<>();
+    // null unless the service tells the depth of its queues
+    private volatile QueueGauges gauges;
+
+    public QueueMetrics() {
+        this(true);
+    }
+
+    private QueueMetrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Gets the stats of a queue, created on first use
+     */
+    public QueueStats getQueueStats(String queueURL) {
+        QueueStats stats = queueStats.get(queueURL);
+        return stats != null ? stats : queueStats.computeIfAbsent(queueURL, queue -> new QueueStats());
+    }
+
+    /**
+     * Gets a live view of the stats of every queue recorded so far, by queue
+     */
+    public Map<String, QueueStats> getQueueStats() {
+        return Collections.unmodifiableMap(queueStats);
+    }
+
+    /**
+     * Sets the gauges the depth of queues is read from. Ignored by DISABLED metrics.
+     */
+    public void setGauges(QueueGauges gauges) {
+        if (enabled) {
+            this.gauges = gauges;
+        }
+    }
+
+    /**
+     * Reads the depth of a queue from the gauges of the service
+     *
+     * @return depth of the queue, empty if the service has no gauges
+     */
+    public Optional<QueueDepth> getQueueDepth(String queueURL) {
+        QueueGauges current = gauges;
+        return current == null ? Optional.empty() : Optional.of(current.getQueueDepth(queueURL));
+    }
+
+    /**
+     * Records the time taken to acquire the lock of a file queue
+     */
+    public void recordLockWait(String queueURL, long nanos) {
+        if (enabled) {
+            getQueueStats(queueURL).recordLatency(QueueOperation.LOCK_WAIT, nanos);
+        }
+    }
+}
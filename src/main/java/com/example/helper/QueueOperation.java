@@ -0,0 +1,18 @@
+package com.example.helper;
+
+/**
+ * Operations whose latencies are recorded by {@link QueueStats}
+ */
+public enum QueueOperation {
+    PUSH,
+    PULL,
+    DELETE,
+    PUSH_BATCH,
+    PULL_BATCH,
+    DELETE_BATCH,
+    CHANGE_VISIBILITY,
+    /**
+     * Wait for the lock of a file queue
+     */
+    LOCK_WAIT
+}
@@ -0,0 +1,85 @@
+package com.example.helper;
+
+import java.util.EnumMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of a single queue.
+ * <p>
+ * Counters are striped LongAdders, so that threads recording the same queue do not contend on a single cache line.
+ * They count operations, not messages: the depth of a queue is read from its backend, see {@link QueueGauges}.
+ */
+public class QueueStats {
+    private final LongAdder pushes = new LongAdder();
+    private final LongAdder failedPushes = new LongAdder();
+    private final LongAdder pulls = new LongAdder();
+    private final LongAdder emptyPulls = new LongAdder();
+    private final LongAdder deletes = new LongAdder();
+    private final LongAdder failedDeletes = new LongAdder();
+    private final EnumMap<QueueOperation, LatencyHistogram> latencies = new EnumMap<>(QueueOperation.class);
+
+    QueueStats() {
+        for (QueueOperation operation : QueueOperation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Records messages pushed and failed to be pushed
+     */
+    public void recordPushes(int pushed, int failed) {
+        pushes.add(pushed);
+        failedPushes.add(failed);
+    }
+
+    /**
+     * Records pulled messages, a pull finding no message counting as an empty pull
+     */
+    public void recordPulls(int pulled) {
+        if (pulled == 0) {
+            emptyPulls.increment();
+        } else {
+            pulls.add(pulled);
+        }
+    }
+
+    /**
+     * Records messages deleted and failed to be deleted
+     */
+    public void recordDeletes(int deleted, int failed) {
+        deletes.add(deleted);
+        failedDeletes.add(failed);
+    }
+
+    public void recordLatency(QueueOperation operation, long nanos) {
+        latencies.get(operation).record(nanos);
+    }
+
+    public long getPushes() {
+        return pushes.sum();
+    }
+
+    public long getFailedPushes() {
+        return failedPushes.sum();
+    }
+
+    public long getPulls() {
+        return pulls.sum();
+    }
+
+    public long getEmptyPulls() {
+        return emptyPulls.sum();
+    }
+
+    public long getDeletes() {
+        return deletes.sum();
+    }
+
+    public long getFailedDeletes() {
+        return failedDeletes.sum();
+    }
+
+    public LatencyHistogram getLatency(QueueOperation operation) {
+        return latencies.get(operation);
+    }
+}
@@ -0,0 +1,15 @@
+package com.example.helper;
+
+/**
+ * Format of the records of a file queue
+ */
+public enum RecordFormat {
+    /**
+     * One "visibleFrom:receiptHandle:id:content" line per message, content must not contain line breaks
+     */
+    TEXT,
+    /**
+     * Versioned, length-prefixed binary records with a CRC, see {@link BinaryRecordCodec}
+     */
+    BINARY
+}
@@ -0,0 +1,38 @@
+package com.example.helper;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Calls a {@link MetricsReporter} with queue metrics every period, on a background thread, until closed
+ */
+public class ScheduledMetricsReporter implements AutoCloseable {
+    private final ScheduledExecutorService scheduler;
+
+    public ScheduledMetricsReporter(QueueMetrics metrics, MetricsReporter reporter, Duration period) {
+        checkArgument(period != null && !period.isNegative() && !period.isZero(), "Period must be positive");
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("metrics-reporter-%d").setDaemon(true).build());
+        long millis = period.toMillis();
+        scheduler.scheduleWithFixedDelay(() -> report(reporter, metrics), millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    private static void report(MetricsReporter reporter, QueueMetrics metrics) {
+        try {
+            reporter.report(metrics);
+        } catch (RuntimeException e) {
+            // a failed report must not cancel the next ones, as an exception escaping the task would
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,463 @@
+package com.example.helper;
+
+import com.example.model.Message;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Append-only, segmented log holding the messages of a single file queue.
+ * <p>
+ * Every mutation is appended as one text record to the newest (tail) segment:
+ * - P:visibleFrom:receiptHandle:id:content  a pushed message
+ * - L:visibleFrom:receiptHandle             a new lease (visibility change) on a message
+ * - D:receiptHandle                         a tombstone for an acknowledged message
+ * The content is escaped (backslash as "\\", newline as "\n") so a record never spans more than one line.
+ * <p>
+ * The live messages are kept in an in-memory index rebuilt by replaying the segments, so pull and delete
+ * only append a small record instead of rewriting the queue. Segments are only ever removed oldest first,
+ * once none of their pushed messages is live; this guarantees no tombstone is dropped before the push it cancels.
+ * <p>
+ * Not thread safe: callers must hold the queue lock (see {@link FileQueueHelper#takeLock(String)}) around
+ * every call. Each call first catches up with records appended by other processes since the last call.
+ */
+public class SegmentedLog {
+    private static final Charset CHAR_SET = StandardCharsets.UTF_8;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final char PUSH = 'P';
+    private static final char LEASE = 'L';
+    private static final char DELETE = 'D';
+
+    private final File directory;
+    private final long maxSegmentBytes;
+    private final Clock clock;
+
+    // live messages by receipt handle, in push (FIFO) order
+    private final LinkedHashMap<String, Entry> live = new LinkedHashMap<>();
+    // live message count of every segment still on disk, by segment id
+    private final TreeMap<Long, Integer> liveCounts = new TreeMap<>();
+
+    // earliest epoch millis an invisible message becomes visible, as seen by the last pull that scanned every live
+    // message, Long.MAX_VALUE if none
+    private long nextVisibleFrom = Long.MAX_VALUE;
+
+    // position up to which the log has been replayed, which is also where the next record is appended
+    private long tailSegment = 0;
+    private long tailOffset = 0;
+
+    public SegmentedLog(File directory, long maxSegmentBytes) {
+        this(directory, maxSegmentBytes, Clock.systemUTC());
+    }
+
+    /**
+     * @param clock clock telling the time leases start and expire at
+     */
+    public SegmentedLog(File directory, long maxSegmentBytes, Clock clock) {
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.clock = clock;
+    }
+
+    /**
+     * Appends a pushed message
+     */
+    public void push(Message message) throws IOException {
+        push(Lists.newArrayList(message));
+    }
+
+    /**
+     * Appends pushed messages with a single write
+     */
+    public void push(List<Message> messages) throws IOException {
+        catchUp();
+        List<String> records = Lists.newArrayListWithCapacity(messages.size());
+        for (Message message : messages) {
+            long time = message.getVisibleFromMillis();
+            records.add(PUSH + ":" + time + ":" + message.getReceiptHandle() + ":" + message.getId() + ":" + escape(message.getContent()));
+        }
+        append(records);
+    }
+
+    /**
+     * Finds first visible message and appends a lease making it invisible until current time + inVisibilityDuration
+     *
+     * @return copy of the leased message in Optional if available, else Optional.Empty()
+     */
+    public Optional<Message> pull(Duration inVisibilityDuration) throws IOException {
+        return pull(1, inVisibilityDuration).stream().findFirst();
+    }
+
+    /**
+     * Finds up to maxMessages visible messages and appends their leases with a single write
+     *
+     * @return copies of the leased messages, in FIFO order
+     */
+    public List<Message> pull(int maxMessages, Duration inVisibilityDuration) throws IOException {
+        catchUp();
+        long now = clock.millis();
+        long visibleFrom = now + inVisibilityDuration.toMillis();
+        List<Entry> visible = Lists.newArrayList();
+        List<String> records = Lists.newArrayList();
+        long next = Long.MAX_VALUE;
+        for (Entry entry : live.values()) {
+            if (visible.size() == maxMessages) {
+                break;
+            }
+            if (entry.message.isVisible(now)) {
+                visible.add(entry);
+                records.add(LEASE + ":" + visibleFrom + ":" + entry.message.getReceiptHandle());
+            } else {
+                next = Math.min(next, entry.message.getVisibleFromMillis());
+            }
+        }
+        if (visible.size() < maxMessages) {
+            nextVisibleFrom = next;
+        }
+        append(records);
+        return visible.stream()
+                .map(entry -> entry.message)
+                .map(msg -> new Message(msg.getId(), msg.getReceiptHandle(), msg.getContent(), msg.getVisibleFromMillis()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Appends a lease making the message with given receipt handle, if live and invisible, invisible until current
+     * time + visibilityTimeout instead
+     *
+     * @return true if the message was live and invisible, else false
+     */
+    public boolean changeVisibility(String receiptHandle, Duration visibilityTimeout) throws IOException {
+        catchUp();
+        long now = clock.millis();
+        Entry entry = live.get(receiptHandle);
+        if (entry == null || entry.message.isVisible(now)) {
+            return false;
+        }
+        long visibleFrom = now + visibilityTimeout.toMillis();
+        if (visibleFrom < nextVisibleFrom) {
+            nextVisibleFrom = visibleFrom;
+        }
+        append(Lists.newArrayList(LEASE + ":" + visibleFrom + ":" + receiptHandle));
+        return true;
+    }
+
+    /**
+     * Appends a tombstone for the message with given receipt handle
+     *
+     * @return true if the message was live, else false
+     */
+    public boolean delete(String receiptHandle) throws IOException {
+        return delete(Lists.newArrayList(receiptHandle)).get(0);
+    }
+
+    /**
+     * Appends tombstones for the live messages with given receipt handles with a single write
+     *
+     * @return true for each message that was live, else false, in the order of receiptHandles
+     */
+    public List<Boolean> delete(List<String> receiptHandles) throws IOException {
+        catchUp();
+        List<Boolean> results = Lists.newArrayListWithCapacity(receiptHandles.size());
+        Set<String> deleted = Sets.newHashSet();
+        List<String> records = Lists.newArrayList();
+        for (String receiptHandle : receiptHandles) {
+            boolean isLive = live.containsKey(receiptHandle) && deleted.add(receiptHandle);
+            if (isLive) {
+                records.add(DELETE + ":" + receiptHandle);
+            }
+            results.add(isLive);
+        }
+        append(records);
+        return results;
+    }
+
+    /**
+     * Gets earliest epoch millis an invisible message becomes visible at, as seen by the last pull which found too
+     * few messages
+     *
+     * @return epoch millis, OptionalLong.empty() if no message was invisible
+     */
+    public OptionalLong getNextVisibleFrom() {
+        return nextVisibleFrom == Long.MAX_VALUE ? OptionalLong.empty() : OptionalLong.of(nextVisibleFrom);
+    }
+
+    /**
+     * Number of live (not yet deleted) messages
+     */
+    public int size() throws IOException {
+        catchUp();
+        return live.size();
+    }
+
+    /**
+     * Number of segments currently on disk
+     */
+    public int segmentCount() throws IOException {
+        catchUp();
+        return liveCounts.size();
+    }
+
+    /**
+     * Deletes the oldest segments as long as none of their pushed messages is live.
+     * The tail segment is never deleted.
+     *
+     * @return number of deleted segments
+     */
+    public int deleteAckedSegments() throws IOException {
+        catchUp();
+        int deleted = 0;
+        Iterator<Map.Entry<Long, Integer>> segments = liveCounts.entrySet().iterator();
+        while (segments.hasNext()) {
+            Map.Entry<Long, Integer> segment = segments.next();
+            if (segment.getKey() >= tailSegment || segment.getValue() > 0) {
+                break;
+            }
+            Files.deleteIfExists(segmentPath(segment.getKey()));
+            segments.remove();
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Replays records appended since last call, including segments created by other processes
+     */
+    private void catchUp() throws IOException {
+        while (true) {
+            Path segment = segmentPath(tailSegment);
+            if (Files.exists(segment)) {
+                liveCounts.putIfAbsent(tailSegment, 0);
+                tailOffset = replay(segment, tailOffset);
+            } else if (tailOffset >= maxSegmentBytes) {
+                // full segment, so replayed completely, removed by another process after all its messages were deleted
+                liveCounts.remove(tailSegment);
+            } else if (liveCounts.containsKey(tailSegment)) {
+                // segment removed by another process's cleaner before this process replayed all of it: the records
+                // missed may be tombstones of messages pushed in older, also removed segments, so rebuild the index
+                Optional<Long> oldest = segmentAfter(-1);
+                live.clear();
+                liveCounts.clear();
+                tailOffset = 0;
+                if (!oldest.isPresent()) {
+                    return;
+                }
+                tailSegment = oldest.get();
+                liveCounts.put(tailSegment, 0);
+                continue;
+            }
+
+            Optional<Long> next = segmentAfter(tailSegment);
+            if (!next.isPresent()) {
+                return;
+            }
+            tailSegment = next.get();
+            tailOffset = 0;
+            // known to exist, so its removal before it is replayed also triggers a rebuild
+            liveCounts.putIfAbsent(tailSegment, 0);
+        }
+    }
+
+    /**
+     * Gets id of the first segment after given segment, if any
+     */
+    private Optional<Long> segmentAfter(long segment) {
+        if (Files.exists(segmentPath(segment + 1))) {
+            return Optional.of(segment + 1);
+        }
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return Optional.empty();
+        }
+        long next = Long.MAX_VALUE;
+        for (File file : files) {
+            Long id = Longs.tryParse(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+            if (id != null && id > segment && id < next) {
+                next = id;
+            }
+        }
+        return next == Long.MAX_VALUE ? Optional.empty() : Optional.of(next);
+    }
+
+    /**
+     * Applies every complete record of a segment starting at offset
+     *
+     * @return offset following the last complete record
+     */
+    private long replay(Path segment, long offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            if (channel.size() <= offset) {
+                return offset;
+            }
+            channel.position(offset);
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b == '\n') {
+                        offset += line.size() + 1;
+                        apply(new String(line.toByteArray(), CHAR_SET));
+                        line.reset();
+                    } else {
+                        line.write(b);
+                    }
+                }
+                buffer.clear();
+            }
+            // a trailing partial record is left unread, it is truncated before the next append
+            return offset;
+        }
+    }
+
+    /**
+     * Applies a single record to the in-memory index
+     */
+    private void apply(String record) {
+        if (record.isEmpty()) {
+            return;
+        }
+        List<String> fields = Lists.newArrayList(Splitter.on(':').limit(5).split(record));
+        String receiptHandle;
+        Entry entry;
+        switch (record.charAt(0)) {
+            case PUSH:
+                receiptHandle = fields.get(2);
+                long visibleFrom = Longs.tryParse(fields.get(1));
+                Message message = new Message(fields.get(3), receiptHandle, unescape(fields.get(4)), visibleFrom);
+                if (!live.containsKey(receiptHandle)) {
+                    live.put(receiptHandle, new Entry(message, tailSegment));
+                    liveCounts.merge(tailSegment, 1, Integer::sum);
+                }
+                break;
+            case LEASE:
+                entry = live.get(fields.get(2));
+                if (entry != null) {
+                    entry.message.setVisibleFromMillis(Longs.tryParse(fields.get(1)));
+                }
+                break;
+            case DELETE:
+                entry = live.remove(fields.get(1));
+                if (entry != null) {
+                    liveCounts.computeIfPresent(entry.segment, (segment, count) -> count - 1);
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown record in " + directory + ": " + record);
+        }
+    }
+
+    /**
+     * Appends records to the tail segment with a single write, rolling to a new segment when the tail is full
+     */
+    private void append(List<String> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        Files.createDirectories(directory.toPath());
+        if (tailOffset >= maxSegmentBytes) {
+            tailSegment++;
+            tailOffset = 0;
+        }
+        liveCounts.putIfAbsent(tailSegment, 0);
+        StringBuilder text = new StringBuilder();
+        for (String record : records) {
+            text.append(record).append('\n');
+        }
+        byte[] bytes = text.toString().getBytes(CHAR_SET);
+        try (FileChannel channel = FileChannel.open(segmentPath(tailSegment),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // drop a partial record left by a crashed writer
+            if (channel.size() > tailOffset) {
+                channel.truncate(tailOffset);
+            }
+            channel.position(tailOffset);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        tailOffset += bytes.length;
+        records.forEach(this::apply);
+    }
+
+    /**
+     * Escapes backslashes and newlines of message content, the only characters a record cannot hold as is
+     */
+    private static String escape(String content) {
+        if (content.indexOf('\\') < 0 && content.indexOf('\n') < 0) {
+            return content;
+        }
+        StringBuilder escaped = new StringBuilder(content.length() + 16);
+        for (int i = 0; i < content.length(); i++) {
+            char c = content.charAt(i);
+            if (c == '\\') {
+                escaped.append("\\\\");
+            } else if (c == '\n') {
+                escaped.append("\\n");
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Reverts {@link #escape(String)}
+     */
+    private static String unescape(String field) {
+        if (field.indexOf('\\') < 0) {
+            return field;
+        }
+        StringBuilder content = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\' && i + 1 < field.length()) {
+                c = field.charAt(++i) == 'n' ? '\n' : field.charAt(i);
+            }
+            content.append(c);
+        }
+        return content.toString();
+    }
+
+    private Path segmentPath(long segment) {
+        return new File(directory, String.format("%020d", segment) + SEGMENT_SUFFIX).toPath();
+    }
+
+    /**
+     * A live message together with the segment holding its push record
+     */
+    private static class Entry {
+        private final Message message;
+        private final long segment;
+
+        private Entry(Message message, long segment) {
+            this.message = message;
+            this.segment = segment;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.helper;
+
+import com.google.common.collect.Lists;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Allocates chunks of direct ByteBuffer slabs, handing out primitive handles instead of objects, so that millions of
+ * stored messages cost the garbage collector nothing but the slabs themselves.
+ * <p>
+ * Chunks are sized by powers of two, from 32 bytes up to the slab size, with a free-list of released chunks per size.
+ * A chunk is taken from its free-list, else carved from the end of the current slab, a new slab being allocated once
+ * the current one is full. A chunk larger than a slab gets a dedicated slab, released as a whole when freed.
+ * Slabs of pooled chunks are kept for reuse, never released to the operating system.
+ * <p>
+ * A handle packs the slab index, the size class and the offset of a chunk:
+ * <pre>
+ * slab: 24 bits | sizeClass: 8 bits | offset: 32 bits
+ * </pre>
+ * Not thread-safe: callers allocate and free under their own lock.
+ */
+final class SlabAllocator {
+    private static final int MIN_CHUNK_SHIFT = 5;
+    private static final int DEDICATED = 0xFF;
+    private static final int MAX_SLABS = 1 << 24;
+
+    private final int slabSize;
+    private final List<ByteBuffer> slabs = Lists.newArrayList();
+    private final LongStack[] freeLists;
+    // indexes of released dedicated slabs, reused before adding slabs
+    private final LongStack freeSlabs = new LongStack();
+    private int currentSlab = -1;
+    private int top;
+
+    /**
+     * @param slabSize bytes of each slab, a power of two of at least 4 KB
+     */
+    SlabAllocator(int slabSize) {
+        checkArgument(slabSize >= 4096 && Integer.bitCount(slabSize) == 1, "Slab size must be a power of two of at least 4 KB");
+        this.slabSize = slabSize;
+        this.freeLists = new LongStack[Integer.numberOfTrailingZeros(slabSize) - MIN_CHUNK_SHIFT + 1];
+        for (int i = 0; i < freeLists.length; i++) {
+            freeLists[i] = new LongStack();
+        }
+    }
+
+    /**
+     * Allocates a chunk of at least length bytes
+     *
+     * @return handle of the chunk
+     */
+    long allocate(int length) {
+        if (length > slabSize) {
+            return handle(addSlab(ByteBuffer.allocateDirect(length)), DEDICATED, 0);
+        }
+        int sizeClass = sizeClass(length);
+        if (!freeLists[sizeClass].isEmpty()) {
+            return freeLists[sizeClass].pop();
+        }
+        int chunkSize = 1 << (sizeClass + MIN_CHUNK_SHIFT);
+        if (currentSlab < 0 || top + chunkSize > slabSize) {
+            // the rest of a full slab is left unused, chunks being aligned on their size
+            currentSlab = addSlab(ByteBuffer.allocateDirect(slabSize));
+            top = 0;
+        }
+        long handle = handle(currentSlab, sizeClass, top);
+        top += chunkSize;
+        return handle;
+    }
+
+    /**
+     * Releases a chunk, to be handed out again by a later allocate()
+     */
+    void free(long handle) {
+        int sizeClass = (int) (handle >>> 32) & 0xFF;
+        if (sizeClass == DEDICATED) {
+            int slab = slabIndex(handle);
+            slabs.set(slab, null);
+            freeSlabs.push(slab);
+        } else {
+            freeLists[sizeClass].push(handle);
+        }
+    }
+
+    /**
+     * Gets the slab of a chunk, to be read and written at absolute positions from offset(handle)
+     */
+    ByteBuffer slab(long handle) {
+        return slabs.get(slabIndex(handle));
+    }
+
+    static int offset(long handle) {
+        return (int) handle;
+    }
+
+    /**
+     * Gets the bytes of all slabs currently allocated
+     */
+    long getAllocatedBytes() {
+        long bytes = 0;
+        for (ByteBuffer slab : slabs) {
+            bytes += slab == null ? 0 : slab.capacity();
+        }
+        return bytes;
+    }
+
+    private int addSlab(ByteBuffer slab) {
+        if (!freeSlabs.isEmpty()) {
+            int index = (int) freeSlabs.pop();
+            slabs.set(index, slab);
+            return index;
+        }
+        if (slabs.size() == MAX_SLABS) {
+            throw new IllegalStateException("Too many slabs: " + MAX_SLABS);
+        }
+        slabs.add(slab);
+        return slabs.size() - 1;
+    }
+
+    private static int sizeClass(int length) {
+        int shift = length <= 1 << MIN_CHUNK_SHIFT ? MIN_CHUNK_SHIFT : 32 - Integer.numberOfLeadingZeros(length - 1);
+        return shift - MIN_CHUNK_SHIFT;
+    }
+
+    private static int slabIndex(long handle) {
+        return (int) (handle >>> 40);
+    }
+
+    private static long handle(int slab, int sizeClass, int offset) {
+        return ((long) slab << 40) | ((long) sizeClass << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Growable stack of primitive longs
+     */
+    static final class LongStack {
+        private long[] values = new long[16];
+        private int size = 0;
+
+        void push(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long pop() {
+            return values[--size];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.example.helper;
+
+/**
+ * Stripe a thread pushes to, and pulls from first, in a {@link StripedVisibilityQueue}
+ */
+public enum StripePlacement {
+    /**
+     * Each thread sticks to a stripe chosen by its id, so threads spread evenly keep touching the same heads and tails
+     */
+    THREAD_AFFINITY,
+    /**
+     * Each call probes a random stripe, evening out load from threads that are not spread evenly
+     */
+    RANDOM_PROBE
+}
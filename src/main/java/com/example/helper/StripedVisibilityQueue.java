@@ -0,0 +1,178 @@
+package com.example.helper;
+
+import com.example.model.Message;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Messages of a single in-memory queue, spread over several {@link VisibilityQueue} stripes, so that producers and
+ * consumers of a hot queue contend on the heads and tails of different stripes instead of all on the same ones.
+ * <p>
+ * A thread pushes to its stripe, chosen by {@link StripePlacement}, and pulls from it first. Only when its stripe has
+ * no visible message does it steal from the other stripes, in order, so no message is left behind while a consumer
+ * finds nothing.
+ * <p>
+ * FIFO order is only kept within a stripe: messages pushed by a thread are pulled in order with THREAD_AFFINITY,
+ * messages of a queue are not.
+ * <p>
+ * Consumers waiting for a message sleep on a condition of the striped queue, signalled by every stripe. A waiting
+ * consumer polls the stripes without the lock, and only takes it to sleep, unless a stripe signalled since it started
+ * polling, which it tells by a counter of signals.
+ */
+public class StripedVisibilityQueue implements LeasingQueue {
+    private final VisibilityQueue[] stripes;
+    private final StripePlacement placement;
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition messageAvailable = waitLock.newCondition();
+    // number of consumers waiting for a message, lets stripes skip the counter and the lock while nobody waits
+    private final AtomicInteger waiters = new AtomicInteger();
+    // incremented by every signal sent while consumers wait, read by a consumer before polling the stripes
+    private final AtomicLong signals = new AtomicLong();
+    private final Clock clock;
+
+    public StripedVisibilityQueue(int stripeCount, StripePlacement placement) {
+        this(stripeCount, placement, Clock.systemUTC());
+    }
+
+    public StripedVisibilityQueue(int stripeCount, StripePlacement placement, Clock clock) {
+        checkArgument(stripeCount > 0, "Number of stripes must be positive");
+        this.placement = placement;
+        this.clock = clock;
+        this.stripes = new VisibilityQueue[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new VisibilityQueue(clock, this::signalWaiter);
+        }
+    }
+
+    /**
+     * Adds a message to the stripe of the current thread
+     */
+    @Override
+    public boolean offer(Message message) {
+        return stripes[homeStripe()].offer(message);
+    }
+
+    /**
+     * Claims a visible message of the stripe of the current thread, else steals one from the other stripes
+     */
+    @Override
+    public Message poll(Duration inVisibilityDuration) {
+        int home = homeStripe();
+        for (int i = 0; i < stripes.length; i++) {
+            Message message = stripes[(home + i) % stripes.length].poll(inVisibilityDuration);
+            if (message != null) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Message poll(Duration inVisibilityDuration, Duration maxWait) throws InterruptedException {
+        Message message = poll(inVisibilityDuration);
+        if (message != null || maxWait.isZero()) {
+            return message;
+        }
+        long deadline = System.nanoTime() + maxWait.toNanos();
+        waiters.incrementAndGet();
+        try {
+            while (true) {
+                // waiters is incremented before polling again, so a message offered from now on bumps signals
+                long observed = signals.get();
+                if ((message = poll(inVisibilityDuration)) != null) {
+                    return message;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                long untilExpiry = TimeUnit.MILLISECONDS.toNanos(nextExpiry() - clock.millis());
+                waitLock.lock();
+                try {
+                    // a signal sent since observed would have been missed while polling
+                    if (signals.get() == observed) {
+                        messageAvailable.awaitNanos(Math.max(Math.min(remaining, untilExpiry), 0));
+                    }
+                } finally {
+                    waitLock.unlock();
+                }
+            }
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Changes the visibility of message in whichever stripe holds it, each stripe finding it by receipt handle in O(1)
+     */
+    @Override
+    public boolean changeVisibility(String receiptHandle, long visibleFromMillis) {
+        for (VisibilityQueue stripe : stripes) {
+            if (stripe.changeVisibility(receiptHandle, visibleFromMillis)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes message from whichever stripe holds it, each stripe finding it by receipt handle in O(1)
+     */
+    @Override
+    public boolean remove(String receiptHandle) {
+        for (VisibilityQueue stripe : stripes) {
+            if (stripe.remove(receiptHandle)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public QueueDepth depth() {
+        long visible = 0;
+        long inFlight = 0;
+        for (VisibilityQueue stripe : stripes) {
+            QueueDepth depth = stripe.depth();
+            visible += depth.getVisible();
+            inFlight += depth.getInFlight();
+        }
+        return new QueueDepth(visible, inFlight, 0);
+    }
+
+    private int homeStripe() {
+        if (placement == StripePlacement.RANDOM_PROBE) {
+            return ThreadLocalRandom.current().nextInt(stripes.length);
+        }
+        return (int) (Thread.currentThread().getId() % stripes.length);
+    }
+
+    private long nextExpiry() {
+        long nextExpiry = Long.MAX_VALUE;
+        for (VisibilityQueue stripe : stripes) {
+            nextExpiry = Math.min(nextExpiry, stripe.getNextExpiry());
+        }
+        return nextExpiry;
+    }
+
+    private void signalWaiter() {
+        if (waiters.get() > 0) {
+            signals.incrementAndGet();
+            waitLock.lock();
+            try {
+                messageAvailable.signal();
+            } finally {
+                waitLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.helper;
+
+import com.google.common.collect.Lists;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Hierarchical timing wheel of values due at given epoch millis, as the timer wheel of the Linux kernel:
+ * 6 levels of 64 slots, a slot of level L spanning 64^L ticks.
+ * <p>
+ * A value goes to the slot of the lowest level whose range covers its deadline. Each time the wheel reaches the start
+ * of a slot of an upper level, the values of that slot cascade down to lower levels, so schedule() is O(1), and a
+ * value is moved at most once per level before it expires, however many values are scheduled.
+ * <p>
+ * Deadlines are rounded up to a whole tick, so values never expire early, and at most a tick late once the wheel is
+ * advanced. Deadlines beyond the range of the top level, 2^36 ticks, are parked in its farthest slot, and placed
+ * again when it cascades.
+ * <p>
+ * Not thread-safe: callers schedule and advance under their own lock.
+ */
+public class TimingWheel<T> {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 6;
+    private static final long MAX_TICKS = 1L << (SLOT_BITS * LEVELS);
+
+    private final long tickMillis;
+    // values of each slot of each level, null while empty
+    private final List<Entry<T>>[][] slots;
+    // next tick to process
+    private long currentTick;
+    private int size = 0;
+
+    /**
+     * @param tick        resolution of the wheel, at least a millisecond
+     * @param startMillis epoch millis the wheel starts at
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(Duration tick, long startMillis) {
+        checkArgument(tick != null && tick.toMillis() >= 1, "Tick must be at least a millisecond");
+        this.tickMillis = tick.toMillis();
+        this.currentTick = Math.floorDiv(startMillis, tickMillis);
+        this.slots = (List<Entry<T>>[][]) new List<?>[LEVELS][SLOTS];
+    }
+
+    /**
+     * Schedules value to expire once the wheel is advanced to deadlineMillis
+     *
+     * @return true if scheduled, false if the wheel is already past deadlineMillis, the value being due at once
+     */
+    public boolean schedule(T value, long deadlineMillis) {
+        long tick = Math.floorDiv(deadlineMillis, tickMillis) + (Math.floorMod(deadlineMillis, tickMillis) == 0 ? 0 : 1);
+        if (tick < currentTick) {
+            return false;
+        }
+        place(new Entry<>(value, tick));
+        size++;
+        return true;
+    }
+
+    /**
+     * Processes every tick up to nowMillis, passing the values expiring to expired, in deadline order to a tick
+     */
+    public void advance(long nowMillis, Consumer<T> expired) {
+        long lastTick = Math.floorDiv(nowMillis, tickMillis);
+        while (currentTick <= lastTick) {
+            if (size == 0) {
+                // nothing to cascade nor expire on the way
+                currentTick = lastTick + 1;
+                return;
+            }
+            int index = (int) (currentTick & SLOT_MASK);
+            if (index == 0) {
+                cascade(1);
+            }
+            List<Entry<T>> due = slots[0][index];
+            if (due != null) {
+                slots[0][index] = null;
+                size -= due.size();
+                for (Entry<T> entry : due) {
+                    expired.accept(entry.value);
+                }
+            }
+            currentTick++;
+        }
+    }
+
+    /**
+     * Gets the number of scheduled values not expired yet
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Moves the values of the slot of level starting at current tick down to lower levels, after cascading the
+     * upper levels whose slot starts at current tick too
+     */
+    private void cascade(int level) {
+        if (level == LEVELS) {
+            return;
+        }
+        int index = (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        if (index == 0) {
+            cascade(level + 1);
+        }
+        List<Entry<T>> entries = slots[level][index];
+        if (entries != null) {
+            slots[level][index] = null;
+            entries.forEach(this::place);
+        }
+    }
+
+    private void place(Entry<T> entry) {
+        long delta = entry.tick - currentTick;
+        long tick = delta < MAX_TICKS ? entry.tick : currentTick + MAX_TICKS - 1;
+        int level = 0;
+        while (level < LEVELS - 1 && tick - currentTick >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        int index = (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        if (slots[level][index] == null) {
+            slots[level][index] = Lists.newArrayList();
+        }
+        slots[level][index].add(entry);
+    }
+
+    private static final class Entry<T> {
+        private final T value;
+        // tick the value expires at
+        private final long tick;
+
+        private Entry(T value, long tick) {
+            this.value = value;
+            this.tick = tick;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.example.helper;
+
+import com.example.model.Lease;
+import com.example.model.Message;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Messages of a single in-memory queue, split by visibility:
+ * - ready: visible messages, in FIFO order
+ * - leased: invisible messages, in a heap ordered by the time they become visible again
+ * <p>
+ * Pull takes the head of the ready queue, so it never walks over in-flight messages. Expired leases are moved
+ * back to the tail of the ready queue before pulling, which costs O(log n) per expired lease and nothing at all
+ * while no lease is due.
+ * <p>
+ * Both structures hold the message together with the Lease observed when it was queued. A consumer wins a message
+ * only by compare-and-set from that Lease (see {@link Message#claim(Lease, long)}), so a message queued
+ * more than once, or whose lease changed meanwhile, is delivered to exactly one consumer. Losers skip to the next
+ * candidate without blocking.
+ * <p>
+ * Live messages are also indexed by receipt handle. Delete removes a message from that index and replaces its
+ * lease, which invalidates every queued candidate: they are dropped lazily when reached, so delete is O(1).
+ * <p>
+ * Changing the visibility of an in-flight message replaces its lease the same way. An extended lease needs no new
+ * candidate: the one queued for the former expiry is queued again with the current lease when reached. A shortened
+ * lease is queued as a new candidate, the former one being dropped when reached.
+ * <p>
+ * Consumers waiting for a message sleep on a condition, signalled when a message is offered, and wake up on their own
+ * when the earliest lease expires.
+ */
+public class VisibilityQueue implements LeasingQueue {
+    private final ConcurrentLinkedQueue<Candidate> ready = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Candidate> leased = new PriorityQueue<>(Comparator.comparingLong(candidate -> candidate.visibleFrom));
+    private final ReentrantLock leasedLock = new ReentrantLock();
+    private final ConcurrentHashMap<String, Message> byReceiptHandle = new ConcurrentHashMap<>();
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition messageAvailable = waitLock.newCondition();
+    // number of consumers waiting on messageAvailable, lets offer skip the lock while nobody waits
+    private volatile int waiters = 0;
+
+    // earliest visibleFrom in leased, in epoch millis, lets pull skip the lock while no lease is due
+    private volatile long nextExpiry = Long.MAX_VALUE;
+    // called whenever waiting consumers are signalled, by a queue waiting on several VisibilityQueues
+    private final Runnable onAvailable;
+    private final Clock clock;
+
+    public VisibilityQueue() {
+        this(Clock.systemUTC());
+    }
+
+    /**
+     * @param clock clock telling the time leases start and expire at
+     */
+    public VisibilityQueue(Clock clock) {
+        this(clock, null);
+    }
+
+    /**
+     * @param onAvailable called when a message is offered, or a lease expiring earlier than all others is taken
+     */
+    VisibilityQueue(Clock clock, Runnable onAvailable) {
+        this.clock = clock;
+        this.onAvailable = onAvailable;
+    }
+
+    /**
+     * Adds a message, to ready queue if visible, else to the leased heap
+     */
+    @Override
+    public boolean offer(Message message) {
+        byReceiptHandle.put(message.getReceiptHandle(), message);
+        Lease lease = message.getLease();
+        if (message.isVisible(clock.millis())) {
+            ready.offer(new Candidate(message, lease));
+            signalWaiter();
+            return true;
+        }
+        schedule(message, lease);
+        return true;
+    }
+
+    /**
+     * Claims first visible message, and makes it invisible until current time + inVisibilityDuration
+     *
+     * @return first visible message if available, else null
+     */
+    @Override
+    public Message poll(Duration inVisibilityDuration) {
+        long now = clock.millis();
+        if (now >= nextExpiry) {
+            promoteExpired(now);
+        }
+        Candidate candidate;
+        while ((candidate = ready.poll()) != null) {
+            Lease lease = candidate.message.claim(candidate.lease, now + inVisibilityDuration.toMillis());
+            if (lease != null) {
+                schedule(candidate.message, lease);
+                return candidate.message;
+            }
+            // lease changed since the message was queued: stale duplicate or claimed by another consumer
+        }
+        return null;
+    }
+
+    /**
+     * Claims first visible message as poll() does, waiting up to maxWait for one to become available
+     *
+     * @return first visible message if available within maxWait, else null
+     */
+    @Override
+    public Message poll(Duration inVisibilityDuration, Duration maxWait) throws InterruptedException {
+        Message message = poll(inVisibilityDuration);
+        if (message != null || maxWait.isZero()) {
+            return message;
+        }
+        long deadline = System.nanoTime() + maxWait.toNanos();
+        waitLock.lock();
+        waiters++;
+        try {
+            // waiters is incremented before polling again, so an offer from now on signals this consumer
+            while ((message = poll(inVisibilityDuration)) == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                long untilExpiry = TimeUnit.MILLISECONDS.toNanos(nextExpiry - clock.millis());
+                messageAvailable.awaitNanos(Math.max(Math.min(remaining, untilExpiry), 0));
+            }
+            return message;
+        } finally {
+            waiters--;
+            waitLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the lease of an invisible message by compare-and-set, so that a consumer claiming it meanwhile wins
+     *
+     * @return true if message was found invisible and its lease replaced, else false
+     */
+    @Override
+    public boolean changeVisibility(String receiptHandle, long visibleFromMillis) {
+        Message message = byReceiptHandle.get(receiptHandle);
+        if (message == null) {
+            return false;
+        }
+        Lease lease;
+        Lease changed;
+        do {
+            lease = message.getLease();
+            if (lease.getVisibleFromMillis() <= clock.millis()) {
+                return false;
+            }
+        } while ((changed = message.claim(lease, visibleFromMillis)) == null);
+        if (visibleFromMillis <= clock.millis()) {
+            ready.offer(new Candidate(message, changed));
+            signalWaiter();
+        } else if (visibleFromMillis < lease.getVisibleFromMillis()) {
+            schedule(message, changed);
+        }
+        // a concurrent delete made the lease stale, and is seen here or by promoteExpired()
+        return byReceiptHandle.get(receiptHandle) == message;
+    }
+
+    /**
+     * Removes message with given receipt handle, whether visible or not
+     *
+     * @return true if message was found and removed, else false
+     */
+    @Override
+    public boolean remove(String receiptHandle) {
+        Message message = byReceiptHandle.remove(receiptHandle);
+        if (message == null) {
+            return false;
+        }
+        // same visibleFrom, next generation: no queued candidate can claim the message anymore
+        message.setVisibleFromMillis(message.getVisibleFromMillis());
+        return true;
+    }
+
+    /**
+     * Counts live messages by their current lease, iterating the receipt handle index without locking it
+     */
+    @Override
+    public QueueDepth depth() {
+        long now = clock.millis();
+        long visible = 0;
+        long inFlight = 0;
+        for (Message message : byReceiptHandle.values()) {
+            if (message.isVisible(now)) {
+                visible++;
+            } else {
+                inFlight++;
+            }
+        }
+        return new QueueDepth(visible, inFlight, 0);
+    }
+
+    private void schedule(Message message, Lease lease) {
+        Candidate candidate = new Candidate(message, lease);
+        boolean expiresFirst;
+        leasedLock.lock();
+        try {
+            expiresFirst = candidate.visibleFrom < nextExpiry;
+            leased.offer(candidate);
+            updateNextExpiry();
+        } finally {
+            leasedLock.unlock();
+        }
+        // waiting consumers sleep until the former earliest expiry
+        if (expiresFirst) {
+            signalWaiter();
+        }
+    }
+
+    private void signalWaiter() {
+        if (waiters > 0) {
+            waitLock.lock();
+            try {
+                messageAvailable.signal();
+            } finally {
+                waitLock.unlock();
+            }
+        }
+        if (onAvailable != null) {
+            onAvailable.run();
+        }
+    }
+
+    /**
+     * Gets the epoch millis the earliest lease expires at, Long.MAX_VALUE if no message is leased
+     */
+    long getNextExpiry() {
+        return nextExpiry;
+    }
+
+    /**
+     * Moves every message whose lease has expired back to ready queue.
+     * A message whose lease was replaced meanwhile is queued again with its current lease.
+     */
+    private void promoteExpired(long now) {
+        leasedLock.lock();
+        try {
+            while (!leased.isEmpty() && leased.peek().visibleFrom <= now) {
+                Candidate candidate = leased.poll();
+                // lease is read before the index, so a concurrent delete is either seen here or makes the lease stale
+                Lease current = candidate.message.getLease();
+                if (byReceiptHandle.get(candidate.message.getReceiptHandle()) != candidate.message) {
+                    // deleted
+                    continue;
+                }
+                if (current == candidate.lease) {
+                    ready.offer(candidate);
+                } else {
+                    Candidate renewed = new Candidate(candidate.message, current);
+                    if (renewed.visibleFrom <= now) {
+                        ready.offer(renewed);
+                    } else {
+                        leased.offer(renewed);
+                    }
+                }
+            }
+            updateNextExpiry();
+        } finally {
+            leasedLock.unlock();
+        }
+    }
+
+    private void updateNextExpiry() {
+        nextExpiry = leased.isEmpty() ? Long.MAX_VALUE : leased.peek().visibleFrom;
+    }
+
+    /**
+     * A message with the Lease observed when it was queued, and the epoch millis that lease ends at
+     */
+    private static class Candidate {
+        private final Message message;
+        private final Lease lease;
+        private final long visibleFrom;
+
+        private Candidate(Message message, Lease lease) {
+            this.message = message;
+            this.lease = lease;
+            this.visibleFrom = lease.getVisibleFromMillis();
+        }
+    }
+}
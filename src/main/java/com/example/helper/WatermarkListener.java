@@ -0,0 +1,21 @@
+package com.example.helper;
+
+/**
+ * Told when a bounded queue fills up past its high watermark, and when it drains back below its low watermark,
+ * so that producers can slow down before pushes overflow. Called on the thread of the push or delete.
+ */
+public interface WatermarkListener {
+    WatermarkListener NONE = new WatermarkListener() {
+        @Override
+        public void onHighWatermark(String queueURL) {
+        }
+
+        @Override
+        public void onLowWatermark(String queueURL) {
+        }
+    };
+
+    void onHighWatermark(String queueURL);
+
+    void onLowWatermark(String queueURL);
+}
@@ -0,0 +1,67 @@
+package com.example.model;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * Immutable visibility state of a Message.
+ * <p>
+ * Every change of visibility creates a new Lease with the next generation, so a consumer can claim a message
+ * by compare-and-set from the Lease it observed: exactly one consumer wins, even if the same visibleFrom
+ * is computed by several of them.
+ * <p>
+ * visibleFrom is kept in epoch millis, so checking visibility allocates nothing and is not affected by DST shifts.
+ * The LocalDateTime accessors convert in the system default zone.
+ */
+public final class Lease {
+    private final long visibleFrom;
+    private final long generation;
+
+    public Lease(long visibleFromMillis, long generation) {
+        this.visibleFrom = visibleFromMillis;
+        this.generation = generation;
+    }
+
+    public Lease(LocalDateTime visibleFrom, long generation) {
+        this(toEpochMilli(visibleFrom), generation);
+    }
+
+    /**
+     * Gets the epoch millis from which the message is visible
+     */
+    public long getVisibleFromMillis() {
+        return visibleFrom;
+    }
+
+    public LocalDateTime getVisibleFrom() {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(visibleFrom), ZoneId.systemDefault());
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Creates the lease following this one
+     */
+    public Lease next(long visibleFromMillis) {
+        return new Lease(visibleFromMillis, generation + 1);
+    }
+
+    public Lease next(LocalDateTime visibleFrom) {
+        return next(toEpochMilli(visibleFrom));
+    }
+
+    static long toEpochMilli(LocalDateTime dateTime) {
+        return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    @Override
+    public String toString() {
+        return "Lease{" +
+                "visibleFrom=" + getVisibleFrom() +
+                ", generation=" + generation +
+                '}';
+    }
+}
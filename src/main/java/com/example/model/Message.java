@@ -1,13 +1,18 @@
 package com.example.model;
 
+import java.time.Clock;
 import java.time.LocalDateTime;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * Generic schema for Message which is eventually queued
  */
 public class Message {
+    private static final AtomicReferenceFieldUpdater<Message, Lease> LEASE =
+            AtomicReferenceFieldUpdater.newUpdater(Message.class, Lease.class, "lease");
+
     private String id;
     private String receiptHandle;
     private String content;
@@ -15,24 +20,29 @@ public class Message {
     /**
      * Field to know when a message is visible.
      * The whole invisibilityTimeout concept works with this field.
-     * Every time a message is pulled from queue, this is set to current LocalDateTime + invisibilityDuration
-     * By calling isVisible() (which compares current_time with `visibleFrom`),
+     * Every time a message is pulled from queue, this is set to a Lease until current time + invisibilityDuration
+     * By calling isVisible() (which compares current epoch millis with `visibleFrom` of the lease),
      * we know if this message should be visible in the queue or not still.
+     * Leases are immutable and only replaced atomically, see claim().
      */
-    private LocalDateTime visibleFrom;
+    private volatile Lease lease;
 
     public Message(String content) {
         this.id = UUID.randomUUID().toString();
         this.receiptHandle = UUID.randomUUID().toString();
         this.content = content;
-        this.visibleFrom = LocalDateTime.now();
+        this.lease = new Lease(System.currentTimeMillis(), 0);
     }
 
-    public Message(String id, String receiptHandle, String content, LocalDateTime visibleFrom) {
+    public Message(String id, String receiptHandle, String content, long visibleFromMillis) {
         this.id = id;
         this.receiptHandle = receiptHandle;
         this.content = content;
-        this.visibleFrom = visibleFrom;
+        this.lease = new Lease(visibleFromMillis, 0);
+    }
+
+    public Message(String id, String receiptHandle, String content, LocalDateTime visibleFrom) {
+        this(id, receiptHandle, content, Lease.toEpochMilli(visibleFrom));
     }
 
     public String getId() {
@@ -51,15 +61,64 @@ public class Message {
      * checks if this message is visible in queue
      */
     public boolean isVisible() {
-        return LocalDateTime.now().isEqual(visibleFrom) || LocalDateTime.now().isAfter(visibleFrom);
+        return isVisible(System.currentTimeMillis());
+    }
+
+    /**
+     * checks if this message is visible in queue at the current time of clock
+     */
+    public boolean isVisible(Clock clock) {
+        return isVisible(clock.millis());
+    }
+
+    /**
+     * checks if this message is visible in queue at given epoch millis
+     */
+    public boolean isVisible(long nowMillis) {
+        return nowMillis >= lease.getVisibleFromMillis();
+    }
+
+    /**
+     * Gets the epoch millis from which this message is visible
+     */
+    public long getVisibleFromMillis() {
+        return lease.getVisibleFromMillis();
     }
 
     public LocalDateTime getVisibleFrom() {
-        return visibleFrom;
+        return lease.getVisibleFrom();
+    }
+
+    /**
+     * Unconditionally replaces the lease of this message
+     */
+    public void setVisibleFromMillis(long visibleFromMillis) {
+        Lease current;
+        do {
+            current = lease;
+        } while (!LEASE.compareAndSet(this, current, current.next(visibleFromMillis)));
     }
 
     public void setVisibleFrom(LocalDateTime visibleFrom) {
-        this.visibleFrom = visibleFrom;
+        setVisibleFromMillis(Lease.toEpochMilli(visibleFrom));
+    }
+
+    public Lease getLease() {
+        return lease;
+    }
+
+    /**
+     * Atomically replaces the lease, only if it is still the expected one
+     *
+     * @return new lease if this caller won the message, else null
+     */
+    public Lease claim(Lease expected, long visibleFromMillis) {
+        Lease next = expected.next(visibleFromMillis);
+        return LEASE.compareAndSet(this, expected, next) ? next : null;
+    }
+
+    public Lease claim(Lease expected, LocalDateTime visibleFrom) {
+        return claim(expected, Lease.toEpochMilli(visibleFrom));
     }
 
     @Override
@@ -71,12 +130,12 @@ public class Message {
                 Objects.equals(id, message.id) &&
                         Objects.equals(receiptHandle, message.receiptHandle) &&
                         Objects.equals(content, message.content) &&
-                        Objects.equals(visibleFrom, message.visibleFrom);
+                        getVisibleFromMillis() == message.getVisibleFromMillis();
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(id, receiptHandle, content, visibleFrom);
+        return Objects.hash(id, receiptHandle, content, getVisibleFromMillis());
     }
 
     @Override
@@ -85,7 +144,7 @@ public class Message {
                 "id='" + id + '\'' +
                 ", receiptHandle='" + receiptHandle + '\'' +
                 ", content='" + content + '\'' +
-                ", visibleFrom=" + visibleFrom +
+                ", visibleFrom=" + getVisibleFrom() +
                 '}';
     }
 }
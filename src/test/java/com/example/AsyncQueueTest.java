@@ -0,0 +1,128 @@
+package com.example;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQSAsyncClient;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.example.helper.FileQueueHelper;
+import com.example.model.Message;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class AsyncQueueTest {
+    private static final String queueURL = "queue";
+    private Message testMessage1 = new Message("hello1");
+    private Message testMessage2 = new Message("hello2");
+
+    @Test
+    public void fromBlocking_shouldComplete_withResultsOfBlockingService() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        AsyncQueueService queueService = AsyncQueueService.fromBlocking(new InMemoryQueueService(Duration.ofSeconds(10)), executor);
+
+        assertEquals(Lists.newArrayList(true, true), queueService.pushBatch(queueURL, Lists.newArrayList(testMessage1, testMessage2)).get());
+        Message message = queueService.pull(queueURL).get().get();
+        assertEquals(testMessage1, message);
+        assertTrue(queueService.delete(queueURL, message).get());
+        assertEquals(Lists.newArrayList(testMessage2), queueService.pullBatch(queueURL, 10).get());
+        executor.shutdown();
+    }
+
+    @Test
+    public void asyncFileQueue_pullWithWait_shouldComplete_onPush() throws Exception {
+        FileQueueHelper fileQueueHelper = mock(FileQueueHelper.class);
+        when(fileQueueHelper.queueExists(queueURL)).thenReturn(true);
+        when(fileQueueHelper.readMessages(queueURL)).thenReturn(Lists.newArrayList()).thenReturn(Lists.newArrayList(testMessage1));
+        AsyncFileQueueService queueService = new AsyncFileQueueService(new FileQueueService(fileQueueHelper, Duration.ofSeconds(10)), 1);
+
+        CompletableFuture<Optional<Message>> pulled = queueService.pull(queueURL, Duration.ofSeconds(10));
+        Thread.sleep(100);
+        assertFalse(pulled.isDone());
+        // the waiting pull holds no I/O thread, so the push can run on the single one
+        assertTrue(queueService.push(queueURL, testMessage2).get(5, TimeUnit.SECONDS));
+
+        assertEquals(testMessage1, pulled.get(5, TimeUnit.SECONDS).get());
+        queueService.shutdown();
+    }
+
+    @Test
+    public void asyncFileQueue_pullWithWait_shouldComplete_withEmptyOptional_ifNoMessageIsAvailableWithinMaxWait() throws Exception {
+        FileQueueHelper fileQueueHelper = mock(FileQueueHelper.class);
+        when(fileQueueHelper.queueExists(queueURL)).thenReturn(true);
+        when(fileQueueHelper.readMessages(queueURL)).thenReturn(Lists.newArrayList());
+        AsyncFileQueueService queueService = new AsyncFileQueueService(new FileQueueService(fileQueueHelper, Duration.ofSeconds(10)), 1);
+
+        assertFalse(queueService.pull(queueURL, Duration.ofMillis(100)).get(5, TimeUnit.SECONDS).isPresent());
+        queueService.shutdown();
+    }
+
+    @Test
+    public void asyncSqs_pull_shouldComplete_fromReceiveCallback() throws Exception {
+        AmazonSQSAsyncClient sqsClient = mock(AmazonSQSAsyncClient.class);
+        doAnswer(invocation -> {
+            ReceiveMessageRequest request = (ReceiveMessageRequest) invocation.getArguments()[0];
+            AsyncHandler<ReceiveMessageRequest, ReceiveMessageResult> handler = handler(invocation.getArguments()[1]);
+            handler.onSuccess(request, new ReceiveMessageResult().withMessages(
+                    new com.amazonaws.services.sqs.model.Message().withMessageId("id1").withReceiptHandle("receipt1").withBody("hello1")));
+            return null;
+        }).when(sqsClient).receiveMessageAsync(any(ReceiveMessageRequest.class), any(AsyncHandler.class));
+
+        Message message = new AsyncSqsQueueService(sqsClient).pull(queueURL).get().get();
+
+        assertEquals("receipt1", message.getReceiptHandle());
+        assertEquals("hello1", message.getContent());
+    }
+
+    @Test
+    public void asyncSqs_pullWithWait_shouldRoundUp_subSecondWait_AndSpendWholeMaxWait() throws Exception {
+        AmazonSQSAsyncClient sqsClient = mock(AmazonSQSAsyncClient.class);
+        doAnswer(invocation -> {
+            ReceiveMessageRequest request = (ReceiveMessageRequest) invocation.getArguments()[0];
+            Thread.sleep(100);
+            handler(invocation.getArguments()[1]).onSuccess(request, new ReceiveMessageResult());
+            return null;
+        }).when(sqsClient).receiveMessageAsync(any(ReceiveMessageRequest.class), any(AsyncHandler.class));
+
+        assertFalse(new AsyncSqsQueueService(sqsClient).pull(queueURL, Duration.ofMillis(1500)).get().isPresent());
+
+        // the mock answers before WaitTimeSeconds, so receives repeat until maxWait elapses, none with a zero wait
+        ArgumentCaptor<ReceiveMessageRequest> requests = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+        verify(sqsClient, atLeast(2)).receiveMessageAsync(requests.capture(), any(AsyncHandler.class));
+        assertEquals(Integer.valueOf(2), requests.getAllValues().get(0).getWaitTimeSeconds());
+        assertTrue(requests.getAllValues().stream().allMatch(request -> request.getWaitTimeSeconds() >= 1));
+    }
+
+    @Test
+    public void asyncSqs_pull_shouldComplete_exceptionally_onError() throws Exception {
+        AmazonSQSAsyncClient sqsClient = mock(AmazonSQSAsyncClient.class);
+        doAnswer(invocation -> {
+            handler(invocation.getArguments()[1]).onError(new IOException("unreachable"));
+            return null;
+        }).when(sqsClient).receiveMessageAsync(any(ReceiveMessageRequest.class), any(AsyncHandler.class));
+
+        try {
+            new AsyncSqsQueueService(sqsClient).pull(queueURL).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static AsyncHandler<ReceiveMessageRequest, ReceiveMessageResult> handler(Object argument) {
+        return (AsyncHandler<ReceiveMessageRequest, ReceiveMessageResult>) argument;
+    }
+}
@@ -0,0 +1,149 @@
+package com.example;
+
+import com.example.helper.OverflowPolicy;
+import com.example.helper.QueueCapacity;
+import com.example.helper.WatermarkListener;
+import com.example.model.Message;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BoundedQueueTest {
+    private static final String queueURL = "queue";
+    private Message testMessage1 = new Message("hello1");
+    private Message testMessage2 = new Message("hello2");
+    private Message testMessage3 = new Message("hello3");
+    private QueueService inMemoryQueueService = new InMemoryQueueService(Duration.ofSeconds(5));
+    private ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void push_shouldReturnFalse_ifQueueIsFull_withRejectPolicy() {
+        QueueService queueService = new BoundedQueueService(inMemoryQueueService,
+                new QueueCapacity(2, Long.MAX_VALUE, OverflowPolicy.REJECT));
+
+        assertEquals(Lists.newArrayList(true, true, false),
+                queueService.pushBatch(queueURL, Lists.newArrayList(testMessage1, testMessage2, testMessage3)));
+
+        // a pulled message still counts until deleted
+        Message pulled = queueService.pull(queueURL).get();
+        assertFalse(queueService.push(queueURL, testMessage3));
+        assertTrue(queueService.delete(queueURL, pulled));
+        assertTrue(queueService.push(queueURL, testMessage3));
+    }
+
+    @Test
+    public void push_shouldReturnFalse_ifQueueHasNoRoomForItsBytes() {
+        QueueService queueService = new BoundedQueueService(inMemoryQueueService,
+                new QueueCapacity(Long.MAX_VALUE, 10, OverflowPolicy.REJECT));
+
+        assertTrue(queueService.push(queueURL, testMessage1));
+        assertFalse(queueService.push(queueURL, testMessage2));
+        assertFalse(queueService.push(queueURL, new Message("longer than the capacity")));
+    }
+
+    @Test
+    public void push_shouldBeBounded_byTheCapacityOfItsQueue() {
+        QueueCapacity small = new QueueCapacity(1, Long.MAX_VALUE, OverflowPolicy.REJECT);
+        QueueCapacity large = new QueueCapacity(2, Long.MAX_VALUE, OverflowPolicy.REJECT);
+        QueueService queueService = new BoundedQueueService(inMemoryQueueService,
+                queue -> queue.equals(queueURL) ? small : large, WatermarkListener.NONE);
+
+        assertEquals(Lists.newArrayList(true, false), queueService.pushBatch(queueURL, Lists.newArrayList(testMessage1, testMessage2)));
+        assertEquals(Lists.newArrayList(true, true, false),
+                queueService.pushBatch("other", Lists.newArrayList(testMessage1, testMessage2, testMessage3)));
+    }
+
+    @Test
+    public void delete_shouldReleaseBytesOfPull_ifMessageCarriesItsReceiptHandleOnly() {
+        QueueService queueService = new BoundedQueueService(inMemoryQueueService,
+                new QueueCapacity(Long.MAX_VALUE, 10, OverflowPolicy.REJECT));
+        assertTrue(queueService.push(queueURL, testMessage1));
+        Message pulled = queueService.pull(queueURL).get();
+
+        // as LocalSqsServer deletes
+        assertTrue(queueService.delete(queueURL, new Message(null, pulled.getReceiptHandle(), null, 0L)));
+
+        assertTrue(queueService.push(queueURL, testMessage2));
+    }
+
+    @Test
+    public void push_shouldBlockUntilDelete_withBlockPolicy() throws Exception {
+        QueueService queueService = new BoundedQueueService(inMemoryQueueService,
+                new QueueCapacity(1, Long.MAX_VALUE, OverflowPolicy.block(Duration.ofSeconds(10))));
+        queueService.push(queueURL, testMessage1);
+
+        Future<Boolean> blocked = executor.submit(() -> queueService.push(queueURL, testMessage2));
+        Thread.sleep(100);
+        assertFalse(blocked.isDone());
+        queueService.delete(queueURL, queueService.pull(queueURL).get());
+
+        assertTrue(blocked.get(5, TimeUnit.SECONDS));
+        assertEquals(testMessage2, queueService.pull(queueURL).get());
+    }
+
+    @Test
+    public void push_shouldReturnFalse_whenBlockTimesOut() {
+        QueueService queueService = new BoundedQueueService(inMemoryQueueService,
+                new QueueCapacity(1, Long.MAX_VALUE, OverflowPolicy.block(Duration.ofMillis(100))));
+        queueService.push(queueURL, testMessage1);
+        long start = System.nanoTime();
+
+        assertFalse(queueService.push(queueURL, testMessage2));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void push_shouldDeleteOldestMessage_withDropOldestPolicy() {
+        QueueService queueService = new BoundedQueueService(inMemoryQueueService,
+                new QueueCapacity(2, Long.MAX_VALUE, OverflowPolicy.DROP_OLDEST));
+        queueService.push(queueURL, testMessage1);
+        queueService.push(queueURL, testMessage2);
+
+        assertTrue(queueService.push(queueURL, testMessage3));
+
+        assertEquals(Lists.newArrayList(testMessage2, testMessage3), queueService.pullBatch(queueURL, 10));
+        // all in flight, nothing to drop
+        assertFalse(queueService.push(queueURL, testMessage1));
+    }
+
+    @Test
+    public void watermarkListener_shouldBeCalledOnce_perCrossing() {
+        List<String> crossings = Lists.newArrayList();
+        QueueService queueService = new BoundedQueueService(inMemoryQueueService,
+                new QueueCapacity(4, Long.MAX_VALUE, OverflowPolicy.REJECT, 0.75, 0.25),
+                new WatermarkListener() {
+                    @Override
+                    public void onHighWatermark(String queueURL) {
+                        crossings.add("high " + queueURL);
+                    }
+
+                    @Override
+                    public void onLowWatermark(String queueURL) {
+                        crossings.add("low " + queueURL);
+                    }
+                });
+        queueService.pushBatch(queueURL, Lists.newArrayList(testMessage1, testMessage2, testMessage3, new Message("hello4")));
+        assertEquals(Lists.newArrayList("high queue"), crossings);
+
+        List<Message> pulled = queueService.pullBatch(queueURL, 10);
+        queueService.deleteBatch(queueURL, pulled.subList(0, 2));
+        assertEquals(Lists.newArrayList("high queue"), crossings);
+        queueService.delete(queueURL, pulled.get(2));
+
+        assertEquals(Lists.newArrayList("high queue", "low queue"), crossings);
+    }
+}
@@ -2,15 +2,24 @@ package com.example;
 
 import com.example.exception.FileQueueException;
 import com.example.helper.FileQueueHelper;
+import com.example.helper.FsyncPolicy;
 import com.example.model.Message;
 import com.google.common.collect.Lists;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
 import java.io.IOException;
+import java.time.Clock;
 import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
@@ -115,7 +124,7 @@ public class FileQueueTest {
     @Test
     public void delete_shouldReturn_True_IfMessageIsFoundInQueueAndRemoved() throws IOException {
         doReturn(false).when(fileQueueHelper).queueExists(queueURL);
-        doReturn(Lists.newArrayList(testMessage1)).when(fileQueueHelper).readMessages(queueURL);
+        doReturn(true).when(fileQueueHelper).deleteMessage(queueURL, testMessage1.getReceiptHandle());
 
         queueService.push(queueURL, testMessage1);
         assertTrue(queueService.delete(queueURL, testMessage1));
@@ -123,7 +132,8 @@ public class FileQueueTest {
         verify(fileQueueHelper, times(2)).takeLock(queueURL);
         verify(fileQueueHelper).createFileQueue(queueURL);
         verify(fileQueueHelper).writeMultipleMessages(queueURL, Lists.newArrayList(testMessage1));
-        verify(fileQueueHelper).writeMultipleMessages(queueURL, Lists.newArrayList());
+        verify(fileQueueHelper).deleteMessage(queueURL, testMessage1.getReceiptHandle());
+        verify(fileQueueHelper, never()).readMessages(queueURL);
         verify(fileQueueHelper, times(2)).releaseLock(queueURL);
     }
 
@@ -134,11 +144,148 @@ public class FileQueueTest {
 
     @Test(expected = FileQueueException.class)
     public void delete_shouldReleaseLock_AndThrow_FileQueueException_ifIOExceptionFound() throws IOException {
-        doThrow(new IOException()).when(fileQueueHelper).readMessages(queueURL);
+        doThrow(new IOException()).when(fileQueueHelper).deleteMessage(queueURL, testMessage1.getReceiptHandle());
 
         queueService.delete(queueURL, testMessage1);
 
         verify(fileQueueHelper).takeLock(queueURL);
         verify(fileQueueHelper).releaseLock(queueURL);
     }
+
+    @Test
+    public void pushBatch_shouldAppendAllMessages_withinASingleLock() throws IOException {
+        doReturn(true).when(fileQueueHelper).queueExists(queueURL);
+
+        assertEquals(Lists.newArrayList(true, true), queueService.pushBatch(queueURL, Lists.newArrayList(testMessage1, testMessage2)));
+
+        verify(fileQueueHelper).takeLock(queueURL);
+        verify(fileQueueHelper).appendMultipleMessages(queueURL, Lists.newArrayList(testMessage1, testMessage2));
+        verify(fileQueueHelper).releaseLock(queueURL);
+    }
+
+    @Test
+    public void pullBatch_shouldLeaseVisibleMessages_withASingleReadAndWrite() throws IOException {
+        Message invisibleMessage = new Message("id", "receipt", "hello", LocalDateTime.now().plusMinutes(1));
+        doReturn(true).when(fileQueueHelper).queueExists(queueURL);
+        doReturn(Lists.newArrayList(invisibleMessage, testMessage1, testMessage2)).when(fileQueueHelper).readMessages(queueURL);
+
+        assertEquals(Lists.newArrayList(testMessage1), queueService.pullBatch(queueURL, 1));
+
+        assertFalse(testMessage1.isVisible());
+        assertTrue(testMessage2.isVisible());
+        verify(fileQueueHelper).readMessages(queueURL);
+        verify(fileQueueHelper).writeMultipleMessages(queueURL, Lists.newArrayList(invisibleMessage, testMessage1, testMessage2));
+        verify(fileQueueHelper).releaseLock(queueURL);
+    }
+
+    @Test
+    public void deleteBatch_shouldDeleteAllMessages_withinASingleLock() throws IOException {
+        List<String> receiptHandles = Lists.newArrayList(testMessage1.getReceiptHandle(), testMessage2.getReceiptHandle());
+        doReturn(Lists.newArrayList(true, false)).when(fileQueueHelper).deleteMessages(queueURL, receiptHandles);
+
+        assertEquals(Lists.newArrayList(true, false), queueService.deleteBatch(queueURL, Lists.newArrayList(testMessage1, testMessage2)));
+
+        verify(fileQueueHelper).takeLock(queueURL);
+        verify(fileQueueHelper).releaseLock(queueURL);
+    }
+
+    @Test
+    public void pullWithWait_shouldBeWokenUp_byPush() throws Exception {
+        when(fileQueueHelper.queueExists(queueURL)).thenReturn(true);
+        when(fileQueueHelper.readMessages(queueURL)).thenReturn(Lists.newArrayList()).thenReturn(Lists.newArrayList(testMessage1));
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        executor.schedule(() -> queueService.push(queueURL, testMessage1), 100, TimeUnit.MILLISECONDS);
+
+        long start = System.nanoTime();
+        Optional<Message> receivedMessage = queueService.pull(queueURL, Duration.ofSeconds(10));
+
+        assertEquals(testMessage1, receivedMessage.get());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        executor.shutdown();
+    }
+
+    @Test
+    public void pullWithWait_shouldReturn_emptyOptional_ifNoMessageIsAvailableWithinMaxWait() throws IOException {
+        when(fileQueueHelper.queueExists(queueURL)).thenReturn(true);
+        when(fileQueueHelper.readMessages(queueURL)).thenReturn(Lists.newArrayList());
+
+        assertFalse(queueService.pull(queueURL, Duration.ofMillis(100)).isPresent());
+    }
+
+    @Test
+    public void pull_shouldLeaseInPlace_withoutReadingAllMessages_ifQueueSupportsIt() throws IOException {
+        when(fileQueueHelper.queueExists(queueURL)).thenReturn(true);
+        when(fileQueueHelper.canLeaseInPlace(queueURL)).thenReturn(true);
+        when(fileQueueHelper.leaseVisibleMessages(eq(queueURL), eq(1), anyLong(), anyLong())).thenReturn(Lists.newArrayList(testMessage1));
+
+        assertEquals(testMessage1, queueService.pull(queueURL).get());
+
+        verify(fileQueueHelper, never()).readMessages(queueURL);
+        verify(fileQueueHelper, never()).writeMultipleMessages(eq(queueURL), anyListOf(Message.class));
+        verify(fileQueueHelper).releaseLock(queueURL);
+    }
+
+    @Test
+    public void pullWithVisibilityTimeout_shouldLeaseMessage_forGivenDuration() throws IOException {
+        when(fileQueueHelper.queueExists(queueURL)).thenReturn(true);
+        when(fileQueueHelper.canLeaseInPlace(queueURL)).thenReturn(true);
+        when(fileQueueHelper.leaseVisibleMessages(eq(queueURL), eq(1), anyLong(), anyLong())).thenReturn(Lists.newArrayList(testMessage1));
+
+        assertEquals(testMessage1, queueService.pull(queueURL, Duration.ZERO, Duration.ofMinutes(5)).get());
+
+        ArgumentCaptor<Long> leaseEnd = ArgumentCaptor.forClass(Long.class);
+        verify(fileQueueHelper).leaseVisibleMessages(eq(queueURL), eq(1), anyLong(), leaseEnd.capture());
+        assertTrue(leaseEnd.getValue() > System.currentTimeMillis() + Duration.ofMinutes(4).toMillis());
+    }
+
+    @Test
+    public void changeVisibility_shouldUpdateMessage_withinLock() throws IOException {
+        when(fileQueueHelper.changeVisibility(eq(queueURL), eq(testMessage1.getReceiptHandle()), anyLong(), anyLong())).thenReturn(true);
+
+        assertTrue(queueService.changeVisibility(queueURL, testMessage1, Duration.ofMinutes(1)));
+        assertFalse(queueService.changeVisibility(queueURL, testMessage2, Duration.ofMinutes(1)));
+
+        verify(fileQueueHelper, times(2)).takeLock(queueURL);
+        verify(fileQueueHelper, times(2)).releaseLock(queueURL);
+    }
+
+    @Test
+    public void timeToWait_shouldWaitUntilNextVisibleMessage_byInjectedClock() throws IOException {
+        FileQueueService clocked = FileQueueService.builder(fileQueueHelper, Duration.ofSeconds(10))
+                .clock(Clock.fixed(Instant.ofEpochMilli(1000), ZoneOffset.UTC)).build();
+        when(fileQueueHelper.queueExists(queueURL)).thenReturn(true);
+        when(fileQueueHelper.readMessages(queueURL)).thenReturn(Lists.newArrayList(new Message("id", "receipt", "hello", 1200L)));
+
+        assertFalse(clocked.pull(queueURL).isPresent());
+
+        Duration wait = clocked.timeToWait(queueURL, System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+        assertEquals(Duration.ofMillis(200), wait);
+    }
+
+    @Test
+    public void pushWithDelay_shouldWriteMessage_invisibleUntilDelayElapses() throws IOException {
+        when(fileQueueHelper.queueExists(queueURL)).thenReturn(true);
+        long start = System.currentTimeMillis();
+
+        assertTrue(queueService.push(queueURL, testMessage1, Duration.ofMinutes(1)));
+
+        ArgumentCaptor<Message> written = ArgumentCaptor.forClass(Message.class);
+        verify(fileQueueHelper).appendSingleMessage(eq(queueURL), written.capture());
+        assertEquals(testMessage1.getReceiptHandle(), written.getValue().getReceiptHandle());
+        assertTrue(written.getValue().getVisibleFromMillis() >= start + Duration.ofMinutes(1).toMillis());
+        assertTrue(testMessage1.getVisibleFromMillis() < start + Duration.ofMinutes(1).toMillis());
+    }
+
+    @Test
+    public void push_shouldBeGroupCommitted_AndForced_withAlwaysFsyncPolicy() throws IOException {
+        FileQueueService groupCommitted = FileQueueService.builder(fileQueueHelper, Duration.ofSeconds(10)).fsyncPolicy(FsyncPolicy.ALWAYS).build();
+        when(fileQueueHelper.queueExists(queueURL)).thenReturn(true);
+
+        assertTrue(groupCommitted.push(queueURL, testMessage1));
+
+        verify(fileQueueHelper).appendMultipleMessages(queueURL, Lists.newArrayList(testMessage1));
+        verify(fileQueueHelper).force(queueURL);
+        verify(fileQueueHelper, never()).appendSingleMessage(queueURL, testMessage1);
+        groupCommitted.shutdown();
+    }
 }
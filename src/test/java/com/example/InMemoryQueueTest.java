@@ -1,15 +1,24 @@
 package com.example;
 
+import com.example.helper.FsyncPolicy;
+import com.example.helper.MutableClock;
+import com.example.helper.QueueJournal;
+import com.example.helper.StripePlacement;
 import com.example.model.Message;
 import com.google.common.collect.Lists;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -19,6 +28,9 @@ public class InMemoryQueueTest {
     Message testMessage2 = new Message("hello2");
     private QueueService queueService;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Before
     public void setup() {
         Duration invisibilityDuration = Duration.ofSeconds(5);
@@ -53,9 +65,12 @@ public class InMemoryQueueTest {
 
     @Test
     public void pull_shouldReturn_message_ifAnInvisibleMessageBecomeVisibleAfterCertainDuration() {
+        MutableClock clock = new MutableClock();
+        queueService = InMemoryQueueService.builder(Duration.ofMillis(50)).clock(clock).build();
         queueService.push(queueURL, testMessage1);
-        Optional<Message> message = queueService.pull(queueURL);
-        message.ifPresent(m -> m.setVisibleFrom(LocalDateTime.now()));
+        queueService.pull(queueURL);
+        assertFalse(queueService.pull(queueURL).isPresent());
+        clock.advance(Duration.ofMillis(50));
 
         Optional<Message> receivedMessage = queueService.pull(queueURL);
 
@@ -89,6 +104,58 @@ public class InMemoryQueueTest {
         assertTrue(receivedMessage.get().getVisibleFrom().isAfter(LocalDateTime.now()));
     }
 
+    @Test
+    public void pull_shouldNotReturn_messagePushedWithFutureVisibility_untilItIsVisible() {
+        MutableClock clock = new MutableClock();
+        queueService = InMemoryQueueService.builder(Duration.ofSeconds(5)).clock(clock).build();
+        queueService.push(queueURL, new Message("id", "receipt", "hello", clock.millis() + 50));
+        assertFalse(queueService.pull(queueURL).isPresent());
+        clock.advance(Duration.ofMillis(50));
+
+        assertEquals("receipt", queueService.pull(queueURL).get().getReceiptHandle());
+    }
+
+    @Test
+    public void pull_shouldDeliverEachMessage_toExactlyOneConsumer() throws Exception {
+        int messageCount = 10000;
+        for (int i = 0; i < messageCount; i++) {
+            queueService.push(queueURL, new Message("message-" + i));
+        }
+        // same messages queued a second time, must not be delivered twice
+        queueService.push(queueURL, testMessage1);
+        queueService.push(queueURL, testMessage1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        Set<String> received = ConcurrentHashMap.newKeySet();
+        AtomicInteger deliveries = new AtomicInteger();
+        List<Future<?>> consumers = Lists.newArrayList();
+        for (int i = 0; i < 8; i++) {
+            consumers.add(executor.submit(() -> {
+                Optional<Message> message;
+                while ((message = queueService.pull(queueURL)).isPresent()) {
+                    deliveries.incrementAndGet();
+                    received.add(message.get().getReceiptHandle());
+                }
+            }));
+        }
+        for (Future<?> consumer : consumers) {
+            consumer.get();
+        }
+        executor.shutdown();
+
+        assertEquals(messageCount + 1, deliveries.get());
+        assertEquals(messageCount + 1, received.size());
+    }
+
+    @Test
+    public void delete_shouldRemove_inFlightMessage() {
+        queueService.push(queueURL, testMessage1);
+        queueService.pull(queueURL);
+
+        assertTrue(queueService.delete(queueURL, testMessage1));
+        assertFalse(queueService.delete(queueURL, testMessage1));
+    }
+
     @Test
     public void delete_shouldReturn_True_IfMessageIsFoundInQueueAndRemoved() {
         queueService.push(queueURL, testMessage1);
@@ -101,4 +168,212 @@ public class InMemoryQueueTest {
         assertFalse(queueService.delete(queueURL, testMessage1));
     }
 
+    @Test
+    public void pullBatch_shouldReturn_upToMaxMessages_inFIFOOrder() {
+        Message testMessage3 = new Message("hello3");
+        queueService.pushBatch(queueURL, Lists.newArrayList(testMessage1, testMessage2, testMessage3));
+
+        assertEquals(Lists.newArrayList(testMessage1, testMessage2), queueService.pullBatch(queueURL, 2));
+        assertEquals(Lists.newArrayList(testMessage3), queueService.pullBatch(queueURL, 2));
+        assertTrue(queueService.pullBatch(queueURL, 2).isEmpty());
+    }
+
+    @Test
+    public void deleteBatch_shouldReturn_resultOfEachMessage() {
+        queueService.pushBatch(queueURL, Lists.newArrayList(testMessage1, testMessage2));
+        queueService.delete(queueURL, testMessage2);
+
+        assertEquals(Lists.newArrayList(true, false), queueService.deleteBatch(queueURL, Lists.newArrayList(testMessage1, testMessage2)));
+        assertTrue(queueService.pullBatch(queueURL, 10).isEmpty());
+    }
+
+    @Test
+    public void pullWithWait_shouldReturn_messagePushedWhileWaiting() throws Exception {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        executor.schedule(() -> queueService.push(queueURL, testMessage1), 100, TimeUnit.MILLISECONDS);
+
+        Optional<Message> receivedMessage = queueService.pull(queueURL, Duration.ofSeconds(5));
+
+        assertEquals(testMessage1, receivedMessage.get());
+        executor.shutdown();
+    }
+
+    @Test
+    public void pullWithWait_shouldReturn_message_whenItsInvisibilityPeriodExpires() {
+        queueService = new InMemoryQueueService(Duration.ofMillis(100));
+        queueService.push(queueURL, testMessage1);
+        queueService.pull(queueURL);
+
+        assertEquals(testMessage1, queueService.pull(queueURL, Duration.ofSeconds(5)).get());
+    }
+
+    @Test
+    public void pullWithWait_shouldReturn_emptyOptional_ifNoMessageIsAvailableWithinMaxWait() {
+        long start = System.nanoTime();
+
+        assertFalse(queueService.pull(queueURL, Duration.ofMillis(100)).isPresent());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+
+    @Test
+    public void journaledQueues_shouldBeRecovered_withLeasedMessagesVisibleAgain() throws Exception {
+        File directory = folder.newFolder("journal");
+        InMemoryQueueService persistent = InMemoryQueueService.builder(Duration.ofMinutes(5))
+                .journal(new QueueJournal(directory, FsyncPolicy.ALWAYS), Duration.ofMinutes(1)).build();
+        persistent.pushBatch(queueURL, Lists.newArrayList(testMessage1, testMessage2));
+        persistent.delete(queueURL, persistent.pull(queueURL).get());
+        persistent.pull(queueURL);
+        persistent.shutdown();
+
+        InMemoryQueueService recovered = InMemoryQueueService.builder(Duration.ofMinutes(5))
+                .journal(new QueueJournal(directory, FsyncPolicy.ALWAYS), Duration.ofMinutes(1)).build();
+
+        assertEquals(testMessage2.getReceiptHandle(), recovered.pull(queueURL).get().getReceiptHandle());
+        assertFalse(recovered.pull(queueURL).isPresent());
+        recovered.shutdown();
+    }
+
+    @Test
+    public void stripedQueues_shouldPushPullAndDeleteMessages_acrossStripes() {
+        QueueService striped = InMemoryQueueService.builder(Duration.ofSeconds(5)).stripes(4, StripePlacement.RANDOM_PROBE).build();
+        striped.pushBatch(queueURL, Lists.newArrayList(testMessage1, testMessage2));
+
+        List<Message> pulled = striped.pullBatch(queueURL, 10);
+
+        assertEquals(2, pulled.size());
+        assertTrue(pulled.containsAll(Lists.newArrayList(testMessage1, testMessage2)));
+        assertEquals(Lists.newArrayList(true, true), striped.deleteBatch(queueURL, pulled));
+        assertFalse(striped.pull(queueURL).isPresent());
+    }
+
+    @Test
+    public void offHeapQueues_shouldPushPullAndDeleteMessages() {
+        QueueService offHeap = InMemoryQueueService.builder(Duration.ofSeconds(5)).slabSize(64 * 1024).build();
+        offHeap.pushBatch(queueURL, Lists.newArrayList(testMessage1, testMessage2));
+
+        Message pulled = offHeap.pull(queueURL).get();
+
+        assertEquals(testMessage1.getReceiptHandle(), pulled.getReceiptHandle());
+        assertEquals(testMessage1.getContent(), pulled.getContent());
+        assertTrue(offHeap.delete(queueURL, pulled));
+        assertFalse(offHeap.delete(queueURL, pulled));
+        assertEquals(testMessage2.getReceiptHandle(), offHeap.pull(queueURL).get().getReceiptHandle());
+        assertFalse(offHeap.pull(queueURL).isPresent());
+    }
+
+    @Test
+    public void pull_shouldCheckVisibility_atTimeOfInjectedClock() {
+        MutableClock clock = new MutableClock();
+        for (QueueService clocked : Lists.newArrayList(InMemoryQueueService.builder(Duration.ofSeconds(5)).clock(clock).build(),
+                InMemoryQueueService.builder(Duration.ofSeconds(5)).clock(clock).stripes(4, StripePlacement.RANDOM_PROBE).build(),
+                InMemoryQueueService.builder(Duration.ofSeconds(5)).clock(clock).slabSize(64 * 1024).build())) {
+            clocked.push(queueURL, new Message("id", "rh", "hello", clock.millis()));
+
+            assertEquals(clock.millis() + 5000, clocked.pull(queueURL).get().getVisibleFromMillis());
+            clock.advance(Duration.ofMillis(4999));
+            assertFalse(clocked.pull(queueURL).isPresent());
+            clock.advance(Duration.ofMillis(1));
+            assertEquals("rh", clocked.pull(queueURL).get().getReceiptHandle());
+        }
+    }
+
+    @Test
+    public void pullWithVisibilityTimeout_shouldLeaseMessage_forGivenDurationInsteadOfDefault() {
+        MutableClock clock = new MutableClock();
+        queueService = InMemoryQueueService.builder(Duration.ofSeconds(5)).clock(clock).build();
+        queueService.push(queueURL, testMessage1);
+
+        assertEquals(testMessage1, queueService.pull(queueURL, Duration.ZERO, Duration.ofMillis(50)).get());
+        assertFalse(queueService.pull(queueURL).isPresent());
+        clock.advance(Duration.ofMillis(50));
+        assertEquals(testMessage1, queueService.pull(queueURL).get());
+    }
+
+    @Test
+    public void changeVisibility_shouldExtendOrRelease_leaseOfInFlightMessage() {
+        MutableClock clock = new MutableClock();
+        for (QueueService service : Lists.newArrayList(InMemoryQueueService.builder(Duration.ofMillis(50)).clock(clock).build(),
+                InMemoryQueueService.builder(Duration.ofMillis(50)).clock(clock).stripes(4, StripePlacement.RANDOM_PROBE).build(),
+                InMemoryQueueService.builder(Duration.ofMillis(50)).clock(clock).slabSize(64 * 1024).build())) {
+            service.push(queueURL, new Message("id", "rh", "hello", clock.millis()));
+            Message pulled = service.pull(queueURL).get();
+
+            assertTrue(service.changeVisibility(queueURL, pulled, Duration.ofSeconds(5)));
+            clock.advance(Duration.ofMillis(50));
+            assertFalse(service.pull(queueURL).isPresent());
+            assertTrue(service.changeVisibility(queueURL, pulled, Duration.ZERO));
+            assertEquals(pulled.getReceiptHandle(), service.pull(queueURL).get().getReceiptHandle());
+        }
+    }
+
+    @Test
+    public void changeVisibility_shouldReturn_False_ifMessageIsVisibleOrDeleted() {
+        MutableClock clock = new MutableClock();
+        queueService = InMemoryQueueService.builder(Duration.ofMillis(50)).clock(clock).build();
+        queueService.push(queueURL, testMessage1);
+        assertFalse(queueService.changeVisibility(queueURL, testMessage1, Duration.ofSeconds(5)));
+
+        Message pulled = queueService.pull(queueURL).get();
+        clock.advance(Duration.ofMillis(50));
+        assertFalse(queueService.changeVisibility(queueURL, pulled, Duration.ofSeconds(5)));
+
+        pulled = queueService.pull(queueURL).get();
+        queueService.delete(queueURL, pulled);
+        assertFalse(queueService.changeVisibility(queueURL, pulled, Duration.ofSeconds(5)));
+    }
+
+    @Test
+    public void pushWithDelay_shouldDeliverMessage_onceDelayElapses() {
+        long start = System.currentTimeMillis();
+        long visibleFrom = testMessage1.getVisibleFromMillis();
+        assertTrue(queueService.push(queueURL, testMessage1, Duration.ofMillis(200)));
+
+        // the message of the caller is left unchanged
+        assertEquals(visibleFrom, testMessage1.getVisibleFromMillis());
+        assertFalse(queueService.pull(queueURL).isPresent());
+        assertEquals(testMessage1.getReceiptHandle(), queueService.pull(queueURL, Duration.ofSeconds(2)).get().getReceiptHandle());
+        assertTrue(System.currentTimeMillis() - start >= 200);
+    }
+
+    @Test
+    public void delete_shouldCancelDelivery_ofDelayedMessage_notDeliveredYet() throws Exception {
+        File directory = folder.newFolder("delayed");
+        InMemoryQueueService persistent = InMemoryQueueService.builder(Duration.ofSeconds(5))
+                .journal(new QueueJournal(directory, FsyncPolicy.ALWAYS), Duration.ofMinutes(1)).build();
+        persistent.push(queueURL, testMessage1, Duration.ofMillis(100));
+
+        assertTrue(persistent.delete(queueURL, testMessage1));
+        assertFalse(persistent.delete(queueURL, testMessage1));
+        assertFalse(persistent.pull(queueURL, Duration.ofMillis(300)).isPresent());
+        persistent.shutdown();
+
+        InMemoryQueueService recovered = InMemoryQueueService.builder(Duration.ofSeconds(5))
+                .journal(new QueueJournal(directory, FsyncPolicy.ALWAYS), Duration.ofMinutes(1)).build();
+        assertFalse(recovered.pull(queueURL, Duration.ofMillis(300)).isPresent());
+        recovered.shutdown();
+    }
+
+    @Test
+    public void changeVisibility_shouldReschedule_delayedMessage_notDeliveredYet() {
+        queueService.push(queueURL, testMessage1, Duration.ofMinutes(5));
+
+        assertTrue(queueService.changeVisibility(queueURL, testMessage1, Duration.ofMillis(100)));
+
+        assertFalse(queueService.pull(queueURL).isPresent());
+        assertEquals(testMessage1.getReceiptHandle(), queueService.pull(queueURL, Duration.ofSeconds(2)).get().getReceiptHandle());
+    }
+
+    @Test
+    public void pushAt_shouldDeliverMessage_atOnce_ifDeliverAtIsPast_AndInOrderOfDeliverAt_otherwise() {
+        queueService.pushAt(queueURL, testMessage1, LocalDateTime.now().plusSeconds(1));
+        queueService.pushAt(queueURL, testMessage2, LocalDateTime.now().plusNanos(300_000_000));
+        Message past = new Message("past");
+        queueService.pushAt(queueURL, past, LocalDateTime.now().minusSeconds(1));
+
+        assertEquals(past.getReceiptHandle(), queueService.pull(queueURL).get().getReceiptHandle());
+        assertFalse(queueService.pull(queueURL).isPresent());
+        assertEquals(testMessage2.getReceiptHandle(), queueService.pull(queueURL, Duration.ofSeconds(2)).get().getReceiptHandle());
+        assertEquals(testMessage1.getReceiptHandle(), queueService.pull(queueURL, Duration.ofSeconds(2)).get().getReceiptHandle());
+    }
 }
@@ -0,0 +1,72 @@
+package com.example;
+
+import com.example.model.Message;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class LeaseRenewerTest {
+    private static final String queueURL = "queue";
+    private static final Duration visibilityTimeout = Duration.ofMillis(200);
+    private QueueService queueService;
+    private LeaseRenewer leaseRenewer;
+
+    @Before
+    public void setup() {
+        queueService = new InMemoryQueueService(visibilityTimeout);
+        leaseRenewer = new LeaseRenewer(queueService, visibilityTimeout);
+    }
+
+    @After
+    public void tearDown() {
+        leaseRenewer.close();
+    }
+
+    @Test
+    public void renew_shouldKeepMessageInvisible_untilClosed() throws InterruptedException {
+        queueService.push(queueURL, new Message("hello"));
+        Message pulled = queueService.pull(queueURL).get();
+
+        LeaseRenewer.Renewal renewal = leaseRenewer.renew(queueURL, pulled);
+        TimeUnit.MILLISECONDS.sleep(600);
+        assertFalse(queueService.pull(queueURL).isPresent());
+        assertFalse(renewal.isLost());
+
+        renewal.close();
+        assertEquals(pulled.getReceiptHandle(), queueService.pull(queueURL, Duration.ofSeconds(2)).get().getReceiptHandle());
+    }
+
+    @Test
+    public void renew_shouldStop_AndReportLeaseLost_onceMessageIsDeleted() throws InterruptedException {
+        queueService.push(queueURL, new Message("hello"));
+        Message pulled = queueService.pull(queueURL).get();
+
+        LeaseRenewer.Renewal renewal = leaseRenewer.renew(queueURL, pulled);
+        queueService.delete(queueURL, pulled);
+        TimeUnit.MILLISECONDS.sleep(300);
+
+        assertTrue(renewal.isLost());
+    }
+
+    @Test
+    public void renew_shouldStopAfterFirstLostRenewal_evenIfDueAtOnce() throws InterruptedException {
+        QueueService spied = spy(queueService);
+        spied.push(queueURL, new Message("hello"));
+        Message pulled = spied.pull(queueURL).get();
+        spied.delete(queueURL, pulled);
+
+        try (LeaseRenewer fastRenewer = new LeaseRenewer(spied, Duration.ofMillis(2))) {
+            LeaseRenewer.Renewal renewal = fastRenewer.renew(queueURL, pulled);
+            TimeUnit.MILLISECONDS.sleep(100);
+
+            assertTrue(renewal.isLost());
+            verify(spied, times(1)).changeVisibility(queueURL, pulled, Duration.ofMillis(2));
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.example;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.PurgeQueueRequest;
+import com.example.model.Message;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LocalSqsServerTest {
+    private LocalSqsServer server;
+    private AmazonSQSClient sqsClient;
+    private QueueService queueService;
+    private String queueURL;
+
+    @Before
+    public void setup() throws IOException {
+        server = new LocalSqsServer(new InMemoryQueueService(Duration.ofSeconds(30)), 0);
+        server.start();
+        sqsClient = new AmazonSQSClient(new BasicAWSCredentials("access", "secret"));
+        sqsClient.setEndpoint(server.getEndpoint());
+        queueService = new SqsQueueService(sqsClient, Duration.ofSeconds(30));
+        queueURL = server.getQueueUrl("queue");
+    }
+
+    @After
+    public void tearDown() {
+        sqsClient.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void pushPullDelete_shouldGoThroughSdkClient() {
+        assertTrue(queueService.push(queueURL, new Message("hello <&> é")));
+
+        Message pulled = queueService.pull(queueURL).get();
+        assertEquals("hello <&> é", pulled.getContent());
+        assertFalse(queueService.pull(queueURL).isPresent());
+        assertTrue(queueService.delete(queueURL, pulled));
+        assertEquals("queue", queueURL.substring(queueURL.lastIndexOf('/') + 1));
+    }
+
+    @Test
+    public void batches_shouldGoThroughSdkClient() {
+        List<Message> messages = Lists.newArrayList();
+        for (int i = 0; i < 12; i++) {
+            messages.add(new Message("hello" + i));
+        }
+
+        assertEquals(12, queueService.pushBatch(queueURL, messages).stream().filter(pushed -> pushed).count());
+        List<Message> pulled = queueService.pullBatch(queueURL, 15);
+        assertEquals(12, pulled.size());
+        assertEquals("hello11", pulled.get(11).getContent());
+        assertEquals(12, queueService.deleteBatch(queueURL, pulled).stream().filter(deleted -> deleted).count());
+    }
+
+    @Test
+    public void pullWithWait_shouldLongPoll_untilPush() throws Exception {
+        ExecutorService consumer = Executors.newSingleThreadExecutor();
+        try {
+            Future<Optional<Message>> pulled = consumer.submit(() -> queueService.pull(queueURL, Duration.ofSeconds(5)));
+            TimeUnit.MILLISECONDS.sleep(200);
+            assertFalse(pulled.isDone());
+
+            queueService.push(queueURL, new Message("hello1"));
+
+            assertEquals("hello1", pulled.get(5, TimeUnit.SECONDS).get().getContent());
+        } finally {
+            consumer.shutdownNow();
+        }
+    }
+
+    @Test
+    public void changeVisibility_shouldGoThroughSdkClient() {
+        queueService.push(queueURL, new Message("hello1"));
+
+        Message pulled = queueService.pull(queueURL, Duration.ZERO, Duration.ZERO).get();
+        // leased for no time by the receive itself, then for a minute
+        pulled = queueService.pull(queueURL).get();
+        assertTrue(queueService.changeVisibility(queueURL, pulled, Duration.ofMinutes(1)));
+        assertFalse(queueService.pull(queueURL).isPresent());
+        assertTrue(queueService.changeVisibility(queueURL, pulled, Duration.ZERO));
+
+        Message released = queueService.pull(queueURL).get();
+        assertTrue(queueService.delete(queueURL, released));
+        assertFalse(queueService.changeVisibility(queueURL, released, Duration.ofMinutes(1)));
+    }
+
+    @Test
+    public void pushWithDelay_shouldGoThroughSdkClient() {
+        assertTrue(queueService.push(queueURL, new Message("hello1"), Duration.ofSeconds(1)));
+
+        assertFalse(queueService.pull(queueURL).isPresent());
+        assertEquals("hello1", queueService.pull(queueURL, Duration.ofSeconds(3)).get().getContent());
+    }
+
+    @Test(expected = AmazonServiceException.class)
+    public void unsupportedAction_shouldFail_withSqsError() {
+        sqsClient.purgeQueue(new PurgeQueueRequest(queueURL));
+    }
+}
@@ -0,0 +1,82 @@
+package com.example;
+
+import com.example.helper.QueueDepth;
+import com.example.helper.QueueMetrics;
+import com.example.helper.QueueOperation;
+import com.example.helper.QueueStats;
+import com.example.model.Message;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class MeteredQueueTest {
+    private static final String queueURL = "queue";
+    private Message testMessage1 = new Message("hello1");
+    private Message testMessage2 = new Message("hello2");
+    private QueueMetrics metrics = new QueueMetrics();
+    private QueueService queueService = new MeteredQueueService(new InMemoryQueueService(Duration.ofSeconds(5)), metrics);
+
+    @Test
+    public void operations_shouldBeCounted_perQueue() {
+        queueService.pushBatch(queueURL, Lists.newArrayList(testMessage1, testMessage2));
+        Message pulled = queueService.pull(queueURL).get();
+        queueService.delete(queueURL, pulled);
+        queueService.delete(queueURL, pulled);
+        queueService.pull("other");
+
+        QueueStats stats = metrics.getQueueStats(queueURL);
+        assertEquals(2, stats.getPushes());
+        assertEquals(1, stats.getPulls());
+        assertEquals(1, stats.getDeletes());
+        assertEquals(1, stats.getFailedDeletes());
+        assertEquals(1, stats.getLatency(QueueOperation.PUSH_BATCH).getCount());
+        assertEquals(2, stats.getLatency(QueueOperation.DELETE).getCount());
+        assertEquals(1, metrics.getQueueStats("other").getEmptyPulls());
+    }
+
+    @Test
+    public void queueDepth_shouldBeRead_fromTheGaugesOfTheService() {
+        queueService.pushBatch(queueURL, Lists.newArrayList(testMessage1, testMessage2));
+        queueService.push(queueURL, new Message("delayed"), Duration.ofMinutes(1));
+        queueService.pull(queueURL);
+
+        QueueDepth depth = metrics.getQueueDepth(queueURL).get();
+        assertEquals(1, depth.getVisible());
+        assertEquals(1, depth.getInFlight());
+        assertEquals(1, depth.getDelayed());
+        assertEquals(3, depth.getDepth());
+        assertEquals(0, metrics.getQueueDepth("other").get().getDepth());
+    }
+
+    @Test
+    public void operation_shouldCountAsFailed_ifThrowing() {
+        QueueService failing = mock(QueueService.class);
+        when(failing.push(anyString(), any(Message.class))).thenThrow(new IllegalStateException());
+        QueueService meteredService = new MeteredQueueService(failing, metrics);
+
+        try {
+            meteredService.push(queueURL, testMessage1);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(1, metrics.getQueueStats(queueURL).getFailedPushes());
+            assertEquals(1, metrics.getQueueStats(queueURL).getLatency(QueueOperation.PUSH).getCount());
+        }
+    }
+
+    @Test
+    public void disabledMetrics_shouldRecordNothing() {
+        QueueService meteredService = new MeteredQueueService(new InMemoryQueueService(Duration.ofSeconds(5)), QueueMetrics.DISABLED);
+
+        assertTrue(meteredService.push(queueURL, testMessage1));
+        assertTrue(meteredService.pull(queueURL).isPresent());
+
+        assertTrue(QueueMetrics.DISABLED.getQueueStats().isEmpty());
+    }
+}
@@ -0,0 +1,132 @@
+package com.example;
+
+import com.example.model.Message;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+
+public class PartitionedFileQueueTest {
+    private static final String queueURL = "queue";
+    private Message testMessage1 = new Message("hello1");
+    private Message testMessage2 = new Message("hello2");
+    private FileQueueService root0;
+    private FileQueueService root1;
+    private PartitionedFileQueueService queueService;
+
+    @Before
+    public void setup() {
+        root0 = mock(FileQueueService.class);
+        root1 = mock(FileQueueService.class);
+        doReturn(Optional.empty()).when(root0).pullIfExists(anyString());
+        doReturn(Optional.empty()).when(root1).pullIfExists(anyString());
+        queueService = new PartitionedFileQueueService(Lists.newArrayList(root0, root1), 4);
+    }
+
+    @Test
+    public void push_shouldSpreadMessagesRoundRobin_OverPartitionsAndRoots() {
+        for (int i = 0; i < 4; i++) {
+            queueService.push(queueURL, testMessage1);
+        }
+
+        verify(root0).push("queue/partitions/0", testMessage1);
+        verify(root1).push("queue/partitions/1", testMessage1);
+        verify(root0).push("queue/partitions/2", testMessage1);
+        verify(root1).push("queue/partitions/3", testMessage1);
+    }
+
+    @Test
+    public void push_withKey_shouldAlwaysRouteKeyToSamePartition() {
+        int partition = queueService.partitionOf("customer-42");
+
+        queueService.push(queueURL, "customer-42", testMessage1);
+        queueService.push(queueURL, "customer-42", testMessage2);
+
+        FileQueueService root = partition % 2 == 0 ? root0 : root1;
+        verify(root).push("queue/partitions/" + partition, testMessage1);
+        verify(root).push("queue/partitions/" + partition, testMessage2);
+    }
+
+    @Test
+    public void pull_shouldRotateFirstPartition_AndTagReceiptHandleWithPartition() {
+        doReturn(Optional.of(testMessage1)).when(root0).pullIfExists(anyString());
+        doReturn(Optional.of(testMessage2)).when(root1).pullIfExists(anyString());
+
+        Message first = queueService.pull(queueURL).get();
+        Message second = queueService.pull(queueURL).get();
+
+        assertEquals("0/" + testMessage1.getReceiptHandle(), first.getReceiptHandle());
+        assertEquals("1/" + testMessage2.getReceiptHandle(), second.getReceiptHandle());
+        assertEquals(testMessage2.getContent(), second.getContent());
+    }
+
+    @Test
+    public void pull_shouldTryAllPartitions_BeforeReturningEmpty() {
+        doReturn(Optional.of(testMessage1)).when(root1).pullIfExists("queue/partitions/3");
+
+        assertEquals("3/" + testMessage1.getReceiptHandle(), queueService.pull(queueURL).get().getReceiptHandle());
+
+        doReturn(Optional.empty()).when(root1).pullIfExists("queue/partitions/3");
+        assertFalse(queueService.pull(queueURL).isPresent());
+        verify(root0, times(2)).pullIfExists("queue/partitions/0");
+        verify(root0, times(2)).pullIfExists("queue/partitions/2");
+    }
+
+    @Test
+    public void pull_withMaxWait_shouldWaitForChangeOfAnyPartition() {
+        doReturn(Duration.ofMillis(50)).when(root0).timeToWait(anyString(), anyLong());
+        doReturn(Duration.ofMillis(50)).when(root1).timeToWait(anyString(), anyLong());
+
+        assertFalse(queueService.pull(queueURL, Duration.ofMillis(100)).isPresent());
+
+        verify(root0, atLeastOnce()).onChange(eq("queue/partitions/0"), anyLong(), any(Duration.class), any(Runnable.class));
+        verify(root1, atLeastOnce()).onChange(eq("queue/partitions/3"), anyLong(), any(Duration.class), any(Runnable.class));
+    }
+
+    @Test
+    public void delete_shouldDeleteFromPartitionOfReceiptHandle_WithOriginalReceiptHandle() {
+        doReturn(Optional.of(testMessage1)).when(root1).pullIfExists("queue/partitions/1");
+        doReturn(true).when(root1).delete("queue/partitions/1", testMessage1);
+
+        Message pulled = queueService.pull(queueURL).get();
+
+        assertTrue(queueService.delete(queueURL, pulled));
+        verify(root1).delete("queue/partitions/1", testMessage1);
+    }
+
+    @Test
+    public void delete_shouldReturnFalse_ifReceiptHandleHasNoPartition() {
+        assertFalse(queueService.delete(queueURL, testMessage1));
+        assertFalse(queueService.delete(queueURL, new Message("id", "9/rh", "content", LocalDateTime.now())));
+
+        verify(root0, never()).delete(anyString(), any(Message.class));
+        verify(root1, never()).delete(anyString(), any(Message.class));
+    }
+
+    @Test
+    public void pullBatch_andDeleteBatch_shouldWorkAcrossPartitions() {
+        doReturn(Optional.of(testMessage1)).when(root0).pullIfExists("queue/partitions/0");
+        doReturn(Optional.of(testMessage2)).when(root0).pullIfExists("queue/partitions/2");
+        doReturn(Lists.newArrayList()).when(root0).pullBatch(anyString(), anyInt());
+        doReturn(Lists.newArrayList(true)).when(root0).deleteBatch(eq("queue/partitions/0"), any());
+        doReturn(Lists.newArrayList(false)).when(root0).deleteBatch(eq("queue/partitions/2"), any());
+
+        List<Message> pulled = queueService.pullBatch(queueURL, 10);
+
+        assertEquals(2, pulled.size());
+        assertEquals(Lists.newArrayList(true, false), queueService.deleteBatch(queueURL, pulled));
+        verify(root0).deleteBatch("queue/partitions/0", Lists.newArrayList(testMessage1));
+        verify(root0).deleteBatch("queue/partitions/2", Lists.newArrayList(testMessage2));
+    }
+}
@@ -0,0 +1,399 @@
+package com.example;
+
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.MessageNotInflightException;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.example.helper.BatchingPolicy;
+import com.example.helper.PrefetchPolicy;
+import com.example.helper.QueueDepth;
+import com.example.model.Message;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class SqsQueueTest {
+    private static final String queueURL = "https://sqs.us-east-1.amazonaws.com/123456789012/queue";
+    private QueueService queueService;
+    private AmazonSQSClient sqsClient;
+    private SqsQueueService bufferedService;
+
+    @Before
+    public void setup() {
+        sqsClient = mock(AmazonSQSClient.class);
+        queueService = new SqsQueueService(sqsClient);
+    }
+
+    @After
+    public void tearDown() {
+        if (bufferedService != null) {
+            bufferedService.shutdown();
+        }
+    }
+
+    @Test
+    public void pushBatch_shouldSend_batchesOfTenMessages_AndReturnResultOfEachMessage() {
+        List<Message> messages = Lists.newArrayList();
+        for (int i = 0; i < 12; i++) {
+            messages.add(new Message("hello" + i));
+        }
+        when(sqsClient.sendMessageBatch(any(SendMessageBatchRequest.class)))
+                .thenReturn(new SendMessageBatchResult().withSuccessful(new SendMessageBatchResultEntry().withId("9")))
+                .thenReturn(new SendMessageBatchResult().withSuccessful(new SendMessageBatchResultEntry().withId("1")));
+
+        List<Boolean> results = queueService.pushBatch(queueURL, messages);
+
+        ArgumentCaptor<SendMessageBatchRequest> requests = ArgumentCaptor.forClass(SendMessageBatchRequest.class);
+        verify(sqsClient, times(2)).sendMessageBatch(requests.capture());
+        assertEquals(10, requests.getAllValues().get(0).getEntries().size());
+        assertEquals("hello11", requests.getAllValues().get(1).getEntries().get(1).getMessageBody());
+        assertEquals(Lists.newArrayList(9, 11), trueIndexes(results));
+    }
+
+    @Test
+    public void pushBatch_shouldSplit_batchesOver256KB() {
+        String body = Strings.repeat("x", 100 * 1024);
+        when(sqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenReturn(new SendMessageBatchResult()
+                .withSuccessful(new SendMessageBatchResultEntry().withId("0"), new SendMessageBatchResultEntry().withId("1")))
+                .thenReturn(new SendMessageBatchResult().withSuccessful(new SendMessageBatchResultEntry().withId("0")));
+
+        List<Boolean> results = queueService.pushBatch(queueURL, Lists.newArrayList(new Message(body), new Message(body), new Message(body)));
+
+        ArgumentCaptor<SendMessageBatchRequest> requests = ArgumentCaptor.forClass(SendMessageBatchRequest.class);
+        verify(sqsClient, times(2)).sendMessageBatch(requests.capture());
+        assertEquals(2, requests.getAllValues().get(0).getEntries().size());
+        assertEquals(1, requests.getAllValues().get(1).getEntries().size());
+        assertEquals(Lists.newArrayList(true, true, true), results);
+    }
+
+    @Test
+    public void pullBatch_shouldReceive_upToMaxMessages() {
+        when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(new ReceiveMessageResult().withMessages(
+                new com.amazonaws.services.sqs.model.Message().withMessageId("id1").withReceiptHandle("receipt1").withBody("hello1"),
+                new com.amazonaws.services.sqs.model.Message().withMessageId("id2").withReceiptHandle("receipt2").withBody("hello2")))
+                .thenReturn(new ReceiveMessageResult());
+
+        List<Message> messages = queueService.pullBatch(queueURL, 15);
+
+        ArgumentCaptor<ReceiveMessageRequest> requests = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+        verify(sqsClient, times(2)).receiveMessage(requests.capture());
+        assertEquals(Integer.valueOf(10), requests.getAllValues().get(0).getMaxNumberOfMessages());
+        assertEquals(Integer.valueOf(10), requests.getAllValues().get(1).getMaxNumberOfMessages());
+        assertEquals("receipt2", messages.get(1).getReceiptHandle());
+        assertEquals(2, messages.size());
+    }
+
+    @Test
+    public void deleteBatch_shouldDelete_byReceiptHandle_AndReturnResultOfEachMessage() {
+        Message message1 = new Message("hello1");
+        Message message2 = new Message("hello2");
+        when(sqsClient.deleteMessageBatch(any(DeleteMessageBatchRequest.class)))
+                .thenReturn(new DeleteMessageBatchResult().withSuccessful(new DeleteMessageBatchResultEntry().withId("0")));
+
+        assertEquals(Lists.newArrayList(true, false), queueService.deleteBatch(queueURL, Lists.newArrayList(message1, message2)));
+
+        ArgumentCaptor<DeleteMessageBatchRequest> request = ArgumentCaptor.forClass(DeleteMessageBatchRequest.class);
+        verify(sqsClient).deleteMessageBatch(request.capture());
+        assertEquals(message2.getReceiptHandle(), request.getValue().getEntries().get(1).getReceiptHandle());
+    }
+
+    @Test
+    public void getQueueDepth_shouldRead_approximateCountsOfTheQueue_inASingleRequest() {
+        when(sqsClient.getQueueAttributes(any(GetQueueAttributesRequest.class))).thenReturn(new GetQueueAttributesResult()
+                .addAttributesEntry("ApproximateNumberOfMessages", "5")
+                .addAttributesEntry("ApproximateNumberOfMessagesNotVisible", "2"));
+
+        QueueDepth depth = new SqsQueueService(sqsClient).getQueueDepth(queueURL);
+
+        assertEquals(5, depth.getVisible());
+        assertEquals(2, depth.getInFlight());
+        assertEquals(0, depth.getDelayed());
+        ArgumentCaptor<GetQueueAttributesRequest> request = ArgumentCaptor.forClass(GetQueueAttributesRequest.class);
+        verify(sqsClient).getQueueAttributes(request.capture());
+        assertEquals(queueURL, request.getValue().getQueueUrl());
+        assertEquals(3, request.getValue().getAttributeNames().size());
+    }
+
+    @Test
+    public void pullWithWait_shouldLongPoll_withWaitTimeSecondsOfAtMost20Seconds() {
+        when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(new ReceiveMessageResult().withMessages(
+                new com.amazonaws.services.sqs.model.Message().withMessageId("id1").withReceiptHandle("receipt1").withBody("hello1")));
+
+        assertEquals("receipt1", queueService.pull(queueURL, Duration.ofMinutes(1)).get().getReceiptHandle());
+
+        ArgumentCaptor<ReceiveMessageRequest> request = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+        verify(sqsClient).receiveMessage(request.capture());
+        assertEquals(Integer.valueOf(20), request.getValue().getWaitTimeSeconds());
+    }
+
+    @Test
+    public void pullWithVisibilityTimeout_shouldSet_VisibilityTimeoutOfReceive() {
+        when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(new ReceiveMessageResult().withMessages(sqsMessage(1)));
+
+        assertEquals("receipt1", queueService.pull(queueURL, Duration.ZERO, Duration.ofMinutes(5)).get().getReceiptHandle());
+
+        ArgumentCaptor<ReceiveMessageRequest> request = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+        verify(sqsClient).receiveMessage(request.capture());
+        assertEquals(Integer.valueOf(300), request.getValue().getVisibilityTimeout());
+    }
+
+    @Test
+    public void changeVisibility_shouldRoundUp_subSecondVisibilityTimeout() {
+        assertTrue(queueService.changeVisibility(queueURL, new Message("id1", "receipt1", "hello1", 0L), Duration.ofMillis(500)));
+
+        ArgumentCaptor<ChangeMessageVisibilityRequest> request = ArgumentCaptor.forClass(ChangeMessageVisibilityRequest.class);
+        verify(sqsClient).changeMessageVisibility(request.capture());
+        assertEquals(Integer.valueOf(1), request.getValue().getVisibilityTimeout());
+    }
+
+    @Test
+    public void changeVisibility_shouldSend_ChangeMessageVisibility_AndReturnFalse_ifMessageIsNotInFlight() {
+        Message message = new Message("id1", "receipt1", "hello1", 0L);
+        Message expired = new Message("id2", "receipt2", "hello2", 0L);
+        doThrow(new MessageNotInflightException("not in flight")).when(sqsClient).changeMessageVisibility(
+                argThat(new ArgumentMatcher<ChangeMessageVisibilityRequest>() {
+                    @Override
+                    public boolean matches(Object request) {
+                        return "receipt2".equals(((ChangeMessageVisibilityRequest) request).getReceiptHandle());
+                    }
+                }));
+
+        assertTrue(queueService.changeVisibility(queueURL, message, Duration.ofSeconds(45)));
+        assertFalse(queueService.changeVisibility(queueURL, expired, Duration.ofSeconds(45)));
+
+        ArgumentCaptor<ChangeMessageVisibilityRequest> request = ArgumentCaptor.forClass(ChangeMessageVisibilityRequest.class);
+        verify(sqsClient, times(2)).changeMessageVisibility(request.capture());
+        assertEquals(queueURL, request.getAllValues().get(0).getQueueUrl());
+        assertEquals(Integer.valueOf(45), request.getAllValues().get(0).getVisibilityTimeout());
+        assertFalse(message.isVisible());
+    }
+
+    @Test
+    public void pushWithDelay_shouldSend_DelaySeconds() {
+        assertTrue(queueService.push(queueURL, new Message("hello1"), Duration.ofSeconds(90)));
+
+        ArgumentCaptor<SendMessageRequest> request = ArgumentCaptor.forClass(SendMessageRequest.class);
+        verify(sqsClient).sendMessage(request.capture());
+        assertEquals(Integer.valueOf(90), request.getValue().getDelaySeconds());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pushWithDelay_shouldFail_ifDelayExceeds15Minutes() {
+        queueService.push(queueURL, new Message("hello1"), Duration.ofMinutes(16));
+    }
+
+    @Test
+    public void prefetch_shouldServePulls_fromMessagesReceivedAhead() {
+        receiveOnce(sqsMessage(1), sqsMessage(2), sqsMessage(3));
+        bufferedService = SqsQueueService.builder(sqsClient, Duration.ofSeconds(30))
+                .prefetch(PrefetchPolicy.buffer(5, Duration.ofSeconds(5))).build();
+
+        assertEquals("receipt1", bufferedService.pull(queueURL, Duration.ofSeconds(5)).get().getReceiptHandle());
+        assertEquals("receipt2", bufferedService.pull(queueURL, Duration.ofSeconds(5)).get().getReceiptHandle());
+        assertEquals("receipt3", bufferedService.pull(queueURL, Duration.ofSeconds(5)).get().getReceiptHandle());
+        assertFalse(bufferedService.pull(queueURL).isPresent());
+        assertTrue(bufferedService.pullBatch(queueURL, 10).isEmpty());
+
+        ArgumentCaptor<ReceiveMessageRequest> requests = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+        verify(sqsClient, atLeastOnce()).receiveMessage(requests.capture());
+        ReceiveMessageRequest first = requests.getAllValues().get(0);
+        assertEquals(Integer.valueOf(5), first.getMaxNumberOfMessages());
+        assertEquals(Integer.valueOf(20), first.getWaitTimeSeconds());
+        assertEquals(Integer.valueOf(30), first.getVisibilityTimeout());
+    }
+
+    @Test
+    public void prefetch_shouldRoundUp_subSecondVisibilityTimeout() {
+        receiveOnce(sqsMessage(1));
+        bufferedService = SqsQueueService.builder(sqsClient, Duration.ofMillis(1500))
+                .prefetch(PrefetchPolicy.buffer(5, Duration.ZERO)).build();
+
+        assertEquals("receipt1", bufferedService.pull(queueURL, Duration.ofSeconds(5)).get().getReceiptHandle());
+
+        ArgumentCaptor<ReceiveMessageRequest> requests = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+        verify(sqsClient, atLeastOnce()).receiveMessage(requests.capture());
+        assertEquals(Integer.valueOf(2), requests.getAllValues().get(0).getVisibilityTimeout());
+    }
+
+    @Test
+    public void prefetch_shouldDropMessages_withTooLittleVisibilityLeft() {
+        receiveOnce(sqsMessage(1));
+        bufferedService = SqsQueueService.builder(sqsClient, Duration.ofSeconds(30))
+                .prefetch(PrefetchPolicy.buffer(5, Duration.ofSeconds(30))).build();
+
+        assertFalse(bufferedService.pull(queueURL, Duration.ofMillis(500)).isPresent());
+        verify(sqsClient, atLeastOnce()).receiveMessage(any(ReceiveMessageRequest.class));
+    }
+
+    @Test
+    public void shutdown_shouldMakeBufferedMessagesVisibleAgain() {
+        receiveOnce(sqsMessage(1), sqsMessage(2));
+        bufferedService = SqsQueueService.builder(sqsClient, Duration.ofSeconds(30))
+                .prefetch(PrefetchPolicy.buffer(5, Duration.ofSeconds(5))).build();
+
+        assertEquals("receipt1", bufferedService.pull(queueURL, Duration.ofSeconds(5)).get().getReceiptHandle());
+        // the next receive is only made once the messages of the first one are buffered
+        verify(sqsClient, timeout(5000).atLeast(2)).receiveMessage(any(ReceiveMessageRequest.class));
+        bufferedService.shutdown();
+
+        ArgumentCaptor<ChangeMessageVisibilityRequest> request = ArgumentCaptor.forClass(ChangeMessageVisibilityRequest.class);
+        verify(sqsClient).changeMessageVisibility(request.capture());
+        assertEquals("receipt2", request.getValue().getReceiptHandle());
+        assertEquals(Integer.valueOf(0), request.getValue().getVisibilityTimeout());
+    }
+
+    @Test
+    public void shutdown_shouldMakeVisibleAgain_messagesOfAReceiveReturningAfterIt() {
+        CountDownLatch shutDown = new CountDownLatch(1);
+        when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class))).thenAnswer(invocation -> {
+            // a long poll in flight is not interrupted
+            Uninterruptibles.awaitUninterruptibly(shutDown);
+            return new ReceiveMessageResult().withMessages(sqsMessage(1));
+        });
+        bufferedService = SqsQueueService.builder(sqsClient, Duration.ofSeconds(30))
+                .prefetch(PrefetchPolicy.buffer(5, Duration.ofSeconds(5))).build();
+
+        assertFalse(bufferedService.pull(queueURL).isPresent());
+        verify(sqsClient, timeout(5000)).receiveMessage(any(ReceiveMessageRequest.class));
+        bufferedService.shutdown();
+        shutDown.countDown();
+
+        ArgumentCaptor<ChangeMessageVisibilityRequest> request = ArgumentCaptor.forClass(ChangeMessageVisibilityRequest.class);
+        verify(sqsClient, timeout(5000)).changeMessageVisibility(request.capture());
+        assertEquals("receipt1", request.getValue().getReceiptHandle());
+        assertEquals(Integer.valueOf(0), request.getValue().getVisibilityTimeout());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void prefetchedPull_shouldFail_afterShutdown() {
+        bufferedService = SqsQueueService.builder(sqsClient, Duration.ofSeconds(30))
+                .prefetch(PrefetchPolicy.buffer(5, Duration.ofSeconds(5))).build();
+        bufferedService.shutdown();
+
+        bufferedService.pull("https://sqs.us-east-1.amazonaws.com/123456789012/other");
+    }
+
+    @Test
+    public void batching_shouldCoalesceConcurrentPushes_AndReturnResultOfEachEntry() throws Exception {
+        when(sqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenReturn(new SendMessageBatchResult()
+                .withSuccessful(new SendMessageBatchResultEntry().withId("0"), new SendMessageBatchResultEntry().withId("1"))
+                .withFailed(new BatchResultErrorEntry().withId("2")));
+        bufferedService = SqsQueueService.builder(sqsClient, Duration.ofSeconds(30))
+                .batching(BatchingPolicy.linger(Duration.ofMillis(200))).build();
+        ExecutorService producers = Executors.newFixedThreadPool(3);
+
+        try {
+            List<Future<Boolean>> pushes = Lists.newArrayList();
+            for (int i = 0; i < 3; i++) {
+                Message message = new Message("hello" + i);
+                pushes.add(producers.submit(() -> bufferedService.push(queueURL, message)));
+            }
+            int successful = 0;
+            for (Future<Boolean> push : pushes) {
+                successful += push.get() ? 1 : 0;
+            }
+            assertEquals(2, successful);
+        } finally {
+            producers.shutdownNow();
+        }
+
+        ArgumentCaptor<SendMessageBatchRequest> request = ArgumentCaptor.forClass(SendMessageBatchRequest.class);
+        verify(sqsClient).sendMessageBatch(request.capture());
+        assertEquals(3, request.getValue().getEntries().size());
+        verify(sqsClient, never()).sendMessage(any(SendMessageRequest.class));
+    }
+
+    @Test
+    public void batching_shouldSendLoneDelete_afterMaxLinger() {
+        when(sqsClient.deleteMessageBatch(any(DeleteMessageBatchRequest.class)))
+                .thenReturn(new DeleteMessageBatchResult().withSuccessful(new DeleteMessageBatchResultEntry().withId("0")));
+        bufferedService = SqsQueueService.builder(sqsClient, Duration.ofSeconds(30))
+                .batching(BatchingPolicy.linger(Duration.ofMillis(50))).build();
+        Message message = new Message("hello1");
+
+        assertTrue(bufferedService.delete(queueURL, message));
+
+        ArgumentCaptor<DeleteMessageBatchRequest> request = ArgumentCaptor.forClass(DeleteMessageBatchRequest.class);
+        verify(sqsClient).deleteMessageBatch(request.capture());
+        assertEquals(message.getReceiptHandle(), request.getValue().getEntries().get(0).getReceiptHandle());
+    }
+
+    @Test
+    public void batching_shouldNotSendBatchesOver256KB() throws Exception {
+        when(sqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenReturn(new SendMessageBatchResult()
+                .withSuccessful(new SendMessageBatchResultEntry().withId("0")));
+        bufferedService = SqsQueueService.builder(sqsClient, Duration.ofSeconds(30))
+                .batching(BatchingPolicy.linger(Duration.ofMillis(200))).build();
+        ExecutorService producers = Executors.newFixedThreadPool(2);
+        String body = Strings.repeat("x", 150 * 1024);
+
+        try {
+            Future<Boolean> push1 = producers.submit(() -> bufferedService.push(queueURL, new Message(body)));
+            Future<Boolean> push2 = producers.submit(() -> bufferedService.push(queueURL, new Message(body)));
+            assertTrue(push1.get() && push2.get());
+        } finally {
+            producers.shutdownNow();
+        }
+
+        ArgumentCaptor<SendMessageBatchRequest> requests = ArgumentCaptor.forClass(SendMessageBatchRequest.class);
+        verify(sqsClient, times(2)).sendMessageBatch(requests.capture());
+        assertEquals(1, requests.getAllValues().get(0).getEntries().size());
+        assertEquals(1, requests.getAllValues().get(1).getEntries().size());
+    }
+
+    /**
+     * Answers the first receive with messages, and the following ones with nothing after a short long poll
+     */
+    private void receiveOnce(com.amazonaws.services.sqs.model.Message... messages) {
+        AtomicBoolean received = new AtomicBoolean();
+        when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class))).thenAnswer(invocation -> {
+            if (received.compareAndSet(false, true)) {
+                return new ReceiveMessageResult().withMessages(messages);
+            }
+            Thread.sleep(50);
+            return new ReceiveMessageResult();
+        });
+    }
+
+    private static com.amazonaws.services.sqs.model.Message sqsMessage(int i) {
+        return new com.amazonaws.services.sqs.model.Message().withMessageId("id" + i).withReceiptHandle("receipt" + i).withBody("hello" + i);
+    }
+
+    private static List<Integer> trueIndexes(List<Boolean> results) {
+        List<Integer> indexes = Lists.newArrayList();
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i)) {
+                indexes.add(i);
+            }
+        }
+        return indexes;
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.helper;
+
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.*;
+
+public class CachedClockTest {
+
+    @Test
+    public void millis_shouldFollowSystemTime_withinResolution() throws Exception {
+        try (CachedClock clock = new CachedClock(Duration.ofMillis(5))) {
+            long first = clock.millis();
+            Thread.sleep(100);
+
+            assertTrue(clock.millis() >= first + 50);
+            assertTrue(Math.abs(System.currentTimeMillis() - clock.millis()) < 100);
+        }
+    }
+
+    @Test
+    public void millis_shouldStandStill_onceClosed() throws Exception {
+        CachedClock clock = new CachedClock(Duration.ofMillis(1));
+        clock.close();
+        Thread.sleep(20);
+        long stopped = clock.millis();
+        Thread.sleep(50);
+
+        assertEquals(stopped, clock.millis());
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.helper;
+
+import com.example.model.Message;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class FileQueueCompactorTest {
+    private static final String queueName = "queue";
+    private Message testMessage1 = new Message("hello1");
+    private Message testMessage2 = new Message("hello2");
+    private Message testMessage3 = new Message("hello3");
+    private Message testMessage4 = new Message("hello4");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private FileQueueHelper fileQueueHelper;
+    private FileQueueCompactor compactor;
+
+    @Before
+    public void setup() throws IOException {
+        fileQueueHelper = new FileQueueHelper(folder.getRoot().getPath(), RecordFormat.BINARY);
+        fileQueueHelper.createFileQueue(queueName);
+        fileQueueHelper.writeMultipleMessages(queueName, Lists.newArrayList(testMessage1, testMessage2, testMessage3));
+        compactor = new FileQueueCompactor(fileQueueHelper, new CompactionPolicy(0.3, 0, Duration.ofSeconds(1)));
+    }
+
+    @Test
+    public void compact_shouldDropDeletedRecords_AndKeepOffsetsOfLiveOnes() throws IOException {
+        fileQueueHelper.deleteMessage(queueName, testMessage2.getReceiptHandle());
+        long length = fileQueueHelper.getMessagesFile(queueName).length();
+
+        assertTrue(compactor.compact(queueName));
+
+        assertTrue(fileQueueHelper.getMessagesFile(queueName).length() < length);
+        assertEquals(receiptHandles(testMessage1, testMessage3), receiptHandles(fileQueueHelper.readMessages(queueName)));
+        length = fileQueueHelper.getMessagesFile(queueName).length();
+        // still deleted in place, through the offsets of the compacted file
+        assertTrue(fileQueueHelper.deleteMessage(queueName, testMessage3.getReceiptHandle()));
+        assertEquals(length, fileQueueHelper.getMessagesFile(queueName).length());
+        assertEquals(receiptHandles(testMessage1), receiptHandles(fileQueueHelper.readMessages(queueName)));
+    }
+
+    @Test
+    public void swap_shouldCatchUp_withChangesMadeWhileCopying() throws IOException {
+        fileQueueHelper.deleteMessage(queueName, testMessage1.getReceiptHandle());
+        FileQueueCompactor.Copy copy = compactor.copyLiveRecords(queueName);
+        LocalDateTime visibleFrom = LocalDateTime.now().plusMinutes(1);
+        fileQueueHelper.deleteMessage(queueName, testMessage2.getReceiptHandle());
+        fileQueueHelper.leaseVisibleMessages(queueName, 1, visibleFrom);
+        fileQueueHelper.appendSingleMessage(queueName, testMessage4);
+
+        assertTrue(compactor.swap(queueName, copy));
+
+        List<Message> messages = new FileQueueHelper(folder.getRoot().getPath()).readMessages(queueName);
+        assertEquals(receiptHandles(testMessage3, testMessage4), receiptHandles(messages));
+        assertFalse(messages.get(0).isVisible());
+        assertTrue(fileQueueHelper.deleteMessage(queueName, testMessage4.getReceiptHandle()));
+    }
+
+    @Test
+    public void swap_shouldBeAborted_ifFileWasRewrittenMeanwhile() throws IOException {
+        FileQueueCompactor.Copy copy = compactor.copyLiveRecords(queueName);
+        fileQueueHelper.writeMultipleMessages(queueName, Lists.newArrayList(testMessage4));
+
+        assertFalse(compactor.swap(queueName, copy));
+
+        assertEquals(receiptHandles(testMessage4), receiptHandles(fileQueueHelper.readMessages(queueName)));
+        assertEquals(0, fileQueueHelper.getQueueDirectory(queueName).listFiles(fileQueueHelper::isCompactFile).length);
+        assertFalse(fileQueueHelper.getDirtyLogFile(queueName).exists());
+    }
+
+    @Test
+    public void compact_shouldSkipQueue_whileAnotherCompactorCompactsIt() throws IOException {
+        fileQueueHelper.deleteMessage(queueName, testMessage1.getReceiptHandle());
+        FileQueueCompactor other = new FileQueueCompactor(fileQueueHelper, new CompactionPolicy(0.3, 0, Duration.ofSeconds(1)));
+        FileQueueCompactor.Copy copy = compactor.copyLiveRecords(queueName);
+
+        assertFalse(other.compact(queueName));
+        fileQueueHelper.deleteMessage(queueName, testMessage2.getReceiptHandle());
+        assertTrue(compactor.swap(queueName, copy));
+
+        assertEquals(receiptHandles(testMessage3), receiptHandles(fileQueueHelper.readMessages(queueName)));
+        assertEquals(0, fileQueueHelper.getQueueDirectory(queueName).listFiles(fileQueueHelper::isCompactFile).length);
+        // the lock is released once swapped
+        fileQueueHelper.deleteMessage(queueName, testMessage3.getReceiptHandle());
+        assertTrue(other.compact(queueName));
+    }
+
+    @Test
+    public void compactIfNeeded_shouldCompact_onlyPastGarbageRatio() throws IOException {
+        assertFalse(compactor.compactIfNeeded(queueName));
+        fileQueueHelper.deleteMessage(queueName, testMessage1.getReceiptHandle());
+
+        assertTrue(compactor.compactIfNeeded(queueName));
+        assertFalse(compactor.compactIfNeeded(queueName));
+    }
+
+    private static List<String> receiptHandles(Message... messages) {
+        return receiptHandles(Lists.newArrayList(messages));
+    }
+
+    private static List<String> receiptHandles(List<Message> messages) {
+        return messages.stream().map(Message::getReceiptHandle).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,262 @@
+package com.example.helper;
+
+import com.example.model.Message;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class FileQueueHelperTest {
+    private static final String queueName = "queue";
+    private Message testMessage1 = new Message("hello1");
+    private Message testMessage2 = new Message("hello2");
+    private Message testMessage3 = new Message("hello3");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private FileQueueHelper fileQueueHelper;
+
+    @Before
+    public void setup() throws IOException {
+        fileQueueHelper = new FileQueueHelper(folder.getRoot().getPath());
+        fileQueueHelper.createFileQueue(queueName);
+        fileQueueHelper.writeMultipleMessages(queueName, Lists.newArrayList(testMessage1));
+        fileQueueHelper.appendSingleMessage(queueName, testMessage2);
+        fileQueueHelper.appendSingleMessage(queueName, testMessage3);
+    }
+
+    @Test
+    public void readMessages_shouldReturn_writtenMessages() throws IOException {
+        assertEquals(receiptHandles(testMessage1, testMessage2, testMessage3), receiptHandles(fileQueueHelper.readMessages(queueName)));
+    }
+
+    @Test
+    public void deleteMessage_shouldMarkMessageDeleted_inPlace() throws IOException {
+        long length = fileQueueHelper.getMessagesFile(queueName).length();
+
+        assertTrue(fileQueueHelper.deleteMessage(queueName, testMessage2.getReceiptHandle()));
+        assertFalse(fileQueueHelper.deleteMessage(queueName, testMessage2.getReceiptHandle()));
+
+        assertEquals(length, fileQueueHelper.getMessagesFile(queueName).length());
+        assertEquals(receiptHandles(testMessage1, testMessage3), receiptHandles(fileQueueHelper.readMessages(queueName)));
+    }
+
+    @Test
+    public void deleteMessage_shouldFindMessage_ifFileWasRewrittenByAnotherProcess() throws IOException {
+        FileQueueHelper otherProcess = new FileQueueHelper(folder.getRoot().getPath());
+        otherProcess.writeMultipleMessages(queueName, Lists.newArrayList(testMessage3, testMessage2));
+
+        assertTrue(fileQueueHelper.deleteMessage(queueName, testMessage2.getReceiptHandle()));
+
+        assertEquals(receiptHandles(testMessage3), receiptHandles(otherProcess.readMessages(queueName)));
+    }
+
+    @Test
+    public void deleteMessage_shouldReturn_False_ifQueueDoesNotExist() throws IOException {
+        assertFalse(fileQueueHelper.deleteMessage("other", testMessage1.getReceiptHandle()));
+    }
+
+    @Test
+    public void appendSingleMessage_shouldWork_afterAllMessagesAreDeleted() throws IOException {
+        fileQueueHelper.writeMultipleMessages(queueName, Lists.newArrayList());
+        fileQueueHelper.appendSingleMessage(queueName, testMessage1);
+
+        assertEquals(receiptHandles(testMessage1), receiptHandles(fileQueueHelper.readMessages(queueName)));
+        assertTrue(fileQueueHelper.deleteMessage(queueName, testMessage1.getReceiptHandle()));
+    }
+
+    @Test
+    public void binaryRecords_shouldRoundTrip_anyContentAndIds() throws IOException {
+        Message message = new Message("id:1", "receipt\n1", "a:b\nc \u00e9\u20ac", LocalDateTime.now());
+        fileQueueHelper.setRecordFormat("binary", RecordFormat.BINARY);
+        fileQueueHelper.createFileQueue("binary");
+        fileQueueHelper.writeMultipleMessages("binary", Lists.newArrayList(testMessage1));
+        fileQueueHelper.appendSingleMessage("binary", message);
+        fileQueueHelper.appendMultipleMessages("binary", Lists.newArrayList(testMessage2, testMessage3));
+
+        List<Message> messages = new FileQueueHelper(folder.getRoot().getPath()).readMessages("binary");
+
+        assertEquals(receiptHandles(testMessage1, message, testMessage2, testMessage3), receiptHandles(messages));
+        assertEquals(testMessage1.getId(), messages.get(0).getId());
+        assertEquals("id:1", messages.get(1).getId());
+        assertEquals("a:b\nc \u00e9\u20ac", messages.get(1).getContent());
+    }
+
+    @Test
+    public void binaryRecords_shouldBeMarkedDeleted_inPlace() throws IOException {
+        fileQueueHelper.setRecordFormat("binary", RecordFormat.BINARY);
+        fileQueueHelper.createFileQueue("binary");
+        fileQueueHelper.writeMultipleMessages("binary", Lists.newArrayList(testMessage1, testMessage2, testMessage3));
+        long length = fileQueueHelper.getMessagesFile("binary").length();
+
+        assertEquals(Lists.newArrayList(true, false), fileQueueHelper.deleteMessages("binary",
+                Lists.newArrayList(testMessage2.getReceiptHandle(), testMessage2.getReceiptHandle())));
+
+        assertEquals(length, fileQueueHelper.getMessagesFile("binary").length());
+        assertEquals(receiptHandles(testMessage1, testMessage3), receiptHandles(fileQueueHelper.readMessages("binary")));
+    }
+
+    @Test
+    public void textQueue_shouldStayReadable_AndBeConvertedOnRewrite_ifBinaryIsSelected() throws IOException {
+        fileQueueHelper.setRecordFormat(queueName, RecordFormat.BINARY);
+        Message message = new Message("hello:4");
+        fileQueueHelper.appendSingleMessage(queueName, message);
+
+        List<Message> messages = fileQueueHelper.readMessages(queueName);
+        assertEquals(receiptHandles(testMessage1, testMessage2, testMessage3, message), receiptHandles(messages));
+        assertEquals("hello:4", messages.get(3).getContent());
+
+        fileQueueHelper.writeMultipleMessages(queueName, messages);
+        assertEquals(0, Files.toByteArray(fileQueueHelper.getMessagesFile(queueName))[0]);
+        assertEquals(receiptHandles(messages), receiptHandles(fileQueueHelper.readMessages(queueName)));
+    }
+
+    @Test(expected = IOException.class)
+    public void readMessages_shouldFail_onCorruptBinaryRecord() throws IOException {
+        fileQueueHelper.setRecordFormat("binary", RecordFormat.BINARY);
+        fileQueueHelper.createFileQueue("binary");
+        fileQueueHelper.writeMultipleMessages("binary", Lists.newArrayList(testMessage1));
+        File messagesFile = fileQueueHelper.getMessagesFile("binary");
+        byte[] bytes = Files.toByteArray(messagesFile);
+        bytes[bytes.length - 5]++;
+        Files.write(bytes, messagesFile);
+
+        fileQueueHelper.readMessages("binary");
+    }
+
+    @Test
+    public void leaseVisibleMessages_shouldLeaseBinaryRecords_inPlace() throws IOException {
+        fileQueueHelper.setRecordFormat("binary", RecordFormat.BINARY);
+        fileQueueHelper.createFileQueue("binary");
+        fileQueueHelper.writeMultipleMessages("binary", Lists.newArrayList(testMessage1, testMessage2, testMessage3));
+        long length = fileQueueHelper.getMessagesFile("binary").length();
+        LocalDateTime visibleFrom = LocalDateTime.now().plusMinutes(1);
+
+        assertTrue(fileQueueHelper.canLeaseInPlace("binary"));
+        assertFalse(fileQueueHelper.canLeaseInPlace(queueName));
+        assertEquals(receiptHandles(testMessage1, testMessage2), receiptHandles(fileQueueHelper.leaseVisibleMessages("binary", 2, visibleFrom)));
+        assertEquals(receiptHandles(testMessage3), receiptHandles(fileQueueHelper.leaseVisibleMessages("binary", 2, visibleFrom)));
+        assertTrue(fileQueueHelper.leaseVisibleMessages("binary", 2, visibleFrom).isEmpty());
+
+        assertEquals(length, fileQueueHelper.getMessagesFile("binary").length());
+        assertEquals(FileQueueHelper.toEpochMilli(visibleFrom), fileQueueHelper.getNextVisibleFrom("binary").getAsLong());
+        assertFalse(new FileQueueHelper(folder.getRoot().getPath()).readMessages("binary").stream().anyMatch(Message::isVisible));
+        // deleting a leased message does not need a rewrite either
+        assertTrue(fileQueueHelper.deleteMessage("binary", testMessage2.getReceiptHandle()));
+        assertEquals(length, fileQueueHelper.getMessagesFile("binary").length());
+    }
+
+    @Test
+    public void leaseVisibleMessages_shouldSee_recordsAppendedAfterMapping() throws IOException {
+        fileQueueHelper.setRecordFormat("binary", RecordFormat.BINARY);
+        fileQueueHelper.createFileQueue("binary");
+        fileQueueHelper.writeMultipleMessages("binary", Lists.newArrayList(testMessage1));
+        LocalDateTime visibleFrom = LocalDateTime.now().plusMinutes(1);
+        fileQueueHelper.leaseVisibleMessages("binary", 1, visibleFrom);
+
+        new FileQueueHelper(folder.getRoot().getPath()).appendSingleMessage("binary", testMessage2);
+
+        assertEquals(receiptHandles(testMessage2), receiptHandles(fileQueueHelper.leaseVisibleMessages("binary", 1, visibleFrom)));
+    }
+
+    @Test
+    public void leaseVisibleMessages_shouldLeaseInOrder_recordsAppendedPastAndIntoNewMappings() throws IOException {
+        fileQueueHelper.setRecordFormat("binary", RecordFormat.BINARY);
+        fileQueueHelper.createFileQueue("binary");
+        fileQueueHelper.writeMultipleMessages("binary", Lists.newArrayList(testMessage1));
+        long now = System.currentTimeMillis();
+        fileQueueHelper.leaseVisibleMessages("binary", 1, now, now + 60_000);
+        assertTrue(fileQueueHelper.deleteMessage("binary", testMessage1.getReceiptHandle()));
+
+        // about 3 MB appended while leasing, read past the mapping first and then through mappings of the grown file
+        FileQueueHelper producer = new FileQueueHelper(folder.getRoot().getPath());
+        String content = Strings.repeat("x", 1000);
+        List<Message> appended = Lists.newArrayList();
+        List<Message> leased = Lists.newArrayList();
+        for (int i = 0; i < 6; i++) {
+            List<Message> batch = Lists.newArrayList();
+            for (int j = 0; j < 500; j++) {
+                batch.add(new Message(content + j));
+            }
+            producer.appendMultipleMessages("binary", batch);
+            appended.addAll(batch);
+            if (i == 0) {
+                // deleted by another process, so skipped over by leases
+                assertEquals(Collections.nCopies(10, true), producer.deleteMessages("binary", receiptHandles(batch.subList(0, 10))));
+            }
+            now = System.currentTimeMillis();
+            List<Message> pulled;
+            while (!(pulled = fileQueueHelper.leaseVisibleMessages("binary", 30, now, now + 60_000)).isEmpty()) {
+                leased.addAll(pulled);
+                fileQueueHelper.deleteMessages("binary", receiptHandles(pulled));
+            }
+        }
+
+        assertEquals(receiptHandles(appended.subList(10, 3000)), receiptHandles(leased));
+        assertTrue(fileQueueHelper.leaseVisibleMessages("binary", 1, now, now + 60_000).isEmpty());
+        assertTrue(new FileQueueHelper(folder.getRoot().getPath()).readMessages("binary").isEmpty());
+    }
+
+    @Test
+    public void changeVisibility_shouldRewriteVisibleFrom_ofLeasedBinaryRecord_inPlace() throws IOException {
+        fileQueueHelper.setRecordFormat("binary", RecordFormat.BINARY);
+        fileQueueHelper.createFileQueue("binary");
+        fileQueueHelper.writeMultipleMessages("binary", Lists.newArrayList(testMessage1, testMessage2));
+        long length = fileQueueHelper.getMessagesFile("binary").length();
+        long now = System.currentTimeMillis();
+        fileQueueHelper.leaseVisibleMessages("binary", 1, now, now + 60_000);
+
+        assertFalse(fileQueueHelper.changeVisibility("binary", testMessage2.getReceiptHandle(), now, now + 60_000));
+        assertTrue(fileQueueHelper.changeVisibility("binary", testMessage1.getReceiptHandle(), now, now));
+
+        assertEquals(length, fileQueueHelper.getMessagesFile("binary").length());
+        assertEquals(receiptHandles(testMessage1, testMessage2), receiptHandles(fileQueueHelper.leaseVisibleMessages("binary", 2, now, now + 60_000)));
+    }
+
+    @Test
+    public void changeVisibility_shouldRewriteTextQueue_ifMessageIsInvisible() throws IOException {
+        long now = System.currentTimeMillis();
+        List<Message> messages = fileQueueHelper.readMessages(queueName);
+        messages.get(1).setVisibleFromMillis(now + 60_000);
+        fileQueueHelper.writeMultipleMessages(queueName, messages);
+
+        assertFalse(fileQueueHelper.changeVisibility(queueName, testMessage1.getReceiptHandle(), now, now + 120_000));
+        assertTrue(fileQueueHelper.changeVisibility(queueName, testMessage2.getReceiptHandle(), now, now + 120_000));
+        assertFalse(fileQueueHelper.changeVisibility(queueName, "unknown", now, now + 120_000));
+
+        assertEquals(now + 120_000, fileQueueHelper.readMessages(queueName).get(1).getVisibleFromMillis());
+    }
+
+    @Test
+    public void takeLock_shouldRecordLockWait_ifMetricsEnabled() throws IOException {
+        QueueMetrics queueMetrics = new QueueMetrics();
+        FileQueueHelper meteredHelper = new FileQueueHelper(folder.getRoot().getPath(), RecordFormat.TEXT, queueMetrics);
+
+        meteredHelper.takeLock(queueName);
+        meteredHelper.releaseLock(queueName);
+
+        assertEquals(1, queueMetrics.getQueueStats(queueName).getLatency(QueueOperation.LOCK_WAIT).getCount());
+    }
+
+    // visibleFrom is stored with millisecond precision, so messages are compared by receipt handle
+    private static List<String> receiptHandles(Message... messages) {
+        return receiptHandles(Arrays.asList(messages));
+    }
+
+    private static List<String> receiptHandles(List<Message> messages) {
+        return messages.stream().map(Message::getReceiptHandle).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.helper;
+
+import com.example.exception.FileQueueException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FileQueueLockTest {
+    private static final Duration timeout = Duration.ofMillis(200);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File lockFile;
+    private FileQueueLock fileQueueLock;
+    private ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @Before
+    public void setup() {
+        lockFile = new File(folder.getRoot(), "queue/.lock");
+        fileQueueLock = new FileQueueLock(4);
+    }
+
+    @Test
+    public void lock_shouldBeReentrant_AndReleasedAfterLastUnlock() throws IOException {
+        fileQueueLock.lock(lockFile, timeout);
+        fileQueueLock.lock(lockFile, timeout);
+
+        fileQueueLock.unlock(lockFile);
+        assertTrue(fileQueueLock.isHeldByCurrentThread(lockFile));
+
+        fileQueueLock.unlock(lockFile);
+        assertFalse(fileQueueLock.isHeldByCurrentThread(lockFile));
+    }
+
+    @Test(expected = FileQueueException.class)
+    public void lock_shouldThrow_FileQueueException_ifNotAvailableWithinTimeout() throws Throwable {
+        fileQueueLock.lock(lockFile, timeout);
+
+        try {
+            executor.submit(() -> {
+                fileQueueLock.lock(lockFile, timeout);
+                return null;
+            }).get();
+        } catch (java.util.concurrent.ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Test
+    public void lock_shouldWakeUpWaiter_onRelease() throws Exception {
+        CountDownLatch waiting = new CountDownLatch(1);
+        fileQueueLock.lock(lockFile, timeout);
+
+        Future<Boolean> waiter = executor.submit(() -> {
+            waiting.countDown();
+            fileQueueLock.lock(lockFile, Duration.ofSeconds(10));
+            boolean held = fileQueueLock.isHeldByCurrentThread(lockFile);
+            fileQueueLock.unlock(lockFile);
+            return held;
+        });
+        waiting.await();
+        fileQueueLock.unlock(lockFile);
+
+        assertTrue(waiter.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void unlock_shouldDoNothing_ifLockIsNotHeld() throws Exception {
+        fileQueueLock.unlock(lockFile);
+
+        fileQueueLock.lock(lockFile, timeout);
+        executor.submit(() -> fileQueueLock.unlock(lockFile)).get();
+
+        assertTrue(fileQueueLock.isHeldByCurrentThread(lockFile));
+        fileQueueLock.unlock(lockFile);
+    }
+
+    @Test
+    public void lock_shouldReplace_legacyLockDirectory() throws IOException {
+        assertTrue(lockFile.mkdirs());
+
+        fileQueueLock.lock(lockFile, timeout);
+
+        assertTrue(lockFile.isFile());
+        fileQueueLock.unlock(lockFile);
+    }
+
+    @Test
+    public void lock_shouldTimeOut_whileOsLockIsHeldElsewhere_AndSucceedOnceReleased() throws Exception {
+        // a second instance holds its own OS level lock, as another process would
+        FileQueueLock otherProcess = new FileQueueLock(4);
+        otherProcess.lock(lockFile, timeout);
+
+        try {
+            executor.submit(() -> {
+                fileQueueLock.lock(lockFile, timeout);
+                return null;
+            }).get(5, TimeUnit.SECONDS);
+            fail("Lock should time out");
+        } catch (java.util.concurrent.ExecutionException e) {
+            assertTrue(e.getCause() instanceof FileQueueException);
+        }
+
+        Future<Boolean> waiter = executor.submit(() -> {
+            fileQueueLock.lock(lockFile, Duration.ofSeconds(10));
+            boolean held = fileQueueLock.isHeldByCurrentThread(lockFile);
+            fileQueueLock.unlock(lockFile);
+            return held;
+        });
+        Thread.sleep(50);
+        otherProcess.unlock(lockFile);
+
+        assertTrue(waiter.get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.helper;
+
+import com.example.exception.FileQueueException;
+import com.example.model.Message;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class GroupCommitWriterTest {
+    private static final String queueName = "queue";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private FileQueueHelper fileQueueHelper;
+
+    @Before
+    public void setup() {
+        fileQueueHelper = spy(new FileQueueHelper(folder.getRoot().getPath()));
+    }
+
+    @Test
+    public void write_shouldCommitConcurrentWrites_withAtMostOneForcePerGroup() throws Exception {
+        GroupCommitWriter writer = new GroupCommitWriter(fileQueueHelper, FsyncPolicy.ALWAYS);
+        List<CompletableFuture<Void>> futures = Lists.newArrayList();
+        List<Message> messages = Lists.newArrayList();
+        for (int i = 0; i < 200; i++) {
+            Message message = new Message("hello" + i);
+            messages.add(message);
+            futures.add(writer.write(queueName, Lists.newArrayList(message)));
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+
+        assertEquals(messages.size(), fileQueueHelper.readMessages(queueName).size());
+        int groups = committedGroups();
+        verify(fileQueueHelper, times(groups)).force(queueName);
+        assertTrue(groups < messages.size());
+        writer.close();
+    }
+
+    @Test
+    public void write_shouldForceWithinInterval_forPeriodicPolicy() throws Exception {
+        GroupCommitWriter writer = new GroupCommitWriter(fileQueueHelper, FsyncPolicy.every(Duration.ofMillis(50)));
+
+        writer.write(queueName, Lists.newArrayList(new Message("hello"))).get(10, TimeUnit.SECONDS);
+
+        verify(fileQueueHelper, timeout(5000)).force(queueName);
+        writer.close();
+    }
+
+    @Test
+    public void close_shouldCommitPendingWrites_AndFailLaterWrites() throws Exception {
+        GroupCommitWriter writer = new GroupCommitWriter(fileQueueHelper, FsyncPolicy.NEVER);
+        CompletableFuture<Void> pending = writer.write(queueName, Lists.newArrayList(new Message("hello")));
+
+        writer.close();
+
+        assertTrue(pending.isDone());
+        assertEquals(1, fileQueueHelper.readMessages(queueName).size());
+        verify(fileQueueHelper, never()).force(queueName);
+        try {
+            writer.write(queueName, Lists.newArrayList(new Message("late"))).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof FileQueueException);
+        }
+    }
+
+    // number of groups committed, each taking the lock of the queue once
+    private int committedGroups() {
+        return (int) mockingDetails(fileQueueHelper).getInvocations().stream()
+                .filter(invocation -> invocation.getMethod().getName().equals("takeLock"))
+                .count();
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.helper;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucket_shouldHoldValue_withinThreePercent() {
+        for (long value = 0; value < 1L << 40; value = value * 3 / 2 + 1) {
+            long highest = LatencyHistogram.highestValue(LatencyHistogram.bucket(value));
+            assertTrue(value + " in bucket up to " + highest, highest >= value && highest - value <= value / 32);
+        }
+        assertTrue(LatencyHistogram.highestValue(LatencyHistogram.bucket(Long.MAX_VALUE)) >= Long.MAX_VALUE - Long.MAX_VALUE / 32);
+    }
+
+    @Test
+    public void getValueAtPercentile_shouldReturn_recordedDistribution() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500, histogram.getValueAtPercentile(50, TimeUnit.MICROSECONDS), 500 / 32.0);
+        assertEquals(990, histogram.getValueAtPercentile(99, TimeUnit.MICROSECONDS), 990 / 32.0);
+        assertEquals(1000, histogram.getValueAtPercentile(100, TimeUnit.MICROSECONDS), 0);
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(1000), histogram.getMaxNanos());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(1) * 500.5, histogram.getMeanNanos(), 1);
+    }
+
+    @Test
+    public void getValueAtPercentile_shouldReturnZero_ifNothingRecorded() {
+        assertEquals(0, new LatencyHistogram().getValueAtPercentile(99));
+    }
+}
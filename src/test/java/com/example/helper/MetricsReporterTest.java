@@ -0,0 +1,62 @@
+package com.example.helper;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.openmbean.TabularData;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class MetricsReporterTest {
+    private static final String queueURL = "queue";
+
+    @Test
+    public void jmxReporter_shouldRegister_liveStatsOfEachQueue() throws Exception {
+        QueueMetrics metrics = new QueueMetrics();
+        metrics.getQueueStats(queueURL).recordPushes(2, 0);
+        metrics.setGauges(queue -> new QueueDepth(1, 2, 0));
+        MBeanServer mBeanServer = MBeanServerFactory.newMBeanServer();
+
+        try (JmxMetricsReporter reporter = new JmxMetricsReporter(mBeanServer)) {
+            reporter.report(metrics);
+            reporter.report(metrics);
+            metrics.getQueueStats(queueURL).recordPulls(1);
+
+            assertEquals(2L, mBeanServer.getAttribute(JmxMetricsReporter.objectName(queueURL), "Pushes"));
+            assertEquals(1L, mBeanServer.getAttribute(JmxMetricsReporter.objectName(queueURL), "Pulls"));
+            TabularData depth = (TabularData) mBeanServer.getAttribute(JmxMetricsReporter.objectName(queueURL), "QueueDepth");
+            assertEquals(2L, depth.get(new Object[]{"inFlight"}).get("value"));
+            assertEquals(3L, depth.get(new Object[]{"depth"}).get("value"));
+        }
+        assertFalse(mBeanServer.isRegistered(JmxMetricsReporter.objectName(queueURL)));
+    }
+
+    @Test
+    public void logReporter_shouldFormat_countersAndRecordedLatencies() {
+        QueueStats stats = new QueueMetrics().getQueueStats(queueURL);
+        stats.recordPushes(3, 1);
+        stats.recordPulls(0);
+        stats.recordLatency(QueueOperation.PUSH, 2000);
+
+        String line = LogMetricsReporter.format(queueURL, stats, Optional.of(new QueueDepth(3, 1, 0)));
+
+        assertTrue(line, line.startsWith("queue=queue pushes=3 failedPushes=1 pulls=0 emptyPulls=1 deletes=0"));
+        assertTrue(line, line.contains(" visible=3 inFlight=1 delayed=0 depth=4 "));
+        assertFalse(LogMetricsReporter.format(queueURL, stats, Optional.empty()).contains("depth="));
+        assertTrue(line, line.contains(" push.p50=2.0us push.p99=2.0us push.p999=2.0us push.max=2.0us"));
+        assertFalse(line, line.contains("pull."));
+    }
+
+    @Test
+    public void disabledMetrics_shouldRecordNoLockWait() {
+        QueueMetrics.DISABLED.recordLockWait(queueURL, 1000);
+        QueueMetrics.DISABLED.setGauges(queue -> new QueueDepth(1, 0, 0));
+
+        Map<String, QueueStats> queueStats = QueueMetrics.DISABLED.getQueueStats();
+        assertTrue(queueStats.isEmpty());
+        assertFalse(QueueMetrics.DISABLED.getQueueDepth(queueURL).isPresent());
+    }
+}
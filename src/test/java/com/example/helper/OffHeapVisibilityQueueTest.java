@@ -0,0 +1,174 @@
+package com.example.helper;
+
+import com.example.model.Message;
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class OffHeapVisibilityQueueTest {
+    private static final Duration inVisibilityDuration = Duration.ofSeconds(5);
+    private OffHeapVisibilityQueue queue = new OffHeapVisibilityQueue(4096);
+
+    @Test
+    public void poll_shouldMaterializeMessages_inFifoOrder() {
+        Message first = new Message("first");
+        Message second = new Message("custom id", "custom receipt handle", null, LocalDateTime.now());
+        queue.offer(first);
+        queue.offer(second);
+
+        Message pulled = queue.poll(inVisibilityDuration);
+        assertEquals(first.getId(), pulled.getId());
+        assertEquals(first.getReceiptHandle(), pulled.getReceiptHandle());
+        assertEquals("first", pulled.getContent());
+        assertFalse(pulled.isVisible());
+
+        pulled = queue.poll(inVisibilityDuration);
+        assertEquals("custom id", pulled.getId());
+        assertEquals("custom receipt handle", pulled.getReceiptHandle());
+        assertNull(pulled.getContent());
+        assertNull(queue.poll(inVisibilityDuration));
+    }
+
+    @Test
+    public void poll_shouldRedeliverMessage_whenItsLeaseExpires() throws Exception {
+        Message message = new Message("hello");
+        queue.offer(message);
+
+        assertNotNull(queue.poll(Duration.ofMillis(100)));
+        assertNull(queue.poll(inVisibilityDuration));
+
+        Message redelivered = queue.poll(inVisibilityDuration, Duration.ofSeconds(5));
+        assertEquals(message.getReceiptHandle(), redelivered.getReceiptHandle());
+    }
+
+    @Test
+    public void changeVisibility_shouldMoveLeasedMessage_withinLeasedHeapOrToReady() throws Exception {
+        Message[] messages = new Message[5];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = new Message("hello" + i);
+            queue.offer(messages[i]);
+            queue.poll(inVisibilityDuration.plusSeconds(i));
+        }
+
+        assertTrue(queue.changeVisibility(messages[2].getReceiptHandle(), System.currentTimeMillis() + 100));
+        assertTrue(queue.changeVisibility(messages[4].getReceiptHandle(), System.currentTimeMillis()));
+        assertFalse(queue.changeVisibility("unknown", System.currentTimeMillis()));
+
+        assertEquals(messages[4].getReceiptHandle(), queue.poll(inVisibilityDuration).getReceiptHandle());
+        assertNull(queue.poll(inVisibilityDuration));
+        assertEquals(messages[2].getReceiptHandle(), queue.poll(inVisibilityDuration, Duration.ofSeconds(2)).getReceiptHandle());
+        assertNull(queue.poll(inVisibilityDuration, Duration.ofMillis(100)));
+    }
+
+    @Test
+    public void changeVisibility_shouldFindLeasedMessages_anywhereInLeasedHeap() {
+        Message[] messages = new Message[100];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = new Message("hello" + i);
+            queue.offer(messages[i]);
+            queue.poll(inVisibilityDuration.plusSeconds(messages.length - i));
+        }
+
+        for (int i = 0; i < messages.length; i += 2) {
+            assertTrue(queue.changeVisibility(messages[i].getReceiptHandle(), System.currentTimeMillis()));
+        }
+        for (int i = 0; i < messages.length; i += 2) {
+            assertEquals(messages[i].getReceiptHandle(), queue.poll(inVisibilityDuration).getReceiptHandle());
+        }
+        assertNull(queue.poll(inVisibilityDuration));
+        for (int i = 1; i < messages.length; i += 2) {
+            assertTrue(queue.changeVisibility(messages[i].getReceiptHandle(), System.currentTimeMillis() + 60000));
+        }
+        assertEquals(messages.length, queue.depth().getInFlight());
+    }
+
+    @Test
+    public void remove_shouldDeleteVisibleAndLeasedMessages() {
+        Message visible = new Message("visible");
+        Message leased = new Message("leased");
+        queue.offer(leased);
+        queue.offer(visible);
+        queue.poll(inVisibilityDuration);
+
+        assertTrue(queue.remove(visible.getReceiptHandle()));
+        assertTrue(queue.remove(leased.getReceiptHandle()));
+        assertFalse(queue.remove(leased.getReceiptHandle()));
+        assertNull(queue.poll(inVisibilityDuration));
+    }
+
+    @Test
+    public void depth_shouldCount_visibleAndLeasedMessages_butNotDeletedOnes() {
+        Message deleted = new Message("deleted");
+        queue.offer(new Message("leased"));
+        queue.offer(deleted);
+        queue.offer(new Message("visible"));
+        queue.poll(inVisibilityDuration);
+        queue.poll(inVisibilityDuration);
+        queue.remove(deleted.getReceiptHandle());
+
+        QueueDepth depth = queue.depth();
+
+        assertEquals(1, depth.getVisible());
+        assertEquals(1, depth.getInFlight());
+    }
+
+    @Test
+    public void offer_shouldReuseChunksOfDeletedMessages() {
+        for (int i = 0; i < 1000; i++) {
+            Message message = new Message("hello " + i);
+            queue.offer(message);
+            queue.remove(queue.poll(Duration.ZERO).getReceiptHandle());
+            // frees the chunk of the deleted message, reached again once its zero lease expired
+            queue.poll(inVisibilityDuration);
+        }
+
+        assertEquals(4096, queue.getAllocatedBytes());
+    }
+
+    @Test
+    public void offer_shouldStoreMessagesLargerThanASlab() {
+        String content = Strings.repeat("x", 10000);
+        queue.offer(new Message(content));
+
+        assertEquals(content, queue.poll(inVisibilityDuration).getContent());
+    }
+
+    @Test
+    public void pollWithMaxWait_shouldWakeUp_whenMessageIsOffered() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Message> waiting = executor.submit(() -> queue.poll(inVisibilityDuration, Duration.ofSeconds(10)));
+            Thread.sleep(100);
+            Message message = new Message("hello");
+            queue.offer(message);
+
+            assertEquals(message.getReceiptHandle(), waiting.get(5, TimeUnit.SECONDS).getReceiptHandle());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void handleIndex_shouldTellApartHandlesSharingAHash() {
+        OffHeapVisibilityQueue.HandleIndex index = new OffHeapVisibilityQueue.HandleIndex();
+        for (long handle = 0; handle < 100; handle++) {
+            index.put(handle % 3, handle);
+        }
+
+        assertEquals(42, index.remove(0, handle -> handle == 42));
+        assertEquals(OffHeapVisibilityQueue.HandleIndex.NONE, index.remove(0, handle -> handle == 42));
+        for (long handle = 0; handle < 100; handle++) {
+            long expected = handle == 42 ? OffHeapVisibilityQueue.HandleIndex.NONE : handle;
+            long wanted = handle;
+            assertEquals(expected, index.remove(handle % 3, candidate -> candidate == wanted));
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.helper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class QueueChangeNotifierTest {
+    private static final String queueName = "queue";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private QueueChangeNotifier queueChangeNotifier;
+    private ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    @Before
+    public void setup() {
+        queueChangeNotifier = new QueueChangeNotifier();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        queueChangeNotifier.close();
+    }
+
+    @Test
+    public void awaitChange_shouldReturn_True_whenSignalled() throws Exception {
+        long version = queueChangeNotifier.version(queueName);
+        executor.schedule(() -> queueChangeNotifier.signal(queueName), 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(queueChangeNotifier.awaitChange(queueName, null, version, Duration.ofSeconds(10)));
+    }
+
+    @Test
+    public void awaitChange_shouldReturn_True_ifSignalledBeforeWaiting() throws Exception {
+        long version = queueChangeNotifier.version(queueName);
+        queueChangeNotifier.signal(queueName);
+
+        assertTrue(queueChangeNotifier.awaitChange(queueName, null, version, Duration.ZERO));
+    }
+
+    @Test
+    public void awaitChange_shouldReturn_False_afterTimeout() throws Exception {
+        assertFalse(queueChangeNotifier.awaitChange(queueName, null, queueChangeNotifier.version(queueName), Duration.ofMillis(50)));
+    }
+
+    @Test
+    public void onChange_shouldRunCallbackOnce_AndCancelItsTimeout_whenSignalled() {
+        AtomicInteger runs = new AtomicInteger();
+        queueChangeNotifier.onChange(queueName, null, queueChangeNotifier.version(queueName), Duration.ofHours(1), runs::incrementAndGet);
+        assertEquals(1, queueChangeNotifier.pendingTimeouts());
+
+        queueChangeNotifier.signal(queueName);
+        queueChangeNotifier.signal(queueName);
+
+        assertEquals(1, runs.get());
+        assertEquals(0, queueChangeNotifier.pendingTimeouts());
+    }
+
+    @Test
+    public void onChange_shouldRunCallbackOnce_afterTimeout() throws Exception {
+        CountDownLatch ran = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+        queueChangeNotifier.onChange(queueName, null, queueChangeNotifier.version(queueName), Duration.ofMillis(50), () -> {
+            runs.incrementAndGet();
+            ran.countDown();
+        });
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        queueChangeNotifier.signal(queueName);
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void awaitChange_shouldReturn_True_whenQueueDirectoryIsChangedByAnotherProcess() throws Exception {
+        File directory = folder.newFolder(queueName);
+        long version = queueChangeNotifier.version(queueName);
+        // registers the directory, so that the change below is watched
+        queueChangeNotifier.awaitChange(queueName, directory, version, Duration.ZERO);
+        executor.schedule(() -> Files.write(new File(directory, "messages").toPath(), "hello".getBytes()), 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(queueChangeNotifier.awaitChange(queueName, directory, version, Duration.ofSeconds(30)));
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.helper;
+
+import com.example.model.Message;
+import com.google.common.collect.Lists;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class QueueJournalTest {
+    private Message testMessage1 = new Message("hello1");
+    private Message testMessage2 = new Message("hello2");
+    private Message testMessage3 = new Message(null);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recover_shouldReplayPushesAndDeletes_inOrder() throws IOException {
+        QueueJournal journal = new QueueJournal(folder.getRoot(), FsyncPolicy.NEVER);
+        journal.logPushes("queue", Lists.newArrayList(testMessage1, testMessage2));
+        journal.logPushes("other", Lists.newArrayList(testMessage3));
+        journal.logDeletes("queue", Lists.newArrayList(testMessage1.getReceiptHandle()));
+        journal.close();
+
+        Map<String, List<Message>> queues = new QueueJournal(folder.getRoot(), FsyncPolicy.NEVER).recover();
+
+        assertEquals(receiptHandles(testMessage2), receiptHandles(queues.get("queue")));
+        assertEquals(receiptHandles(testMessage3), receiptHandles(queues.get("other")));
+        assertNull(queues.get("other").get(0).getContent());
+        assertEquals("hello2", queues.get("queue").get(0).getContent());
+    }
+
+    @Test
+    public void snapshot_shouldReplaceOlderFiles_AndKeepMutationsJournaledAfterIt() throws IOException {
+        QueueJournal journal = new QueueJournal(folder.getRoot(), FsyncPolicy.ALWAYS);
+        journal.logPushes("queue", Lists.newArrayList(testMessage1, testMessage2));
+        journal.logDeletes("queue", Lists.newArrayList(testMessage1.getReceiptHandle()));
+        journal.snapshot();
+        journal.logPushes("queue", Lists.newArrayList(testMessage3));
+        journal.logDeletes("queue", Lists.newArrayList(testMessage2.getReceiptHandle()));
+        journal.close();
+
+        assertEquals(1, folder.getRoot().list((dir, name) -> name.startsWith("snapshot-")).length);
+        assertEquals(1, folder.getRoot().list((dir, name) -> name.startsWith("wal-")).length);
+        QueueJournal recovered = new QueueJournal(folder.getRoot(), FsyncPolicy.ALWAYS);
+        assertEquals(receiptHandles(testMessage3), receiptHandles(recovered.recover().get("queue")));
+
+        // a second snapshot compacts the previous one and the WAL of the previous run
+        recovered.snapshot();
+        recovered.close();
+        assertEquals(receiptHandles(testMessage3), receiptHandles(new QueueJournal(folder.getRoot(), FsyncPolicy.NEVER).recover().get("queue")));
+    }
+
+    @Test
+    public void recover_shouldIgnore_tornRecordAtEndOfWal() throws IOException {
+        QueueJournal journal = new QueueJournal(folder.getRoot(), FsyncPolicy.NEVER);
+        journal.logPushes("queue", Lists.newArrayList(testMessage1, testMessage2));
+        journal.close();
+        File wal = folder.getRoot().listFiles((dir, name) -> name.startsWith("wal-"))[0];
+        try (RandomAccessFile file = new RandomAccessFile(wal, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        assertEquals(receiptHandles(testMessage1), receiptHandles(new QueueJournal(folder.getRoot(), FsyncPolicy.NEVER).recover().get("queue")));
+    }
+
+    private static List<String> receiptHandles(Message... messages) {
+        return receiptHandles(Lists.newArrayList(messages));
+    }
+
+    private static List<String> receiptHandles(List<Message> messages) {
+        return messages.stream().map(Message::getReceiptHandle).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.helper;
+
+import com.example.model.Message;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class SegmentedLogTest {
+    private static final Duration inVisibilityDuration = Duration.ofSeconds(10);
+    private Message testMessage1 = new Message("hello1");
+    private Message testMessage2 = new Message("hello:2");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File directory;
+    private SegmentedLog log;
+
+    @Before
+    public void setup() {
+        directory = new File(folder.getRoot(), "segments");
+        log = new SegmentedLog(directory, 1024);
+    }
+
+    @Test
+    public void pull_shouldReturn_firstVisibleMessage_AndLeaseIt() throws IOException {
+        log.push(testMessage1);
+        log.push(testMessage2);
+
+        Optional<Message> receivedMessage = log.pull(inVisibilityDuration);
+        Optional<Message> receivedMessage2 = log.pull(inVisibilityDuration);
+
+        assertEquals(testMessage1.getReceiptHandle(), receivedMessage.get().getReceiptHandle());
+        assertEquals(testMessage2.getContent(), receivedMessage2.get().getContent());
+        assertFalse(log.pull(inVisibilityDuration).isPresent());
+    }
+
+    @Test
+    public void pull_shouldRedeliverMessage_whenItsLeaseExpiresByTheClock() throws IOException {
+        MutableClock clock = new MutableClock();
+        SegmentedLog clockedLog = new SegmentedLog(directory, 1024, clock);
+        clockedLog.push(testMessage1);
+
+        assertTrue(clockedLog.pull(inVisibilityDuration).isPresent());
+        assertFalse(clockedLog.pull(inVisibilityDuration).isPresent());
+        clock.advance(inVisibilityDuration);
+
+        assertEquals(testMessage1.getReceiptHandle(), clockedLog.pull(inVisibilityDuration).get().getReceiptHandle());
+        assertTrue(clockedLog.changeVisibility(testMessage1.getReceiptHandle(), Duration.ZERO));
+        assertTrue(clockedLog.pull(inVisibilityDuration).isPresent());
+    }
+
+    @Test
+    public void delete_shouldReturn_True_onlyForLiveMessages() throws IOException {
+        log.push(testMessage1);
+
+        assertTrue(log.delete(testMessage1.getReceiptHandle()));
+        assertFalse(log.delete(testMessage1.getReceiptHandle()));
+        assertEquals(0, log.size());
+    }
+
+    @Test
+    public void newLog_shouldReplay_pushesLeasesAndTombstones() throws IOException {
+        log.push(testMessage1);
+        log.push(testMessage2);
+        log.pull(inVisibilityDuration);
+        log.delete(testMessage2.getReceiptHandle());
+
+        SegmentedLog reopened = new SegmentedLog(directory, 1024);
+
+        assertEquals(1, reopened.size());
+        assertFalse(reopened.pull(inVisibilityDuration).isPresent());
+    }
+
+    @Test
+    public void newLog_shouldReplay_contentWithNewlinesColonsAndBackslashes() throws IOException {
+        Message message = new Message("hello\nworld: a\\nb\\\n");
+        log.push(message);
+        log.push(testMessage2);
+
+        SegmentedLog reopened = new SegmentedLog(directory, 1024);
+
+        assertEquals(2, reopened.size());
+        assertEquals(message.getContent(), reopened.pull(inVisibilityDuration).get().getContent());
+        assertEquals(testMessage2.getContent(), reopened.pull(inVisibilityDuration).get().getContent());
+    }
+
+    @Test
+    public void otherLog_shouldSee_recordsAppendedSinceItsLastCall() throws IOException {
+        SegmentedLog other = new SegmentedLog(directory, 1024);
+        assertEquals(0, other.size());
+
+        log.push(testMessage1);
+
+        assertEquals(testMessage1.getId(), other.pull(inVisibilityDuration).get().getId());
+        assertFalse(log.pull(inVisibilityDuration).isPresent());
+    }
+
+    @Test
+    public void deleteAckedSegments_shouldOnlyRemove_oldestFullyDeletedSegments() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            log.push(new Message("message-" + i));
+        }
+        int segments = log.segmentCount();
+        assertTrue(segments > 2);
+
+        Message first = log.pull(inVisibilityDuration).get();
+        assertEquals(0, log.deleteAckedSegments());
+
+        log.delete(first.getReceiptHandle());
+        while (log.size() > 0) {
+            log.delete(log.pull(inVisibilityDuration).get().getReceiptHandle());
+        }
+
+        assertTrue(log.deleteAckedSegments() >= segments - 1);
+        assertEquals(1, log.segmentCount());
+        assertEquals(0, new SegmentedLog(directory, 1024).size());
+    }
+
+    @Test
+    public void laggingLog_shouldRebuild_whenItsPartlyReplayedSegmentWasRemoved() throws IOException {
+        SegmentedLog writer = new SegmentedLog(directory, 200);
+        SegmentedLog lagging = new SegmentedLog(directory, 200);
+        Message deleted = new Message("deleted");
+        Message alsoDeleted = new Message("alsoDeleted");
+        Message remaining = new Message("remaining");
+
+        writer.push(deleted);
+        assertEquals(1, lagging.size());
+
+        // the tombstone lands in the segment the lagging log has only partly replayed, then the writer rolls over
+        writer.delete(deleted.getReceiptHandle());
+        writer.push(alsoDeleted);
+        writer.push(remaining);
+        writer.delete(alsoDeleted.getReceiptHandle());
+        assertEquals(2, writer.segmentCount());
+        assertEquals(1, writer.deleteAckedSegments());
+
+        assertEquals(1, lagging.size());
+        assertEquals(remaining.getId(), lagging.pull(inVisibilityDuration).get().getId());
+    }
+}
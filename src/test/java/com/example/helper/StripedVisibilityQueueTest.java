@@ -0,0 +1,128 @@
+package com.example.helper;
+
+import com.example.model.Message;
+import com.google.common.collect.Sets;
+import org.junit.After;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StripedVisibilityQueueTest {
+    private static final Duration inVisibilityDuration = Duration.ofSeconds(5);
+    private ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void poll_shouldStealFromOtherStripes_whenOwnStripeIsEmpty() throws Exception {
+        StripedVisibilityQueue queue = new StripedVisibilityQueue(4, StripePlacement.THREAD_AFFINITY);
+        Message message = new Message("hello");
+        // pushed from another thread, which may stick to another stripe
+        executor.submit(() -> queue.offer(message)).get();
+
+        assertEquals(message, queue.poll(inVisibilityDuration));
+        assertNull(queue.poll(inVisibilityDuration));
+    }
+
+    @Test
+    public void poll_shouldKeepOrderOfMessagesPushedByAThread_withThreadAffinity() {
+        StripedVisibilityQueue queue = new StripedVisibilityQueue(4, StripePlacement.THREAD_AFFINITY);
+        Message first = new Message("first");
+        Message second = new Message("second");
+        queue.offer(first);
+        queue.offer(second);
+
+        assertEquals(first, queue.poll(inVisibilityDuration));
+        assertEquals(second, queue.poll(inVisibilityDuration));
+    }
+
+    @Test
+    public void remove_shouldFindMessageInAnyStripe() {
+        StripedVisibilityQueue queue = new StripedVisibilityQueue(4, StripePlacement.RANDOM_PROBE);
+        Message message = new Message("hello");
+        queue.offer(message);
+
+        assertTrue(queue.remove(message.getReceiptHandle()));
+        assertFalse(queue.remove(message.getReceiptHandle()));
+        assertNull(queue.poll(inVisibilityDuration));
+    }
+
+    @Test
+    public void pollWithMaxWait_shouldWakeUp_whenMessageIsOfferedToAnyStripe() throws Exception {
+        StripedVisibilityQueue queue = new StripedVisibilityQueue(4, StripePlacement.RANDOM_PROBE);
+        Message message = new Message("hello");
+        Future<Message> waiting = executor.submit(() -> queue.poll(inVisibilityDuration, Duration.ofSeconds(10)));
+        Thread.sleep(100);
+        queue.offer(message);
+
+        assertEquals(message, waiting.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void pollWithMaxWait_shouldWakeUp_everyWaitingConsumer_whenMessagesAreOfferedOneByOne() throws Exception {
+        StripedVisibilityQueue queue = new StripedVisibilityQueue(4, StripePlacement.RANDOM_PROBE);
+        Set<Future<Message>> waiting = Sets.newHashSet();
+        for (int consumer = 0; consumer < 6; consumer++) {
+            waiting.add(executor.submit(() -> queue.poll(inVisibilityDuration, Duration.ofSeconds(10))));
+        }
+        Thread.sleep(100);
+        for (int i = 0; i < 6; i++) {
+            queue.offer(new Message("hello" + i));
+        }
+
+        Set<String> pulled = Sets.newHashSet();
+        for (Future<Message> consumer : waiting) {
+            pulled.add(consumer.get(5, TimeUnit.SECONDS).getReceiptHandle());
+        }
+        assertEquals(6, pulled.size());
+    }
+
+    @Test
+    public void pollWithMaxWait_shouldWakeUp_whenLeaseOfAnyStripeExpires() throws Exception {
+        StripedVisibilityQueue queue = new StripedVisibilityQueue(4, StripePlacement.THREAD_AFFINITY);
+        Message message = new Message("id", "rh", "hello", LocalDateTime.now().plus(Duration.ofMillis(200)));
+        queue.offer(message);
+
+        assertEquals(message, queue.poll(inVisibilityDuration, Duration.ofSeconds(5)));
+    }
+
+    @Test
+    public void poll_shouldDeliverEveryMessageOnce_toConcurrentProducersAndConsumers() throws Exception {
+        StripedVisibilityQueue queue = new StripedVisibilityQueue(4, StripePlacement.RANDOM_PROBE);
+        Set<String> pulled = ConcurrentHashMap.newKeySet();
+        for (int producer = 0; producer < 4; producer++) {
+            executor.submit(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    queue.offer(new Message("hello"));
+                }
+            });
+        }
+        Set<Future<?>> consumers = Sets.newHashSet();
+        for (int consumer = 0; consumer < 4; consumer++) {
+            consumers.add(executor.submit(() -> {
+                Message message;
+                while ((message = queue.poll(inVisibilityDuration, Duration.ofMillis(500))) != null) {
+                    assertTrue(pulled.add(message.getReceiptHandle()));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> consumer : consumers) {
+            consumer.get(30, TimeUnit.SECONDS);
+        }
+
+        assertEquals(4000, pulled.size());
+    }
+}
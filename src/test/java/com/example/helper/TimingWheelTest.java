@@ -0,0 +1,69 @@
+package com.example.helper;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+    private static final long start = 1_000_000L;
+
+    @Test
+    public void advance_shouldExpireValues_atTheirDeadline_acrossLevels() {
+        TimingWheel<String> wheel = new TimingWheel<>(Duration.ofMillis(1), start);
+        wheel.schedule("level 2", start + 3 * 64 * 64 + 17);
+        wheel.schedule("level 0", start + 5);
+        wheel.schedule("level 1", start + 100);
+        List<String> expired = Lists.newArrayList();
+
+        wheel.advance(start + 4, expired::add);
+        assertTrue(expired.isEmpty());
+        wheel.advance(start + 5, expired::add);
+        assertEquals(Lists.newArrayList("level 0"), expired);
+        wheel.advance(start + 3 * 64 * 64 + 16, expired::add);
+        assertEquals(Lists.newArrayList("level 0", "level 1"), expired);
+        wheel.advance(start + 3 * 64 * 64 + 17, expired::add);
+        assertEquals(Lists.newArrayList("level 0", "level 1", "level 2"), expired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void advance_shouldNeverExpireValues_earlyOrMoreThanATickLate() {
+        TimingWheel<Long> wheel = new TimingWheel<>(Duration.ofMillis(10), start);
+        Random random = new Random(42);
+        Map<Long, Long> expiredAt = new ConcurrentHashMap<>();
+        List<Long> deadlines = Lists.newArrayList();
+        for (int i = 0; i < 10_000; i++) {
+            long deadline = start + random.nextInt(3_000_000);
+            deadlines.add(deadline);
+            assertTrue(wheel.schedule(deadline, deadline));
+        }
+
+        long now = start;
+        while (wheel.size() > 0) {
+            now += random.nextInt(10);
+            long time = now;
+            wheel.advance(now, deadline -> expiredAt.put(deadline, time));
+        }
+        for (Long deadline : deadlines) {
+            assertTrue(expiredAt.get(deadline) >= deadline);
+            assertTrue(expiredAt.get(deadline) < deadline + 20);
+        }
+    }
+
+    @Test
+    public void schedule_shouldReturn_False_ifDeadlineIsPast() {
+        TimingWheel<String> wheel = new TimingWheel<>(Duration.ofMillis(10), start);
+        wheel.advance(start + 100, value -> fail());
+
+        assertFalse(wheel.schedule("past", start + 50));
+        assertTrue(wheel.schedule("next tick", start + 101));
+        assertEquals(1, wheel.size());
+    }
+}